@@ -0,0 +1,68 @@
+package com.clientum.signer.bench;
+
+import com.clientum.signer.verifactu.VerifactuService;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput del encadenado VeriFactu (en memoria, sin diario): registro individual,
+ * registro masivo de 1000 facturas y, como referencia, la huella calculada con
+ * String.join + getBytes + MessageDigest nuevo por factura (implementación anterior).
+ *
+ * Ejecutar con: mvn -Pbench compile exec:exec -Djmh.args="ChainHashingBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChainHashingBenchmark {
+
+    private static final int BULK = 1000;
+
+    private VerifactuService service;
+    private Map<String, Object> factura;
+    private List<Map<String, Object>> lote;
+    private String anterior = "INIT";
+    private long numero;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        service = new VerifactuService();
+        factura = Map.of("serie", "A", "ejercicio", 2025, "emisorNif", "B12345678",
+                "receptorNif", "A87654321", "fecha", "2025-06-30", "total", "121.00");
+        lote = new ArrayList<>(BULK);
+        for (int i = 0; i < BULK; i++) lote.add(Map.of("serie", "M", "ejercicio", 2025, "emisorNif", "B12345678",
+                "receptorNif", "A87654321", "fecha", "2025-06-30", "total", i + ".00"));
+    }
+
+    @Benchmark
+    public VerifactuService.RegistroResult registro() {
+        return service.generarRegistro(factura);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BULK)
+    public List<VerifactuService.RegistroResult> registroMasivo() {
+        return service.generarRegistros(lote);
+    }
+
+    @Benchmark
+    public String huellaStringJoin() throws Exception {
+        numero++;
+        String canon = String.join("|", "B12345678", "A87654321", "A", String.valueOf(numero), "2025",
+                "2025-06-30", "121.00");
+        byte[] dig = MessageDigest.getInstance("SHA-256")
+                .digest((canon + "|" + anterior).getBytes(StandardCharsets.UTF_8));
+        anterior = Base64.getUrlEncoder().withoutPadding().encodeToString(dig);
+        return anterior;
+    }
+}
@@ -0,0 +1,145 @@
+package com.clientum.signer.bench;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Datos generados en memoria para que los benchmarks funcionen sin red ni ficheros:
+ * p12 autofirmados RSA o EC, cadenas de certificados y Facturae sintéticas del tamaño pedido.
+ */
+public final class Fixtures {
+
+    public static final String ALIAS = "bench";
+    public static final char[] PASSWORD = "bench".toCharArray();
+
+    private static final Map<String, byte[]> P12 = new ConcurrentHashMap<>();
+
+    private Fixtures() { }
+
+    /** PKCS#12 con una clave RSA de {@code bits} y su certificado autofirmado (cacheado por tamaño). */
+    public static byte[] p12(int bits) {
+        return p12("RSA", bits);
+    }
+
+    /** Como {@link #p12(int)} con clave RSA o EC; en EC, {@code bits} es la curva (256, 384 o 521). */
+    public static byte[] p12(String keyAlg, int bits) {
+        return P12.computeIfAbsent(keyAlg + ":" + bits, k -> generateP12(keyAlg, bits)).clone();
+    }
+
+    public static KeyStore.PrivateKeyEntry keyEntry(int bits) throws Exception {
+        return keyEntry("RSA", bits);
+    }
+
+    public static KeyStore.PrivateKeyEntry keyEntry(String keyAlg, int bits) throws Exception {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        ks.load(new java.io.ByteArrayInputStream(p12(keyAlg, bits)), PASSWORD);
+        return (KeyStore.PrivateKeyEntry) ks.getEntry(ALIAS, new KeyStore.PasswordProtection(PASSWORD));
+    }
+
+    /**
+     * Cadena RSA 2048 de {@code length} certificados: firmante primero, raíz autofirmada al final
+     * (típico de un certificado cualificado: firmante + subordinada + raíz).
+     */
+    public static List<X509Certificate> chain(int length) {
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+            kpg.initialize(2048);
+            List<X509Certificate> out = new ArrayList<>(length);
+            KeyPair issuerKp = kpg.generateKeyPair();
+            X500Name issuer = new X500Name("CN=Clientum Bench Root,O=Clientum,C=ES");
+            out.add(certificate(issuer, issuerKp, issuer, issuerKp, 1));
+            for (int i = 1; i < length; i++) {
+                KeyPair kp = kpg.generateKeyPair();
+                X500Name dn = new X500Name("CN=Clientum Bench " + i + ",O=Clientum,C=ES");
+                out.add(0, certificate(dn, kp, issuer, issuerKp, i + 1));
+                issuer = dn;
+                issuerKp = kp;
+            }
+            return out;
+        } catch (Exception e) {
+            throw new IllegalStateException("No se pudo generar la cadena de benchmark", e);
+        }
+    }
+
+    private static X509Certificate certificate(X500Name subject, KeyPair kp, X500Name issuer, KeyPair issuerKp,
+                                               long serial) throws Exception {
+        Instant now = Instant.now();
+        return new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(issuer, BigInteger.valueOf(serial),
+                        Date.from(now.minus(1, ChronoUnit.DAYS)), Date.from(now.plus(365, ChronoUnit.DAYS)),
+                        subject, kp.getPublic())
+                        .build(new JcaContentSignerBuilder("SHA256withRSA").build(issuerKp.getPrivate())));
+    }
+
+    private static byte[] generateP12(String keyAlg, int bits) {
+        try {
+            boolean ec = keyAlg.equals("EC");
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance(keyAlg);
+            if (ec) kpg.initialize(new ECGenParameterSpec("secp" + bits + "r1"));
+            else kpg.initialize(bits);
+            KeyPair kp = kpg.generateKeyPair();
+
+            X500Name dn = new X500Name("CN=Clientum Bench " + keyAlg + " " + bits + ",O=Clientum,C=ES");
+            Instant now = Instant.now();
+            X509Certificate cert = new JcaX509CertificateConverter().getCertificate(
+                    new JcaX509v3CertificateBuilder(dn, BigInteger.valueOf(now.toEpochMilli()),
+                            Date.from(now.minus(1, ChronoUnit.DAYS)), Date.from(now.plus(365, ChronoUnit.DAYS)),
+                            dn, kp.getPublic())
+                            .build(new JcaContentSignerBuilder(ec ? "SHA256withECDSA" : "SHA256withRSA")
+                                    .build(kp.getPrivate())));
+
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            ks.load(null, null);
+            ks.setKeyEntry(ALIAS, kp.getPrivate(), PASSWORD, new Certificate[]{cert});
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ks.store(out, PASSWORD);
+            return out.toByteArray();
+        } catch (Exception e) {
+            throw new IllegalStateException("No se pudo generar el p12 de benchmark", e);
+        }
+    }
+
+    /** Facturae 3.2.2 sintética de aproximadamente {@code targetBytes} (líneas de factura repetidas). */
+    public static byte[] facturae(int targetBytes) {
+        StringBuilder sb = new StringBuilder(targetBytes + 2048);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+          .append("<fe:Facturae xmlns:fe=\"http://www.facturae.gob.es/formato/Versiones/Facturaev3_2_2.xml\">\n")
+          .append("<FileHeader><SchemaVersion>3.2.2</SchemaVersion><Modality>I</Modality>")
+          .append("<InvoiceIssuerType>EM</InvoiceIssuerType></FileHeader>\n")
+          .append("<Parties><SellerParty><TaxIdentification><PersonTypeCode>J</PersonTypeCode>")
+          .append("<ResidenceTypeCode>R</ResidenceTypeCode><TaxIdentificationNumber>B12345678</TaxIdentificationNumber>")
+          .append("</TaxIdentification></SellerParty></Parties>\n")
+          .append("<Invoices><Invoice><InvoiceHeader><InvoiceNumber>1</InvoiceNumber>")
+          .append("<InvoiceSeriesCode>A</InvoiceSeriesCode></InvoiceHeader><Items>\n");
+        String tail = "</Items><InvoiceTotals><InvoiceTotal>121.00</InvoiceTotal></InvoiceTotals>"
+                + "</Invoice></Invoices>\n</fe:Facturae>";
+        int line = 0;
+        while (sb.length() + tail.length() < targetBytes) {
+            line++;
+            sb.append("<InvoiceLine><ItemDescription>Servicio de consultoría línea ").append(line)
+              .append("</ItemDescription><Quantity>1.0</Quantity><UnitPriceWithoutTax>100.00</UnitPriceWithoutTax>")
+              .append("<TotalCost>100.00</TotalCost><GrossAmount>100.00</GrossAmount></InvoiceLine>\n");
+        }
+        sb.append(tail);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,108 @@
+package com.clientum.signer.bench;
+
+import com.clientum.signer.crypto.KeyInfoTemplates;
+import com.clientum.signer.crypto.XmlPools;
+import org.apache.xml.security.Init;
+import org.apache.xml.security.keys.KeyInfo;
+import org.apache.xml.security.keys.content.X509Data;
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.crypto.dom.DOMStructure;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste del KeyInfo por firma: generarlo (DER + Base64 de cada certificado y RSAKeyValue)
+ * frente a materializar la plantilla de {@link KeyInfoTemplates}, con Santuario
+ * (service.XmlSigner: X509Data + KeyValue) y con JSR-105 (crypto.XmlSigner: X509Data).
+ * {@code chainLength} = certificados en el X509Data (firmante, subordinadas y raíz).
+ *
+ * Ejecutar con: mvn -Pbench compile exec:exec -Djmh.args="KeyInfoBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyInfoBenchmark {
+
+    static {
+        Init.init();
+    }
+
+    @Param({"1", "3"})
+    public int chainLength;
+
+    private List<X509Certificate> chain;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        chain = Fixtures.chain(chainLength);
+        KeyInfoTemplates.santuario(chain, true);
+        KeyInfoTemplates.jsr105(chain);
+    }
+
+    @Benchmark
+    public Element santuarioRender() throws Exception {
+        Document doc = newDocument();
+        KeyInfo ki = new KeyInfo(doc);
+        X509Data x509 = new X509Data(doc);
+        for (X509Certificate c : chain) x509.addCertificate(c);
+        ki.add(x509);
+        ki.addKeyValue(chain.get(0).getPublicKey());
+        return ki.getElement();
+    }
+
+    @Benchmark
+    public Element santuarioTemplate() throws Exception {
+        Document doc = newDocument();
+        Element ki = new KeyInfo(doc).getElement();
+        KeyInfoTemplates.santuario(chain, true).replaceChildren(ki);
+        return ki;
+    }
+
+    @Benchmark
+    public Element jsr105Render() throws Exception {
+        Document doc = newDocument();
+        Element holder = holder(doc);
+        try (var lease = XmlPools.signatureFactory()) {
+            KeyInfoFactory kif = lease.get().getKeyInfoFactory();
+            marshal(kif.newKeyInfo(List.of(kif.newX509Data(chain))), holder);
+        }
+        return holder;
+    }
+
+    @Benchmark
+    public Element jsr105Template() throws Exception {
+        Document doc = newDocument();
+        Element holder = holder(doc);
+        try (var lease = XmlPools.signatureFactory()) {
+            XMLSignatureFactory fac = lease.get();
+            marshal(fac.getKeyInfoFactory().newKeyInfo(KeyInfoTemplates.jsr105(chain).structures(doc)), holder);
+        }
+        return holder;
+    }
+
+    private void marshal(javax.xml.crypto.dsig.keyinfo.KeyInfo ki, Element holder) throws Exception {
+        ki.marshal(new DOMStructure(holder), new DOMSignContext(chain.get(0).getPublicKey(), holder));
+    }
+
+    private static Element holder(Document doc) {
+        Element holder = doc.createElementNS(null, "holder");
+        doc.appendChild(holder);
+        return holder;
+    }
+
+    private static Document newDocument() {
+        try (var db = XmlPools.documentBuilder()) {
+            return db.get().newDocument();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.clientum.signer.bench;
+
+import com.clientum.signer.crypto.KeyMaterialCache;
+import com.clientum.signer.crypto.Pkcs12Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodificación del p12 por petición: cold (caché vacía, PBKDF + descifrado completos)
+ * frente a warm (entrada ya en {@link KeyMaterialCache}).
+ *
+ * Ejecutar con: mvn -Pbench compile exec:exec -Djmh.args="KeyLoadingBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyLoadingBenchmark {
+
+    @Param({"2048", "4096"})
+    public int keyBits;
+
+    private byte[] p12;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        p12 = Fixtures.p12(keyBits);
+    }
+
+    @Benchmark
+    public KeyStore.PrivateKeyEntry cold() throws Exception {
+        KeyMaterialCache.shared().clear();
+        return Pkcs12Utils.loadEntry(p12, Fixtures.PASSWORD, null, Fixtures.PASSWORD);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public KeyStore.PrivateKeyEntry warm() throws Exception {
+        return Pkcs12Utils.loadEntry(p12, Fixtures.PASSWORD, null, Fixtures.PASSWORD);
+    }
+}
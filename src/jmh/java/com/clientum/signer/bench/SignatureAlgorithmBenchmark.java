@@ -0,0 +1,47 @@
+package com.clientum.signer.bench;
+
+import com.clientum.signer.crypto.SignatureAlgorithm;
+import com.clientum.signer.service.StreamingXmlSigner;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Firmas por segundo de cada algoritmo (ver {@link SignatureAlgorithm}) sobre una Facturae
+ * pequeña, con el firmador streaming para que domine la operación de clave privada.
+ * {@code algorithm} = "ALGORITMO:bits" (en EC, bits = curva: 256 → P-256, 384 → P-384).
+ *
+ * Ejecutar con: mvn -Pbench compile exec:exec -Djmh.args="SignatureAlgorithmBenchmark"
+ * Con hilos: -Djmh.args="SignatureAlgorithmBenchmark -t 4"
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignatureAlgorithmBenchmark {
+
+    @Param({"RSA_SHA256:2048", "RSA_SHA256:4096", "RSA_PSS_SHA256:2048", "RSA_PSS_SHA256:4096",
+            "ECDSA_SHA256:256", "ECDSA_SHA384:384"})
+    public String algorithm;
+
+    private byte[] xml;
+    private KeyStore.PrivateKeyEntry key;
+    private SignatureAlgorithm alg;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String[] p = algorithm.split(":");
+        alg = SignatureAlgorithm.valueOf(p[0]);
+        key = Fixtures.keyEntry(p[0].startsWith("ECDSA") ? "EC" : "RSA", Integer.parseInt(p[1]));
+        xml = Fixtures.facturae(2 * 1024);
+    }
+
+    @Benchmark
+    public long sign() throws Exception {
+        return StreamingXmlSigner.prepare(ByteBuffer.wrap(xml), key, alg).length();
+    }
+}
@@ -0,0 +1,80 @@
+package com.clientum.signer.bench;
+
+import com.clientum.signer.crypto.SignatureAlgorithm;
+import com.clientum.signer.crypto.SignatureEngines;
+import com.clientum.signer.crypto.SignatureProviders;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste de la operación de firma sobre un SignedInfo típico por proveedor y por forma de obtener
+ * el Signature: {@code fresh} (getInstance + initSign en cada firma, lo de antes),
+ * {@code reused} (inicializado una vez) y {@code cache} ({@link SignatureEngines}, con
+ * SIGNER_SIGNATURE_PROVIDER = {@code provider}). El modo auto elige, para cada algoritmo, el
+ * {@code provider} más rápido en {@code reused}.
+ *
+ * Ejecutar con: mvn -Pbench compile exec:exec -Djmh.args="SignatureEngineBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignatureEngineBenchmark {
+
+    @Param({"RSA_SHA256:2048", "RSA_PSS_SHA256:2048", "ECDSA_SHA256:256", "ECDSA_SHA384:384"})
+    public String algorithm;
+
+    @Param({"jdk", "BC"})
+    public String provider;
+
+    @Param({"fresh", "reused", "cache"})
+    public String engine;
+
+    private static final byte[] SIGNED_INFO = ("<ds:SignedInfo xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">"
+            + "<ds:CanonicalizationMethod Algorithm=\"http://www.w3.org/TR/2001/REC-xml-c14n-20010315\"/>"
+            + "<ds:Reference URI=\"\"><ds:DigestValue>47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=</ds:DigestValue>"
+            + "</ds:Reference></ds:SignedInfo>").getBytes(StandardCharsets.UTF_8);
+
+    private SignatureAlgorithm alg;
+    private PrivateKey key;
+    private Provider jca;
+    private Signature reused;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String[] p = algorithm.split(":");
+        alg = SignatureAlgorithm.valueOf(p[0]);
+        KeyStore.PrivateKeyEntry entry = Fixtures.keyEntry(alg.keyType(), Integer.parseInt(p[1]));
+        key = entry.getPrivateKey();
+        jca = provider.equals("BC") ? new BouncyCastleProvider() : null;
+        // cada combinación va en su fork: el proveedor fijado vale para todo el trial
+        SignatureProviders.configure(provider, 150);
+        reused = alg.newSignature(jca);
+        reused.initSign(key);
+    }
+
+    @Benchmark
+    public byte[] sign() throws Exception {
+        switch (engine) {
+            case "fresh":
+                Signature s = alg.newSignature(jca);
+                s.initSign(key);
+                s.update(SIGNED_INFO);
+                return s.sign();
+            case "reused":
+                reused.update(SIGNED_INFO);
+                return reused.sign();
+            default:
+                return SignatureEngines.sign(key, alg, SIGNED_INFO);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.clientum.signer.bench;
+
+import com.clientum.signer.service.StreamingXmlSigner;
+import com.clientum.signer.service.XmlSigner;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Firma completa de una Facturae por tamaño de documento, tamaño de clave y backend:
+ * dom (service.XmlSigner, /api/sign/xml), facturae (crypto.XmlSigner, /api/facturae/sign)
+ * y streaming (StreamingXmlSigner, sin DOM).
+ *
+ * Todo: mvn -Pbench compile exec:exec -Djmh.args="SigningBenchmark -prof gc"
+ * Un caso: -Djmh.args="SigningBenchmark -p sizeKb=1024 -p keyBits=2048 -p backend=streaming -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class SigningBenchmark {
+
+    @Param({"2", "100", "1024", "20480"})
+    public int sizeKb;
+
+    @Param({"2048", "4096"})
+    public int keyBits;
+
+    @Param({"dom", "facturae", "streaming"})
+    public String backend;
+
+    private byte[] xml;
+    private String xmlText;
+    private KeyStore.PrivateKeyEntry key;
+    private PrivateKey privateKey;
+    private X509Certificate cert;
+    private XmlSigner domSigner;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        xml = Fixtures.facturae(sizeKb * 1024);
+        xmlText = new String(xml, StandardCharsets.UTF_8);
+        key = Fixtures.keyEntry(keyBits);
+        privateKey = key.getPrivateKey();
+        cert = (X509Certificate) key.getCertificate();
+        domSigner = new XmlSigner(); // sin bulkhead: se mide sólo la firma
+    }
+
+    @Benchmark
+    public int sign() throws Exception {
+        switch (backend) {
+            case "dom":
+                return domSigner.signXml(xmlText, key).length();
+            case "facturae":
+                return com.clientum.signer.crypto.XmlSigner.signEnveloped(xml, privateKey, cert).length;
+            default:
+                ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length + 8192);
+                StreamingXmlSigner.sign(xml, key, out);
+                return out.size();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.clientum.signer.bench;
+
+import com.clientum.signer.crypto.XmlPools;
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coste de la infraestructura XML por petición (parse + fábrica de firma + serialización)
+ * creando factorías en cada llamada (comportamiento anterior) frente a {@link XmlPools}.
+ *
+ * Ejecutar con: mvn -Pbench compile exec:exec -Djmh.args="XmlPoolsBenchmark -prof gc"
+ * y comparar us/op y gc.alloc.rate.norm (bytes/op) entre ambos métodos.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XmlPoolsBenchmark {
+
+    private byte[] xml;
+
+    @Setup
+    public void setup() {
+        xml = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<fe:Facturae xmlns:fe=\"http://www.facturae.gob.es/formato/Versiones/Facturaev3_2_2.xml\">"
+                + "<FileHeader><SchemaVersion>3.2.2</SchemaVersion></FileHeader>"
+                + "<Invoices><Invoice><InvoiceHeader><InvoiceNumber>1</InvoiceNumber></InvoiceHeader>"
+                + "<InvoiceTotals><InvoiceTotal>121.00</InvoiceTotal></InvoiceTotals></Invoice></Invoices>"
+                + "</fe:Facturae>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] fresh() throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+
+        XMLSignatureFactory fac = XMLSignatureFactory.getInstance("DOM");
+        fac.newDigestMethod(DigestMethod.SHA256, null);
+
+        Transformer t = TransformerFactory.newInstance().newTransformer();
+        t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
+        t.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        t.setOutputProperty(OutputKeys.INDENT, "no");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length + 4096);
+        t.transform(new DOMSource(doc), new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] pooled() throws Exception {
+        Document doc;
+        try (var db = XmlPools.documentBuilder()) {
+            doc = db.get().parse(new ByteArrayInputStream(xml));
+        }
+
+        try (var fac = XmlPools.signatureFactory()) {
+            fac.get().newDigestMethod(DigestMethod.SHA256, null);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length + 4096);
+        try (var t = XmlPools.transformer()) {
+            t.get().transform(new DOMSource(doc), new StreamResult(out));
+        }
+        return out.toByteArray();
+    }
+}
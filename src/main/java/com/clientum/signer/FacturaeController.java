@@ -1,29 +1,160 @@
 package com.clientum.signer;
 
 import com.clientum.signer.crypto.Pkcs12Utils;
+import com.clientum.signer.crypto.SignatureAlgorithm;
+import com.clientum.signer.crypto.SigningMetrics;
 import com.clientum.signer.crypto.XmlSigner;
+import com.clientum.signer.service.IdempotencyCache;
+import com.clientum.signer.service.SigningBulkhead;
+import com.clientum.signer.service.SpooledUpload;
+import com.clientum.signer.service.StreamingXmlSigner;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.w3c.dom.Document;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.Callable;
 
 @RestController
 @RequestMapping("/api/facturae")
 public class FacturaeController {
 
+    private final SigningBulkhead bulkhead;
+    private final IdempotencyCache idempotency;
+    private final long mapThreshold;
+    private final Path spoolDir;
+
+    public FacturaeController(SigningBulkhead bulkhead, IdempotencyCache idempotency,
+                              @Value("${spring.servlet.multipart.file-size-threshold}") DataSize mapThreshold,
+                              @Value("${spring.servlet.multipart.location}") String spoolDir) {
+        this.bulkhead = bulkhead;
+        this.idempotency = idempotency;
+        this.mapThreshold = mapThreshold.toBytes();
+        this.spoolDir = Path.of(spoolDir);
+    }
+
+    /**
+     * El XML no se copia al heap: si supera file-size-threshold se lee mapeado desde el fichero
+     * temporal del multipart (ver {@link SpooledUpload}) y el resultado se escribe directamente
+     * en la respuesta. El temporal se borra al terminar la petición. Esto sólo deja el heap plano
+     * con {@code streaming=true}: sin él, XmlSigner construye el DOM del documento entero.
+     *
+     * Un reintento (Idempotency-Key o mismo documento, certificado y opciones) devuelve la firma
+     * anterior desde {@link IdempotencyCache}; para cachearla, el resultado se firma en memoria.
+     */
     @PostMapping(value = "/sign", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public ResponseEntity<byte[]> sign(
+    public void sign(
             @RequestParam("xml") MultipartFile xml,
             @RequestParam("p12") MultipartFile p12,
-            @RequestParam("password") String password
+            @RequestParam("password") String password,
+            // streaming=true: firma sin DOM con el formato de service.XmlSigner (exc-c14n + KeyValue)
+            @RequestParam(value = "streaming", defaultValue = "false") boolean streaming,
+            // algorithm: RSA_PSS_SHA256, ECDSA_SHA256... (por defecto, según el tipo de clave)
+            @RequestParam(value = "algorithm", required = false) String algorithm,
+            @RequestHeader(value = IdempotencyCache.HEADER, required = false) String idempotencyKey,
+            HttpServletRequest request,
+            HttpServletResponse response
     ) throws Exception {
-        var km = Pkcs12Utils.load(p12.getBytes(), password.toCharArray());
-        byte[] signed = XmlSigner.signEnveloped(xml.getBytes(), km.privateKey, km.certificate);
+        try (SpooledUpload doc = SpooledUpload.of(xml, mapThreshold, spoolDir)) {
+            if (idempotency.accepts(idempotencyKey, doc.size())) {
+                IdempotencyCache.Result r = idempotency.execute(request, idempotencyKey, "facturae", doc.size(),
+                        () -> IdempotencyCache.fingerprint(key(p12, password).getCertificate(),
+                                doc.buffer(), algorithm, String.valueOf(streaming)),
+                        () -> {
+                            // Sólo es una pista de capacidad: un documento de más de 2 GB no cabe en un array
+                            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                                    Math.min(doc.size(), Integer.MAX_VALUE - 8 - 8192) + 8192);
+                            SignatureAlgorithm alg = sign(doc, p12, password, streaming, algorithm, length -> out);
+                            return new IdempotencyCache.Result(out.toByteArray(), alg.name());
+                        });
+                ok(response, r.body().length);
+                if (r.replayed()) response.setHeader(IdempotencyCache.REPLAYED_HEADER, "true");
+                response.getOutputStream().write(r.body());
+            } else {
+                sign(doc, p12, password, streaming, algorithm, length -> {
+                    ok(response, length);
+                    return response.getOutputStream();
+                });
+            }
+            response.flushBuffer();
+        }
+    }
+
+    /** Destino de la firma: se pide cuando ya está calculada ({@code length} -1 si no se conoce). */
+    @FunctionalInterface
+    private interface Target {
+        OutputStream open(long length) throws IOException;
+    }
+
+    /**
+     * Firma y, sólo si ha ido bien, escribe en {@code target}: hasta entonces no se ha fijado
+     * nada de la respuesta y un error sale como 4xx/5xx y no como un 200 truncado.
+     */
+    private SignatureAlgorithm sign(SpooledUpload doc, MultipartFile p12, String password, boolean streaming,
+                                    String algorithm, Target target) throws Exception {
+        return SigningMetrics.timed("facturae", streaming ? "streaming" : "facturae", doc.size(), () -> {
+            KeyStore.PrivateKeyEntry entry = key(p12, password);
+            SignatureAlgorithm alg = algorithm(entry.getPrivateKey(), algorithm);
+            if (streaming) {
+                StreamingXmlSigner.Prepared signed = xml(() -> StreamingXmlSigner.prepare(doc.buffer(), entry, alg));
+                signed.writeTo(target.open(signed.length()));
+                return alg;
+            }
+            Document signed = xml(() -> XmlSigner.signEnveloped(doc.inputStream(), entry.getPrivateKey(),
+                    (X509Certificate) entry.getCertificate(), alg));
+            XmlSigner.serialize(signed, target.open(-1));
+            return alg;
+        });
+    }
+
+    private static void ok(HttpServletResponse response, long length) {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(MediaType.APPLICATION_XML_VALUE);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=facturae-signed.xml");
+        if (length >= 0) response.setContentLengthLong(length);
+    }
+
+    private static KeyStore.PrivateKeyEntry key(MultipartFile p12, String password) {
+        char[] pwd = password.toCharArray();
+        try {
+            return Pkcs12Utils.loadEntry(p12.getBytes(), pwd, null, pwd);
+        } catch (Exception ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "No se pudo leer el .p12 (¿contraseña correcta?): " + ex.getMessage(), ex);
+        }
+    }
+
+    /** Firma dentro del bulkhead; un XML mal formado es un 400. */
+    private <T> T xml(Callable<T> work) throws Exception {
+        try {
+            return bulkhead.call(work);
+        } catch (SAXException | XMLStreamException | IllegalStateException | IllegalArgumentException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "XML no válido: " + ex.getMessage(), ex);
+        }
+    }
 
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=facturae-signed.xml")
-                .contentType(MediaType.APPLICATION_XML)
-                .body(signed);
+    private static SignatureAlgorithm algorithm(Key key, String requested) {
+        try {
+            return SignatureAlgorithm.negotiate(key, requested);
+        } catch (IllegalStateException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+        }
     }
 }
@@ -1,11 +1,27 @@
 package com.clientum.signer;
 
+import com.clientum.signer.crypto.SignatureProviders;
+import com.clientum.signer.verifactu.ChainAuditor;
+import org.apache.xml.security.Init;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
+import java.util.Arrays;
+
 @SpringBootApplication
 public class SignerApplication {
   public static void main(String[] args) {
+    // Modo CLI: auditoría de una cadena VeriFactu exportada, sin levantar el servidor
+    if (args.length > 0 && ChainAuditor.CLI.equals(args[0])) {
+      System.exit(ChainAuditor.cli(Arrays.copyOfRange(args, 1, args.length)));
+    }
+    // Init.init() de Santuario (algoritmos, resource resolvers...) en paralelo con el arranque del
+    // contexto, en vez de en el bloque estático de XmlSigner en mitad del refresh.
+    Thread.ofPlatform().name("xmlsec-init").daemon().start(() -> {
+      try { Init.init(); } catch (Throwable ignored) {}
+    });
     SpringApplication.run(SignerApplication.class, args);
+    // Con la aplicación ya sirviendo: elegir proveedor JCA por algoritmo (SIGNER_SIGNATURE_PROVIDER=auto)
+    SignatureProviders.start();
   }
 }
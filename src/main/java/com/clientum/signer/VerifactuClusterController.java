@@ -0,0 +1,101 @@
+package com.clientum.signer;
+
+import com.clientum.signer.security.TenantRegistry;
+import com.clientum.signer.verifactu.ChainCluster;
+import com.clientum.signer.verifactu.ChainJournal;
+import com.clientum.signer.verifactu.VerifactuService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Rutas internas del clúster VeriFactu (ver {@link ChainCluster}): sólo entre nodos. */
+@RestController
+@RequestMapping("/api/verifactu/cluster")
+public class VerifactuClusterController {
+
+    private final VerifactuService service;
+    private final ChainCluster cluster;
+
+    public VerifactuClusterController(VerifactuService service, ChainCluster cluster) {
+        this.service = service;
+        this.cluster = cluster;
+    }
+
+    /** {"cadena": "A:2025", "nodo": url}: este nodo deja de registrar en la cadena y devuelve su último estado. */
+    @PostMapping("/ceder")
+    public ResponseEntity<Map<String,Object>> ceder(@RequestBody Map<String,Object> body, HttpServletRequest request) {
+        cluster.autorizar(request);
+        if (!(body.get("cadena") instanceof String cadena) || !(body.get("nodo") instanceof String nodo)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Indica cadena y nodo");
+        }
+        VerifactuService.Cesion c = cluster.ceder(cadena, nodo);
+        Map<String,Object> out = new LinkedHashMap<>();
+        out.put("numero", c.numero());
+        out.put("huella", c.huella());
+        out.put("propia", c.propia());
+        if (c.cedidaA() != null) out.put("cedidaA", c.cedidaA());
+        return ResponseEntity.ok(out);
+    }
+
+    /**
+     * Acción de operador, {"cadena", "numero", "huella"}: este nodo toma la cadena con ese último
+     * estado aunque un nodo que podía tenerla no responda (p. ej. se cayó y se quitó de la lista).
+     * Los nodos que responden la ceden igual y, si alguno va por delante, gana su estado.
+     */
+    @PostMapping("/importar")
+    public ResponseEntity<Map<String,Object>> importar(@RequestBody Map<String,Object> body, HttpServletRequest request) {
+        cluster.autorizar(request);
+        if (!(body.get("cadena") instanceof String cadena) || !(body.get("numero") instanceof Number numero)
+                || !(body.get("huella") instanceof String huella) || numero.longValue() < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Indica cadena, numero y huella");
+        }
+        ChainJournal.Entry e = cluster.importar(cadena, numero.longValue(), huella);
+        Map<String,Object> out = new LinkedHashMap<>();
+        out.put("cadena", e.key());
+        out.put("numero", e.numero());
+        out.put("huella", e.huella());
+        return ResponseEntity.ok(out);
+    }
+
+    /** {"facturas": [...]}: el registro de cada una en este nodo, null si no está o {"conflicto"} si difiere. */
+    @PostMapping("/consulta")
+    public ResponseEntity<Map<String,Object>> consulta(@RequestBody Map<String,Object> body, HttpServletRequest request) {
+        cluster.autorizar(request);
+        if (!(body.get("facturas") instanceof List<?> facturas)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Debes enviar facturas");
+        }
+        Object tenant = request.getAttribute(TenantRegistry.TENANT_ATTRIBUTE);
+        String ambito = tenant == null ? null : tenant.toString();
+        List<Map<String,Object>> registros = new ArrayList<>(facturas.size());
+        for (Object o : facturas) {
+            if (!(o instanceof Map<?,?> m)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cada factura debe ser un objeto JSON");
+            }
+            @SuppressWarnings("unchecked")
+            Map<String,Object> factura = (Map<String,Object>) m;
+            Map<String,Object> r = null;
+            try {
+                var rr = service.consultar(ambito, factura);
+                if (rr != null) {
+                    r = new LinkedHashMap<>();
+                    r.put("numero", rr.numero);
+                    r.put("huella", rr.huella);
+                    r.put("encadenado", rr.encadenado);
+                }
+            } catch (ResponseStatusException ex) {
+                r = Map.of("conflicto", String.valueOf(ex.getReason()));
+            }
+            registros.add(r);
+        }
+        Map<String,Object> out = new LinkedHashMap<>();
+        out.put("registros", registros);
+        return ResponseEntity.ok(out);
+    }
+}
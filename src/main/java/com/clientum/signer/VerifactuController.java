@@ -1,31 +1,96 @@
 package com.clientum.signer;
 
+import com.clientum.signer.security.TenantRegistry;
+import com.clientum.signer.verifactu.ChainAuditor;
+import com.clientum.signer.verifactu.ChainCluster;
 import com.clientum.signer.verifactu.VerifactuService;
+import com.clientum.signer.verifactu.VerifactuService.RegistroResult;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPInputStream;
 
 @RestController
 @RequestMapping("/api/verifactu")
 public class VerifactuController {
 
-    private final VerifactuService service = new VerifactuService();
+    private final VerifactuService service;
+    private final ChainCluster cluster;
+    private final ChainAuditor auditor;
+    private final int bulkMax;
 
+    public VerifactuController(VerifactuService service, ChainCluster cluster, ChainAuditor auditor,
+                               @Value("${SIGNER_VERIFACTU_BULK_MAX:50000}") int bulkMax) {
+        this.service = service;
+        this.cluster = cluster;
+        this.auditor = auditor;
+        this.bulkMax = bulkMax;
+    }
+
+    /**
+     * Registra la factura; con idFactura, un reintento devuelve el registro original ("existente": true).
+     * En clúster, lo atiende el nodo dueño de su serie-ejercicio.
+     */
     @PostMapping("/rf")
-    public ResponseEntity<Map<String,Object>> registro(@RequestBody Map<String,Object> factura) {
-        var rr = service.generarRegistro(factura);
-        return ResponseEntity.ok(Map.of(
-                "status", "ok",
-                "numero", rr.numero,
-                "huella", rr.huella,
-                "encadenado", rr.encadenado
-        ));
+    public ResponseEntity<Map<String,Object>> registro(@RequestBody Map<String,Object> factura,
+                                                       HttpServletRequest request) {
+        String dueno = cluster.dueno(service.cadena(factura), request);
+        if (dueno != null) return cluster.reenviar(dueno, "/api/verifactu/rf", factura, request);
+
+        String ambito = ambito(request);
+        var rr = anteriores(ambito, List.of(factura), request)[0];
+        if (rr == null) rr = service.generarRegistro(ambito, factura);
+        Map<String,Object> out = new LinkedHashMap<>();
+        out.put("status", "ok");
+        out.put("numero", rr.numero);
+        out.put("huella", rr.huella);
+        out.put("encadenado", rr.encadenado);
+        out.put("existente", rr.existente);
+        return ResponseEntity.ok(out);
     }
 
+    /**
+     * QR de una factura ya registrada, sin avanzar la cadena: por idFactura o por serie/ejercicio/numero.
+     * Un idFactura aún no registrado se registra (una sola vez); sin idFactura ni numero, 400.
+     */
     @PostMapping("/qr")
-    public ResponseEntity<Map<String,String>> qr(@RequestBody Map<String,Object> factura) {
-        var rr = service.generarRegistro(factura); // genera y avanza la cadena
+    public ResponseEntity<Map<String,Object>> qr(@RequestBody Map<String,Object> factura,
+                                                 HttpServletRequest request) {
+        String key = service.cadena(factura);
+        String dueno = cluster.dueno(key, request);
+        if (dueno != null) return cluster.reenviar(dueno, "/api/verifactu/qr", factura, request);
+
+        String ambito = ambito(request);
+        var rr = service.consultar(ambito, factura);
+        if (rr == null && cluster.enabled() && (factura.get("idFactura") != null || factura.get("numero") != null)) {
+            // Puede haberla registrado el nodo que atendía la cadena antes
+            var previos = cluster.consultarAnteriores(key, List.of(factura), request);
+            if (previos != null) rr = previos[0];
+        }
+        if (rr == null) {
+            if (factura.get("numero") != null) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Factura no registrada");
+            }
+            if (factura.get("idFactura") == null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Indica idFactura o numero");
+            }
+            rr = service.generarRegistro(ambito, factura);
+        }
         String csv = service.generarQrCsv(factura, rr);
         return ResponseEntity.ok(Map.of(
                 "status", "ok",
@@ -33,4 +98,207 @@ public class VerifactuController {
                 "qr_csv", csv
         ));
     }
+
+    /**
+     * Registro masivo: {"serie":"A","ejercicio":2025,"facturas":[{...},{...}]}.
+     * serie/ejercicio de cada factura, si faltan, se toman del nivel superior.
+     * Devuelve número, huella, encadenado y qr_csv de cada factura en el orden recibido; con
+     * idFactura, las ya registradas devuelven su registro original. En clúster, cada serie-ejercicio
+     * se registra en su nodo dueño (los de otros nodos se reenvían en paralelo).
+     */
+    @PostMapping("/rf/bulk")
+    public ResponseEntity<Map<String,Object>> registroMasivo(@RequestBody Map<String,Object> body,
+                                                             HttpServletRequest request) {
+        if (!(body.get("facturas") instanceof List<?> raw) || raw.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Debes enviar facturas (lista no vacía)");
+        }
+        if (raw.size() > bulkMax) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Máximo " + bulkMax + " facturas por lote");
+        }
+
+        List<Map<String,Object>> facturas = new ArrayList<>(raw.size());
+        for (Object o : raw) {
+            if (!(o instanceof Map<?,?> m)) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cada factura debe ser un objeto JSON");
+            }
+            @SuppressWarnings("unchecked")
+            Map<String,Object> f = new HashMap<>((Map<String,Object>) m);
+            if (body.containsKey("serie")) f.putIfAbsent("serie", body.get("serie"));
+            if (body.containsKey("ejercicio")) f.putIfAbsent("ejercicio", body.get("ejercicio"));
+            facturas.add(f);
+        }
+
+        List<Integer> locales = new ArrayList<>(facturas.size());
+        Map<String, List<Integer>> remotas = new LinkedHashMap<>();
+        for (int i = 0; i < facturas.size(); i++) {
+            String dueno = cluster.enabled() ? cluster.dueno(service.cadena(facturas.get(i)), request) : null;
+            if (dueno == null) locales.add(i);
+            else remotas.computeIfAbsent(dueno, k -> new ArrayList<>()).add(i);
+        }
+
+        Object[] registros = new Object[facturas.size()];
+        Map<String, CompletableFuture<ResponseEntity<Map<String,Object>>>> enviados = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Integer>> e : remotas.entrySet()) {
+            List<Map<String,Object>> lote = new ArrayList<>(e.getValue().size());
+            for (int i : e.getValue()) lote.add(facturas.get(i));
+            enviados.put(e.getKey(), cluster.reenviarAsync(e.getKey(), "/api/verifactu/rf/bulk", Map.of("facturas", lote), request));
+        }
+
+        // Un nodo que falla no corta el lote: sus facturas llevan su error y el resto se devuelve
+        // (lo ya registrado en los demás nodos no se pierde). Se detalla en "nodos" por nodo.
+        Map<String,Object> nodos = new LinkedHashMap<>();
+        List<Map<String,Object>> propias = new ArrayList<>(locales.size());
+        for (int i : locales) propias.add(facturas.get(i));
+        if (!propias.isEmpty()) {
+            try {
+                List<Map<String,Object>> hechos = registrar(ambito(request), propias, request);
+                for (int j = 0; j < hechos.size(); j++) registros[locales.get(j)] = hechos.get(j);
+            } catch (ResponseStatusException ex) {
+                fallo(nodos, cluster.enabled() ? cluster.self() : "local", error(ex), locales, registros);
+            }
+        }
+
+        for (Map.Entry<String, CompletableFuture<ResponseEntity<Map<String,Object>>>> e : enviados.entrySet()) {
+            List<Integer> idx = remotas.get(e.getKey());
+            ResponseEntity<Map<String,Object>> resp;
+            try {
+                resp = e.getValue().join();
+            } catch (CompletionException ex) {
+                if (!(ex.getCause() instanceof ResponseStatusException rse)) throw ex;
+                fallo(nodos, e.getKey(), error(rse), idx, registros);
+                continue;
+            }
+            if (!resp.getStatusCode().is2xxSuccessful() || resp.getBody() == null
+                    || !(resp.getBody().get("registros") instanceof List<?> rs) || rs.size() != idx.size()) {
+                fallo(nodos, e.getKey(), error(resp), idx, registros);
+                continue;
+            }
+            for (int j = 0; j < rs.size(); j++) registros[idx.get(j)] = rs.get(j);
+        }
+        int errores = 0;
+        for (Object r : registros) {
+            if (r instanceof Map<?,?> m && "error".equals(m.get("status"))) errores++;
+        }
+        // 200 también con errores: lo registrado ya está en la cadena y el cliente debe conocerlo
+        Map<String,Object> out = new LinkedHashMap<>();
+        out.put("status", errores == 0 ? "ok" : "partial");
+        out.put("total", registros.length);
+        out.put("errores", errores);
+        if (!nodos.isEmpty()) out.put("nodos", nodos);
+        out.put("registros", Arrays.asList(registros));
+        return ResponseEntity.ok(out);
+    }
+
+    /**
+     * Auditoría de una cadena exportada: NDJSON en el cuerpo (una factura registrada por línea, con
+     * numero, huella y encadenado; gzip con Content-Encoding), leído en streaming. Devuelve el primer
+     * enlace roto y los huecos de numeración; con registro=true contrasta además cada huella con el
+     * registro de este nodo.
+     */
+    @PostMapping("/auditoria")
+    public ResponseEntity<ChainAuditor.Informe> auditoria(@RequestParam(defaultValue = "false") boolean registro,
+                                                          HttpServletRequest request) throws IOException {
+        InputStream in = request.getInputStream();
+        if ("gzip".equalsIgnoreCase(request.getHeader("Content-Encoding"))) in = new GZIPInputStream(in, 1 << 16);
+        return ResponseEntity.ok(auditor.auditar(in, registro));
+    }
+
+    /**
+     * Registra en este nodo; devuelve número, huella, encadenado y qr_csv de cada factura, o
+     * status "error" con code/error (y retryAfter si es un 503) si esa factura no se registró.
+     */
+    private List<Map<String,Object>> registrar(String ambito, List<Map<String,Object>> facturas,
+                                               HttpServletRequest request) {
+        RegistroResult[] previos = anteriores(ambito, facturas, request);
+        List<Map<String,Object>> nuevas = new ArrayList<>(facturas.size());
+        for (int i = 0; i < facturas.size(); i++) {
+            if (previos[i] == null) nuevas.add(facturas.get(i));
+        }
+        var rrs = nuevas.isEmpty() ? List.<RegistroResult>of() : service.generarRegistros(ambito, nuevas);
+        List<Map<String,Object>> registros = new ArrayList<>(facturas.size());
+        for (int i = 0, j = 0; i < facturas.size(); i++) {
+            var rr = previos[i] != null ? previos[i] : rrs.get(j++);
+            if (rr.error != null) {
+                registros.add(error(rr.error));
+                continue;
+            }
+            Map<String,Object> r = new LinkedHashMap<>();
+            r.put("status", "ok");
+            r.put("numero", rr.numero);
+            r.put("huella", rr.huella);
+            r.put("encadenado", rr.encadenado);
+            if (rr.existente) r.put("existente", true);
+            r.put("qr_csv", service.generarQrCsv(facturas.get(i), rr));
+            registros.add(r);
+        }
+        return registros;
+    }
+
+    /**
+     * En clúster, tras tomar una cadena que atendía otro nodo, un idFactura que no está aquí puede
+     * estar registrado allí: se busca antes de registrarlo otra vez (sólo durante el traspaso).
+     */
+    private RegistroResult[] anteriores(String ambito, List<Map<String,Object>> facturas, HttpServletRequest request) {
+        RegistroResult[] out = new RegistroResult[facturas.size()];
+        if (!cluster.enabled()) return out;
+        Map<String, List<Integer>> porCadena = new LinkedHashMap<>();
+        for (int i = 0; i < facturas.size(); i++) {
+            Map<String,Object> f = facturas.get(i);
+            if (f.get("idFactura") == null) continue;
+            String key = service.cadena(f);
+            if (!cluster.enTraspaso(key) || service.consultar(ambito, f) != null) continue;
+            porCadena.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+        for (Map.Entry<String, List<Integer>> e : porCadena.entrySet()) {
+            List<Map<String,Object>> lote = new ArrayList<>(e.getValue().size());
+            for (int i : e.getValue()) lote.add(facturas.get(i));
+            RegistroResult[] encontrados = cluster.consultarAnteriores(e.getKey(), lote, request);
+            if (encontrados == null) continue;
+            for (int j = 0; j < encontrados.length; j++) out[e.getValue().get(j)] = encontrados[j];
+        }
+        return out;
+    }
+
+    /** Resultado de una factura (o de todas las de un nodo) que no se ha registrado. */
+    private static Map<String,Object> error(ResponseStatusException ex) {
+        Map<String,Object> r = new LinkedHashMap<>();
+        r.put("status", "error");
+        r.put("code", ex.getStatusCode().value());
+        r.put("error", ex.getReason());
+        String retryAfter = ex.getHeaders().getFirst(HttpHeaders.RETRY_AFTER);
+        if (retryAfter != null) r.put("retryAfter", Long.parseLong(retryAfter));
+        return r;
+    }
+
+    /** Error de la respuesta de un nodo (su status, mensaje y Retry-After). */
+    private static Map<String,Object> error(ResponseEntity<Map<String,Object>> resp) {
+        Map<String,Object> r = new LinkedHashMap<>();
+        r.put("status", "error");
+        r.put("code", resp.getStatusCode().is2xxSuccessful() ? 502 : resp.getStatusCode().value());
+        Object mensaje = resp.getBody() == null ? null : resp.getBody().get("message");
+        if ((mensaje == null || mensaje.toString().isBlank()) && resp.getBody() != null) mensaje = resp.getBody().get("error");
+        r.put("error", mensaje != null ? mensaje : "Respuesta no válida del nodo");
+        String retryAfter = resp.getHeaders().getFirst(HttpHeaders.RETRY_AFTER);
+        if (retryAfter != null) {
+            try {
+                r.put("retryAfter", Long.parseLong(retryAfter.trim()));
+            } catch (NumberFormatException ignored) {
+                // Retry-After como fecha: se omite
+            }
+        }
+        return r;
+    }
+
+    /** Todas las facturas {@code idx} fallan con el error del nodo. */
+    private static void fallo(Map<String,Object> nodos, String nodo, Map<String,Object> error,
+                              List<Integer> idx, Object[] registros) {
+        nodos.put(nodo, error);
+        for (int i : idx) registros[i] = error;
+    }
+
+    /** Los idFactura de cada tenant no se mezclan con los de otros. */
+    private static String ambito(HttpServletRequest request) {
+        Object tenant = request.getAttribute(TenantRegistry.TENANT_ATTRIBUTE);
+        return tenant == null ? null : tenant.toString();
+    }
 }
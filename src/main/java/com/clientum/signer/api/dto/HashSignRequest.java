@@ -0,0 +1,82 @@
+package com.clientum.signer.api.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request para /api/sign/hash ("sign-the-hash"): el cliente manda sólo los digests de sus
+ * referencias y recibe el ds:Signature completo para insertarlo él mismo en el documento
+ * (ver client.HashSignatureAssembler). Clave: p12Base64 + p12Password, keyRef o keystore global.
+ */
+public class HashSignRequest {
+
+  private List<Reference> references = new ArrayList<>();
+  private String p12Base64;
+  private String p12Password;
+  private String keyRef;
+  private String algorithm; // opcional, ver crypto.SignatureAlgorithm
+
+  // XAdES-EPES: añade QualifyingProperties (política opcional, como en /xades-epes)
+  private boolean xades;
+  private String policyId;
+  private String policyHashBase64;
+  private String policyDigestAlgorithm;
+  private String policyUrl;
+
+  public HashSignRequest() { }
+
+  public List<Reference> getReferences() { return references; }
+  public void setReferences(List<Reference> references) { this.references = references; }
+
+  public String getP12Base64() { return p12Base64; }
+  public void setP12Base64(String p12Base64) { this.p12Base64 = p12Base64; }
+
+  public String getP12Password() { return p12Password; }
+  public void setP12Password(String p12Password) { this.p12Password = p12Password; }
+
+  public String getKeyRef() { return keyRef; }
+  public void setKeyRef(String keyRef) { this.keyRef = keyRef; }
+
+  public String getAlgorithm() { return algorithm; }
+  public void setAlgorithm(String algorithm) { this.algorithm = algorithm; }
+
+  public boolean isXades() { return xades; }
+  public void setXades(boolean xades) { this.xades = xades; }
+
+  public String getPolicyId() { return policyId; }
+  public void setPolicyId(String policyId) { this.policyId = policyId; }
+
+  public String getPolicyHashBase64() { return policyHashBase64; }
+  public void setPolicyHashBase64(String policyHashBase64) { this.policyHashBase64 = policyHashBase64; }
+
+  public String getPolicyDigestAlgorithm() { return policyDigestAlgorithm; }
+  public void setPolicyDigestAlgorithm(String policyDigestAlgorithm) { this.policyDigestAlgorithm = policyDigestAlgorithm; }
+
+  public String getPolicyUrl() { return policyUrl; }
+  public void setPolicyUrl(String policyUrl) { this.policyUrl = policyUrl; }
+
+  /**
+   * Referencia ya resumida por el cliente. Por defecto URI="" con Enveloped + exc-c14n y SHA256,
+   * que es lo que calcula HashSignatureAssembler.digest.
+   */
+  public static class Reference {
+    private String uri = "";
+    private String digestAlgorithm;
+    private String digestValueBase64;
+    private List<String> transforms;
+
+    public Reference() { }
+
+    public String getUri() { return uri; }
+    public void setUri(String uri) { this.uri = uri; }
+
+    public String getDigestAlgorithm() { return digestAlgorithm; }
+    public void setDigestAlgorithm(String digestAlgorithm) { this.digestAlgorithm = digestAlgorithm; }
+
+    public String getDigestValueBase64() { return digestValueBase64; }
+    public void setDigestValueBase64(String digestValueBase64) { this.digestValueBase64 = digestValueBase64; }
+
+    public List<String> getTransforms() { return transforms; }
+    public void setTransforms(List<String> transforms) { this.transforms = transforms; }
+  }
+}
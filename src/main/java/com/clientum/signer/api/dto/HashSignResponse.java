@@ -0,0 +1,39 @@
+package com.clientum.signer.api.dto;
+
+/**
+ * Respuesta de /api/sign/hash: el elemento ds:Signature serializado (SignedInfo, SignatureValue,
+ * KeyInfo y, si se pidió, las propiedades XAdES), listo para añadirlo como último hijo de la raíz.
+ */
+public class HashSignResponse {
+
+  private String signatureId;
+  private String signatureXml;
+  private String signatureValueBase64;
+  private String algorithm;
+  private long ts;
+
+  public HashSignResponse() { }
+
+  public HashSignResponse(String signatureId, String signatureXml, String signatureValueBase64, String algorithm) {
+    this.signatureId = signatureId;
+    this.signatureXml = signatureXml;
+    this.signatureValueBase64 = signatureValueBase64;
+    this.algorithm = algorithm;
+    this.ts = System.currentTimeMillis();
+  }
+
+  public String getSignatureId() { return signatureId; }
+  public void setSignatureId(String signatureId) { this.signatureId = signatureId; }
+
+  public String getSignatureXml() { return signatureXml; }
+  public void setSignatureXml(String signatureXml) { this.signatureXml = signatureXml; }
+
+  public String getSignatureValueBase64() { return signatureValueBase64; }
+  public void setSignatureValueBase64(String signatureValueBase64) { this.signatureValueBase64 = signatureValueBase64; }
+
+  public String getAlgorithm() { return algorithm; }
+  public void setAlgorithm(String algorithm) { this.algorithm = algorithm; }
+
+  public long getTs() { return ts; }
+  public void setTs(long ts) { this.ts = ts; }
+}
@@ -0,0 +1,53 @@
+package com.clientum.signer.api.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request para /api/sign/batch
+ * Muchos documentos y una sola clave: p12Base64 + p12Password, o el keystore global si no se envía.
+ * La respuesta es NDJSON: una línea por documento según van terminando.
+ */
+public class SignBatchRequest {
+
+  private List<Item> documents = new ArrayList<>();
+  private String p12Base64;
+  private String p12Password;
+  private boolean streaming;
+  private String algorithm; // opcional, ver crypto.SignatureAlgorithm
+
+  public SignBatchRequest() { }
+
+  public List<Item> getDocuments() { return documents; }
+  public void setDocuments(List<Item> documents) { this.documents = documents; }
+
+  public String getP12Base64() { return p12Base64; }
+  public void setP12Base64(String p12Base64) { this.p12Base64 = p12Base64; }
+
+  public String getP12Password() { return p12Password; }
+  public void setP12Password(String p12Password) { this.p12Password = p12Password; }
+
+  public boolean isStreaming() { return streaming; }
+  public void setStreaming(boolean streaming) { this.streaming = streaming; }
+
+  public String getAlgorithm() { return algorithm; }
+  public void setAlgorithm(String algorithm) { this.algorithm = algorithm; }
+
+  /** Documento del lote: id opcional del cliente + xml (texto) o xmlBase64. */
+  public static class Item {
+    private String id;
+    private String xml;
+    private String xmlBase64;
+
+    public Item() { }
+
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public String getXml() { return xml; }
+    public void setXml(String xml) { this.xml = xml; }
+
+    public String getXmlBase64() { return xmlBase64; }
+    public void setXmlBase64(String xmlBase64) { this.xmlBase64 = xmlBase64; }
+  }
+}
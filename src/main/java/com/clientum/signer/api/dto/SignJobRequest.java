@@ -0,0 +1,16 @@
+package com.clientum.signer.api.dto;
+
+/**
+ * Request para /api/jobs: un lote como el de /api/sign/batch que se firma en segundo plano.
+ * callbackUrl (opcional, sólo hosts de SIGNER_JOBS_CALLBACK_HOSTS) recibe un POST con el estado
+ * final; si no, el cliente consulta GET /api/jobs/{id}.
+ */
+public class SignJobRequest extends SignBatchRequest {
+
+  private String callbackUrl;
+
+  public SignJobRequest() { }
+
+  public String getCallbackUrl() { return callbackUrl; }
+  public void setCallbackUrl(String callbackUrl) { this.callbackUrl = callbackUrl; }
+}
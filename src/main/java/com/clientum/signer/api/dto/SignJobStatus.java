@@ -0,0 +1,66 @@
+package com.clientum.signer.api.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Estado de un trabajo de firma: QUEUED, RUNNING, DONE o FAILED. Con DONE, {@code result}
+ * apunta al NDJSON con una línea por documento (mismo formato que /api/sign/batch).
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SignJobStatus {
+
+  private String id;
+  private String status;
+  private int documents;
+  private Integer ok;
+  private Integer errors;
+  private Integer position;
+  private String submittedAt;
+  private String startedAt;
+  private String finishedAt;
+  private String expiresAt;
+  private String result;
+  private String error;
+  private String callbackError;
+
+  public SignJobStatus() { }
+
+  public String getId() { return id; }
+  public void setId(String id) { this.id = id; }
+
+  public String getStatus() { return status; }
+  public void setStatus(String status) { this.status = status; }
+
+  public int getDocuments() { return documents; }
+  public void setDocuments(int documents) { this.documents = documents; }
+
+  public Integer getOk() { return ok; }
+  public void setOk(Integer ok) { this.ok = ok; }
+
+  public Integer getErrors() { return errors; }
+  public void setErrors(Integer errors) { this.errors = errors; }
+
+  public Integer getPosition() { return position; }
+  public void setPosition(Integer position) { this.position = position; }
+
+  public String getSubmittedAt() { return submittedAt; }
+  public void setSubmittedAt(String submittedAt) { this.submittedAt = submittedAt; }
+
+  public String getStartedAt() { return startedAt; }
+  public void setStartedAt(String startedAt) { this.startedAt = startedAt; }
+
+  public String getFinishedAt() { return finishedAt; }
+  public void setFinishedAt(String finishedAt) { this.finishedAt = finishedAt; }
+
+  public String getExpiresAt() { return expiresAt; }
+  public void setExpiresAt(String expiresAt) { this.expiresAt = expiresAt; }
+
+  public String getResult() { return result; }
+  public void setResult(String result) { this.result = result; }
+
+  public String getError() { return error; }
+  public void setError(String error) { this.error = error; }
+
+  public String getCallbackError() { return callbackError; }
+  public void setCallbackError(String callbackError) { this.callbackError = callbackError; }
+}
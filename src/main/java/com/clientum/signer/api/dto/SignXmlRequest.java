@@ -4,6 +4,8 @@ package com.clientum.signer.api.dto;
  * Request para /api/sign/xml
  * Puedes enviar xml (texto) o xmlBase64.
  * Para multiusuario: p12Base64 + p12Password.
+ * streaming=true firma sin DOM (recomendado para lotes grandes).
+ * algorithm (opcional): RSA_SHA256, RSA_PSS_SHA256, ECDSA_SHA256... (por defecto, según la clave).
  */
 public class SignXmlRequest {
 
@@ -11,6 +13,8 @@ public class SignXmlRequest {
   private String xmlBase64;
   private String p12Base64;
   private String p12Password;
+  private boolean streaming;
+  private String algorithm;
 
   public SignXmlRequest() { }
 
@@ -25,4 +29,10 @@ public class SignXmlRequest {
 
   public String getP12Password() { return p12Password; }
   public void setP12Password(String p12Password) { this.p12Password = p12Password; }
+
+  public boolean isStreaming() { return streaming; }
+  public void setStreaming(boolean streaming) { this.streaming = streaming; }
+
+  public String getAlgorithm() { return algorithm; }
+  public void setAlgorithm(String algorithm) { this.algorithm = algorithm; }
 }
@@ -0,0 +1,19 @@
+package com.clientum.signer.api.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request para /api/verify/batch
+ * Documentos firmados ({id, xml | xmlBase64}); se verifican en paralelo y la respuesta
+ * conserva el orden recibido.
+ */
+public class VerifyBatchRequest {
+
+  private List<SignBatchRequest.Item> documents = new ArrayList<>();
+
+  public VerifyBatchRequest() { }
+
+  public List<SignBatchRequest.Item> getDocuments() { return documents; }
+  public void setDocuments(List<SignBatchRequest.Item> documents) { this.documents = documents; }
+}
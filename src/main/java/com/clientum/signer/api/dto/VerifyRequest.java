@@ -0,0 +1,19 @@
+package com.clientum.signer.api.dto;
+
+/**
+ * Request para /api/verify
+ * Documento firmado como xml (texto) o xmlBase64.
+ */
+public class VerifyRequest {
+
+  private String xml;
+  private String xmlBase64;
+
+  public VerifyRequest() { }
+
+  public String getXml() { return xml; }
+  public void setXml(String xml) { this.xml = xml; }
+
+  public String getXmlBase64() { return xmlBase64; }
+  public void setXmlBase64(String xmlBase64) { this.xmlBase64 = xmlBase64; }
+}
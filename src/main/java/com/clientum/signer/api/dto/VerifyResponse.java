@@ -0,0 +1,88 @@
+package com.clientum.signer.api.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Resultado de /api/verify: válido sólo si hay al menos una firma y todas son válidas
+ * (SignatureValue, referencias y cadena de certificación).
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class VerifyResponse {
+
+  private String id;
+  private boolean valid;
+  private String error;
+  private List<SignatureResult> signatures = new ArrayList<>();
+
+  public VerifyResponse() { }
+
+  public String getId() { return id; }
+  public void setId(String id) { this.id = id; }
+
+  public boolean isValid() { return valid; }
+  public void setValid(boolean valid) { this.valid = valid; }
+
+  public String getError() { return error; }
+  public void setError(String error) { this.error = error; }
+
+  public List<SignatureResult> getSignatures() { return signatures; }
+  public void setSignatures(List<SignatureResult> signatures) { this.signatures = signatures; }
+
+  /** Una ds:Signature del documento. */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public static class SignatureResult {
+    private boolean valid;
+    private boolean signatureValueValid;
+    private boolean referencesValid;
+    private String signatureMethod;
+    private String subject;
+    private String issuer;
+    private String serialNumber;
+    private String notAfter;
+    private String certificateSha256;
+    private Boolean chainValid;
+    private String trustAnchor;
+    private String error;
+
+    public SignatureResult() { }
+
+    public boolean isValid() { return valid; }
+    public void setValid(boolean valid) { this.valid = valid; }
+
+    public boolean isSignatureValueValid() { return signatureValueValid; }
+    public void setSignatureValueValid(boolean signatureValueValid) { this.signatureValueValid = signatureValueValid; }
+
+    public boolean isReferencesValid() { return referencesValid; }
+    public void setReferencesValid(boolean referencesValid) { this.referencesValid = referencesValid; }
+
+    public String getSignatureMethod() { return signatureMethod; }
+    public void setSignatureMethod(String signatureMethod) { this.signatureMethod = signatureMethod; }
+
+    public String getSubject() { return subject; }
+    public void setSubject(String subject) { this.subject = subject; }
+
+    public String getIssuer() { return issuer; }
+    public void setIssuer(String issuer) { this.issuer = issuer; }
+
+    public String getSerialNumber() { return serialNumber; }
+    public void setSerialNumber(String serialNumber) { this.serialNumber = serialNumber; }
+
+    public String getNotAfter() { return notAfter; }
+    public void setNotAfter(String notAfter) { this.notAfter = notAfter; }
+
+    public String getCertificateSha256() { return certificateSha256; }
+    public void setCertificateSha256(String certificateSha256) { this.certificateSha256 = certificateSha256; }
+
+    public Boolean getChainValid() { return chainValid; }
+    public void setChainValid(Boolean chainValid) { this.chainValid = chainValid; }
+
+    public String getTrustAnchor() { return trustAnchor; }
+    public void setTrustAnchor(String trustAnchor) { this.trustAnchor = trustAnchor; }
+
+    public String getError() { return error; }
+    public void setError(String error) { this.error = error; }
+  }
+}
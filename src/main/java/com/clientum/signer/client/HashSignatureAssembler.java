@@ -0,0 +1,67 @@
+package com.clientum.signer.client;
+
+import com.clientum.signer.crypto.XmlPools;
+import org.apache.xml.security.Init;
+import org.apache.xml.security.c14n.Canonicalizer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Lado cliente de /api/sign/hash (implementación de referencia).
+ *
+ * 1) {@link #digest} calcula el digest de la referencia por defecto (URI="", Enveloped +
+ *    exc-c14n, SHA-256) sobre el documento aún sin firmar.
+ * 2) Se envía sólo ese digest: {@code {"references": [{"digestValueBase64": "..."}]}}.
+ * 3) {@link #assemble} añade el {@code signatureXml} de la respuesta como último hijo de la raíz.
+ *
+ * El documento nunca sale del cliente. El Signature usa exc-c14n en SignedInfo, así que es
+ * válido en cualquier documento sin depender de los namespaces de la raíz.
+ */
+public final class HashSignatureAssembler {
+
+  static {
+    try { Init.init(); } catch (Throwable ignored) {}
+  }
+
+  private HashSignatureAssembler() { }
+
+  /** Digest SHA-256 (Base64) de la referencia URI="" con Enveloped + exc-c14n. */
+  public static String digest(byte[] xml) throws Exception {
+    Document doc = parse(xml);
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), md)) {
+      Canonicalizer.getInstance(Canonicalizer.ALGO_ID_C14N_EXCL_OMIT_COMMENTS).canonicalizeSubtree(doc, out);
+    }
+    return Base64.getEncoder().encodeToString(md.digest());
+  }
+
+  /** Inserta {@code signatureXml} (ds:Signature devuelto por el servidor) al final de la raíz. */
+  public static byte[] assemble(byte[] xml, String signatureXml) throws Exception {
+    Document doc = parse(xml);
+    Document sig = parse(signatureXml.getBytes(StandardCharsets.UTF_8));
+    Node imported = doc.importNode(sig.getDocumentElement(), true);
+    doc.getDocumentElement().appendChild(imported);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length + signatureXml.length() + 64);
+    try (var tf = XmlPools.transformer()) {
+      tf.get().transform(new DOMSource(doc), new StreamResult(out));
+    }
+    return out.toByteArray();
+  }
+
+  private static Document parse(byte[] xml) throws Exception {
+    try (var db = XmlPools.documentBuilder()) {
+      return db.get().parse(new ByteArrayInputStream(xml));
+    }
+  }
+}
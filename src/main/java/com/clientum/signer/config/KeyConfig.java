@@ -1,28 +1,33 @@
 package com.clientum.signer.config;
 
+import com.clientum.signer.crypto.KeyMaterialCache;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.context.annotation.Condition;
-import org.springframework.context.annotation.ConditionContext;
-import org.springframework.context.annotation.Conditional;
 import org.springframework.core.env.Environment;
-import org.springframework.core.type.AnnotatedTypeMetadata;
 
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.security.KeyStore;
+import java.time.Duration;
 import java.util.Base64;
 
 @Configuration
 public class KeyConfig {
 
-  /** Solo crea el bean si hay keystore por env; si no, NO crashea. */
+  /**
+   * Keystore global si hay SIGN_KEYSTORE_BASE64 o SIGN_KEYSTORE_PATH; si no, null (NO crashea y
+   * los @Autowired(required = false) quedan a null). Se decide al arrancar y no con @Conditional
+   * porque con Spring AOT (perfil fast-start) las condiciones se congelan al compilar.
+   */
   @Bean
-  @Conditional(SignerKeyEntryCondition.class)
   public KeyStore.PrivateKeyEntry signerKeyEntry(Environment env) throws Exception {
     String b64 = env.getProperty("SIGN_KEYSTORE_BASE64");
     String path = env.getProperty("SIGN_KEYSTORE_PATH");
     String pwd  = env.getProperty("SIGN_KEYSTORE_PASSWORD", "");
+    if ((b64 == null || b64.isBlank()) && (path == null || path.isBlank())) {
+      return null;
+    }
 
     char[] pass = pwd.toCharArray();
     KeyStore ks = KeyStore.getInstance("PKCS12");
@@ -44,14 +49,15 @@ public class KeyConfig {
     return entry;
   }
 
-  /** Condición: hay SIGN_KEYSTORE_BASE64 o SIGN_KEYSTORE_PATH. */
-  public static class SignerKeyEntryCondition implements Condition {
-    @Override
-    public boolean matches(ConditionContext ctx, AnnotatedTypeMetadata md) {
-      Environment env = ctx.getEnvironment();
-      String b64 = env.getProperty("SIGN_KEYSTORE_BASE64");
-      String path = env.getProperty("SIGN_KEYSTORE_PATH");
-      return (b64 != null && !b64.isBlank()) || (path != null && !path.isBlank());
-    }
+  /**
+   * Caché de claves .p12 decodificadas (SIGNER_KEY_CACHE_MAX entradas, 0 desactiva;
+   * SIGNER_KEY_CACHE_TTL_SECONDS). Se instala como {@link KeyMaterialCache#shared()}.
+   */
+  @Bean
+  public KeyMaterialCache keyMaterialCache(@Value("${SIGNER_KEY_CACHE_MAX:256}") int maxEntries,
+                                           @Value("${SIGNER_KEY_CACHE_TTL_SECONDS:900}") long ttlSeconds) {
+    KeyMaterialCache cache = new KeyMaterialCache(maxEntries, Duration.ofSeconds(ttlSeconds));
+    KeyMaterialCache.install(cache);
+    return cache;
   }
 }
@@ -0,0 +1,23 @@
+package com.clientum.signer.config;
+
+import com.clientum.signer.crypto.SignatureEngines;
+import com.clientum.signer.crypto.SignatureProviders;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class SignatureConfig {
+
+  /**
+   * Proveedor JCA (SIGNER_SIGNATURE_PROVIDER, autotest de SIGNER_SIGNATURE_SELFTEST_MILLIS) y
+   * tamaño de la caché de motores (SIGNER_ENGINE_CACHE_MAX). El autotest de {@code auto} lo lanza
+   * SignerApplication con la aplicación ya sirviendo.
+   */
+  public SignatureConfig(
+      @Value("${SIGNER_SIGNATURE_PROVIDER:auto}") String provider,
+      @Value("${SIGNER_SIGNATURE_SELFTEST_MILLIS:150}") long selftestMillis,
+      @Value("${SIGNER_ENGINE_CACHE_MAX:64}") int engineCacheMax) {
+    SignatureEngines.configure(engineCacheMax);
+    SignatureProviders.configure(provider, selftestMillis);
+  }
+}
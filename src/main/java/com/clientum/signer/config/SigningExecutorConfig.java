@@ -0,0 +1,30 @@
+package com.clientum.signer.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Configuration
+public class SigningExecutorConfig {
+
+  /** Pool acotado para firmas en paralelo (lotes). Por defecto, un hilo por core. */
+  @Bean(destroyMethod = "shutdown")
+  public ExecutorService signingExecutor(@Value("${SIGNER_BATCH_THREADS:0}") int threads) {
+    int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    AtomicInteger seq = new AtomicInteger();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+        r -> {
+          Thread t = new Thread(r, "signer-batch-" + seq.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+}
@@ -0,0 +1,172 @@
+package com.clientum.signer.config;
+
+import com.clientum.signer.client.HashSignatureAssembler;
+import com.clientum.signer.service.XadesTemplates;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ejecución de entrenamiento para el archivo AppCDS (perfil fast-start, ver Dockerfile).
+ *
+ * Con SIGNER_TRAINING_RUN=true, al arrancar firma por HTTP unos documentos de ejemplo con un
+ * certificado autofirmado efímero (DOM, streaming, XAdES-EPES, hash, lote, raw y verificación)
+ * y cierra la aplicación. Así el archivo generado con -XX:ArchiveClassesAtExit incluye las
+ * clases de Tomcat, Jackson, Santuario y BouncyCastle que usa una firma real, no sólo las del
+ * arranque del contexto.
+ *
+ * No es condicional (@ConditionalOnProperty) a propósito: con Spring AOT las condiciones se
+ * evalúan al compilar y no se podría activar en el contenedor.
+ */
+@Component
+public class TrainingRun implements ApplicationRunner {
+
+  private static final String PASSWORD = "training";
+
+  private final ApplicationContext context;
+  private final ObjectMapper mapper;
+  private final boolean enabled;
+  private final String apiKey;
+
+  public TrainingRun(ApplicationContext context, ObjectMapper mapper,
+                     @Value("${SIGNER_TRAINING_RUN:false}") boolean enabled,
+                     @Value("${SIGNER_API_KEY:}") String apiKey) {
+    this.context = context;
+    this.mapper = mapper;
+    this.enabled = enabled;
+    this.apiKey = apiKey;
+  }
+
+  @Override
+  public void run(ApplicationArguments args) throws Exception {
+    if (!enabled) return;
+    int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+    String base = "http://127.0.0.1:" + port;
+    String p12 = Base64.getEncoder().encodeToString(selfSignedP12());
+    HttpClient http = HttpClient.newHttpClient();
+
+    for (int round = 0; round < 3; round++) {
+      for (int lines : new int[] { 1, 50, 500 }) {
+        String xml = facturae(lines);
+
+        String signed = post(http, base + "/api/sign/xml",
+            Map.of("xml", xml, "p12Base64", p12, "p12Password", PASSWORD));
+        post(http, base + "/api/sign/xml",
+            Map.of("xml", xml, "p12Base64", p12, "p12Password", PASSWORD, "streaming", true));
+        post(http, base + "/api/sign/xades-epes",
+            Map.of("xml", xml, "p12", p12, "password", PASSWORD, "policyId", XadesTemplates.FACTURAE_31_POLICY));
+        post(http, base + "/api/sign/hash", Map.of(
+            "references", List.of(Map.of("digestValueBase64",
+                HashSignatureAssembler.digest(xml.getBytes(StandardCharsets.UTF_8)))),
+            "xades", true, "p12Base64", p12, "p12Password", PASSWORD));
+
+        List<Map<String, Object>> docs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) docs.add(Map.of("id", "d" + i, "xml", xml));
+        Map<String, Object> batch = new LinkedHashMap<>();
+        batch.put("documents", docs);
+        batch.put("p12Base64", p12);
+        batch.put("p12Password", PASSWORD);
+        batch.put("streaming", round % 2 == 1);
+        post(http, base + "/api/sign/batch", batch);
+
+        send(http, request(base + "/api/sign/raw")
+            .header("Content-Type", "application/xml")
+            .header("X-Clientum-P12", p12)
+            .header("X-Clientum-P12-Password", PASSWORD)
+            .POST(HttpRequest.BodyPublishers.ofString(xml))
+            .build());
+
+        String signedXml = new String(
+            Base64.getDecoder().decode(mapper.readTree(signed).path("signedXmlBase64").asText("")),
+            StandardCharsets.UTF_8);
+        if (!signedXml.isEmpty()) post(http, base + "/api/verify", Map.of("xml", signedXml));
+      }
+    }
+    send(http, request(base + "/actuator/prometheus").GET().build());
+
+    System.exit(SpringApplication.exit(context, () -> 0));
+  }
+
+  private String post(HttpClient http, String url, Object body) throws Exception {
+    return send(http, request(url)
+        .header("Content-Type", "application/json")
+        .POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(body)))
+        .build());
+  }
+
+  private String send(HttpClient http, HttpRequest req) throws Exception {
+    HttpResponse<String> res = http.send(req, HttpResponse.BodyHandlers.ofString());
+    if (res.statusCode() >= 300) {
+      throw new IllegalStateException("Entrenamiento: " + req.uri().getPath() + " devolvió HTTP " + res.statusCode());
+    }
+    return res.body();
+  }
+
+  private HttpRequest.Builder request(String url) {
+    HttpRequest.Builder b = HttpRequest.newBuilder(URI.create(url));
+    if (!apiKey.isBlank()) b.header("X-Clientum-Api-Key", apiKey.trim());
+    return b;
+  }
+
+  private static byte[] selfSignedP12() throws Exception {
+    KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+    kpg.initialize(2048);
+    KeyPair kp = kpg.generateKeyPair();
+    X500Name dn = new X500Name("CN=Clientum Training,O=Clientum,C=ES");
+    Instant now = Instant.now();
+    X509Certificate cert = new JcaX509CertificateConverter().getCertificate(
+        new JcaX509v3CertificateBuilder(dn, BigInteger.valueOf(now.toEpochMilli()),
+            Date.from(now.minus(1, ChronoUnit.DAYS)), Date.from(now.plus(1, ChronoUnit.DAYS)), dn, kp.getPublic())
+            .build(new JcaContentSignerBuilder("SHA256withRSA").build(kp.getPrivate())));
+
+    KeyStore ks = KeyStore.getInstance("PKCS12");
+    ks.load(null, null);
+    ks.setKeyEntry("training", kp.getPrivate(), PASSWORD.toCharArray(), new Certificate[] { cert });
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ks.store(out, PASSWORD.toCharArray());
+    return out.toByteArray();
+  }
+
+  private static String facturae(int lines) {
+    StringBuilder sb = new StringBuilder(512 + lines * 200)
+        .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+        .append("<fe:Facturae xmlns:fe=\"http://www.facturae.gob.es/formato/Versiones/Facturaev3_2_2.xml\">")
+        .append("<FileHeader><SchemaVersion>3.2.2</SchemaVersion><Modality>I</Modality></FileHeader>")
+        .append("<Invoices><Invoice><InvoiceHeader><InvoiceNumber>1</InvoiceNumber></InvoiceHeader><Items>");
+    for (int i = 1; i <= lines; i++) {
+      sb.append("<InvoiceLine><ItemDescription>Servicio línea ").append(i)
+          .append("</ItemDescription><Quantity>1.0</Quantity><TotalCost>100.00</TotalCost></InvoiceLine>");
+    }
+    return sb.append("</Items></Invoice></Invoices></fe:Facturae>").toString();
+  }
+}
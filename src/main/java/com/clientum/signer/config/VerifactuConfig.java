@@ -0,0 +1,34 @@
+package com.clientum.signer.config;
+
+import com.clientum.signer.verifactu.ChainAuditor;
+import com.clientum.signer.verifactu.ChainJournal;
+import com.clientum.signer.verifactu.RecordIndex;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+@Configuration
+public class VerifactuConfig {
+
+  /** Diario persistente de las cadenas VeriFactu. Compacta al superar SIGNER_VERIFACTU_COMPACT_MB. */
+  @Bean(destroyMethod = "close")
+  public ChainJournal chainJournal(@Value("${SIGNER_VERIFACTU_DIR:data/verifactu}") String dir,
+                                   @Value("${SIGNER_VERIFACTU_COMPACT_MB:64}") long compactMb) throws IOException {
+    return ChainJournal.open(Path.of(dir), compactMb * 1024 * 1024);
+  }
+
+  /** Índice de todos los registros emitidos (por número e idFactura), junto al diario. */
+  @Bean(destroyMethod = "close")
+  public RecordIndex recordIndex(@Value("${SIGNER_VERIFACTU_DIR:data/verifactu}") String dir) throws IOException {
+    return RecordIndex.open(Path.of(dir).resolve("registros"));
+  }
+
+  /** Auditoría de cadenas exportadas, con su propio ForkJoinPool (SIGNER_VERIFACTU_AUDIT_THREADS, 0 = un hilo por core). */
+  @Bean(destroyMethod = "close")
+  public ChainAuditor chainAuditor(@Value("${SIGNER_VERIFACTU_AUDIT_THREADS:0}") int threads, RecordIndex recordIndex) {
+    return new ChainAuditor(threads, recordIndex);
+  }
+}
@@ -0,0 +1,23 @@
+package com.clientum.signer.config;
+
+import com.clientum.signer.service.XadesTemplates;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class XadesConfig {
+
+  /**
+   * Plantillas XAdES con la descarga de políticas limitada a SIGNER_XADES_POLICY_HOSTS y
+   * SIGNER_XADES_POLICY_MAX_BYTES. Se instala como {@link XadesTemplates#shared()}.
+   */
+  @Bean
+  public XadesTemplates xadesTemplates(
+      @Value("${SIGNER_XADES_POLICY_HOSTS:www.facturae.es,www.facturae.gob.es}") String policyHosts,
+      @Value("${SIGNER_XADES_POLICY_MAX_BYTES:2097152}") long policyMaxBytes) {
+    XadesTemplates templates = new XadesTemplates(policyHosts, policyMaxBytes);
+    XadesTemplates.install(templates);
+    return templates;
+  }
+}
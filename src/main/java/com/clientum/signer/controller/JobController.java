@@ -0,0 +1,96 @@
+package com.clientum.signer.controller;
+
+import com.clientum.signer.api.dto.SignJobRequest;
+import com.clientum.signer.api.dto.SignJobStatus;
+import com.clientum.signer.crypto.SignatureAlgorithm;
+import com.clientum.signer.service.SigningJobQueue;
+import com.clientum.signer.service.XmlSigner;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Base64;
+
+/**
+ * Firma asíncrona de lotes: POST encola y devuelve 202 con el id; el cliente consulta el
+ * estado (o recibe el callback) y descarga el NDJSON cuando está DONE.
+ */
+@RestController
+@RequestMapping("/api/jobs")
+public class JobController {
+
+  private final SigningJobQueue queue;
+  private final XmlSigner signer;
+  private final int maxDocuments;
+
+  public JobController(SigningJobQueue queue, XmlSigner signer,
+                       @Value("${SIGNER_JOBS_MAX_DOCUMENTS:10000}") int maxDocuments) {
+    this.queue = queue;
+    this.signer = signer;
+    this.maxDocuments = maxDocuments;
+  }
+
+  @PostMapping
+  public ResponseEntity<SignJobStatus> submit(@RequestBody SignJobRequest req) {
+    if (req.getDocuments() == null || req.getDocuments().isEmpty()) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Debes enviar al menos un documento en documents");
+    }
+    if (req.getDocuments().size() > maxDocuments) {
+      throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Máximo " + maxDocuments + " documentos por trabajo");
+    }
+    try {
+      byte[] p12 = (req.getP12Base64() != null && !req.getP12Base64().isBlank())
+          ? Base64.getMimeDecoder().decode(req.getP12Base64()) : null;
+      KeyStore.PrivateKeyEntry key = signer.resolveKey(p12, req.getP12Password() == null ? "" : req.getP12Password());
+      SignatureAlgorithm alg = SignatureAlgorithm.negotiate(key, req.getAlgorithm());
+      SignJobStatus status = queue.submit(req.getDocuments(), key, alg, req.isStreaming(), req.getCallbackUrl());
+      return ResponseEntity.accepted().location(URI.create("/api/jobs/" + status.getId())).body(status);
+    } catch (ResponseStatusException ex) {
+      throw ex; // 429 de la cola llena
+    } catch (IllegalStateException | IllegalArgumentException ex) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+    } catch (Exception ex) {
+      throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "No se pudo encolar el trabajo", ex);
+    }
+  }
+
+  @GetMapping("/{id}")
+  public SignJobStatus status(@PathVariable String id) {
+    SignJobStatus status = queue.status(id);
+    if (status == null) throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Trabajo no encontrado");
+    return status;
+  }
+
+  /** NDJSON con una línea por documento, como /api/sign/batch. 409 mientras no esté DONE. */
+  @GetMapping(value = "/{id}/result", produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public ResponseEntity<Resource> result(@PathVariable String id) {
+    SignJobStatus status = status(id);
+    Path file = queue.result(id);
+    if (file == null) {
+      throw new ResponseStatusException(HttpStatus.CONFLICT, "El trabajo está " + status.getStatus());
+    }
+    return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(new FileSystemResource(file));
+  }
+
+  @DeleteMapping("/{id}")
+  public ResponseEntity<Void> delete(@PathVariable String id) {
+    try {
+      if (!queue.delete(id)) {
+        throw new ResponseStatusException(HttpStatus.CONFLICT, "El trabajo está en curso");
+      }
+    } catch (ResponseStatusException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "No se pudo borrar el trabajo", ex);
+    }
+    return ResponseEntity.noContent().build();
+  }
+}
@@ -1,59 +1,308 @@
 package com.clientum.signer.controller;
 
+import com.clientum.signer.api.dto.HashSignRequest;
+import com.clientum.signer.api.dto.HashSignResponse;
+import com.clientum.signer.api.dto.SignBatchRequest;
 import com.clientum.signer.api.dto.SignXmlRequest;
 import com.clientum.signer.api.dto.SignXmlResponse;
+import com.clientum.signer.crypto.SignatureAlgorithm;
+import com.clientum.signer.crypto.SigningMetrics;
+import com.clientum.signer.dto.SignRequest;
+import com.clientum.signer.security.TenantRegistry;
+import com.clientum.signer.service.BatchSigner;
+import com.clientum.signer.service.HashSigner;
+import com.clientum.signer.service.IdempotencyCache;
+import com.clientum.signer.service.StreamingXmlSigner;
+import com.clientum.signer.service.XadesTemplates;
 import com.clientum.signer.service.XmlSigner;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
 import java.util.Base64;
+import java.util.List;
 
 @RestController
 @RequestMapping("/api/sign")
 public class SignController {
 
   private final XmlSigner signer;
+  private final BatchSigner batchSigner;
+  private final IdempotencyCache idempotency;
+  private final int rawMaxBytes;
 
-  public SignController(XmlSigner signer) {
+  public SignController(XmlSigner signer, BatchSigner batchSigner, IdempotencyCache idempotency,
+                        @Value("${SIGNER_RAW_MAX_BYTES:67108864}") int rawMaxBytes) {
     this.signer = signer;
+    this.batchSigner = batchSigner;
+    this.idempotency = idempotency;
+    this.rawMaxBytes = rawMaxBytes;
   }
 
+  /**
+   * Con Idempotency-Key (o, sin ella, con el mismo documento, certificado y opciones) un
+   * reintento devuelve la firma anterior sin volver a firmar; ver {@link IdempotencyCache}.
+   */
   @PostMapping("/xml")
-  public SignXmlResponse signXml(@RequestBody SignXmlRequest req) {
+  public SignXmlResponse signXml(@RequestBody SignXmlRequest req,
+                                 @RequestHeader(value = IdempotencyCache.HEADER, required = false) String idempotencyKey,
+                                 HttpServletRequest request, HttpServletResponse response) {
     try {
-      String xml = extractXml(req);
-      String signed;
+      // Los mismos bytes para la huella y para la firma: la huella es la del documento que se firma
+      byte[] xml = extractXmlBytes(req);
+      // La huella resuelve la clave fuera de la operación de firma (caché de claves: no se mide)
+      IdempotencyCache.Result r = idempotency.execute(request, idempotencyKey, "xml", xml.length,
+          () -> IdempotencyCache.fingerprint(
+              signer.resolveKey(p12(req.getP12Base64()), req.getP12Password() == null ? "" : req.getP12Password())
+                  .getCertificate(),
+              ByteBuffer.wrap(xml), req.getAlgorithm(), req.isStreaming() ? "streaming" : "dom"),
+          () -> req.isStreaming() ? signXmlStreaming(req, xml) : signXmlDom(req, xml));
+      if (r.replayed()) response.setHeader(IdempotencyCache.REPLAYED_HEADER, "true");
+      return new SignXmlResponse(Base64.getEncoder().encodeToString(r.body()), r.algorithm());
+    } catch (ResponseStatusException ex) {
+      throw ex; // p. ej. 503 del bulkhead de CPU
+    } catch (IllegalStateException | IllegalArgumentException ex) {
+      // Mapea mensajes claros (y Base64 mal formado) a 400
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+    } catch (Exception ex) {
+      throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "No se pudo firmar el XML", ex);
+    }
+  }
+
+  /**
+   * XAdES-EPES (Baseline-B) enveloped para Facturae. {@code xml} puede ir en texto o Base64;
+   * sin {@code p12} se usa el keystore global y sin {@code policyId} se firma sin política.
+   */
+  @PostMapping("/xades-epes")
+  public SignXmlResponse signXadesEpes(@RequestBody SignRequest req) {
+    try {
+      if (req.packaging != null && !req.packaging.isBlank() && !"ENVELOPED".equalsIgnoreCase(req.packaging)) {
+        throw new IllegalStateException("Sólo se admite packaging ENVELOPED");
+      }
+      if (req.level != null && !req.level.isBlank() && !"XAdES_BASELINE_B".equalsIgnoreCase(req.level)) {
+        throw new IllegalStateException("Sólo se admite level XAdES_BASELINE_B");
+      }
+      if (req.xml == null || req.xml.isBlank()) throw new IllegalStateException("Debes enviar xml (texto o Base64)");
+      String xml = req.xml.stripLeading().startsWith("<")
+          ? req.xml
+          : new String(Base64.getMimeDecoder().decode(req.xml.trim()), StandardCharsets.UTF_8);
+
+      XadesTemplates.Policy policy = XadesTemplates.shared()
+          .policy(req.policyId, req.policyHashBase64, req.policyDigestAlgorithm, req.policyUrl);
+      return SigningMetrics.timed("xades-epes", "dom", xml.length(), () -> {
+        byte[] p12 = (req.p12 != null && !req.p12.isBlank()) ? Base64.getMimeDecoder().decode(req.p12) : null;
+        KeyStore.PrivateKeyEntry key = signer.resolveKey(p12, req.password == null ? "" : req.password);
+        SignatureAlgorithm alg = SignatureAlgorithm.negotiate(key, req.algorithm);
+        String signed = signer.signXadesEpes(xml, key, policy, alg);
+        return new SignXmlResponse(
+            Base64.getEncoder().encodeToString(signed.getBytes(StandardCharsets.UTF_8)),
+            alg.name()
+        );
+      });
+    } catch (ResponseStatusException ex) {
+      throw ex;
+    } catch (IllegalStateException | IllegalArgumentException ex) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+    } catch (Exception ex) {
+      throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "No se pudo firmar el XML", ex);
+    }
+  }
 
-      // Multiusuario: si viene p12 en la petición, se usa ese.
+  /**
+   * "Sign-the-hash": el cliente manda los digests de sus referencias (no el documento) y recibe
+   * el ds:Signature para insertarlo como último hijo de la raíz (client.HashSignatureAssembler).
+   */
+  @PostMapping("/hash")
+  public HashSignResponse signHash(@RequestBody HashSignRequest req, HttpServletRequest request) {
+    try {
+      KeyStore.PrivateKeyEntry key;
       if (req.getP12Base64() != null && !req.getP12Base64().isBlank()) {
-        byte[] p12 = Base64.getDecoder().decode(req.getP12Base64());
-        String pwd = req.getP12Password() == null ? "" : req.getP12Password();
-        signed = signer.signXmlWithP12(xml, p12, pwd);
+        byte[] p12 = Base64.getMimeDecoder().decode(req.getP12Base64());
+        key = signer.resolveKey(p12, req.getP12Password() == null ? "" : req.getP12Password());
+      } else if (req.getKeyRef() != null && !req.getKeyRef().isBlank()) {
+        key = signer.resolveKeyReference(req.getKeyRef(), tenant(request));
       } else {
-        // Keystore global (si está configurado). Si no, lanzará una IllegalStateException clara.
-        signed = signer.signXml(xml);
+        key = signer.resolveKey(null, null);
       }
+      XadesTemplates.Policy policy = req.isXades()
+          ? XadesTemplates.shared().policy(req.getPolicyId(), req.getPolicyHashBase64(),
+              req.getPolicyDigestAlgorithm(), req.getPolicyUrl())
+          : null;
 
-      return new SignXmlResponse(
-          Base64.getEncoder().encodeToString(signed.getBytes(StandardCharsets.UTF_8)),
-          "RSA_SHA256"
-      );
-    } catch (IllegalStateException ex) {
-      // Mapea mensajes claros a 400
+      SignatureAlgorithm alg = SignatureAlgorithm.negotiate(key, req.getAlgorithm());
+      HashSigner.Result r = SigningMetrics.timed("hash", req.isXades() ? "xades" : "xmldsig", 0,
+          () -> signer.signDigests(req.getReferences(), key, req.isXades(), policy, alg));
+      return new HashSignResponse(r.signatureId(), r.signatureXml(),
+          Base64.getEncoder().encodeToString(r.signatureValue()), alg.name());
+    } catch (ResponseStatusException ex) {
+      throw ex;
+    } catch (IllegalStateException | IllegalArgumentException ex) {
       throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
     } catch (Exception ex) {
-      throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "No se pudo firmar el XML", ex);
+      throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "No se pudo firmar el hash", ex);
+    }
+  }
+
+  /**
+   * Lote: la clave se decodifica una vez, los documentos se firman en paralelo y cada
+   * resultado se devuelve como una línea NDJSON en cuanto termina (índice, id, estado).
+   */
+  @PostMapping(value = "/batch", produces = MediaType.APPLICATION_NDJSON_VALUE)
+  public ResponseEntity<StreamingResponseBody> signBatch(@RequestBody SignBatchRequest req) {
+    if (req.getDocuments() == null || req.getDocuments().isEmpty()) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Debes enviar al menos un documento en documents");
+    }
+    KeyStore.PrivateKeyEntry key;
+    SignatureAlgorithm alg;
+    try {
+      byte[] p12 = (req.getP12Base64() != null && !req.getP12Base64().isBlank())
+          ? Base64.getMimeDecoder().decode(req.getP12Base64()) : null;
+      key = signer.resolveKey(p12, req.getP12Password() == null ? "" : req.getP12Password());
+      alg = SignatureAlgorithm.negotiate(key, req.getAlgorithm());
+    } catch (IllegalStateException | IllegalArgumentException ex) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+    } catch (Exception ex) {
+      throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "No se pudo cargar la clave", ex);
+    }
+
+    List<SignBatchRequest.Item> items = req.getDocuments();
+    boolean streaming = req.isStreaming();
+    StreamingResponseBody body = out -> batchSigner.sign(items, key, alg, streaming, out);
+    return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+  }
+
+  /**
+   * Modo raw: el cuerpo es el XML tal cual y la respuesta el XML firmado en binario, sin JSON,
+   * Base64 ni String intermedios (una copia del documento en memoria).
+   *
+   * Clave: X-Clientum-P12 (Base64) + X-Clientum-P12-Password, o X-Clientum-Key-Ref (devuelta
+   * en la respuesta de una petición anterior con p12 del mismo tenant, válida mientras siga en
+   * caché), o el keystore global si no llega ninguna. X-Clientum-Algorithm (opcional) elige el
+   * algoritmo de firma; la respuesta lo devuelve en la misma cabecera.
+   */
+  @PostMapping(value = "/raw", consumes = {
+      MediaType.APPLICATION_XML_VALUE, MediaType.TEXT_XML_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE})
+  public void signRaw(@RequestHeader(value = "X-Clientum-P12", required = false) String p12Base64,
+                      @RequestHeader(value = "X-Clientum-P12-Password", required = false) String p12Password,
+                      @RequestHeader(value = "X-Clientum-Key-Ref", required = false) String keyRef,
+                      @RequestHeader(value = "X-Clientum-Algorithm", required = false) String algorithm,
+                      HttpServletRequest request, HttpServletResponse response) throws IOException {
+    byte[] xml = readBody(request);
+
+    SigningMetrics.timed("raw", "streaming", xml.length, () -> {
+      StreamingXmlSigner.Prepared signed;
+      SignatureAlgorithm alg;
+      String reference = null;
+      try {
+        KeyStore.PrivateKeyEntry key;
+        if (p12Base64 != null && !p12Base64.isBlank()) {
+          byte[] p12 = Base64.getMimeDecoder().decode(p12Base64);
+          String pwd = p12Password == null ? "" : p12Password;
+          key = signer.resolveKey(p12, pwd);
+          reference = signer.keyReference(p12, pwd, tenant(request));
+        } else if (keyRef != null && !keyRef.isBlank()) {
+          key = signer.resolveKeyReference(keyRef, tenant(request));
+        } else {
+          key = signer.resolveKey(null, null);
+        }
+        alg = SignatureAlgorithm.negotiate(key, algorithm);
+        signed = signer.prepareStreaming(ByteBuffer.wrap(xml), key, alg);
+      } catch (ResponseStatusException ex) {
+        throw ex;
+      } catch (IllegalStateException | IllegalArgumentException ex) {
+        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex);
+      } catch (Exception ex) {
+        throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "No se pudo firmar el XML", ex);
+      }
+
+      // Fuera del bulkhead: un cliente lento no retiene permisos de CPU
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentType(MediaType.APPLICATION_XML_VALUE);
+      response.setContentLengthLong(signed.length());
+      response.setHeader("X-Clientum-Algorithm", alg.name());
+      if (reference != null) response.setHeader("X-Clientum-Key-Ref", reference);
+      signed.writeTo(response.getOutputStream());
+      return null;
+    });
+  }
+
+  /** Tenant autenticado por ApiKeyFilter (null sin claves configuradas). */
+  private static String tenant(HttpServletRequest request) {
+    Object tenant = request.getAttribute(TenantRegistry.TENANT_ATTRIBUTE);
+    return tenant == null ? null : tenant.toString();
+  }
+
+  private byte[] readBody(HttpServletRequest request) throws IOException {
+    long declared = request.getContentLengthLong();
+    if (declared > rawMaxBytes) {
+      throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Máximo " + rawMaxBytes + " bytes");
+    }
+    InputStream in = request.getInputStream();
+    byte[] body;
+    if (declared >= 0) {
+      body = in.readNBytes((int) declared);
+      if (body.length != declared) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cuerpo incompleto");
+    } else {
+      body = in.readNBytes(rawMaxBytes + 1);
+      if (body.length > rawMaxBytes) {
+        throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Máximo " + rawMaxBytes + " bytes");
+      }
     }
+    if (body.length == 0) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "El cuerpo debe ser el XML");
+    return body;
+  }
+
+  private IdempotencyCache.Result signXmlDom(SignXmlRequest req, byte[] xmlBytes) throws Exception {
+    String xml = new String(xmlBytes, StandardCharsets.UTF_8);
+    return SigningMetrics.timed("xml", "dom", xml.length(), () -> {
+      // Multiusuario: si viene p12 en la petición, se usa ese; si no, el keystore global
+      // (si no está configurado, lanzará una IllegalStateException clara).
+      KeyStore.PrivateKeyEntry key = signer.resolveKey(p12(req.getP12Base64()),
+          req.getP12Password() == null ? "" : req.getP12Password());
+      SignatureAlgorithm alg = SignatureAlgorithm.negotiate(key, req.getAlgorithm());
+      String signed = signer.signXml(xml, key, alg);
+      return new IdempotencyCache.Result(signed.getBytes(StandardCharsets.UTF_8), alg.name());
+    });
+  }
+
+  /** Modo streaming: sin DOM ni copias String intermedias del documento. */
+  private IdempotencyCache.Result signXmlStreaming(SignXmlRequest req, byte[] xmlBytes) throws Exception {
+    ByteBuffer xml = ByteBuffer.wrap(xmlBytes);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(xml.remaining() + 8192);
+
+    SignatureAlgorithm alg = SigningMetrics.timed("xml", "streaming", xml.remaining(), () -> {
+      KeyStore.PrivateKeyEntry key = signer.resolveKey(p12(req.getP12Base64()),
+          req.getP12Password() == null ? "" : req.getP12Password());
+      SignatureAlgorithm negotiated = SignatureAlgorithm.negotiate(key, req.getAlgorithm());
+      signer.signXmlStreaming(xml, key, negotiated, out);
+      return negotiated;
+    });
+    return new IdempotencyCache.Result(out.toByteArray(), alg.name());
+  }
+
+  private static byte[] p12(String p12Base64) {
+    return p12Base64 != null && !p12Base64.isBlank() ? Base64.getMimeDecoder().decode(p12Base64) : null;
   }
 
-  private String extractXml(SignXmlRequest req) {
+  /** El XML de la petición: {@code xml} (texto) si viene y si no {@code xmlBase64}. */
+  private byte[] extractXmlBytes(SignXmlRequest req) {
     if (req.getXml() != null && !req.getXml().isBlank()) {
-      return req.getXml();
+      return req.getXml().getBytes(StandardCharsets.UTF_8);
     }
     if (req.getXmlBase64() != null && !req.getXmlBase64().isBlank()) {
-      return new String(Base64.getDecoder().decode(req.getXmlBase64()), StandardCharsets.UTF_8);
+      return Base64.getDecoder().decode(req.getXmlBase64());
     }
     throw new IllegalStateException("Debes enviar xml (texto) o xmlBase64");
   }
@@ -0,0 +1,105 @@
+package com.clientum.signer.controller;
+
+import com.clientum.signer.api.dto.SignBatchRequest;
+import com.clientum.signer.api.dto.VerifyBatchRequest;
+import com.clientum.signer.api.dto.VerifyRequest;
+import com.clientum.signer.api.dto.VerifyResponse;
+import com.clientum.signer.service.SignatureVerifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/verify")
+public class VerifyController {
+
+  private final SignatureVerifier verifier;
+  private final int batchMax;
+
+  public VerifyController(SignatureVerifier verifier,
+                          @Value("${SIGNER_VERIFY_BATCH_MAX:1000}") int batchMax) {
+    this.verifier = verifier;
+    this.batchMax = batchMax;
+  }
+
+  @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE)
+  public VerifyResponse verify(@RequestBody VerifyRequest req) {
+    return verifier.verify(xmlBytes(req.getXml(), req.getXmlBase64()));
+  }
+
+  /** Mismo resultado con el XML firmado como cuerpo (application/xml, text/xml u octet-stream). */
+  @PostMapping(consumes = {
+      MediaType.APPLICATION_XML_VALUE, MediaType.TEXT_XML_VALUE, MediaType.APPLICATION_OCTET_STREAM_VALUE})
+  public VerifyResponse verifyRaw(@RequestBody byte[] xml) {
+    if (xml == null || xml.length == 0) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "El cuerpo debe ser el XML firmado");
+    }
+    return verifier.verify(xml);
+  }
+
+  /** Lote: verificación en paralelo; results en el mismo orden que documents. */
+  @PostMapping("/batch")
+  public Map<String, Object> verifyBatch(@RequestBody VerifyBatchRequest req) {
+    List<SignBatchRequest.Item> items = req.getDocuments();
+    if (items == null || items.isEmpty()) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Debes enviar al menos un documento en documents");
+    }
+    if (items.size() > batchMax) {
+      throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Máximo " + batchMax + " documentos por lote");
+    }
+
+    // Un xmlBase64 mal formado sólo invalida su documento, no el lote
+    List<byte[]> docs = new ArrayList<>(items.size());
+    Map<Integer, String> malformed = new LinkedHashMap<>();
+    for (int i = 0; i < items.size(); i++) {
+      SignBatchRequest.Item item = items.get(i);
+      try {
+        docs.add(item == null ? null : xmlBytesOrNull(item.getXml(), item.getXmlBase64()));
+      } catch (IllegalArgumentException ex) {
+        docs.add(null);
+        malformed.put(i, "xmlBase64 no es Base64 válido");
+      }
+    }
+    List<VerifyResponse> results = verifier.verifyAll(docs);
+    malformed.forEach((i, error) -> results.get(i).setError(error));
+
+    int valid = 0;
+    for (int i = 0; i < results.size(); i++) {
+      VerifyResponse r = results.get(i);
+      if (items.get(i) != null) r.setId(items.get(i).getId());
+      if (r.isValid()) valid++;
+    }
+    Map<String, Object> out = new LinkedHashMap<>();
+    out.put("total", results.size());
+    out.put("valid", valid);
+    out.put("invalid", results.size() - valid);
+    out.put("results", results);
+    return out;
+  }
+
+  private static byte[] xmlBytes(String xml, String xmlBase64) {
+    byte[] b;
+    try {
+      b = xmlBytesOrNull(xml, xmlBase64);
+    } catch (IllegalArgumentException ex) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "xmlBase64 no es Base64 válido");
+    }
+    if (b == null) throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Debes enviar xml (texto) o xmlBase64");
+    return b;
+  }
+
+  private static byte[] xmlBytesOrNull(String xml, String xmlBase64) {
+    if (xmlBase64 != null && !xmlBase64.isBlank()) return Base64.getMimeDecoder().decode(xmlBase64);
+    if (xml != null && !xml.isBlank()) return xml.getBytes(StandardCharsets.UTF_8);
+    return null;
+  }
+}
@@ -0,0 +1,231 @@
+package com.clientum.signer.crypto;
+
+import org.apache.xml.security.Init;
+import org.apache.xml.security.keys.KeyInfo;
+import org.apache.xml.security.keys.content.X509Data;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.xml.crypto.dom.DOMStructure;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * KeyInfo pre-renderizado por certificado (o cadena).
+ *
+ * Generar el KeyInfo en cada firma vuelve a codificar el certificado a DER y Base64 y a
+ * reconstruir el RSAKeyValue. Aquí se genera una sola vez, con el mismo código que antes
+ * (Santuario o JSR-105, así que el resultado es idéntico byte a byte), y se guarda como un
+ * árbol inmutable de nombres y textos que se materializa en cada documento con
+ * createElementNS/createTextNode. No se comparte ningún DOM entre hilos: importNode desde un
+ * Document común no es thread-safe en Xerces.
+ *
+ * La clave de la caché es la propia lista de certificados: equals/hashCode de
+ * X509Certificate comparan el DER, así que equivale a la huella, y el hash queda cacheado en
+ * el certificado (las entradas de {@link KeyMaterialCache} reutilizan el mismo objeto).
+ */
+public final class KeyInfoTemplates {
+
+    static {
+        try { Init.init(); } catch (Throwable ignored) {}
+    }
+
+    private static final int MAX_ENTRIES = 1024;
+
+    private enum Style { SANTUARIO, JSR105 }
+
+    private record Key(Style style, List<X509Certificate> chain, boolean keyValue) { }
+
+    /** Nodo pre-renderizado: elemento (qname, atributos, hijos) o texto. */
+    private record Frag(String ns, String qname, String[] attrs, List<Frag> children, String text) {
+
+        Node materialize(Document doc) {
+            if (text != null) return doc.createTextNode(text);
+            Element el = doc.createElementNS(ns, qname);
+            for (int i = 0; i < attrs.length; i += 3) el.setAttributeNS(attrs[i], attrs[i + 1], attrs[i + 2]);
+            for (Frag c : children) el.appendChild(c.materialize(doc));
+            return el;
+        }
+
+        /** Como lo escribe el Transformer: vacíos como {@code <x/>} y "\r" como {@code &#13;}. */
+        void serialize(StringBuilder sb) {
+            if (text != null) {
+                escape(sb, text, false);
+                return;
+            }
+            sb.append('<').append(qname);
+            for (int i = 0; i < attrs.length; i += 3) {
+                sb.append(' ').append(attrs[i + 1]).append("=\"");
+                escape(sb, attrs[i + 2], true);
+                sb.append('"');
+            }
+            if (children.isEmpty()) {
+                sb.append("/>");
+                return;
+            }
+            sb.append('>');
+            for (Frag c : children) c.serialize(sb);
+            sb.append("</").append(qname).append('>');
+        }
+
+        private static void escape(StringBuilder sb, String s, boolean attr) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '&' -> sb.append("&amp;");
+                    case '<' -> sb.append("&lt;");
+                    case '>' -> sb.append(attr ? ">" : "&gt;");
+                    case '"' -> sb.append(attr ? "&quot;" : "\"");
+                    case '\r' -> sb.append("&#13;");
+                    case '\n' -> sb.append(attr ? "&#10;" : "\n");
+                    default -> sb.append(c);
+                }
+            }
+        }
+    }
+
+    /** Hijos pre-renderizados de un ds:KeyInfo. */
+    public static final class Template {
+        private final List<Frag> children;
+        private volatile String xml;
+
+        private Template(List<Frag> children) {
+            this.children = children;
+        }
+
+        /** Sustituye el contenido de {@code keyInfo} (el ds:KeyInfo de Santuario) por la plantilla. */
+        public void replaceChildren(Element keyInfo) {
+            Document doc = keyInfo.getOwnerDocument();
+            while (keyInfo.getFirstChild() != null) keyInfo.removeChild(keyInfo.getFirstChild());
+            for (Frag f : children) keyInfo.appendChild(f.materialize(doc));
+        }
+
+        /**
+         * Contenido del ds:KeyInfo ya serializado, para los firmantes que escriben el Signature como
+         * texto (StreamingXmlSigner). Se calcula una vez por plantilla.
+         */
+        public String xml() {
+            String x = xml;
+            if (x == null) {
+                StringBuilder sb = new StringBuilder(4096);
+                for (Frag f : children) f.serialize(sb);
+                xml = x = sb.toString();
+            }
+            return x;
+        }
+
+        /** Contenido para {@code KeyInfoFactory.newKeyInfo} (JSR-105), ya en {@code doc}. */
+        public List<DOMStructure> structures(Document doc) {
+            List<DOMStructure> out = new ArrayList<>(children.size());
+            for (Frag f : children) out.add(new DOMStructure(f.materialize(doc)));
+            return out;
+        }
+    }
+
+    // LRU: al llenarse sale la cadena usada hace más tiempo, no toda la caché
+    private static final Map<Key, Template> CACHE = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Template> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private KeyInfoTemplates() { }
+
+    /**
+     * Como {@code XMLSignature.addKeyInfo(cert)} + {@code addKeyInfo(publicKey)} de Santuario:
+     * un X509Data con la cadena y, si {@code keyValue}, el KeyValue del primer certificado.
+     */
+    public static Template santuario(List<X509Certificate> chain, boolean keyValue) throws Exception {
+        return get(new Key(Style.SANTUARIO, List.copyOf(chain), keyValue));
+    }
+
+    /** Como {@code KeyInfoFactory.newX509Data(chain)} de JSR-105 (sin prefijo, namespace por defecto). */
+    public static Template jsr105(List<X509Certificate> chain) throws Exception {
+        return get(new Key(Style.JSR105, List.copyOf(chain), false));
+    }
+
+    public static int size() {
+        synchronized (CACHE) {
+            return CACHE.size();
+        }
+    }
+
+    private static Template get(Key key) throws Exception {
+        synchronized (CACHE) {
+            Template cached = CACHE.get(key);
+            if (cached != null) return cached;
+        }
+        // Se renderiza fuera del lock; si dos hilos coinciden, se queda el primero
+        Template t = new Template(key.style == Style.SANTUARIO ? renderSantuario(key) : renderJsr105(key));
+        synchronized (CACHE) {
+            Template previous = CACHE.putIfAbsent(key, t);
+            return previous != null ? previous : t;
+        }
+    }
+
+    private static List<Frag> renderSantuario(Key key) throws Exception {
+        Document doc = newDocument();
+        KeyInfo ki = new KeyInfo(doc);
+        X509Data x509 = new X509Data(doc);
+        for (X509Certificate c : key.chain) x509.addCertificate(c);
+        ki.add(x509);
+        if (key.keyValue) {
+            PublicKey pk = key.chain.get(0).getPublicKey();
+            ki.addKeyValue(pk);
+        }
+        return capture(ki.getElement());
+    }
+
+    private static List<Frag> renderJsr105(Key key) throws Exception {
+        Document doc = newDocument();
+        Element holder = doc.createElementNS(null, "holder");
+        doc.appendChild(holder);
+        try (var lease = XmlPools.signatureFactory()) {
+            XMLSignatureFactory fac = lease.get();
+            KeyInfoFactory kif = fac.getKeyInfoFactory();
+            javax.xml.crypto.dsig.keyinfo.KeyInfo ki = kif.newKeyInfo(List.of(kif.newX509Data(key.chain)));
+            ki.marshal(new DOMStructure(holder), new DOMSignContext(key.chain.get(0).getPublicKey(), holder));
+        }
+        Element kiEl = (Element) holder.getFirstChild();
+        if (!XMLSignature.XMLNS.equals(kiEl.getNamespaceURI())) throw new IllegalStateException("KeyInfo inesperado");
+        return capture(kiEl);
+    }
+
+    private static List<Frag> capture(Element parent) {
+        List<Frag> out = new ArrayList<>();
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                NamedNodeMap attrs = n.getAttributes();
+                String[] a = new String[attrs.getLength() * 3];
+                for (int i = 0; i < attrs.getLength(); i++) {
+                    Attr at = (Attr) attrs.item(i);
+                    a[i * 3] = at.getNamespaceURI();
+                    a[i * 3 + 1] = at.getName();
+                    a[i * 3 + 2] = at.getValue();
+                }
+                out.add(new Frag(n.getNamespaceURI(), n.getNodeName(), a, List.copyOf(capture((Element) n)), null));
+            } else if (n.getNodeType() == Node.TEXT_NODE) {
+                out.add(new Frag(null, null, null, null, n.getNodeValue()));
+            }
+        }
+        return List.copyOf(out);
+    }
+
+    private static Document newDocument() {
+        try (var db = XmlPools.documentBuilder()) {
+            return db.get().newDocument();
+        }
+    }
+}
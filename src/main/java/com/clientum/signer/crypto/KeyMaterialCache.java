@@ -0,0 +1,260 @@
+package com.clientum.signer.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caché compartida de material de clave ya decodificado desde .p12.
+ *
+ * La clave de la caché es un SHA-256 de (bytes del p12 + passwords + alias), de modo que
+ * nunca se guarda la contraseña ni el p12 en claro. Evicción por tamaño (LRU) y por TTL.
+ * Las claves expulsadas no se destruyen: otro hilo puede estar firmando todavía con ellas;
+ * sólo se sueltan sus motores ociosos y el GC las recoge cuando nadie las usa.
+ *
+ * {@link #reference} da una referencia aleatoria (no derivada del p12 ni de la contraseña) a una
+ * entrada cacheada, ligada al tenant que la cargó: permite volver a firmar sin reenviar el p12
+ * mientras no caduque, y sólo a ese tenant. Se invalida al expulsar la entrada.
+ *
+ * La instancia compartida la instala config.KeyConfig con SIGNER_KEY_CACHE_MAX (entradas,
+ * 0 desactiva) y SIGNER_KEY_CACHE_TTL_SECONDS; hasta entonces se usan los valores por defecto.
+ */
+public final class KeyMaterialCache {
+
+    @FunctionalInterface
+    public interface Loader {
+        KeyStore.PrivateKeyEntry load() throws Exception;
+    }
+
+    private static volatile KeyMaterialCache shared = new KeyMaterialCache(256, Duration.ofSeconds(900));
+
+    public static KeyMaterialCache shared() {
+        return shared;
+    }
+
+    /** Sustituye la instancia compartida (al arrancar, con la configuración de Spring). */
+    public static void install(KeyMaterialCache cache) {
+        KeyMaterialCache previous = shared;
+        shared = cache;
+        if (previous != cache) previous.clear();
+    }
+
+    private static final class Entry {
+        final KeyStore.PrivateKeyEntry value;
+        final long expiresAt;
+        // Referencia emitida por tenant (a lo sumo una por tenant y entrada)
+        Map<String, String> references;
+
+        Entry(KeyStore.PrivateKeyEntry value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Referencia -> entrada y tenant; se protege con el lock de entries
+    private final Map<String, Reference> references = new HashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    // Evita que dos peticiones simultáneas con el mismo p12 lo decodifiquen dos veces
+    private final Map<ByteBuffer, CompletableFuture<KeyStore.PrivateKeyEntry>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public KeyMaterialCache(int maxEntries, Duration ttl) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    /**
+     * Devuelve la entrada cacheada para este p12/password/alias o la carga con {@code loader}.
+     * Los fallos (p. ej. contraseña incorrecta) no se cachean.
+     */
+    public KeyStore.PrivateKeyEntry get(byte[] p12Bytes, char[] storePassword, String alias, char[] keyPassword,
+                                        Loader loader) throws Exception {
+        if (maxEntries == 0) {
+            misses.increment();
+            return loader.load();
+        }
+        ByteBuffer key = ByteBuffer.wrap(digest(p12Bytes, storePassword, alias, keyPassword));
+
+        KeyStore.PrivateKeyEntry cached = lookup(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        CompletableFuture<KeyStore.PrivateKeyEntry> mine = new CompletableFuture<>();
+        CompletableFuture<KeyStore.PrivateKeyEntry> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            hits.increment();
+            return await(running);
+        }
+
+        misses.increment();
+        try {
+            KeyStore.PrivateKeyEntry loaded = loader.load();
+            store(key, loaded);
+            mine.complete(loaded);
+            return loaded;
+        } catch (Exception ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private record Reference(ByteBuffer key, String tenant) { }
+
+    /**
+     * Referencia opaca (aleatoria) a la entrada ya cacheada de este p12/password/alias para
+     * {@code tenant}; la misma mientras la entrada siga en caché. Null si no está cacheada.
+     */
+    public String reference(byte[] p12Bytes, char[] storePassword, String alias, char[] keyPassword,
+                            String tenant) throws Exception {
+        ByteBuffer key = ByteBuffer.wrap(digest(p12Bytes, storePassword, alias, keyPassword));
+        String owner = tenant == null ? "" : tenant;
+        synchronized (entries) {
+            Entry e = entries.get(key);
+            if (e == null || e.expiresAt - System.nanoTime() <= 0) return null;
+            if (e.references == null) e.references = new HashMap<>(2);
+            String ref = e.references.get(owner);
+            if (ref == null) {
+                byte[] b = new byte[32];
+                random.nextBytes(b);
+                ref = Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+                e.references.put(owner, ref);
+                references.put(ref, new Reference(key, owner));
+            }
+            return ref;
+        }
+    }
+
+    /** Entrada cacheada para {@code reference} emitida a {@code tenant}, o null si no existe, ha caducado o es de otro tenant. */
+    public KeyStore.PrivateKeyEntry byReference(String reference, String tenant) {
+        Reference r;
+        synchronized (entries) {
+            r = references.get(reference);
+        }
+        KeyStore.PrivateKeyEntry cached = r != null && r.tenant().equals(tenant == null ? "" : tenant)
+                ? lookup(r.key()) : null;
+        if (cached != null) hits.increment();
+        else misses.increment();
+        return cached;
+    }
+
+    /** Vacía la caché (y los motores ociosos de sus claves). */
+    public void clear() {
+        synchronized (entries) {
+            for (Entry e : entries.values()) wipe(e);
+            entries.clear();
+            references.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long hitCount() { return hits.sum(); }
+    public long missCount() { return misses.sum(); }
+    public long evictionCount() { return evictions.sum(); }
+
+    private KeyStore.PrivateKeyEntry lookup(ByteBuffer key) {
+        synchronized (entries) {
+            Entry e = entries.get(key);
+            if (e == null) return null;
+            if (e.expiresAt - System.nanoTime() <= 0) {
+                entries.remove(key);
+                evict(e);
+                return null;
+            }
+            return e.value;
+        }
+    }
+
+    private void store(ByteBuffer key, KeyStore.PrivateKeyEntry value) {
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Entry previous = entries.put(key, new Entry(value, now + ttlNanos));
+            if (previous != null && previous.value != value) evict(previous);
+
+            // Primero caducadas, después las menos usadas recientemente
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (e.expiresAt - now <= 0 || entries.size() > maxEntries) {
+                    it.remove();
+                    evict(e);
+                }
+            }
+        }
+    }
+
+    private void evict(Entry e) {
+        evictions.increment();
+        // Siempre con el lock de entries
+        if (e.references != null) references.keySet().removeAll(e.references.values());
+        wipe(e);
+    }
+
+    private static void wipe(Entry e) {
+        // Sin destroy(): la entrada puede seguir en uso por peticiones en curso. evict sólo
+        // quita motores ociosos; los que estén firmando siguen siendo de su hilo.
+        PrivateKey pk = e.value.getPrivateKey();
+        if (pk != null) SignatureEngines.evict(pk);
+    }
+
+    private static KeyStore.PrivateKeyEntry await(CompletableFuture<KeyStore.PrivateKeyEntry> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception cause) throw cause;
+            throw ex;
+        }
+    }
+
+    private static byte[] digest(byte[] p12Bytes, char[] storePassword, String alias, char[] keyPassword)
+            throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(p12Bytes);
+        md.update((byte) 0);
+        updateSecret(md, storePassword);
+        md.update((byte) 0);
+        if (alias != null) md.update(alias.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        updateSecret(md, keyPassword);
+        return md.digest();
+    }
+
+    private static void updateSecret(MessageDigest md, char[] secret) {
+        if (secret == null) return;
+        ByteBuffer bb = StandardCharsets.UTF_8.encode(CharBuffer.wrap(secret));
+        byte[] tmp = new byte[bb.remaining()];
+        bb.get(tmp);
+        md.update(tmp);
+        Arrays.fill(tmp, (byte) 0);
+        if (bb.hasArray()) Arrays.fill(bb.array(), (byte) 0);
+    }
+}
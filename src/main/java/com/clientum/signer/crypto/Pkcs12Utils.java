@@ -3,6 +3,7 @@ package com.clientum.signer.crypto;
 import java.io.ByteArrayInputStream;
 import java.security.KeyStore;
 import java.security.PrivateKey;
+import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.Enumeration;
 
@@ -19,20 +20,43 @@ public class Pkcs12Utils {
     }
 
     public static KeyMaterial load(byte[] p12Bytes, char[] password) throws Exception {
+        KeyStore.PrivateKeyEntry entry = loadEntry(p12Bytes, password, null, password);
+        return new KeyMaterial(entry.getPrivateKey(), (X509Certificate) entry.getCertificate());
+    }
+
+    /**
+     * Carga (o recupera de {@link KeyMaterialCache#shared()}) la entrada de clave del .p12.
+     * Si {@code alias} es null o no existe se usa la primera entrada con clave privada.
+     */
+    public static KeyStore.PrivateKeyEntry loadEntry(byte[] p12Bytes, char[] storePassword,
+                                                     String alias, char[] keyPassword) throws Exception {
+        long t0 = System.nanoTime();
+        KeyStore.PrivateKeyEntry entry = KeyMaterialCache.shared().get(p12Bytes, storePassword, alias, keyPassword,
+                () -> decode(p12Bytes, storePassword, alias, keyPassword));
+        SigningMetrics.record(SigningMetrics.Phase.KEY, t0);
+        return entry;
+    }
+
+    private static KeyStore.PrivateKeyEntry decode(byte[] p12Bytes, char[] storePassword,
+                                                   String alias, char[] keyPassword) throws Exception {
         KeyStore ks = KeyStore.getInstance("PKCS12");
-        ks.load(new ByteArrayInputStream(p12Bytes), password);
+        ks.load(new ByteArrayInputStream(p12Bytes), storePassword);
 
-        String alias = null;
+        String effectiveAlias = (alias != null && ks.isKeyEntry(alias)) ? alias : null;
         Enumeration<String> e = ks.aliases();
-        while (e.hasMoreElements()) {
+        while (effectiveAlias == null && e.hasMoreElements()) {
             String a = e.nextElement();
-            if (ks.isKeyEntry(a)) { alias = a; break; }
+            if (ks.isKeyEntry(a)) effectiveAlias = a;
         }
-        if (alias == null) throw new IllegalStateException("No hay entrada de clave en el .p12");
-
-        PrivateKey pk = (PrivateKey) ks.getKey(alias, password);
-        X509Certificate cert = (X509Certificate) ks.getCertificate(alias);
-
-        return new KeyMaterial(pk, cert);
+        if (effectiveAlias == null) throw new IllegalStateException("No hay entrada de clave en el .p12");
+
+        PrivateKey pk = (PrivateKey) ks.getKey(effectiveAlias, keyPassword);
+        Certificate[] chain = ks.getCertificateChain(effectiveAlias);
+        if (chain == null || chain.length == 0) {
+            Certificate cert = ks.getCertificate(effectiveAlias);
+            if (cert == null) throw new IllegalStateException("La entrada del .p12 no tiene certificado");
+            chain = new Certificate[]{cert};
+        }
+        return new KeyStore.PrivateKeyEntry(pk, chain);
     }
 }
@@ -0,0 +1,131 @@
+package com.clientum.signer.crypto;
+
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Signature;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.Locale;
+
+/**
+ * Algoritmos de firma XMLDSig admitidos, elegidos según el tipo de clave.
+ *
+ * Sin petición expresa: RSA → RSA_SHA256 (lo de siempre) y EC → ECDSA con el hash acorde a la
+ * curva (P-256 → SHA-256, P-384 → SHA-384, P-521 → SHA-512). El cliente puede pedir otro con
+ * {@code algorithm}: nombre del enum (RSA_PSS_SHA256), alias JOSE (PS256, ES384...) o la URI.
+ *
+ * RSA-PSS usa las URIs sha*-rsa-MGF1 de RFC 6931 (sal = longitud del hash), que Santuario y
+ * JSR-105 resuelven sin parámetros en el SignatureMethod. ECDSA se firma en formato P1363
+ * (r || s), que es el que exige XMLDSig para SignatureValue.
+ */
+public enum SignatureAlgorithm {
+
+    RSA_SHA256("RSA", "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256", "SHA256withRSA", null, "RS256"),
+    RSA_SHA384("RSA", "http://www.w3.org/2001/04/xmldsig-more#rsa-sha384", "SHA384withRSA", null, "RS384"),
+    RSA_SHA512("RSA", "http://www.w3.org/2001/04/xmldsig-more#rsa-sha512", "SHA512withRSA", null, "RS512"),
+    RSA_PSS_SHA256("RSA", "http://www.w3.org/2007/05/xmldsig-more#sha256-rsa-MGF1", "RSASSA-PSS",
+            new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1), "PS256"),
+    RSA_PSS_SHA384("RSA", "http://www.w3.org/2007/05/xmldsig-more#sha384-rsa-MGF1", "RSASSA-PSS",
+            new PSSParameterSpec("SHA-384", "MGF1", MGF1ParameterSpec.SHA384, 48, 1), "PS384"),
+    RSA_PSS_SHA512("RSA", "http://www.w3.org/2007/05/xmldsig-more#sha512-rsa-MGF1", "RSASSA-PSS",
+            new PSSParameterSpec("SHA-512", "MGF1", MGF1ParameterSpec.SHA512, 64, 1), "PS512"),
+    ECDSA_SHA256("EC", "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256", "SHA256withECDSAinP1363Format", null, "ES256"),
+    ECDSA_SHA384("EC", "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha384", "SHA384withECDSAinP1363Format", null, "ES384"),
+    ECDSA_SHA512("EC", "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha512", "SHA512withECDSAinP1363Format", null, "ES512");
+
+    private final String keyType;
+    private final String uri;
+    private final String jcaName;
+    private final PSSParameterSpec pss;
+    private final String jose;
+
+    SignatureAlgorithm(String keyType, String uri, String jcaName, PSSParameterSpec pss, String jose) {
+        this.keyType = keyType;
+        this.uri = uri;
+        this.jcaName = jcaName;
+        this.pss = pss;
+        this.jose = jose;
+    }
+
+    /** URI del SignatureMethod. */
+    public String uri() {
+        return uri;
+    }
+
+    /** Signature JCA lista para initSign (con los parámetros PSS si aplica). */
+    public Signature newSignature() throws Exception {
+        return newSignature(null);
+    }
+
+    /**
+     * Como {@link #newSignature()} con un proveedor concreto (null = el primero que lo tenga).
+     * BouncyCastle llama "SHAxxxwithPLAIN-ECDSA" a la ECDSA en formato P1363.
+     */
+    public Signature newSignature(Provider provider) throws Exception {
+        Signature s;
+        if (provider == null) {
+            s = Signature.getInstance(jcaName);
+        } else {
+            try {
+                s = Signature.getInstance(jcaName, provider);
+            } catch (NoSuchAlgorithmException ex) {
+                if (!keyType.equals("EC")) throw ex;
+                s = Signature.getInstance(jcaName.replace("withECDSAinP1363Format", "withPLAIN-ECDSA"), provider);
+            }
+        }
+        if (pss != null) s.setParameter(pss);
+        return s;
+    }
+
+    /** "RSA" o "EC". */
+    public String keyType() {
+        return keyType;
+    }
+
+    /** Algoritmo por defecto para la clave. */
+    public static SignatureAlgorithm forKey(Key key) {
+        return negotiate(key, null);
+    }
+
+    public static SignatureAlgorithm negotiate(KeyStore.PrivateKeyEntry entry, String requested) {
+        return negotiate(entry.getPrivateKey(), requested);
+    }
+
+    /**
+     * {@code requested} (nombre, alias JOSE o URI) si es compatible con la clave; si viene vacío,
+     * el de por defecto para su tipo.
+     * @throws IllegalStateException si no se reconoce o no corresponde al tipo de clave
+     */
+    public static SignatureAlgorithm negotiate(Key key, String requested) {
+        String type = keyType(key);
+        if (requested == null || requested.isBlank()) {
+            if (type.equals("RSA")) return RSA_SHA256;
+            int bits = ((ECKey) key).getParams().getCurve().getField().getFieldSize();
+            return bits > 384 ? ECDSA_SHA512 : bits > 256 ? ECDSA_SHA384 : ECDSA_SHA256;
+        }
+        SignatureAlgorithm alg = parse(requested);
+        if (!alg.keyType.equals(type)) {
+            throw new IllegalStateException("El algoritmo " + alg + " no es compatible con una clave " + type);
+        }
+        return alg;
+    }
+
+    public static SignatureAlgorithm parse(String value) {
+        String v = value.trim();
+        String name = v.toUpperCase(Locale.ROOT).replace('-', '_');
+        for (SignatureAlgorithm a : values()) {
+            if (a.name().equals(name) || a.jose.equals(name) || a.uri.equals(v)) return a;
+        }
+        throw new IllegalStateException("Algoritmo de firma no soportado: " + value);
+    }
+
+    private static String keyType(Key key) {
+        if (key instanceof RSAKey) return "RSA";
+        if (key instanceof ECKey) return "EC";
+        throw new IllegalStateException("Tipo de clave no soportado: " + key.getAlgorithm());
+    }
+}
@@ -0,0 +1,141 @@
+package com.clientum.signer.crypto;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+import java.security.InvalidKeyException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Signature ya inicializados (initSign) por clave y algoritmo, para no repetir en cada firma el
+ * getInstance (búsqueda del proveedor) y el initSign (validar y convertir la clave; en
+ * BouncyCastle, pasarla a sus parámetros internos).
+ *
+ * Un Signature no es thread-safe: cada (clave, algoritmo) tiene una pila de motores libres, se
+ * toma uno, se firma y se devuelve; sign() lo deja listo para la siguiente firma con la misma
+ * clave. Si algo falla a medias, el motor se descarta. Las claves se comparan por identidad:
+ * las de {@link KeyMaterialCache} y la del keystore global son siempre el mismo objeto.
+ *
+ * El proveedor es el de {@link SignatureProviders}; si no acepta la clave (p. ej. no
+ * exportable) se usa el de por defecto. Pares (clave, algoritmo) cacheados, LRU: 64 o lo que
+ * fije {@link #configure} (SIGNER_ENGINE_CACHE_MAX, ver SignatureConfig; 0 desactiva). Aciertos y
+ * fallos en {@code signer.signature.engines}.
+ */
+public final class SignatureEngines {
+
+    private static volatile int maxSlots = 64;
+    private static final int MAX_IDLE = Runtime.getRuntime().availableProcessors();
+
+    private static final class Slot {
+        final PrivateKey key;
+        final SignatureAlgorithm alg;
+
+        Slot(PrivateKey key, SignatureAlgorithm alg) {
+            this.key = key;
+            this.alg = alg;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Slot s && s.key == key && s.alg == alg;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(key) * 31 + alg.ordinal();
+        }
+    }
+
+    private static final LinkedHashMap<Slot, ArrayDeque<Signature>> IDLE = new LinkedHashMap<>(16, 0.75f, true);
+    // Sube con clear(): los motores prestados antes no vuelven a la caché
+    private static int generation;
+
+    private static final Counter HITS = counter("hit");
+    private static final Counter MISSES = counter("miss");
+
+    private SignatureEngines() { }
+
+    /** Firma {@code data} con {@code key} y {@code alg}. */
+    public static byte[] sign(PrivateKey key, SignatureAlgorithm alg, byte[] data) throws Exception {
+        Slot slot = new Slot(key, alg);
+        int gen;
+        Signature s;
+        synchronized (IDLE) {
+            gen = generation;
+            ArrayDeque<Signature> idle = IDLE.get(slot);
+            s = idle == null ? null : idle.pollFirst();
+        }
+        if (s != null) {
+            HITS.increment();
+        } else {
+            MISSES.increment();
+            s = create(key, alg);
+        }
+
+        s.update(data);
+        byte[] out = s.sign();
+        release(slot, s, gen);
+        return out;
+    }
+
+    /** Suelta los motores de {@code key} (p. ej. al expulsarla de {@link KeyMaterialCache}). */
+    public static void evict(PrivateKey key) {
+        synchronized (IDLE) {
+            IDLE.keySet().removeIf(slot -> slot.key == key);
+        }
+    }
+
+    /** Máximo de pares (clave, algoritmo) con motores libres; 0 desactiva la caché. */
+    public static void configure(int maxSlots) {
+        SignatureEngines.maxSlots = Math.max(0, maxSlots);
+        clear();
+    }
+
+    /** Vacía la caché (p. ej. al cambiar de proveedor). */
+    public static void clear() {
+        synchronized (IDLE) {
+            generation++;
+            IDLE.clear();
+        }
+    }
+
+    private static Signature create(PrivateKey key, SignatureAlgorithm alg) throws Exception {
+        Provider p = SignatureProviders.provider(alg);
+        Signature s = alg.newSignature(p);
+        try {
+            s.initSign(key);
+        } catch (InvalidKeyException ex) {
+            if (p == null) throw ex;
+            s = alg.newSignature();
+            s.initSign(key);
+        }
+        return s;
+    }
+
+    private static void release(Slot slot, Signature s, int gen) {
+        int max = maxSlots;
+        if (max == 0) return;
+        synchronized (IDLE) {
+            if (gen != generation) return;
+            ArrayDeque<Signature> idle = IDLE.computeIfAbsent(slot, k -> new ArrayDeque<>(2));
+            if (idle.size() < MAX_IDLE) idle.addFirst(s);
+            Iterator<Map.Entry<Slot, ArrayDeque<Signature>>> it = IDLE.entrySet().iterator();
+            while (IDLE.size() > max && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    private static Counter counter(String result) {
+        return Counter.builder("signer.signature.engines").tag("result", result)
+                .description("Firmas con un Signature ya inicializado (hit) o creado al momento (miss)")
+                .register(Metrics.globalRegistry);
+    }
+}
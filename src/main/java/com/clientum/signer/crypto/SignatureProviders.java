@@ -0,0 +1,227 @@
+package com.clientum.signer.crypto;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Metrics;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Proveedor JCA con el que se firma cada {@link SignatureAlgorithm}.
+ *
+ * Modo (SIGNER_SIGNATURE_PROVIDER, lo fija {@link #configure} desde SignatureConfig):
+ * - {@code auto} (por defecto): tras el arranque, en un hilo de baja prioridad, cada algoritmo se
+ *   mide con los candidatos (SunRsaSign o SunEC y BouncyCastle) sobre una clave efímera. Sólo
+ *   cuentan los que firman de forma que el proveedor por defecto lo verifica; gana el de más
+ *   firmas/s. Mientras tanto (o si falla) se usa el de siempre.
+ * - {@code jdk}: el primero de java.security que tenga el algoritmo (comportamiento anterior).
+ * - {@code SunRsaSign}, {@code SunEC}, {@code BC} o cualquier proveedor instalado: ése para los
+ *   algoritmos que soporte y el de por defecto para el resto (o para todos si no existe).
+ *
+ * SIGNER_SIGNATURE_SELFTEST_MILLIS (150): tiempo de medida por candidato (otro tanto de calentamiento).
+ * BouncyCastle no se registra en java.security: sólo se usa a través de esta clase.
+ * El resultado de la medida se publica como {@code signer.signature.selftest}
+ * {algorithm, provider, selected} (firmas/s).
+ */
+public final class SignatureProviders {
+
+    /** Medida de un candidato en el autotest. */
+    public record Measurement(SignatureAlgorithm algorithm, String provider, double opsPerSecond, boolean selected) { }
+
+    private static volatile String mode = "auto";
+    private static volatile long selftestMillis = 150;
+    private static final byte[] SAMPLE = "<ds:SignedInfo xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\"/>"
+            .getBytes(StandardCharsets.UTF_8);
+
+    // null = el proveedor por defecto de JCA
+    private static final Map<SignatureAlgorithm, Provider> SELECTED =
+            Collections.synchronizedMap(new EnumMap<>(SignatureAlgorithm.class));
+    private static final List<Measurement> MEASUREMENTS = Collections.synchronizedList(new ArrayList<>());
+    private static volatile Provider bc;
+    private static boolean started;
+
+    private SignatureProviders() { }
+
+    /**
+     * Fija el modo y el tiempo de medida del autotest. Con un proveedor concreto se aplica ya; con
+     * {@code auto} se vuelve al de por defecto hasta {@link #start}.
+     */
+    public static synchronized void configure(String mode, long selftestMillis) {
+        String m = mode == null || mode.isBlank() ? "auto" : mode.trim();
+        SignatureProviders.mode = m;
+        SignatureProviders.selftestMillis = Math.max(1, selftestMillis);
+        SELECTED.clear();
+        if (!m.equalsIgnoreCase("auto") && !m.equalsIgnoreCase("jdk")) {
+            Provider forced = provider(m);
+            for (SignatureAlgorithm alg : SignatureAlgorithm.values()) {
+                if (forced != null && supports(forced, alg)) SELECTED.put(alg, forced);
+            }
+        }
+        SignatureEngines.clear();
+    }
+
+    /** Proveedor para {@code alg}; null = el de por defecto. */
+    public static Provider provider(SignatureAlgorithm alg) {
+        return SELECTED.get(alg);
+    }
+
+    /** Para JSR-105: el DOMSignatureMethod usa este proveedor para el Signature. */
+    public static void apply(DOMSignContext ctx, SignatureAlgorithm alg) {
+        Provider p = provider(alg);
+        if (p != null) ctx.setProperty("org.jcp.xml.dsig.internal.dom.SignatureProvider", p);
+    }
+
+    /**
+     * En modo auto, lanza el autotest en segundo plano (una sola vez). Se llama con la aplicación
+     * ya arrancada para no competir con el arranque por la CPU.
+     */
+    public static synchronized void start() {
+        if (started || !mode.equalsIgnoreCase("auto")) return;
+        started = true;
+        Thread t = Thread.ofPlatform().name("signature-selftest").daemon().unstarted(SignatureProviders::selfTest);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /** Medidas del autotest (vacío si no se ha ejecutado o no ha terminado). */
+    public static List<Measurement> measurements() {
+        synchronized (MEASUREMENTS) {
+            return List.copyOf(MEASUREMENTS);
+        }
+    }
+
+    private static void selfTest() {
+        Map<String, KeyPair> keys = new LinkedHashMap<>();
+        for (SignatureAlgorithm alg : SignatureAlgorithm.values()) {
+            try {
+                KeyPair kp = keys.computeIfAbsent(testKey(alg), SignatureProviders::generate);
+                List<Measurement> candidates = new ArrayList<>();
+                Provider best = null;
+                double bestOps = 0;
+                for (Provider p : candidates(alg)) {
+                    double ops = measure(alg, p, kp);
+                    if (ops <= 0) continue;
+                    candidates.add(new Measurement(alg, p.getName(), ops, false));
+                    if (ops > bestOps) {
+                        best = p;
+                        bestOps = ops;
+                    }
+                }
+                if (best == null) continue;
+                SELECTED.put(alg, best);
+                for (Measurement m : candidates) {
+                    Measurement r = new Measurement(alg, m.provider(), m.opsPerSecond(), m.provider().equals(best.getName()));
+                    MEASUREMENTS.add(r);
+                    Gauge.builder("signer.signature.selftest", () -> r.opsPerSecond())
+                            .description("Firmas/s medidas al arrancar por algoritmo y proveedor")
+                            .tag("algorithm", alg.name()).tag("provider", r.provider())
+                            .tag("selected", Boolean.toString(r.selected()))
+                            .register(Metrics.globalRegistry);
+                }
+            } catch (Throwable ignored) {
+                // este algoritmo se queda con el proveedor por defecto
+            }
+        }
+        // Los motores ya creados pueden ser de otro proveedor
+        SignatureEngines.clear();
+    }
+
+    /** Firmas/s de {@code p} con {@code alg}; 0 si no lo soporta o la firma no verifica. */
+    private static double measure(SignatureAlgorithm alg, Provider p, KeyPair kp) {
+        try {
+            Signature s = alg.newSignature(p);
+            s.initSign(kp.getPrivate());
+            Signature v = alg.newSignature();
+            v.initVerify(kp.getPublic());
+            s.update(SAMPLE);
+            v.update(SAMPLE);
+            if (!v.verify(s.sign())) return 0;
+
+            long millis = selftestMillis;
+            long warmupEnd = System.nanoTime() + millis * 1_000_000;
+            while (System.nanoTime() - warmupEnd < 0) {
+                s.update(SAMPLE);
+                s.sign();
+            }
+            long t0 = System.nanoTime();
+            long end = t0 + millis * 1_000_000;
+            int n = 0;
+            long now;
+            do {
+                s.update(SAMPLE);
+                s.sign();
+                n++;
+                now = System.nanoTime();
+            } while (now - end < 0);
+            return n * 1e9 / (now - t0);
+        } catch (Exception ex) {
+            return 0;
+        }
+    }
+
+    private static List<Provider> candidates(SignatureAlgorithm alg) {
+        List<Provider> out = new ArrayList<>(2);
+        Provider jdk = Security.getProvider(alg.keyType().equals("RSA") ? "SunRsaSign" : "SunEC");
+        if (jdk != null) out.add(jdk);
+        Provider b = provider("BC");
+        if (b != null) out.add(b);
+        return out;
+    }
+
+    private static String testKey(SignatureAlgorithm alg) {
+        if (alg.keyType().equals("RSA")) return "RSA:2048";
+        return switch (alg) {
+            case ECDSA_SHA384 -> "EC:secp384r1";
+            case ECDSA_SHA512 -> "EC:secp521r1";
+            default -> "EC:secp256r1";
+        };
+    }
+
+    private static KeyPair generate(String spec) {
+        try {
+            String[] p = spec.split(":");
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance(p[0]);
+            if (p[0].equals("RSA")) kpg.initialize(Integer.parseInt(p[1]));
+            else kpg.initialize(new ECGenParameterSpec(p[1]));
+            return kpg.generateKeyPair();
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static boolean supports(Provider p, SignatureAlgorithm alg) {
+        try {
+            alg.newSignature(p);
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private static Provider provider(String name) {
+        if (name.equalsIgnoreCase("BC") || name.equalsIgnoreCase("BouncyCastle")) {
+            Provider b = bc;
+            if (b == null) {
+                synchronized (SignatureProviders.class) {
+                    if (bc == null) bc = new BouncyCastleProvider();
+                    b = bc;
+                }
+            }
+            return b;
+        }
+        return Security.getProvider(name);
+    }
+}
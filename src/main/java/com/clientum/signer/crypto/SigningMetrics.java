@@ -0,0 +1,133 @@
+package com.clientum.signer.crypto;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tiempos por fase de una firma, publicados como {@code signer.sign.phase}
+ * {phase, endpoint, backend, size} en el registro global de Micrometer (Spring Boot lo enlaza
+ * al de Actuator, así que aparecen en /actuator/prometheus).
+ *
+ * El punto de entrada ejecuta la firma dentro de {@link #timed} y los firmantes, que son
+ * estáticos, marcan fases con {@link #record}. La operación va en un
+ * ThreadLocal: fuera de una operación (tests, benchmarks) {@link #record} no hace nada.
+ * Los Timer de cada combinación de tags se resuelven una vez y se reutilizan.
+ *
+ * Fases: key (p12/caché), parse, canonicalize (en streaming incluye parse y digest),
+ * sign (en DOM: c14n + digest + RSA dentro de Santuario/JSR-105; en streaming: sólo RSA),
+ * serialize y total.
+ *
+ * {@code signer.startup.first.signature}: tiempo desde el arranque de la JVM hasta la primera
+ * fase sign completada (NaN hasta entonces). Junto a {@code application.ready.time} de Spring
+ * Boot mide el arranque en frío tal como lo ve el primer cliente (Santuario, claves, JIT...).
+ */
+public final class SigningMetrics {
+
+    public enum Phase {
+        KEY, PARSE, CANONICALIZE, SIGN, SERIALIZE, TOTAL;
+
+        final String tag = name().toLowerCase(Locale.ROOT);
+    }
+
+    private static final ThreadLocal<Op> CURRENT = new ThreadLocal<>();
+    private static final ConcurrentHashMap<String, Timer[]> TIMERS = new ConcurrentHashMap<>();
+    private static volatile double firstSignatureMillis = Double.NaN;
+
+    static {
+        TimeGauge.builder("signer.startup.first.signature", () -> firstSignatureMillis, TimeUnit.MILLISECONDS)
+                .description("Tiempo desde el arranque de la JVM hasta la primera firma")
+                .register(Metrics.globalRegistry);
+    }
+
+    private SigningMetrics() { }
+
+    /** Cuerpo de una operación medida; las excepciones {@code E} salen tal cual. */
+    @FunctionalInterface
+    public interface Body<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /** Ejecuta {@code body} como una operación de firma en este hilo (total y fases que marque). */
+    public static <T, E extends Exception> T timed(String endpoint, String backend, long sizeBytes,
+                                                   Body<T, E> body) throws E {
+        Op op = start(endpoint, backend, sizeBytes);
+        try {
+            return body.run();
+        } finally {
+            op.end();
+        }
+    }
+
+    private static Op start(String endpoint, String backend, long sizeBytes) {
+        String size = sizeBucket(sizeBytes);
+        Timer[] timers = TIMERS.computeIfAbsent(endpoint + '|' + backend + '|' + size,
+                k -> timers(endpoint, backend, size));
+        Op op = new Op(timers, CURRENT.get());
+        CURRENT.set(op);
+        return op;
+    }
+
+    /** Registra la fase {@code phase} iniciada en {@code startNanos} (System.nanoTime()). */
+    public static void record(Phase phase, long startNanos) {
+        if (phase == Phase.SIGN && Double.isNaN(firstSignatureMillis)) firstSignature();
+        Op op = CURRENT.get();
+        if (op != null) op.timers[phase.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static synchronized void firstSignature() {
+        if (Double.isNaN(firstSignatureMillis)) {
+            firstSignatureMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        }
+    }
+
+    static String sizeBucket(long bytes) {
+        if (bytes <= 10 * 1024) return "10KB";
+        if (bytes <= 100 * 1024) return "100KB";
+        if (bytes <= 1024 * 1024) return "1MB";
+        if (bytes <= 10 * 1024 * 1024) return "10MB";
+        return "large";
+    }
+
+    private static Timer[] timers(String endpoint, String backend, String size) {
+        Phase[] phases = Phase.values();
+        Timer[] t = new Timer[phases.length];
+        for (Phase p : phases) {
+            t[p.ordinal()] = Timer.builder("signer.sign.phase")
+                    .description("Duración de cada fase de la firma")
+                    .tag("phase", p.tag)
+                    .tag("endpoint", endpoint)
+                    .tag("backend", backend)
+                    .tag("size", size)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofNanos(10_000))
+                    .maximumExpectedValue(Duration.ofSeconds(60))
+                    .register(Metrics.globalRegistry);
+        }
+        return t;
+    }
+
+    private static final class Op {
+
+        private final Timer[] timers;
+        private final Op previous;
+        private final long start = System.nanoTime();
+
+        private Op(Timer[] timers, Op previous) {
+            this.timers = timers;
+            this.previous = previous;
+        }
+
+        void end() {
+            timers[Phase.TOTAL.ordinal()].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (previous != null) CURRENT.set(previous);
+            else CURRENT.remove();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.clientum.signer.crypto;
+
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Parsers, serializadores y fábricas de firma XML reutilizables.
+ *
+ * Las factorías se resuelven una sola vez (el lookup por ServiceLoader es caro) y las
+ * instancias no thread-safe (DocumentBuilder, Transformer, XMLSignatureFactory) se prestan
+ * desde pools acotados y se resetean al devolverse. No se usan ThreadLocal: con hilos
+ * virtuales cada petición tiene un hilo nuevo y nunca habría reutilización.
+ *
+ * Uso:
+ * <pre>
+ *   try (var db = XmlPools.documentBuilder()) {
+ *     Document doc = db.get().parse(in);
+ *   }
+ * </pre>
+ */
+public final class XmlPools {
+
+    private static final int MAX_IDLE = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+
+    private static final DocumentBuilderFactory DBF;
+    private static final TransformerFactory TF;
+    private static final XMLInputFactory XIF;
+
+    static {
+        DBF = DocumentBuilderFactory.newInstance();
+        DBF.setNamespaceAware(true); // MUY importante para firmar
+        TF = TransformerFactory.newInstance();
+        XIF = XMLInputFactory.newFactory();
+        XIF.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        XIF.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    private static final Pool<DocumentBuilder> DOCUMENT_BUILDERS =
+            new Pool<>(XmlPools::newDocumentBuilder, DocumentBuilder::reset);
+
+    private static final Pool<Transformer> TRANSFORMERS =
+            new Pool<>(XmlPools::newTransformer, XmlPools::resetTransformer);
+
+    // Los métodos de instancia de XMLSignatureFactory no son thread-safe (ver javadoc)
+    private static final Pool<XMLSignatureFactory> SIGNATURE_FACTORIES =
+            new Pool<>(() -> XMLSignatureFactory.getInstance("DOM"), f -> { });
+
+    private XmlPools() { }
+
+    /** DocumentBuilder namespace-aware. */
+    public static Lease<DocumentBuilder> documentBuilder() {
+        return DOCUMENT_BUILDERS.acquire();
+    }
+
+    /** Transformer identidad: UTF-8, con declaración XML y sin indentar. */
+    public static Lease<Transformer> transformer() {
+        return TRANSFORMERS.acquire();
+    }
+
+    /** XMLSignatureFactory JSR-105 ("DOM"). */
+    public static Lease<XMLSignatureFactory> signatureFactory() {
+        return SIGNATURE_FACTORIES.acquire();
+    }
+
+    /** Factoría StAX compartida (crear readers es thread-safe una vez configurada). */
+    public static XMLInputFactory inputFactory() {
+        return XIF;
+    }
+
+    private static DocumentBuilder newDocumentBuilder() {
+        try {
+            synchronized (DBF) {
+                return DBF.newDocumentBuilder();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException("No se pudo crear el DocumentBuilder", e);
+        }
+    }
+
+    private static Transformer newTransformer() {
+        try {
+            Transformer t;
+            synchronized (TF) {
+                t = TF.newTransformer();
+            }
+            resetTransformer(t);
+            return t;
+        } catch (TransformerConfigurationException e) {
+            throw new IllegalStateException("No se pudo crear el Transformer", e);
+        }
+    }
+
+    private static void resetTransformer(Transformer t) {
+        t.reset();
+        t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
+        t.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        t.setOutputProperty(OutputKeys.INDENT, "no");
+    }
+
+    /** Préstamo de una instancia; {@link #close()} la resetea y la devuelve al pool. */
+    public static final class Lease<T> implements AutoCloseable {
+        private final Pool<T> pool;
+        private T value;
+
+        private Lease(Pool<T> pool, T value) {
+            this.pool = pool;
+            this.value = value;
+        }
+
+        public T get() {
+            if (value == null) throw new IllegalStateException("Lease ya devuelto");
+            return value;
+        }
+
+        @Override
+        public void close() {
+            T v = value;
+            value = null;
+            if (v != null) pool.release(v);
+        }
+    }
+
+    static final class Pool<T> {
+        private final Supplier<T> factory;
+        private final Consumer<T> reset;
+        private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        Pool(Supplier<T> factory, Consumer<T> reset) {
+            this.factory = factory;
+            this.reset = reset;
+        }
+
+        Lease<T> acquire() {
+            T v = idle.poll();
+            if (v != null) {
+                idleCount.decrementAndGet();
+            } else {
+                v = factory.get();
+            }
+            return new Lease<>(this, v);
+        }
+
+        void release(T v) {
+            try {
+                reset.accept(v);
+            } catch (RuntimeException ex) {
+                return; // instancia en estado dudoso: se descarta
+            }
+            if (idleCount.incrementAndGet() <= MAX_IDLE) {
+                idle.offer(v);
+            } else {
+                idleCount.decrementAndGet();
+            }
+        }
+    }
+}
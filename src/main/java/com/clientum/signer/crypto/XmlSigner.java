@@ -3,22 +3,18 @@ package com.clientum.signer.crypto;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
-import javax.xml.crypto.XMLStructure;
 import javax.xml.crypto.dsig.*;
 import javax.xml.crypto.dsig.dom.DOMSignContext;
 import javax.xml.crypto.dsig.keyinfo.KeyInfo;
 import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
-import javax.xml.crypto.dsig.keyinfo.X509Data;
 import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
 import javax.xml.crypto.dsig.spec.TransformParameterSpec;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
@@ -26,49 +22,75 @@ import java.util.Collections;
 
 public class XmlSigner {
     public static byte[] signEnveloped(byte[] xml, PrivateKey privateKey, X509Certificate cert) throws Exception {
-        // 1) Parse
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true); // MUY importante
-        Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        Document doc = signEnveloped(new ByteArrayInputStream(xml), privateKey, cert);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(xml.length + 4096);
+        serialize(doc, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Parse + firma, sin serializar: el llamador escribe el resultado con {@link #serialize}
+     * (p. ej. directamente en la respuesta, fuera del bulkhead de CPU).
+     */
+    public static Document signEnveloped(InputStream xml, PrivateKey privateKey, X509Certificate cert) throws Exception {
+        return signEnveloped(xml, privateKey, cert, SignatureAlgorithm.forKey(privateKey));
+    }
+
+    /** Con el algoritmo negociado para la clave ({@link SignatureAlgorithm#negotiate}). */
+    public static Document signEnveloped(InputStream xml, PrivateKey privateKey, X509Certificate cert,
+                                         SignatureAlgorithm alg) throws Exception {
+        // 1) Parse (DocumentBuilder namespace-aware del pool)
+        long t0 = System.nanoTime();
+        Document doc;
+        try (var db = XmlPools.documentBuilder()) {
+            doc = db.get().parse(xml);
+        }
+        SigningMetrics.record(SigningMetrics.Phase.PARSE, t0);
+        t0 = System.nanoTime();
 
         // 2) Fabrica de firma
-        XMLSignatureFactory fac = XMLSignatureFactory.getInstance("DOM");
+        try (var lease = XmlPools.signatureFactory()) {
+            XMLSignatureFactory fac = lease.get();
 
-        // 3) Referencia al documento (URI vacía) + transforms: Enveloped + Canonicalization
-        Transform envTransform = fac.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null);
-        Transform c14nTransform = fac.newTransform(CanonicalizationMethod.INCLUSIVE, (TransformParameterSpec) null);
+            // 3) Referencia al documento (URI vacía) + transforms: Enveloped + Canonicalization
+            Transform envTransform = fac.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null);
+            Transform c14nTransform = fac.newTransform(CanonicalizationMethod.INCLUSIVE, (TransformParameterSpec) null);
 
-        Reference ref = fac.newReference(
-                "", // documento entero
-                fac.newDigestMethod(DigestMethod.SHA256, null),
-                Arrays.asList(envTransform, c14nTransform),
-                null,
-                null
-        );
+            Reference ref = fac.newReference(
+                    "", // documento entero
+                    fac.newDigestMethod(DigestMethod.SHA256, null),
+                    Arrays.asList(envTransform, c14nTransform),
+                    null,
+                    null
+            );
 
-        // 4) SignedInfo
-        SignedInfo si = fac.newSignedInfo(
-                fac.newCanonicalizationMethod(CanonicalizationMethod.INCLUSIVE, (C14NMethodParameterSpec) null),
-                fac.newSignatureMethod(SignatureMethod.RSA_SHA256, null),
-                Collections.singletonList(ref)
-        );
+            // 4) SignedInfo
+            SignedInfo si = fac.newSignedInfo(
+                    fac.newCanonicalizationMethod(CanonicalizationMethod.INCLUSIVE, (C14NMethodParameterSpec) null),
+                    fac.newSignatureMethod(alg.uri(), null),
+                    Collections.singletonList(ref)
+            );
 
-        // 5) KeyInfo con el certificado
-        KeyInfoFactory kif = fac.getKeyInfoFactory();
-        X509Data x509Data = kif.newX509Data(Collections.singletonList((XMLStructure) cert));
-        KeyInfo ki = kif.newKeyInfo(Collections.singletonList(x509Data));
+            // 5) KeyInfo con el certificado (X509Data pre-renderizado, ver KeyInfoTemplates)
+            KeyInfoFactory kif = fac.getKeyInfoFactory();
+            KeyInfo ki = kif.newKeyInfo(KeyInfoTemplates.jsr105(Collections.singletonList(cert)).structures(doc));
 
-        // 6) Contexto y firma (inserta <ds:Signature> en la raíz)
-        DOMSignContext dsc = new DOMSignContext(privateKey, (Node) doc.getDocumentElement());
-        XMLSignature signature = fac.newXMLSignature(si, ki);
-        signature.sign(dsc);
+            // 6) Contexto y firma (inserta <ds:Signature> en la raíz)
+            DOMSignContext dsc = new DOMSignContext(privateKey, (Node) doc.getDocumentElement());
+            SignatureProviders.apply(dsc, alg);
+            XMLSignature signature = fac.newXMLSignature(si, ki);
+            signature.sign(dsc);
+        }
+        SigningMetrics.record(SigningMetrics.Phase.SIGN, t0);
+        return doc;
+    }
 
-        // 7) Serializar
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        Transformer t = TransformerFactory.newInstance().newTransformer();
-        t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-        t.setOutputProperty(OutputKeys.INDENT, "no");
-        t.transform(new DOMSource(doc), new StreamResult(out));
-        return out.toByteArray();
+    /** 7) Serializar el documento firmado en {@code out}. */
+    public static void serialize(Document doc, OutputStream out) throws Exception {
+        long t0 = System.nanoTime();
+        try (var t = XmlPools.transformer()) {
+            t.get().transform(new DOMSource(doc), new StreamResult(out));
+        }
+        SigningMetrics.record(SigningMetrics.Phase.SERIALIZE, t0);
     }
 }
@@ -1,5 +1,7 @@
 package com.clientum.signer.dto;
 
+import com.fasterxml.jackson.annotation.JsonAlias;
+
 public class SignRequest {
   // XML del documento: puede ser Base64 o texto plano
   public String xml;
@@ -18,11 +20,18 @@ public class SignRequest {
   public String policyHashBase64;
 
   // Algoritmo del hash de la política (por defecto SHA256)
+  @JsonAlias("policyDigest")
   public String policyDigestAlgorithm;
 
+  // URL del documento de política (SPURI). Si no llega el hash, se descarga una vez y se calcula
+  public String policyUrl;
+
   // Envoltorio y nivel (opcionales)
   // "ENVELOPED" (defecto) | "ENVELOPING" | "DETACHED"
   public String packaging;
   // "XAdES_BASELINE_B" (defecto). Puedes elevarlo si luego añades TSA, etc.
   public String level;
+
+  // Algoritmo de firma (opcional): RSA_SHA256, RSA_PSS_SHA256, ECDSA_SHA256... Por defecto, según la clave
+  public String algorithm;
 }
@@ -1,27 +1,55 @@
 package com.clientum.signer.security;
 
 import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
 import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
 import jakarta.servlet.http.HttpServletResponse;
-import org.springframework.util.StringUtils;
+import org.springframework.http.HttpHeaders;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 
+/**
+ * Autentica /api/** por X-Clientum-Api-Key contra {@link TenantRegistry} y aplica los límites
+ * del tenant: peticiones/s y bytes de cuerpo/s. Sin cupo responde 429 con Retry-After.
+ *
+ * Los bytes se cobran por Content-Length al entrar; si no lo hay (chunked) se cuentan al leer y
+ * se cobran al terminar, así que esa petición pasa y la deuda la pagan las siguientes.
+ *
+ * Las peticiones entre nodos del clúster VeriFactu llevan SIGNER_CLUSTER_SECRET en
+ * {@link #CLUSTER_TOKEN_HEADER} y el tenant en {@link #CLUSTER_TENANT_HEADER}: ya se autenticaron y
+ * cobraron en el nodo por el que entraron, así que pasan sin límites.
+ *
+ * {@link #METRICS_PATH} pide también una API key válida (las etiquetas llevan los tenants), pero
+ * el scrape no gasta cupo del tenant.
+ */
 public class ApiKeyFilter extends OncePerRequestFilter {
 
-  private final String expectedKey;
+  public static final String CLUSTER_TOKEN_HEADER = "X-Clientum-Cluster-Token";
+  public static final String CLUSTER_TENANT_HEADER = "X-Clientum-Cluster-Tenant";
+  /** Atributo de la petición: true si viene de otro nodo del clúster. */
+  public static final String CLUSTER_ATTRIBUTE = "signer.cluster";
+  public static final String METRICS_PATH = "/actuator/prometheus";
 
-  public ApiKeyFilter(String expectedKey) {
-    this.expectedKey = expectedKey == null ? "" : expectedKey.trim();
+  private final TenantRegistry tenants;
+  private final byte[] clusterSecret;
+
+  public ApiKeyFilter(TenantRegistry tenants, String clusterSecret) {
+    this.tenants = tenants;
+    this.clusterSecret = clusterSecret == null || clusterSecret.isBlank()
+        ? null : clusterSecret.trim().getBytes(StandardCharsets.UTF_8);
   }
 
   @Override
   protected boolean shouldNotFilter(HttpServletRequest request) {
-    // Sólo proteger /api/**
+    // Sólo proteger /api/** y las métricas
     String path = request.getRequestURI();
-    return path == null || !path.startsWith("/api/");
+    return path == null || !(path.startsWith("/api/") || path.equals(METRICS_PATH));
   }
 
   @Override
@@ -30,19 +58,117 @@ public class ApiKeyFilter extends OncePerRequestFilter {
       HttpServletResponse response,
       FilterChain filterChain) throws ServletException, IOException {
 
-    // Si no hay clave configurada, no bloquear (modo “passthrough”)
-    if (!StringUtils.hasText(expectedKey)) {
+    String token = request.getHeader(CLUSTER_TOKEN_HEADER);
+    if (token != null && clusterSecret != null
+        && MessageDigest.isEqual(clusterSecret, token.getBytes(StandardCharsets.UTF_8))) {
+      request.setAttribute(CLUSTER_ATTRIBUTE, Boolean.TRUE);
+      String tenant = request.getHeader(CLUSTER_TENANT_HEADER);
+      if (tenant != null && !tenant.isEmpty()) request.setAttribute(TenantRegistry.TENANT_ATTRIBUTE, tenant);
+      filterChain.doFilter(request, response);
+      return;
+    }
+
+    // Si no hay claves configuradas, no bloquear (modo “passthrough”)
+    if (!tenants.enabled()) {
       filterChain.doFilter(request, response);
       return;
     }
 
-    String provided = request.getHeader("X-Clientum-Api-Key");
-    if (expectedKey.equals(provided)) {
+    TenantRegistry.Tenant tenant = tenants.authenticate(request.getHeader("X-Clientum-Api-Key"));
+    if (tenant == null) {
+      error(response, HttpServletResponse.SC_UNAUTHORIZED, "{\"error\":\"invalid_api_key\"}");
+      return;
+    }
+    if (METRICS_PATH.equals(request.getRequestURI())) {
       filterChain.doFilter(request, response);
-    } else {
-      response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-      response.setContentType("application/json");
-      response.getWriter().write("{\"error\":\"invalid_api_key\"}");
+      return;
+    }
+
+    if (tenant.requests != null) {
+      long wait = tenant.requests.tryAcquire(1);
+      if (wait > 0) {
+        tenant.rejectedRequests.increment();
+        rateLimited(response, wait, "requests");
+        return;
+      }
+    }
+    long length = request.getContentLengthLong();
+    if (tenant.bytes != null && length > 0) {
+      long wait = tenant.bytes.tryAcquire(length);
+      if (wait > 0) {
+        tenant.rejectedBytes.increment();
+        rateLimited(response, wait, "bytes");
+        return;
+      }
+    }
+    tenant.allowed.increment();
+    request.setAttribute(TenantRegistry.TENANT_ATTRIBUTE, tenant.id());
+
+    if (length >= 0) {
+      tenant.bytesIn.increment(length);
+      filterChain.doFilter(request, response);
+      return;
+    }
+    CountingRequest counting = new CountingRequest(request);
+    try {
+      filterChain.doFilter(counting, response);
+    } finally {
+      tenant.bytesIn.increment(counting.count);
+      if (tenant.bytes != null && counting.count > 0) tenant.bytes.consume(counting.count);
+    }
+  }
+
+  private static void rateLimited(HttpServletResponse response, long waitNanos, String limit) throws IOException {
+    long seconds = Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L);
+    response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(seconds));
+    error(response, 429, "{\"error\":\"rate_limited\",\"limit\":\"" + limit + "\"}");
+  }
+
+  private static void error(HttpServletResponse response, int status, String body) throws IOException {
+    response.setStatus(status);
+    response.setContentType("application/json");
+    response.getWriter().write(body);
+  }
+
+  /** Cuenta los bytes de cuerpo leídos cuando no hay Content-Length. */
+  private static final class CountingRequest extends HttpServletRequestWrapper {
+    long count;
+    private ServletInputStream in;
+
+    CountingRequest(HttpServletRequest request) {
+      super(request);
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+      if (in == null) {
+        ServletInputStream delegate = super.getInputStream();
+        in = new ServletInputStream() {
+          @Override
+          public int read() throws IOException {
+            int b = delegate.read();
+            if (b >= 0) count++;
+            return b;
+          }
+
+          @Override
+          public int read(byte[] buf, int off, int len) throws IOException {
+            int n = delegate.read(buf, off, len);
+            if (n > 0) count += n;
+            return n;
+          }
+
+          @Override
+          public boolean isFinished() { return delegate.isFinished(); }
+
+          @Override
+          public boolean isReady() { return delegate.isReady(); }
+
+          @Override
+          public void setReadListener(ReadListener listener) { delegate.setReadListener(listener); }
+        };
+      }
+      return in;
     }
   }
 }
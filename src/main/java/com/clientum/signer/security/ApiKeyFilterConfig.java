@@ -8,16 +8,15 @@ import org.springframework.context.annotation.Configuration;
 @Configuration
 public class ApiKeyFilterConfig {
 
-  // Default vacío para no romper el arranque si falta la env var
-  @Value("${SIGNER_API_KEY:}")
-  private String apiKey;
-
+  // Claves y límites por tenant: ver TenantRegistry (SIGNER_TENANTS_FILE, SIGNER_API_KEY)
+  // SIGNER_CLUSTER_SECRET: peticiones entre nodos del clúster VeriFactu (ver ChainCluster)
   @Bean
-  public FilterRegistrationBean<ApiKeyFilter> apiKeyFilterRegistration() {
-    ApiKeyFilter filter = new ApiKeyFilter(apiKey);
+  public FilterRegistrationBean<ApiKeyFilter> apiKeyFilterRegistration(
+      TenantRegistry tenants, @Value("${SIGNER_CLUSTER_SECRET:}") String clusterSecret) {
+    ApiKeyFilter filter = new ApiKeyFilter(tenants, clusterSecret);
     FilterRegistrationBean<ApiKeyFilter> reg = new FilterRegistrationBean<>();
     reg.setFilter(filter);
-    reg.addUrlPatterns("/api/*"); // sólo protege rutas /api/**
+    reg.addUrlPatterns("/api/*", ApiKeyFilter.METRICS_PATH); // /api/** y las métricas
     reg.setOrder(1);
     return reg;
   }
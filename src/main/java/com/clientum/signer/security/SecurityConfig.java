@@ -25,9 +25,11 @@ public class SecurityConfig {
       .authorizeHttpRequests(auth -> auth
         .requestMatchers(
             "/", "/login",                        // <- permitimos para redirigir/ocultar
+            "/error",                             // <- si no, los 4xx/5xx de la API llegan como 401
             "/actuator/health", "/actuator/info",
             "/swagger-ui/**", "/swagger-ui.html", "/v3/api-docs/**",
-            "/api/sign/**"
+            "/api/sign/**", "/api/facturae/**", "/api/verify/**", "/api/jobs/**", "/api/verifactu/**",
+            "/actuator/prometheus"                // <- protegidos por ApiKeyFilter
         ).permitAll()
         .anyRequest().authenticated()
       )
@@ -0,0 +1,226 @@
+package com.clientum.signer.security;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tenants de la API: cada uno con su clave (X-Clientum-Api-Key) y sus límites.
+ *
+ * Se cargan de SIGNER_TENANTS_FILE (JSON) y se recargan sin reiniciar cuando cambia el fichero
+ * (se mira cada SIGNER_TENANTS_RELOAD_SECONDS); si el fichero nuevo no es válido o no está se
+ * mantiene lo cargado. Del fichero sólo sale el SHA-256 de cada clave, nunca la clave:
+ *
+ * <pre>
+ * {"tenants": [{"id": "acme", "apiKeySha256": "9f86d0...", "requestsPerSecond": 20, "requestsBurst": 40,
+ *               "bytesPerSecond": 10485760, "bytesBurst": 52428800}]}
+ * </pre>
+ *
+ * Límites a 0 o ausentes = sin límite; el burst por defecto es un segundo de tasa. SIGNER_API_KEY,
+ * si está, sigue valiendo como el tenant "default" sin límites.
+ *
+ * La búsqueda es un HashMap por el SHA-256 de la clave recibida (O(1)) sobre una instantánea
+ * inmutable que la recarga sustituye de golpe, y la coincidencia se confirma con
+ * {@link MessageDigest#isEqual} (tiempo constante). Los cubos de un tenant sobreviven a la recarga
+ * si no cambian sus límites.
+ */
+@Component
+public class TenantRegistry {
+
+  /** Atributo de la petición con el id del tenant autenticado. */
+  public static final String TENANT_ATTRIBUTE = "signer.tenant";
+
+  /** Tenant ya autenticado; los cubos son null si no hay límite. */
+  public static final class Tenant {
+    private final String id;
+    private final byte[] keyHash;
+    final TokenBucket requests;
+    final TokenBucket bytes;
+    final Counter allowed;
+    final Counter rejectedRequests;
+    final Counter rejectedBytes;
+    final Counter bytesIn;
+
+    Tenant(String id, byte[] keyHash, TokenBucket requests, TokenBucket bytes, MeterRegistry registry) {
+      this.id = id;
+      this.keyHash = keyHash;
+      this.requests = requests;
+      this.bytes = bytes;
+      this.allowed = outcome(registry, id, "allowed");
+      this.rejectedRequests = outcome(registry, id, "rejected_requests");
+      this.rejectedBytes = outcome(registry, id, "rejected_bytes");
+      this.bytesIn = Counter.builder("signer.tenant.bytes").tag("tenant", id)
+          .description("Bytes de cuerpo admitidos por tenant").register(registry);
+    }
+
+    public String id() { return id; }
+  }
+
+  private final Path file;
+  private final String legacyKey;
+  private final ObjectMapper mapper;
+  private final MeterRegistry registry;
+  private final Counter unauthorized;
+  private final ScheduledExecutorService reloader;
+
+  private volatile Map<ByteBuffer, Tenant> tenants = Map.of();
+  private volatile Object fileStamp;
+
+  public TenantRegistry(@Value("${SIGNER_TENANTS_FILE:}") String file,
+                        @Value("${SIGNER_API_KEY:}") String legacyKey,
+                        @Value("${SIGNER_TENANTS_RELOAD_SECONDS:10}") long reloadSeconds,
+                        ObjectMapper mapper, MeterRegistry registry) throws IOException {
+    this.file = file == null || file.isBlank() ? null : Path.of(file.trim());
+    this.legacyKey = legacyKey == null ? "" : legacyKey.trim();
+    this.mapper = mapper;
+    this.registry = registry;
+    this.unauthorized = outcome(registry, "unknown", "unauthorized");
+
+    // Al arrancar, un fichero inválido es un error de configuración: que no arranque
+    load(true);
+    if (this.file != null && reloadSeconds > 0) {
+      this.reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "signer-tenants-reload");
+        t.setDaemon(true);
+        return t;
+      });
+      reloader.scheduleWithFixedDelay(this::reload, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+    } else {
+      this.reloader = null;
+    }
+  }
+
+  /** false si no hay ni fichero ni SIGNER_API_KEY: la API queda abierta (como antes sin clave). */
+  public boolean enabled() {
+    return file != null || !legacyKey.isEmpty();
+  }
+
+  /** Tenant de esta clave o null. */
+  public Tenant authenticate(String apiKey) {
+    if (apiKey == null || apiKey.isEmpty()) {
+      unauthorized.increment();
+      return null;
+    }
+    byte[] hash = sha256(apiKey);
+    Tenant t = tenants.get(ByteBuffer.wrap(hash));
+    if (t == null || !MessageDigest.isEqual(t.keyHash, hash)) {
+      unauthorized.increment();
+      return null;
+    }
+    return t;
+  }
+
+  /** Número de tenants cargados. */
+  public int size() {
+    return tenants.size();
+  }
+
+  @PreDestroy
+  public void close() {
+    if (reloader != null) reloader.shutdownNow();
+  }
+
+  private void reload() {
+    try {
+      load(false);
+    } catch (Exception ex) {
+      reloads("error").increment();
+    }
+  }
+
+  private synchronized void load(boolean initial) throws IOException {
+    Object stamp = null;
+    JsonNode root = null;
+    if (file != null) {
+      if (!Files.exists(file)) {
+        if (initial) throw new IllegalStateException("SIGNER_TENANTS_FILE no existe: " + file);
+        return; // p. ej. a mitad de un reemplazo: se mantiene lo cargado
+      }
+      BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+      stamp = attrs.lastModifiedTime().toMillis() + ":" + attrs.size();
+      if (!initial && stamp.equals(fileStamp)) return;
+      root = mapper.readTree(file.toFile());
+    }
+
+    Map<String, Tenant> previous = new HashMap<>();
+    for (Tenant t : tenants.values()) previous.put(t.id, t);
+
+    Map<ByteBuffer, Tenant> next = new HashMap<>();
+    if (!legacyKey.isEmpty()) {
+      byte[] hash = sha256(legacyKey);
+      next.put(ByteBuffer.wrap(hash), reuse(previous.get("default"), "default", hash, 0, 0, 0, 0));
+    }
+    if (root != null) {
+      for (JsonNode n : root.path("tenants")) {
+        String id = n.path("id").asText("");
+        String hex = n.path("apiKeySha256").asText("");
+        if (id.isBlank() || hex.length() != 64) {
+          throw new IllegalStateException("Cada tenant necesita id y apiKeySha256 (SHA-256 en hex): " + n);
+        }
+        if (n.path("disabled").asBoolean(false)) continue;
+        byte[] hash = HexFormat.of().parseHex(hex);
+        double rps = n.path("requestsPerSecond").asDouble(0);
+        long bps = n.path("bytesPerSecond").asLong(0);
+        Tenant t = reuse(previous.get(id), id, hash,
+            rps, n.path("requestsBurst").asLong((long) Math.ceil(rps)),
+            bps, n.path("bytesBurst").asLong(bps));
+        if (next.put(ByteBuffer.wrap(hash), t) != null) {
+          throw new IllegalStateException("Clave de API repetida en el tenant " + id);
+        }
+      }
+    }
+    tenants = Map.copyOf(next);
+    fileStamp = stamp;
+    if (!initial) reloads("ok").increment();
+  }
+
+  private Tenant reuse(Tenant old, String id, byte[] hash, double rps, long requestsBurst, long bps, long bytesBurst) {
+    TokenBucket requests = rps > 0 ? keep(old == null ? null : old.requests, rps, requestsBurst) : null;
+    TokenBucket bytes = bps > 0 ? keep(old == null ? null : old.bytes, bps, bytesBurst) : null;
+    if (old != null && old.requests == requests && old.bytes == bytes && MessageDigest.isEqual(old.keyHash, hash)) {
+      return old;
+    }
+    return new Tenant(id, hash, requests, bytes, registry);
+  }
+
+  private static TokenBucket keep(TokenBucket old, double rate, long burst) {
+    return old != null && old.sameLimits(rate, burst) ? old : new TokenBucket(rate, burst);
+  }
+
+  private Counter reloads(String result) {
+    return Counter.builder("signer.tenants.reload").tag("result", result)
+        .description("Recargas del fichero de tenants (error: se mantiene lo cargado)").register(registry);
+  }
+
+  private static Counter outcome(MeterRegistry registry, String tenant, String outcome) {
+    return Counter.builder("signer.tenant.requests").tag("tenant", tenant).tag("outcome", outcome)
+        .description("Peticiones a /api por tenant y resultado").register(registry);
+  }
+
+  private static byte[] sha256(String s) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package com.clientum.signer.security;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket sin locks (GCRA): todo el estado es un AtomicLong con el instante teórico en que
+ * el cubo queda lleno otra vez; cada petición avanza ese instante {@code coste × intervalo}
+ * con un CAS. Equivale a un cubo de {@code burst} fichas que se rellena a {@code ratePerSecond}.
+ *
+ * Un coste mayor que el burst (p. ej. un documento más grande que la ráfaga de bytes) se admite
+ * sólo con el cubo lleno y deja deuda: las siguientes peticiones esperan lo que corresponda.
+ */
+final class TokenBucket {
+
+  private final double nanosPerToken;
+  private final long burst;
+  private final long tolerance;
+  private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+  TokenBucket(double ratePerSecond, long burst) {
+    this.nanosPerToken = 1e9 / ratePerSecond;
+    this.burst = Math.max(1, burst);
+    this.tolerance = (long) (this.burst * nanosPerToken);
+  }
+
+  /**
+   * Consume {@code cost} fichas si hay.
+   * @return 0 si se admite; si no, nanosegundos hasta que se admitiría
+   */
+  long tryAcquire(long cost) {
+    long increment = (long) Math.ceil(cost * nanosPerToken);
+    long needed = (long) Math.ceil(Math.min(cost, burst) * nanosPerToken);
+    while (true) {
+      long now = System.nanoTime();
+      long current = fullAt.get();
+      long base = current - now > 0 ? current : now;
+      long wait = base + needed - tolerance - now;
+      if (wait > 0) return wait;
+      if (fullAt.compareAndSet(current, base + increment)) return 0;
+    }
+  }
+
+  /** Consume {@code cost} fichas sin comprobar (coste conocido al terminar la petición). */
+  void consume(long cost) {
+    long increment = (long) Math.ceil(cost * nanosPerToken);
+    fullAt.getAndUpdate(current -> {
+      long now = System.nanoTime();
+      return (current - now > 0 ? current : now) + increment;
+    });
+  }
+
+  boolean sameLimits(double ratePerSecond, long burst) {
+    return Math.abs(nanosPerToken - 1e9 / ratePerSecond) < 1e-9 && this.burst == Math.max(1, burst);
+  }
+}
@@ -0,0 +1,135 @@
+package com.clientum.signer.service;
+
+import com.clientum.signer.api.dto.SignBatchRequest;
+import com.clientum.signer.crypto.SignatureAlgorithm;
+import com.clientum.signer.crypto.SigningMetrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Firma de lotes: una clave resuelta una vez, documentos firmados en paralelo en el pool
+ * {@code signingExecutor} y resultados escritos como NDJSON en orden de finalización.
+ * Un error en un documento se reporta en su línea y no interrumpe el lote.
+ */
+@Service
+public class BatchSigner {
+
+  private final XmlSigner signer;
+  private final ExecutorService executor;
+  private final ObjectMapper mapper;
+  private final int window;
+
+  public BatchSigner(XmlSigner signer,
+                     @Qualifier("signingExecutor") ExecutorService executor,
+                     ObjectMapper mapper) {
+    this.signer = signer;
+    this.executor = executor;
+    this.mapper = mapper;
+    // Documentos en vuelo por lote: acota memoria sin dejar hilos ociosos
+    this.window = Runtime.getRuntime().availableProcessors() * 2;
+  }
+
+  /**
+   * Firma todos los documentos con {@code key} y {@code alg} y escribe una línea JSON por resultado.
+   * @return documentos firmados correctamente
+   */
+  public int sign(List<SignBatchRequest.Item> items, KeyStore.PrivateKeyEntry key, SignatureAlgorithm alg,
+                  boolean streaming, OutputStream out) throws IOException {
+    CompletionService<Map<String, Object>> cs = new ExecutorCompletionService<>(executor);
+    List<Future<Map<String, Object>>> pending = new ArrayList<>();
+    int n = items.size();
+    int next = 0;
+    int ok = 0;
+    try {
+      for (int done = 0; done < n; done++) {
+        while (next < n && next - done < window) {
+          int index = next++;
+          pending.add(cs.submit(() -> signItem(index, items.get(index), key, alg, streaming)));
+        }
+        Map<String, Object> result = take(cs);
+        if ("ok".equals(result.get("status"))) ok++;
+        writeLine(out, result);
+      }
+      Map<String, Object> summary = new LinkedHashMap<>();
+      summary.put("status", "done");
+      summary.put("total", n);
+      summary.put("ok", ok);
+      summary.put("errors", n - ok);
+      writeLine(out, summary);
+      return ok;
+    } finally {
+      // Cliente desconectado u otro fallo de escritura: no seguir firmando
+      for (Future<?> f : pending) f.cancel(true);
+    }
+  }
+
+  private Map<String, Object> signItem(int index, SignBatchRequest.Item item, KeyStore.PrivateKeyEntry key,
+                                       SignatureAlgorithm alg, boolean streaming) {
+    Map<String, Object> r = new LinkedHashMap<>();
+    r.put("index", index);
+    if (item != null && item.getId() != null) r.put("id", item.getId());
+    try {
+      byte[] xml = xmlBytes(item);
+      byte[] signed = SigningMetrics.timed("batch", streaming ? "streaming" : "dom", xml.length, () -> {
+        if (streaming) {
+          ByteArrayOutputStream buf = new ByteArrayOutputStream(xml.length + 8192);
+          signer.signXmlStreaming(ByteBuffer.wrap(xml), key, alg, buf);
+          return buf.toByteArray();
+        }
+        return signer.signXml(new String(xml, StandardCharsets.UTF_8), key, alg).getBytes(StandardCharsets.UTF_8);
+      });
+      r.put("status", "ok");
+      r.put("signedXmlBase64", Base64.getEncoder().encodeToString(signed));
+      r.put("algorithm", alg.name());
+    } catch (Exception ex) {
+      r.put("status", "error");
+      r.put("error", ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName());
+    }
+    return r;
+  }
+
+  private static byte[] xmlBytes(SignBatchRequest.Item item) {
+    if (item != null && item.getXmlBase64() != null && !item.getXmlBase64().isBlank()) {
+      return Base64.getMimeDecoder().decode(item.getXmlBase64());
+    }
+    if (item != null && item.getXml() != null && !item.getXml().isBlank()) {
+      return item.getXml().getBytes(StandardCharsets.UTF_8);
+    }
+    throw new IllegalStateException("Debes enviar xml (texto) o xmlBase64");
+  }
+
+  private static Map<String, Object> take(CompletionService<Map<String, Object>> cs) throws IOException {
+    try {
+      return cs.take().get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Lote interrumpido", ex);
+    } catch (Exception ex) {
+      // signItem no lanza; sólo llegaría aquí por cancelación
+      throw new IOException("Lote cancelado", ex);
+    }
+  }
+
+  private void writeLine(OutputStream out, Map<String, Object> line) throws IOException {
+    out.write(mapper.writeValueAsBytes(line));
+    out.write('\n');
+    out.flush();
+  }
+}
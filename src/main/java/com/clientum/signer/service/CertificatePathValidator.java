@@ -0,0 +1,208 @@
+package com.clientum.signer.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertStore;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.PKIXReason;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Validación PKIX de la cadena del firmante con caché de resultados.
+ *
+ * La clave de la caché es SHA-256(certificado firmante + intermedios recibidos) más la
+ * huella del conjunto de anclas de confianza; el resultado vive SIGNER_PKIX_CACHE_TTL_SECONDS y
+ * nunca más allá del notAfter del certificado. Así los documentos repetidos de un mismo emisor
+ * no vuelven a construir la cadena. Sólo se cachean resultados definitivos: válido, o un fallo
+ * con motivo concluyente (caducado, revocado, firma o ancla de confianza). Los fallos que pueden
+ * ser pasajeros (revocación indeterminada, errores de red de CRL/OCSP) se reintentan siempre.
+ *
+ * Anclas: SIGNER_TRUSTSTORE_PATH (+ _PASSWORD, _TYPE) o, si no se configura, el cacerts
+ * de la JVM. Revocación (CRL/OCSP) sólo con SIGNER_VERIFY_REVOCATION=true: necesita red.
+ */
+@Component
+public class CertificatePathValidator {
+
+  public record Result(boolean valid, String trustAnchor, String error) { }
+
+  private record Cached(Result result, long expiresAt) { }
+
+  /** Resultado de construir la cadena; {@code definitive} si se puede cachear. */
+  private record Outcome(Result result, boolean definitive) { }
+
+  private final Set<TrustAnchor> anchors;
+  private final String anchorsId;
+  private final boolean revocation;
+  private final long ttlMillis;
+  private final int maxEntries;
+  private final Map<String, Cached> cache = new ConcurrentHashMap<>();
+  private final Counter hits;
+  private final Counter misses;
+
+  public CertificatePathValidator(@Value("${SIGNER_TRUSTSTORE_PATH:}") String truststorePath,
+                                  @Value("${SIGNER_TRUSTSTORE_PASSWORD:}") String truststorePassword,
+                                  @Value("${SIGNER_TRUSTSTORE_TYPE:PKCS12}") String truststoreType,
+                                  @Value("${SIGNER_VERIFY_REVOCATION:false}") boolean revocation,
+                                  @Value("${SIGNER_PKIX_CACHE_TTL_SECONDS:3600}") long ttlSeconds,
+                                  @Value("${SIGNER_PKIX_CACHE_MAX:4096}") int maxEntries,
+                                  MeterRegistry registry) throws Exception {
+    this.anchors = loadAnchors(truststorePath, truststorePassword, truststoreType);
+    this.anchorsId = anchorsId(anchors);
+    this.revocation = revocation;
+    this.ttlMillis = ttlSeconds * 1000;
+    this.maxEntries = Math.max(0, maxEntries);
+    this.hits = Counter.builder("signer.verify.pkix.cache").tag("result", "hit").register(registry);
+    this.misses = Counter.builder("signer.verify.pkix.cache").tag("result", "miss").register(registry);
+  }
+
+  /** Valida {@code chain} (firmante primero, después los intermedios que traiga la firma). */
+  public Result validate(List<X509Certificate> chain) throws Exception {
+    if (maxEntries == 0) {
+      misses.increment();
+      return build(chain).result();
+    }
+    String key = cacheKey(chain);
+    long now = System.currentTimeMillis();
+    Cached c = cache.get(key);
+    if (c != null && c.expiresAt > now) {
+      hits.increment();
+      return c.result;
+    }
+
+    misses.increment();
+    Outcome o = build(chain);
+    if (o.definitive()) {
+      long expiresAt = Math.min(now + ttlMillis, chain.get(0).getNotAfter().getTime());
+      if (cache.size() >= maxEntries) prune(now);
+      cache.put(key, new Cached(o.result(), expiresAt));
+    }
+    return o.result();
+  }
+
+  public int cacheSize() {
+    return cache.size();
+  }
+
+  private Outcome build(List<X509Certificate> chain) {
+    X509Certificate leaf = chain.get(0);
+    try {
+      X509CertSelector target = new X509CertSelector();
+      target.setCertificate(leaf);
+      PKIXBuilderParameters params = new PKIXBuilderParameters(anchors, target);
+      params.setRevocationEnabled(revocation);
+      params.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(chain)));
+
+      PKIXCertPathBuilderResult res = (PKIXCertPathBuilderResult) CertPathBuilder.getInstance("PKIX").build(params);
+      TrustAnchor anchor = res.getTrustAnchor();
+      String name = anchor.getTrustedCert() != null
+          ? anchor.getTrustedCert().getSubjectX500Principal().getName()
+          : anchor.getCAName();
+      return new Outcome(new Result(true, name, null), true);
+    } catch (Exception ex) {
+      Result r = new Result(false, null, ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName());
+      return new Outcome(r, definitive(ex));
+    }
+  }
+
+  /**
+   * Sin revocación no hay red de por medio y cualquier fallo es definitivo. Con revocación sólo
+   * lo es un motivo concluyente; una excepción sin motivo puede venir de un CRL/OCSP caído.
+   */
+  private boolean definitive(Exception ex) {
+    boolean definitiveReason = false;
+    for (Throwable t = ex; t != null; t = t.getCause()) {
+      if (t instanceof IOException) return false;
+      if (t instanceof CertPathValidatorException cpve) {
+        CertPathValidatorException.Reason reason = cpve.getReason();
+        if (reason == CertPathValidatorException.BasicReason.UNDETERMINED_REVOCATION_STATUS) return false;
+        definitiveReason |= reason == CertPathValidatorException.BasicReason.EXPIRED
+            || reason == CertPathValidatorException.BasicReason.NOT_YET_VALID
+            || reason == CertPathValidatorException.BasicReason.REVOKED
+            || reason == CertPathValidatorException.BasicReason.INVALID_SIGNATURE
+            || reason == CertPathValidatorException.BasicReason.ALGORITHM_CONSTRAINED
+            || reason == PKIXReason.NO_TRUST_ANCHOR
+            || reason == PKIXReason.NOT_CA_CERT
+            || reason == PKIXReason.INVALID_KEY_USAGE;
+      }
+    }
+    return !revocation || definitiveReason;
+  }
+
+  private void prune(long now) {
+    cache.values().removeIf(c -> c.expiresAt <= now);
+    // Sigue llena: se descarta una parte arbitraria (la caché es sólo una optimización)
+    Iterator<String> it = cache.keySet().iterator();
+    while (cache.size() >= maxEntries && it.hasNext()) {
+      it.next();
+      it.remove();
+    }
+  }
+
+  private String cacheKey(List<X509Certificate> chain) throws Exception {
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    for (X509Certificate c : chain) {
+      md.update(c.getEncoded());
+      md.update((byte) 0);
+    }
+    return HexFormat.of().formatHex(md.digest()) + ':' + anchorsId;
+  }
+
+  private static String anchorsId(Set<TrustAnchor> anchors) throws Exception {
+    // Independiente del orden: XOR de las huellas de cada ancla
+    byte[] acc = new byte[32];
+    for (TrustAnchor a : anchors) {
+      byte[] h = MessageDigest.getInstance("SHA-256").digest(a.getTrustedCert().getEncoded());
+      for (int i = 0; i < acc.length; i++) acc[i] ^= h[i];
+    }
+    return HexFormat.of().formatHex(acc, 0, 8);
+  }
+
+  private static Set<TrustAnchor> loadAnchors(String path, String password, String type) throws Exception {
+    KeyStore ks;
+    if (path != null && !path.isBlank()) {
+      ks = KeyStore.getInstance(type);
+      try (InputStream in = new FileInputStream(path)) {
+        ks.load(in, password.isEmpty() ? null : password.toCharArray());
+      }
+    } else {
+      ks = KeyStore.getInstance(KeyStore.getDefaultType());
+      Path cacerts = Path.of(System.getProperty("java.home"), "lib", "security", "cacerts");
+      try (InputStream in = new FileInputStream(cacerts.toFile())) {
+        ks.load(in, null);
+      }
+    }
+    Set<TrustAnchor> out = new HashSet<>();
+    Enumeration<String> aliases = ks.aliases();
+    while (aliases.hasMoreElements()) {
+      String alias = aliases.nextElement();
+      if (ks.isCertificateEntry(alias) && ks.getCertificate(alias) instanceof X509Certificate c) {
+        out.add(new TrustAnchor(c, null));
+      }
+    }
+    if (out.isEmpty()) throw new IllegalStateException("El truststore no contiene certificados de confianza");
+    return out;
+  }
+}
@@ -0,0 +1,203 @@
+package com.clientum.signer.service;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Canonicalización exclusiva (xml-exc-c14n#, sin comentarios) de un documento completo
+ * leído con StAX, sin construir DOM. Equivale a la transformación
+ * Enveloped + TRANSFORM_C14N_EXCL_OMIT_COMMENTS sobre URI="" cuando la firma aún no existe.
+ *
+ * Además recuerda las declaraciones de namespaces y atributos xml:* del elemento raíz,
+ * que son necesarios para canonicalizar el SignedInfo que se inserta dentro de él.
+ */
+class ExclusiveC14nWriter {
+
+    private final Writer out;
+    // Namespaces ya renderizados por los ancestros de salida (prefijo -> URI)
+    private final Deque<Map<String, String>> rendered = new ArrayDeque<>();
+
+    private int depth;
+    private boolean rootSeen;
+    private String rootQName;
+    private final Map<String, String> rootNamespaces = new TreeMap<>();
+    private final Map<String, String> rootXmlAttributes = new TreeMap<>();
+
+    ExclusiveC14nWriter(Writer out) {
+        this.out = out;
+        rendered.push(Map.of());
+    }
+
+    /** Consume todo el reader escribiendo la forma canónica. */
+    void write(XMLStreamReader r) throws XMLStreamException, IOException {
+        while (r.hasNext()) {
+            switch (r.next()) {
+                case XMLStreamConstants.START_ELEMENT -> startElement(r);
+                case XMLStreamConstants.END_ELEMENT -> endElement(r);
+                case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE -> {
+                    if (depth > 0) text(r.getTextCharacters(), r.getTextStart(), r.getTextLength());
+                }
+                case XMLStreamConstants.PROCESSING_INSTRUCTION -> pi(r.getPITarget(), r.getPIData());
+                case XMLStreamConstants.DTD ->
+                        throw new IllegalStateException("Los documentos con DOCTYPE no se admiten en modo streaming");
+                case XMLStreamConstants.ENTITY_REFERENCE ->
+                        throw new IllegalStateException("Referencia a entidad no resuelta: " + r.getLocalName());
+                default -> { } // COMMENT, START/END_DOCUMENT: no aparecen en la forma canónica
+            }
+        }
+        out.flush();
+    }
+
+    String rootQName() { return rootQName; }
+    Map<String, String> rootNamespaces() { return rootNamespaces; }
+    Map<String, String> rootXmlAttributes() { return rootXmlAttributes; }
+
+    private void startElement(XMLStreamReader r) throws IOException {
+        String prefix = nz(r.getPrefix());
+        String qname = qname(prefix, r.getLocalName());
+
+        if (depth == 0) {
+            rootSeen = true;
+            rootQName = qname;
+            for (int i = 0; i < r.getNamespaceCount(); i++) {
+                rootNamespaces.put(nz(r.getNamespacePrefix(i)), nz(r.getNamespaceURI(i)));
+            }
+        }
+        depth++;
+
+        Map<String, String> parent = rendered.peek();
+        TreeMap<String, String> emit = new TreeMap<>();
+        utilize(parent, emit, prefix, nz(r.getNamespaceURI()));
+
+        List<String[]> attrs = new ArrayList<>(r.getAttributeCount());
+        for (int i = 0; i < r.getAttributeCount(); i++) {
+            String ap = nz(r.getAttributePrefix(i));
+            String auri = nz(r.getAttributeNamespace(i));
+            if (!ap.isEmpty() && !XMLConstants.XML_NS_URI.equals(auri)) utilize(parent, emit, ap, auri);
+            if (depth == 1 && XMLConstants.XML_NS_URI.equals(auri)) {
+                rootXmlAttributes.put(r.getAttributeLocalName(i), r.getAttributeValue(i));
+            }
+            attrs.add(new String[]{auri, r.getAttributeLocalName(i), qname(ap, r.getAttributeLocalName(i)),
+                    r.getAttributeValue(i)});
+        }
+        // Atributos: por URI de namespace (sin namespace primero) y después nombre local
+        attrs.sort((a, b) -> {
+            int c = a[0].compareTo(b[0]);
+            return c != 0 ? c : a[1].compareTo(b[1]);
+        });
+
+        out.write('<');
+        out.write(qname);
+        for (Map.Entry<String, String> ns : emit.entrySet()) {
+            out.write(ns.getKey().isEmpty() ? " xmlns=\"" : " xmlns:" + ns.getKey() + "=\"");
+            attrValue(ns.getValue());
+            out.write('"');
+        }
+        for (String[] a : attrs) {
+            out.write(' ');
+            out.write(a[2]);
+            out.write("=\"");
+            attrValue(a[3]);
+            out.write('"');
+        }
+        out.write('>');
+
+        if (emit.isEmpty()) {
+            rendered.push(parent);
+        } else {
+            Map<String, String> next = new HashMap<>(parent);
+            next.putAll(emit);
+            rendered.push(next);
+        }
+    }
+
+    private static void utilize(Map<String, String> parent, Map<String, String> emit, String prefix, String uri) {
+        String current = parent.get(prefix);
+        if (prefix.isEmpty() && uri.isEmpty()) {
+            // xmlns="" sólo si un ancestor de salida declaró un default no vacío
+            if (current != null && !current.isEmpty()) emit.put("", "");
+        } else if (!uri.equals(current)) {
+            emit.put(prefix, uri);
+        }
+    }
+
+    private void endElement(XMLStreamReader r) throws IOException {
+        depth--;
+        rendered.pop();
+        out.write("</");
+        out.write(qname(nz(r.getPrefix()), r.getLocalName()));
+        out.write('>');
+    }
+
+    private void pi(String target, String data) throws IOException {
+        if (depth == 0 && rootSeen) out.write('\n');
+        out.write("<?");
+        out.write(target);
+        if (data != null && !data.isEmpty()) {
+            out.write(' ');
+            out.write(data);
+        }
+        out.write("?>");
+        if (depth == 0 && !rootSeen) out.write('\n');
+    }
+
+    private void text(char[] ch, int start, int len) throws IOException {
+        int from = start;
+        int end = start + len;
+        for (int i = start; i < end; i++) {
+            String rep = switch (ch[i]) {
+                case '&' -> "&amp;";
+                case '<' -> "&lt;";
+                case '>' -> "&gt;";
+                case '\r' -> "&#xD;";
+                default -> null;
+            };
+            if (rep != null) {
+                out.write(ch, from, i - from);
+                out.write(rep);
+                from = i + 1;
+            }
+        }
+        out.write(ch, from, end - from);
+    }
+
+    private void attrValue(String v) throws IOException {
+        int from = 0;
+        for (int i = 0; i < v.length(); i++) {
+            String rep = switch (v.charAt(i)) {
+                case '&' -> "&amp;";
+                case '<' -> "&lt;";
+                case '"' -> "&quot;";
+                case '\t' -> "&#x9;";
+                case '\n' -> "&#xA;";
+                case '\r' -> "&#xD;";
+                default -> null;
+            };
+            if (rep != null) {
+                out.write(v, from, i - from);
+                out.write(rep);
+                from = i + 1;
+            }
+        }
+        out.write(v, from, v.length() - from);
+    }
+
+    private static String qname(String prefix, String local) {
+        return prefix.isEmpty() ? local : prefix + ":" + local;
+    }
+
+    private static String nz(String s) {
+        return s == null ? "" : s;
+    }
+}
@@ -0,0 +1,162 @@
+package com.clientum.signer.service;
+
+import com.clientum.signer.api.dto.HashSignRequest;
+import com.clientum.signer.crypto.SignatureAlgorithm;
+import com.clientum.signer.crypto.SignatureProviders;
+import com.clientum.signer.crypto.SigningMetrics;
+import com.clientum.signer.crypto.XmlPools;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.crypto.dom.DOMStructure;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLObject;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringWriter;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Firma "sign-the-hash": construye el ds:Signature a partir de los digests que calcula el
+ * cliente, sin recibir el documento. El coste (memoria y ancho de banda) no depende del
+ * tamaño del documento.
+ *
+ * El SignedInfo se canonicaliza con exc-c14n, de modo que el Signature no depende de los
+ * namespaces del documento donde se inserte: el cliente sólo tiene que añadirlo como último
+ * hijo de la raíz (referencia URI="" con Enveloped). Las referencias llevan el digest ya
+ * calculado y JSR-105 no las vuelve a resumir; sólo la de SignedProperties (XAdES) se calcula
+ * aquí.
+ */
+public final class HashSigner {
+
+  public record Result(String signatureId, String signatureXml, byte[] signatureValue) { }
+
+  private static final Set<String> TRANSFORMS = Set.of(
+      Transform.ENVELOPED, CanonicalizationMethod.EXCLUSIVE, CanonicalizationMethod.INCLUSIVE);
+
+  private HashSigner() { }
+
+  public static Result sign(List<HashSignRequest.Reference> references, KeyStore.PrivateKeyEntry entry,
+                            boolean xades, XadesTemplates.Policy policy, SignatureAlgorithm alg) throws Exception {
+    if (references == null || references.isEmpty()) {
+      throw new IllegalStateException("Debes enviar al menos una referencia en references");
+    }
+    if (!(entry.getCertificate() instanceof X509Certificate cert)) {
+      throw new IllegalStateException("La firma por hash necesita el certificado de la clave");
+    }
+    String id = "Signature-" + UUID.randomUUID();
+
+    long t0 = System.nanoTime();
+    Document doc;
+    try (var db = XmlPools.documentBuilder()) {
+      doc = db.get().newDocument();
+    }
+    Element holder = doc.createElementNS(null, "holder");
+    doc.appendChild(holder);
+
+    StringWriter sw = new StringWriter(4096);
+    byte[] signatureValue;
+    try (var lease = XmlPools.signatureFactory()) {
+      XMLSignatureFactory fac = lease.get();
+
+      List<Reference> refs = new ArrayList<>(references.size() + 1);
+      List<String> refIds = new ArrayList<>(references.size());
+      for (int i = 0; i < references.size(); i++) {
+        String refId = id + "-Reference-" + i;
+        refs.add(reference(fac, references.get(i), xades ? refId : null));
+        refIds.add(refId);
+      }
+
+      List<XMLObject> objects = null;
+      Element props = null;
+      if (xades) {
+        String propsId = id + "-SignedProperties";
+        Element qp = XadesTemplates.qualifyingProperties(doc, "ds", id, propsId, refIds, policy,
+            XadesTemplates.shared().signingCertificate(cert));
+        props = (Element) qp.getFirstChild();
+        objects = List.of(fac.newXMLObject(List.of(new DOMStructure(qp)), null, null, null));
+        refs.add(fac.newReference("#" + propsId, fac.newDigestMethod(DigestMethod.SHA256, null),
+            List.of(fac.newTransform(CanonicalizationMethod.EXCLUSIVE, (TransformParameterSpec) null)),
+            XadesTemplates.SIGNED_PROPERTIES_TYPE, null));
+      }
+
+      SignedInfo si = fac.newSignedInfo(
+          fac.newCanonicalizationMethod(CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null),
+          fac.newSignatureMethod(alg.uri(), null),
+          refs);
+      KeyInfoFactory kif = fac.getKeyInfoFactory();
+      KeyInfo ki = kif.newKeyInfo(List.of(
+          kif.newX509Data(List.of(cert)),
+          kif.newKeyValue(cert.getPublicKey())));
+
+      DOMSignContext dsc = new DOMSignContext(entry.getPrivateKey(), holder);
+      dsc.setDefaultNamespacePrefix("ds");
+      SignatureProviders.apply(dsc, alg);
+      if (props != null) dsc.setIdAttributeNS(props, null, "Id");
+      XMLSignature signature = fac.newXMLSignature(si, ki, objects, id, null);
+      signature.sign(dsc);
+      signatureValue = signature.getSignatureValue().getValue();
+    }
+    SigningMetrics.record(SigningMetrics.Phase.SIGN, t0);
+
+    t0 = System.nanoTime();
+    try (var tf = XmlPools.transformer()) {
+      tf.get().setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+      tf.get().transform(new DOMSource(holder.getFirstChild()), new StreamResult(sw));
+    }
+    SigningMetrics.record(SigningMetrics.Phase.SERIALIZE, t0);
+    return new Result(id, sw.toString(), signatureValue);
+  }
+
+  private static Reference reference(XMLSignatureFactory fac, HashSignRequest.Reference r, String id)
+      throws Exception {
+    if (r == null || r.getDigestValueBase64() == null || r.getDigestValueBase64().isBlank()) {
+      throw new IllegalStateException("Cada referencia necesita digestValueBase64");
+    }
+    String uri = r.getUri() == null ? "" : r.getUri();
+    byte[] digest = Base64.getDecoder().decode(r.getDigestValueBase64().trim());
+
+    String method;
+    int length;
+    String alg = r.getDigestAlgorithm() == null ? "SHA256"
+        : r.getDigestAlgorithm().trim().toUpperCase(Locale.ROOT).replace("-", "");
+    switch (alg) {
+      case "SHA256" -> { method = DigestMethod.SHA256; length = 32; }
+      case "SHA384" -> { method = DigestMethod.SHA384; length = 48; }
+      case "SHA512" -> { method = DigestMethod.SHA512; length = 64; }
+      default -> throw new IllegalArgumentException("Algoritmo de digest no soportado: " + r.getDigestAlgorithm());
+    }
+    if (digest.length != length) {
+      throw new IllegalArgumentException("digestValueBase64 no tiene la longitud de " + alg + ": " + digest.length);
+    }
+
+    List<String> algs = r.getTransforms() != null ? r.getTransforms()
+        : uri.isEmpty() ? List.of(Transform.ENVELOPED, CanonicalizationMethod.EXCLUSIVE)
+        : List.of(CanonicalizationMethod.EXCLUSIVE);
+    List<Transform> transforms = new ArrayList<>(algs.size());
+    for (String t : algs) {
+      if (!TRANSFORMS.contains(t)) throw new IllegalArgumentException("Transform no soportada: " + t);
+      transforms.add(fac.newTransform(t, (TransformParameterSpec) null));
+    }
+    return fac.newReference(uri, fac.newDigestMethod(method, null), transforms, null, id, digest);
+  }
+}
@@ -0,0 +1,473 @@
+package com.clientum.signer.service;
+
+import com.clientum.signer.security.TenantRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Resultados de firma recientes para que un reintento (p. ej. del gateway tras un timeout) no
+ * vuelva a parsear y firmar.
+ *
+ * La clave es la cabecera Idempotency-Key (por tenant y endpoint) o, si no llega, la huella de la
+ * petición: SHA-256 del documento, del certificado y de las opciones (SIGNER_IDEMPOTENCY_FALLBACK).
+ * Con Idempotency-Key también se guarda la huella: la misma clave con otra petición da 422.
+ * Dos peticiones iguales a la vez firman una sola vez: la segunda espera a la que está en vuelo.
+ *
+ * LRU por bytes (SIGNER_IDEMPOTENCY_MAX_MB; 0 desactiva) con caducidad SIGNER_IDEMPOTENCY_TTL_SECONDS.
+ * Con SIGNER_IDEMPOTENCY_DIR, lo que sale de memoria sin caducar se vuelca a ese directorio (hasta
+ * SIGNER_IDEMPOTENCY_DISK_MB) y sobrevive a un reinicio. Documentos mayores que
+ * SIGNER_IDEMPOTENCY_MAX_ENTRY_MB no se cachean: se firman y escriben en streaming como siempre.
+ * Un error de disco (lleno, permisos) nunca falla la petición: la entrada se descarta y se cuenta
+ * en signer.idempotency.disk.errors.
+ */
+@Component
+public class IdempotencyCache {
+
+  public static final String HEADER = "Idempotency-Key";
+  /** Cabecera de respuesta cuando el resultado sale de la caché. */
+  public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+  private static final int MAX_KEY_LENGTH = 255;
+  private static final int ENTRY_OVERHEAD = 128;
+  private static final String SUFFIX = ".bin";
+
+  /** Cuerpo firmado y algoritmo usado; {@code replayed} si viene de la caché. */
+  public record Result(byte[] body, String algorithm, boolean replayed) {
+    public Result(byte[] body, String algorithm) {
+      this(body, algorithm, false);
+    }
+  }
+
+  private record Entry(String key, byte[] body, String algorithm, byte[] fingerprint, long expiresAt) {
+    long weight() {
+      return body.length + key.length() * 2L + ENTRY_OVERHEAD;
+    }
+  }
+
+  private record DiskEntry(Path file, long size, long expiresAt) { }
+
+  private record Flight(CompletableFuture<Entry> result, byte[] fingerprint) { }
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private final long ttlMillis;
+  private final boolean fallback;
+  private final Path dir;
+  private final long maxDiskBytes;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(64, 0.75f, true);
+  private final LinkedHashMap<String, DiskEntry> disk = new LinkedHashMap<>();
+  private final Map<String, Flight> inFlight = new ConcurrentHashMap<>();
+  private long memoryBytes;
+  private long diskBytes;
+  private long nextSweep;
+
+  private final Counter misses;
+  private final Counter hits;
+  private final Counter diskHits;
+  private final Counter waited;
+  private final Counter mismatches;
+  private final Counter diskErrors;
+  private final MeterRegistry registry;
+
+  public IdempotencyCache(@Value("${SIGNER_IDEMPOTENCY_MAX_MB:64}") long maxMb,
+                          @Value("${SIGNER_IDEMPOTENCY_MAX_ENTRY_MB:8}") long maxEntryMb,
+                          @Value("${SIGNER_IDEMPOTENCY_TTL_SECONDS:600}") long ttlSeconds,
+                          @Value("${SIGNER_IDEMPOTENCY_FALLBACK:true}") boolean fallback,
+                          @Value("${SIGNER_IDEMPOTENCY_DIR:}") String dir,
+                          @Value("${SIGNER_IDEMPOTENCY_DISK_MB:1024}") long diskMb,
+                          MeterRegistry registry) throws IOException {
+    this.maxBytes = Math.max(0, maxMb) * 1024 * 1024;
+    this.maxEntryBytes = Math.min(Math.max(0, maxEntryMb) * 1024 * 1024, maxBytes);
+    this.ttlMillis = Math.max(1, ttlSeconds) * 1000;
+    this.fallback = fallback;
+    this.dir = dir == null || dir.isBlank() || maxBytes == 0 ? null : Path.of(dir.trim());
+    this.maxDiskBytes = Math.max(0, diskMb) * 1024 * 1024;
+    if (this.dir != null) load();
+
+    this.misses = requests(registry, "miss");
+    this.hits = requests(registry, "hit");
+    this.diskHits = requests(registry, "disk");
+    this.waited = requests(registry, "waited");
+    this.mismatches = requests(registry, "mismatch");
+    this.diskErrors = Counter.builder("signer.idempotency.disk.errors")
+        .description("Resultados descartados por un error de E/S en el directorio de la caché").register(registry);
+    this.registry = registry;
+  }
+
+  /** Los gauges leen la caché: se registran ya construida, no desde el constructor. */
+  @PostConstruct
+  public void registerGauges() {
+    Gauge.builder("signer.idempotency.bytes", this, c -> c.memoryBytes).tag("location", "memory")
+        .description("Bytes de resultados de firma cacheados").register(registry);
+    Gauge.builder("signer.idempotency.bytes", this, c -> c.diskBytes).tag("location", "disk")
+        .description("Bytes de resultados de firma cacheados").register(registry);
+  }
+
+  /** true si esta petición pasa por la caché; si no, hay que firmar sin ella (p. ej. en streaming). */
+  public boolean accepts(String idempotencyKey, long documentBytes) {
+    return maxBytes > 0 && documentBytes <= maxEntryBytes
+        && (fallback || (idempotencyKey != null && !idempotencyKey.isBlank()));
+  }
+
+  /**
+   * Devuelve el resultado cacheado de esta petición o ejecuta {@code sign} (una sola vez aunque
+   * lleguen duplicados a la vez) y lo guarda. Sin {@link #accepts}, sólo ejecuta {@code sign}.
+   *
+   * @param fingerprint huella de la petición, ver {@link #fingerprint}; sólo se calcula si hace falta
+   */
+  public Result execute(HttpServletRequest request, String idempotencyKey, String endpoint, long documentBytes,
+                        Callable<byte[]> fingerprint, Callable<Result> sign) throws Exception {
+    if (!accepts(idempotencyKey, documentBytes)) return sign.call();
+    boolean explicit = idempotencyKey != null && !idempotencyKey.isBlank();
+    if (explicit && idempotencyKey.length() > MAX_KEY_LENGTH) {
+      throw new ResponseStatusException(HttpStatus.BAD_REQUEST, HEADER + " demasiado larga");
+    }
+    Object tenant = request.getAttribute(TenantRegistry.TENANT_ATTRIBUTE);
+    byte[] fp = fingerprint.call();
+    String key = (tenant == null ? "" : tenant) + "\n" + endpoint + "\n"
+        + (explicit ? "k:" + idempotencyKey.trim() : "d:" + HexFormat.of().formatHex(fp));
+
+    Entry cached = lookup(key);
+    if (cached != null) return replay(cached, fp);
+
+    Flight flight = new Flight(new CompletableFuture<>(), fp);
+    Flight running = inFlight.putIfAbsent(key, flight);
+    if (running != null) {
+      waited.increment();
+      if (!MessageDigest.isEqual(running.fingerprint(), fp)) throw mismatch();
+      try {
+        Entry e = running.result().get();
+        return new Result(e.body(), e.algorithm(), true);
+      } catch (ExecutionException ex) {
+        // El duplicado recibe el mismo error que la petición original
+        if (ex.getCause() instanceof Exception cause) throw cause;
+        throw ex;
+      }
+    }
+    try {
+      // Pudo terminar otra entre la búsqueda y el registro en vuelo
+      cached = lookup(key);
+      if (cached != null) {
+        flight.result().complete(cached);
+        return replay(cached, fp);
+      }
+      misses.increment();
+      Result r = sign.call();
+      Entry e = new Entry(key, r.body(), r.algorithm(), fp, System.currentTimeMillis() + ttlMillis);
+      flight.result().complete(e);
+      store(e);
+      return r;
+    } catch (Exception ex) {
+      flight.result().completeExceptionally(ex);
+      throw ex;
+    } finally {
+      inFlight.remove(key, flight);
+    }
+  }
+
+  /** SHA-256 de certificado, documento y opciones (algoritmo pedido, streaming...). */
+  public static byte[] fingerprint(Certificate certificate, ByteBuffer document, String... options) throws Exception {
+    MessageDigest md = sha256();
+    md.update(certificate == null ? new byte[0] : certificate.getEncoded());
+    for (String o : options) {
+      md.update((byte) 0);
+      if (o != null) md.update(o.getBytes(StandardCharsets.UTF_8));
+    }
+    md.update((byte) 0);
+    md.update(document.duplicate());
+    return md.digest();
+  }
+
+  private Result replay(Entry e, byte[] fp) {
+    if (!MessageDigest.isEqual(e.fingerprint(), fp)) throw mismatch();
+    return new Result(e.body(), e.algorithm(), true);
+  }
+
+  private ResponseStatusException mismatch() {
+    mismatches.increment();
+    return new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY,
+        HEADER + " ya usada con otra petición (documento, certificado u opciones distintos)");
+  }
+
+  // ---- memoria y disco ----
+
+  private Entry lookup(String key) {
+    long now = System.currentTimeMillis();
+    DiskEntry d;
+    lock.lock();
+    try {
+      Entry e = memory.get(key);
+      if (e != null) {
+        if (e.expiresAt() > now) {
+          hits.increment();
+          return e;
+        }
+        memory.remove(key);
+        memoryBytes -= e.weight();
+      }
+      d = disk.get(key);
+      if (d == null) return null;
+      if (d.expiresAt() <= now) {
+        disk.remove(key);
+        diskBytes -= d.size();
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (d.expiresAt() <= now) {
+      delete(d.file());
+      return null;
+    }
+    Entry e;
+    try {
+      e = read(d.file());
+    } catch (IOException ex) {
+      // Ilegible: se trata como no cacheado y se vuelve a firmar
+      diskErrors.increment();
+      forget(key, d);
+      return null;
+    }
+    if (e == null || !e.key().equals(key)) return null;
+    diskHits.increment();
+    return e;
+  }
+
+  /** Nunca falla: la firma ya está hecha y un problema de la caché no puede estropear la respuesta. */
+  private void store(Entry e) {
+    List<Entry> spill = new ArrayList<>();
+    List<Path> delete = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    lock.lock();
+    try {
+      Entry old = memory.put(e.key(), e);
+      if (old != null) memoryBytes -= old.weight();
+      memoryBytes += e.weight();
+      if (now >= nextSweep) sweep(now, delete);
+      Iterator<Entry> it = memory.values().iterator();
+      while (memoryBytes > maxBytes && it.hasNext()) {
+        Entry eldest = it.next();
+        it.remove();
+        memoryBytes -= eldest.weight();
+        if (dir != null && eldest.expiresAt() > now) spill.add(eldest);
+      }
+    } finally {
+      lock.unlock();
+    }
+    // E/S fuera del lock
+    for (Path p : delete) delete(p);
+    for (Entry s : spill) spill(s);
+  }
+
+  /** Quita lo caducado de memoria y de disco. Con el lock tomado. */
+  private void sweep(long now, List<Path> delete) {
+    nextSweep = now + Math.min(ttlMillis, 30_000);
+    Iterator<Entry> it = memory.values().iterator();
+    while (it.hasNext()) {
+      Entry e = it.next();
+      if (e.expiresAt() <= now) {
+        it.remove();
+        memoryBytes -= e.weight();
+      }
+    }
+    Iterator<DiskEntry> dit = disk.values().iterator();
+    while (dit.hasNext()) {
+      DiskEntry d = dit.next();
+      if (d.expiresAt() <= now) {
+        dit.remove();
+        diskBytes -= d.size();
+        delete.add(d.file());
+      }
+    }
+  }
+
+  /** Vuelca {@code e} a disco; si falla la E/S la entrada se pierde (sólo es una caché). */
+  private void spill(Entry e) {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(e.body().length + 256);
+    try (DataOutputStream out = new DataOutputStream(buf)) {
+      out.writeLong(e.expiresAt());
+      out.writeUTF(e.key());
+      out.writeUTF(e.algorithm());
+      out.writeShort(e.fingerprint().length);
+      out.write(e.fingerprint());
+      out.writeInt(e.body().length);
+      out.write(e.body());
+    } catch (IOException ex) {
+      diskErrors.increment(); // p. ej. una clave de más de 64 KB en UTF-8
+      return;
+    }
+    if (buf.size() > maxDiskBytes) return;
+    Path file = dir.resolve(HexFormat.of().formatHex(sha256().digest(e.key().getBytes(StandardCharsets.UTF_8))) + SUFFIX);
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try {
+      Files.write(tmp, buf.toByteArray());
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ex) {
+      diskErrors.increment();
+      try {
+        Files.deleteIfExists(tmp);
+      } catch (IOException ignored) {
+        // ya contado; se borra al arrancar (load)
+      }
+      // Una versión anterior de la misma clave en disco ya no vale
+      DiskEntry old;
+      lock.lock();
+      try {
+        old = disk.remove(e.key());
+        if (old != null) diskBytes -= old.size();
+      } finally {
+        lock.unlock();
+      }
+      if (old != null) delete(old.file());
+      return;
+    }
+
+    List<Path> delete = new ArrayList<>();
+    lock.lock();
+    try {
+      DiskEntry old = disk.remove(e.key());
+      if (old != null) diskBytes -= old.size();
+      disk.put(e.key(), new DiskEntry(file, buf.size(), e.expiresAt()));
+      diskBytes += buf.size();
+      Iterator<DiskEntry> it = disk.values().iterator();
+      while (diskBytes > maxDiskBytes && it.hasNext()) {
+        DiskEntry eldest = it.next();
+        it.remove();
+        diskBytes -= eldest.size();
+        delete.add(eldest.file());
+      }
+    } finally {
+      lock.unlock();
+    }
+    for (Path p : delete) delete(p);
+  }
+
+  /** Quita {@code d} del índice de disco y su fichero. */
+  private void forget(String key, DiskEntry d) {
+    lock.lock();
+    try {
+      if (disk.remove(key, d)) diskBytes -= d.size();
+    } finally {
+      lock.unlock();
+    }
+    delete(d.file());
+  }
+
+  private void delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException ex) {
+      diskErrors.increment();
+    }
+  }
+
+  private static Entry read(Path file) throws IOException {
+    byte[] bytes;
+    try {
+      bytes = Files.readAllBytes(file);
+    } catch (java.nio.file.NoSuchFileException ex) {
+      return null; // expulsado mientras tanto
+    }
+    return decode(new ByteArrayInputStream(bytes), true);
+  }
+
+  private static Entry decode(InputStream raw, boolean withBody) throws IOException {
+    DataInputStream in = new DataInputStream(raw);
+    long expiresAt = in.readLong();
+    String key = in.readUTF();
+    String algorithm = in.readUTF();
+    byte[] fp = new byte[in.readUnsignedShort()];
+    in.readFully(fp);
+    byte[] body = new byte[0];
+    if (withBody) {
+      body = new byte[in.readInt()];
+      in.readFully(body);
+    }
+    return new Entry(key, body, algorithm, fp, expiresAt);
+  }
+
+  /** Al arrancar: índice de lo volcado en una ejecución anterior, sin cargar los cuerpos. */
+  private void load() throws IOException {
+    Files.createDirectories(dir);
+    long now = System.currentTimeMillis();
+    List<DiskEntry> found = new ArrayList<>();
+    Map<DiskEntry, String> keys = new LinkedHashMap<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path p : files) {
+        String name = p.getFileName().toString();
+        if (!name.endsWith(SUFFIX)) {
+          if (name.endsWith(SUFFIX + ".tmp")) Files.deleteIfExists(p);
+          continue;
+        }
+        Entry header;
+        try (InputStream in = Files.newInputStream(p)) {
+          header = decode(in, false);
+        } catch (IOException ex) {
+          header = null;
+        }
+        if (header == null || header.expiresAt() <= now) {
+          Files.deleteIfExists(p);
+          continue;
+        }
+        DiskEntry d = new DiskEntry(p, Files.size(p), header.expiresAt());
+        found.add(d);
+        keys.put(d, header.key());
+      }
+    }
+    // Los que caducan antes, primero en salir
+    found.sort((a, b) -> Long.compare(a.expiresAt(), b.expiresAt()));
+    for (DiskEntry d : found) {
+      disk.put(keys.get(d), d);
+      diskBytes += d.size();
+    }
+  }
+
+  private static Counter requests(MeterRegistry registry, String result) {
+    return Counter.builder("signer.idempotency.requests").tag("result", result)
+        .description("Firmas con caché de idempotencia: nueva (miss), repetida desde memoria, disco o en vuelo")
+        .register(registry);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+}
@@ -1,15 +1,12 @@
 package com.clientum.signer.service;
 
+import com.clientum.signer.crypto.Pkcs12Utils;
 import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.security.KeyStore;
-import java.security.PrivateKey;
-import java.security.cert.Certificate;
-import java.security.cert.X509Certificate;
 import java.util.*;
 
 @Component
@@ -26,7 +23,8 @@ public class KeyLoader {
                                                  String storePassword,
                                                  String alias,
                                                  String keyPassword) throws Exception {
-    byte[] p12 = Base64.getDecoder().decode(p12Base64.replaceAll("\\s", ""));
+    // El decoder MIME ignora saltos de línea y espacios sin pasar una regex por todo el p12
+    byte[] p12 = Base64.getMimeDecoder().decode(p12Base64);
     return loadFromBytes(p12, storePassword, alias, keyPassword);
   }
 
@@ -62,25 +60,6 @@ public class KeyLoader {
     }
     char[] sp = storePassword.toCharArray();
     char[] kp = (keyPassword != null ? keyPassword : storePassword).toCharArray();
-
-    KeyStore ks = KeyStore.getInstance("PKCS12");
-    ks.load(new ByteArrayInputStream(p12Bytes), sp);
-
-    String effectiveAlias = alias;
-    if (effectiveAlias == null || !ks.containsAlias(effectiveAlias)) {
-      Enumeration<String> aliases = ks.aliases();
-      if (!aliases.hasMoreElements()) {
-        throw new IllegalStateException("El PKCS12 no contiene alias");
-      }
-      effectiveAlias = aliases.nextElement();
-    }
-
-    PrivateKey pk = (PrivateKey) ks.getKey(effectiveAlias, kp);
-    Certificate[] chain = ks.getCertificateChain(effectiveAlias);
-    if (chain == null || chain.length == 0) {
-      Certificate cert = ks.getCertificate(effectiveAlias);
-      if (cert != null) chain = new Certificate[]{cert};
-    }
-    return new KeyStore.PrivateKeyEntry(pk, chain);
+    return Pkcs12Utils.loadEntry(p12Bytes, sp, alias, kp);
   }
 }
@@ -0,0 +1,296 @@
+package com.clientum.signer.service;
+
+import com.clientum.signer.api.dto.VerifyResponse;
+import com.clientum.signer.crypto.XmlPools;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.crypto.AlgorithmMethod;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.KeySelectorException;
+import javax.xml.crypto.KeySelectorResult;
+import javax.xml.crypto.XMLCryptoContext;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyValue;
+import javax.xml.crypto.dsig.keyinfo.X509Data;
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Verificación de firmas XMLDSig enveloped (las de service.XmlSigner y crypto.XmlSigner):
+ * SignatureValue y referencias con JSR-105 (secure validation) y la cadena del certificado de
+ * KeyInfo con {@link CertificatePathValidator} (cacheada). Todas las ds:Signature del
+ * documento deben ser válidas.
+ *
+ * Contra el "signature wrapping" cada firma debe cubrir el documento entero: una Reference
+ * URI="" con la transformación enveloped, o una "#id" al elemento raíz. Sólo se registran como
+ * ID los atributos Id/ID a los que apunta alguna Reference, y un Id referenciado que aparezca
+ * más de una vez invalida la firma.
+ */
+@Service
+public class SignatureVerifier {
+
+  private final CertificatePathValidator pathValidator;
+  private final SigningBulkhead bulkhead;
+  private final ExecutorService executor;
+
+  public SignatureVerifier(CertificatePathValidator pathValidator,
+                           SigningBulkhead bulkhead,
+                           @Qualifier("signingExecutor") ExecutorService executor) {
+    this.pathValidator = pathValidator;
+    this.bulkhead = bulkhead;
+    this.executor = executor;
+  }
+
+  /** Verifica un documento. Los errores de formato se devuelven en el resultado, no como excepción. */
+  public VerifyResponse verify(byte[] xml) {
+    try {
+      return bulkhead.call(() -> verifyDocument(xml));
+    } catch (ResponseStatusException ex) {
+      throw ex; // p. ej. 503 del bulkhead
+    } catch (Exception ex) {
+      return failed(ex);
+    }
+  }
+
+  /** Verifica en paralelo en el pool de firma; el resultado conserva el orden de entrada. */
+  public List<VerifyResponse> verifyAll(List<byte[]> documents) {
+    List<CompletableFuture<VerifyResponse>> futures = new ArrayList<>(documents.size());
+    for (byte[] doc : documents) {
+      futures.add(CompletableFuture.supplyAsync(() -> verifyQuietly(doc), executor));
+    }
+    List<VerifyResponse> out = new ArrayList<>(futures.size());
+    for (CompletableFuture<VerifyResponse> f : futures) out.add(f.join());
+    return out;
+  }
+
+  private VerifyResponse verifyQuietly(byte[] xml) {
+    if (xml == null) return failed(new IllegalStateException("Debes enviar xml (texto) o xmlBase64"));
+    try {
+      return verify(xml);
+    } catch (RuntimeException ex) {
+      return failed(ex);
+    }
+  }
+
+  private VerifyResponse verifyDocument(byte[] xml) throws Exception {
+    Document doc;
+    try (var db = XmlPools.documentBuilder()) {
+      doc = db.get().parse(new ByteArrayInputStream(xml));
+    }
+    VerifyResponse res = new VerifyResponse();
+    NodeList sigs = doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+    if (sigs.getLength() == 0) {
+      res.setError("El documento no contiene ds:Signature");
+      return res;
+    }
+    Map<String, List<Attr>> ids = new HashMap<>();
+    collectIds(doc.getDocumentElement(), ids);
+
+    boolean all = true;
+    try (var fac = XmlPools.signatureFactory()) {
+      for (int i = 0; i < sigs.getLength(); i++) {
+        VerifyResponse.SignatureResult sr = verifySignature(fac.get(), (Element) sigs.item(i), ids);
+        all &= sr.isValid();
+        res.getSignatures().add(sr);
+      }
+    }
+    res.setValid(all);
+    return res;
+  }
+
+  private VerifyResponse.SignatureResult verifySignature(XMLSignatureFactory fac, Element el,
+                                                         Map<String, List<Attr>> ids) {
+    VerifyResponse.SignatureResult sr = new VerifyResponse.SignatureResult();
+    CertKeySelector keys = new CertKeySelector();
+    try {
+      registerReferencedIds(el, ids);
+      DOMValidateContext ctx = new DOMValidateContext(keys, el);
+      ctx.setProperty("org.jcp.xml.dsig.secureValidation", Boolean.TRUE);
+      XMLSignature sig = fac.unmarshalXMLSignature(ctx);
+      sr.setSignatureMethod(sig.getSignedInfo().getSignatureMethod().getAlgorithm());
+
+      sig.validate(ctx);
+      sr.setSignatureValueValid(sig.getSignatureValue().validate(ctx));
+      boolean refs = true;
+      for (Object o : sig.getSignedInfo().getReferences()) refs &= ((Reference) o).validate(ctx);
+      sr.setReferencesValid(refs);
+
+      boolean chainOk = true;
+      if (!keys.chain.isEmpty()) {
+        X509Certificate cert = keys.chain.get(0);
+        sr.setSubject(cert.getSubjectX500Principal().getName());
+        sr.setIssuer(cert.getIssuerX500Principal().getName());
+        sr.setSerialNumber(cert.getSerialNumber().toString(16));
+        sr.setNotAfter(cert.getNotAfter().toInstant().toString());
+        sr.setCertificateSha256(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(cert.getEncoded())));
+
+        CertificatePathValidator.Result pkix = pathValidator.validate(keys.chain);
+        sr.setChainValid(pkix.valid());
+        sr.setTrustAnchor(pkix.trustAnchor());
+        if (!pkix.valid()) sr.setError("Cadena de certificación no válida: " + pkix.error());
+        chainOk = pkix.valid();
+      } else {
+        // Sólo KeyValue: la firma puede ser correcta, pero no hay identidad que validar
+        sr.setError("KeyInfo sin certificado: no se puede validar la cadena");
+        chainOk = false;
+      }
+      boolean covers = coversDocument(sig, ids, el.getOwnerDocument().getDocumentElement());
+      if (!covers) {
+        sr.setError("La firma no cubre el documento: falta una Reference URI=\"\" con transformación"
+            + " enveloped o una al elemento raíz");
+      }
+      sr.setValid(sr.isSignatureValueValid() && refs && covers && chainOk);
+    } catch (Exception ex) {
+      sr.setValid(false);
+      sr.setError(ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName());
+    }
+    return sr;
+  }
+
+  /** Atributos Id/ID del documento por valor; todavía sin marcar como tipo ID. */
+  private static void collectIds(Element el, Map<String, List<Attr>> ids) {
+    for (String name : new String[] {"Id", "ID"}) {
+      Attr a = el.getAttributeNodeNS(null, name);
+      if (a != null) ids.computeIfAbsent(a.getValue(), k -> new ArrayList<>(1)).add(a);
+    }
+    for (var n = el.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n instanceof Element child) collectIds(child, ids);
+    }
+  }
+
+  /**
+   * Marca como ID sólo los atributos a los que apuntan las Reference "#id" de SignedInfo
+   * (p. ej. SignedProperties de XAdES). Un Id referenciado y repetido no se resuelve.
+   */
+  private static void registerReferencedIds(Element signature, Map<String, List<Attr>> ids) {
+    Element signedInfo = child(signature, "SignedInfo");
+    if (signedInfo == null) return; // lo rechaza unmarshalXMLSignature
+    for (var n = signedInfo.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (!(n instanceof Element ref) || !isDsig(ref, "Reference")) continue;
+      String id = fragment(ref.getAttributeNS(null, "URI"));
+      List<Attr> attrs = id == null ? null : ids.get(id);
+      if (attrs == null) continue;
+      if (attrs.size() > 1) throw new IllegalStateException("Id duplicado en el documento: " + id);
+      Attr a = attrs.get(0);
+      a.getOwnerElement().setIdAttributeNode(a, true);
+    }
+  }
+
+  /** Alguna Reference cubre el documento entero (ya validada junto con la firma). */
+  private static boolean coversDocument(XMLSignature sig, Map<String, List<Attr>> ids, Element root) {
+    for (Object o : sig.getSignedInfo().getReferences()) {
+      Reference ref = (Reference) o;
+      String uri = ref.getURI();
+      if ("".equals(uri)) {
+        for (Object t : ref.getTransforms()) {
+          if (Transform.ENVELOPED.equals(((Transform) t).getAlgorithm())) return true;
+        }
+      }
+      String id = fragment(uri);
+      List<Attr> attrs = id == null ? null : ids.get(id);
+      if (attrs != null && attrs.size() == 1 && attrs.get(0).getOwnerElement() == root) return true;
+    }
+    return false;
+  }
+
+  /** "#id" → "id"; null para URI vacía, externa o xpointer. */
+  private static String fragment(String uri) {
+    if (uri == null || uri.length() < 2 || uri.charAt(0) != '#' || uri.startsWith("#xpointer(")) return null;
+    return uri.substring(1);
+  }
+
+  private static Element child(Element parent, String localName) {
+    for (var n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n instanceof Element e && isDsig(e, localName)) return e;
+    }
+    return null;
+  }
+
+  private static boolean isDsig(Element e, String localName) {
+    return XMLSignature.XMLNS.equals(e.getNamespaceURI()) && localName.equals(e.getLocalName());
+  }
+
+  private static VerifyResponse failed(Exception ex) {
+    VerifyResponse r = new VerifyResponse();
+    r.setValid(false);
+    r.setError(ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName());
+    return r;
+  }
+
+  /** Clave del primer X509Certificate de KeyInfo (el firmante) o, si no hay, del KeyValue. */
+  private static final class CertKeySelector extends KeySelector {
+    private List<X509Certificate> chain = List.of();
+
+    @Override
+    public KeySelectorResult select(KeyInfo keyInfo, Purpose purpose, AlgorithmMethod method,
+                                    XMLCryptoContext context) throws KeySelectorException {
+      if (keyInfo == null) throw new KeySelectorException("La firma no tiene KeyInfo");
+      List<X509Certificate> certs = new ArrayList<>();
+      PublicKey keyValue = null;
+      for (Object o : keyInfo.getContent()) {
+        if (o instanceof X509Data xd) {
+          for (Object c : xd.getContent()) {
+            if (c instanceof X509Certificate cert) certs.add(cert);
+          }
+        } else if (o instanceof KeyValue kv) {
+          try {
+            keyValue = kv.getPublicKey();
+          } catch (java.security.KeyException ex) {
+            throw new KeySelectorException(ex);
+          }
+        }
+      }
+      if (!certs.isEmpty()) {
+        chain = signerFirst(certs);
+        PublicKey pk = chain.get(0).getPublicKey();
+        return () -> pk;
+      }
+      if (keyValue != null) {
+        PublicKey pk = keyValue;
+        return () -> pk;
+      }
+      throw new KeySelectorException("KeyInfo sin X509Certificate ni KeyValue");
+    }
+
+    /** El firmante es el certificado que no emite a ningún otro de la lista. */
+    private static List<X509Certificate> signerFirst(List<X509Certificate> certs) {
+      if (certs.size() == 1) return certs;
+      for (X509Certificate c : certs) {
+        boolean issuesOther = false;
+        for (X509Certificate o : certs) {
+          if (o != c && o.getIssuerX500Principal().equals(c.getSubjectX500Principal())) {
+            issuesOther = true;
+            break;
+          }
+        }
+        if (!issuesOther) {
+          List<X509Certificate> out = new ArrayList<>(certs.size());
+          out.add(c);
+          for (X509Certificate o : certs) if (o != c) out.add(o);
+          return out;
+        }
+      }
+      return certs;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.clientum.signer.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limita el trabajo de CPU (canonicalización, RSA) a ~un permiso por core.
+ *
+ * Con hilos virtuales en Tomcat las peticiones lentas no cuestan casi nada, pero sin este
+ * límite miles de firmas simultáneas competirían por la CPU y todas irían lentas. Las
+ * peticiones esperan en cola FIFO hasta SIGNER_BULKHEAD_TIMEOUT_MS; si la cola supera
+ * SIGNER_BULKHEAD_QUEUE se rechazan en el acto con 503 + Retry-After.
+ *
+ * Métricas: signer.bulkhead.queue (en espera), signer.bulkhead.active,
+ * signer.bulkhead.wait (tiempo en cola) y signer.bulkhead.rejected{reason}.
+ */
+@Component
+public class SigningBulkhead {
+
+  private final Semaphore permits;
+  private final int maxConcurrent;
+  private final int maxQueue;
+  private final long timeoutMillis;
+
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final AtomicInteger active = new AtomicInteger();
+  private final Timer waitTimer;
+  private final Counter rejectedQueueFull;
+  private final Counter rejectedTimeout;
+
+  public SigningBulkhead(@Value("${SIGNER_CPU_PERMITS:0}") int cpuPermits,
+                         @Value("${SIGNER_BULKHEAD_QUEUE:256}") int maxQueue,
+                         @Value("${SIGNER_BULKHEAD_TIMEOUT_MS:30000}") long timeoutMillis,
+                         MeterRegistry registry) {
+    this.maxConcurrent = cpuPermits > 0 ? cpuPermits : Runtime.getRuntime().availableProcessors();
+    this.permits = new Semaphore(maxConcurrent, true);
+    this.maxQueue = Math.max(0, maxQueue);
+    this.timeoutMillis = timeoutMillis;
+
+    Gauge.builder("signer.bulkhead.queue", waiting, AtomicInteger::get)
+        .description("Firmas esperando permiso de CPU").register(registry);
+    Gauge.builder("signer.bulkhead.active", active, AtomicInteger::get)
+        .description("Firmas en ejecución").register(registry);
+    Gauge.builder("signer.bulkhead.limit", () -> maxConcurrent).register(registry);
+    this.waitTimer = Timer.builder("signer.bulkhead.wait")
+        .description("Tiempo de espera en la cola del bulkhead")
+        .publishPercentileHistogram()
+        .register(registry);
+    this.rejectedQueueFull = Counter.builder("signer.bulkhead.rejected").tag("reason", "queue_full").register(registry);
+    this.rejectedTimeout = Counter.builder("signer.bulkhead.rejected").tag("reason", "timeout").register(registry);
+  }
+
+  /** Ejecuta {@code work} con un permiso de CPU, esperando en cola si hace falta. */
+  public <T> T call(Callable<T> work) throws Exception {
+    acquire();
+    active.incrementAndGet();
+    try {
+      return work.call();
+    } finally {
+      active.decrementAndGet();
+      permits.release();
+    }
+  }
+
+  private void acquire() throws InterruptedException {
+    if (permits.tryAcquire()) {
+      waitTimer.record(0, TimeUnit.NANOSECONDS);
+      return;
+    }
+    if (waiting.incrementAndGet() > maxQueue) {
+      waiting.decrementAndGet();
+      rejectedQueueFull.increment();
+      throw new SigningRejectedException(HttpStatus.SERVICE_UNAVAILABLE, "Servicio de firma saturado", retryAfterSeconds());
+    }
+    long start = System.nanoTime();
+    boolean ok;
+    try {
+      ok = permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+    } finally {
+      waiting.decrementAndGet();
+      waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+    if (!ok) {
+      rejectedTimeout.increment();
+      throw new SigningRejectedException(HttpStatus.SERVICE_UNAVAILABLE, "Tiempo de espera de firma agotado", retryAfterSeconds());
+    }
+  }
+
+  /** Estimación simple: la espera media observada en cola (mínimo 1 s). */
+  private long retryAfterSeconds() {
+    double meanMs = waitTimer.mean(TimeUnit.MILLISECONDS);
+    return (long) Math.ceil(Math.max(1000, meanMs) / 1000.0);
+  }
+
+  public int queueDepth() { return waiting.get(); }
+  public int activeCount() { return active.get(); }
+}
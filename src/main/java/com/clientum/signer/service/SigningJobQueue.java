@@ -0,0 +1,439 @@
+package com.clientum.signer.service;
+
+import com.clientum.signer.api.dto.SignBatchRequest;
+import com.clientum.signer.api.dto.SignJobStatus;
+import com.clientum.signer.crypto.SignatureAlgorithm;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * Cola de trabajos de firma asíncronos (submit/poll o callback) delante de {@link BatchSigner}.
+ *
+ * - Cola FIFO acotada: hasta SIGNER_JOBS_MEMORY_QUEUE trabajos guardan sus documentos en
+ *   memoria; los siguientes se vuelcan a SIGNER_JOBS_DIR (hasta SIGNER_JOBS_DISK_QUEUE más) y
+ *   se leen de disco cuando les toca. Por encima se rechaza con 429 + Retry-After, en vez de
+ *   degradar la latencia de todos.
+ * - SIGNER_JOBS_WORKERS trabajos en paralelo; cada uno firma sus documentos en el pool
+ *   {@code signingExecutor} y el bulkhead de CPU, como /api/sign/batch.
+ * - El resultado (NDJSON) se escribe en disco y se conserva SIGNER_JOBS_RESULT_TTL_SECONDS.
+ *
+ * La clave se resuelve al encolar y sólo vive en memoria: el p12 y su contraseña nunca se
+ * escriben en disco. Por eso el volcado no sobrevive a un reinicio (al arrancar se limpia el
+ * directorio); es un desbordamiento de memoria, no una cola persistente.
+ */
+@Service
+public class SigningJobQueue {
+
+  public enum Status { QUEUED, RUNNING, DONE, FAILED }
+
+  private static final TypeReference<List<SignBatchRequest.Item>> ITEMS = new TypeReference<>() { };
+
+  private static final class Job {
+    final String id = UUID.randomUUID().toString();
+    final KeyStore.PrivateKeyEntry key;
+    final SignatureAlgorithm alg;
+    final boolean streaming;
+    final String callbackUrl;
+    final int documents;
+    final Instant submittedAt = Instant.now();
+
+    List<SignBatchRequest.Item> items; // null si está volcado a disco
+    Path spill;
+    volatile Status status = Status.QUEUED;
+    volatile Instant startedAt;
+    volatile Instant finishedAt;
+    volatile int ok;
+    volatile String error;
+    volatile String callbackError;
+
+    Job(List<SignBatchRequest.Item> items, KeyStore.PrivateKeyEntry key, SignatureAlgorithm alg, boolean streaming,
+        String callbackUrl) {
+      this.items = items;
+      this.documents = items.size();
+      this.key = key;
+      this.alg = alg;
+      this.streaming = streaming;
+      this.callbackUrl = callbackUrl;
+    }
+  }
+
+  private final BatchSigner batchSigner;
+  private final ObjectMapper mapper;
+  private final Path dir;
+  private final int memoryQueue;
+  private final int diskQueue;
+  private final int workers;
+  private final Duration resultTtl;
+  private final Set<String> callbackHosts;
+  private final MeterRegistry registry;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final ArrayDeque<Job> pending = new ArrayDeque<>();
+  private int queued;     // encolados o reservando plaza
+  private int inMemory;   // de ellos, con documentos en memoria
+  private boolean closed;
+
+  private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+  private final AtomicInteger running = new AtomicInteger();
+  private final List<Thread> threads = new ArrayList<>();
+  private final ScheduledExecutorService janitor;
+  private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+  private final Timer duration;
+  private final Counter rejected;
+  private volatile double meanJobSeconds = 1.0;
+
+  public SigningJobQueue(BatchSigner batchSigner, ObjectMapper mapper,
+                         @Value("${SIGNER_JOBS_DIR:data/jobs}") String dir,
+                         @Value("${SIGNER_JOBS_MEMORY_QUEUE:64}") int memoryQueue,
+                         @Value("${SIGNER_JOBS_DISK_QUEUE:1024}") int diskQueue,
+                         @Value("${SIGNER_JOBS_WORKERS:2}") int workers,
+                         @Value("${SIGNER_JOBS_RESULT_TTL_SECONDS:3600}") long resultTtlSeconds,
+                         @Value("${SIGNER_JOBS_CALLBACK_HOSTS:localhost,127.0.0.1,::1}") String callbackHosts,
+                         MeterRegistry registry) throws IOException {
+    this.batchSigner = batchSigner;
+    this.mapper = mapper;
+    this.dir = Path.of(dir);
+    this.memoryQueue = Math.max(0, memoryQueue);
+    this.diskQueue = Math.max(0, diskQueue);
+    this.workers = Math.max(1, workers);
+    this.resultTtl = Duration.ofSeconds(resultTtlSeconds);
+    this.callbackHosts = Arrays.stream(callbackHosts.split(","))
+        .map(h -> h.trim().toLowerCase(Locale.ROOT)).filter(h -> !h.isEmpty()).collect(Collectors.toSet());
+    this.registry = registry;
+
+    // Restos de una ejecución anterior: sin la clave en memoria no se pueden terminar
+    Files.createDirectories(this.dir);
+    try (var files = Files.list(this.dir)) {
+      for (Path p : (Iterable<Path>) files::iterator) {
+        String name = p.getFileName().toString();
+        if (name.endsWith(".job.json") || name.endsWith(".result.ndjson")) Files.deleteIfExists(p);
+      }
+    }
+
+    Gauge.builder("signer.jobs.running", running, AtomicInteger::get).register(registry);
+    this.duration = Timer.builder("signer.jobs.duration")
+        .description("Duración de cada trabajo de firma (sin la espera en cola)")
+        .register(registry);
+    this.rejected = Counter.builder("signer.jobs.rejected").register(registry);
+    this.janitor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "signer-job-janitor");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /** Métricas que leen la cola, workers y limpieza: una vez construida, no desde el constructor. */
+  @PostConstruct
+  public void start() {
+    Gauge.builder("signer.jobs.queue", this, q -> q.depth(true)).tag("location", "memory")
+        .description("Trabajos en cola con los documentos en memoria").register(registry);
+    Gauge.builder("signer.jobs.queue", this, q -> q.depth(false)).tag("location", "disk")
+        .description("Trabajos en cola volcados a disco").register(registry);
+    for (int i = 0; i < workers; i++) {
+      Thread t = new Thread(this::workLoop, "signer-job-" + (i + 1));
+      t.setDaemon(true);
+      t.start();
+      threads.add(t);
+    }
+    janitor.scheduleWithFixedDelay(this::expire, 60, 60, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Encola un lote. Los documentos se quedan en memoria o se vuelcan a disco según la ocupación.
+   * @throws SigningRejectedException 429 + Retry-After si la cola está llena
+   */
+  public SignJobStatus submit(List<SignBatchRequest.Item> items, KeyStore.PrivateKeyEntry key, SignatureAlgorithm alg,
+                              boolean streaming, String callbackUrl) throws IOException {
+    if (callbackUrl != null && !callbackUrl.isBlank()) checkCallback(callbackUrl);
+    Job job = new Job(items, key, alg, streaming, callbackUrl == null || callbackUrl.isBlank() ? null : callbackUrl);
+
+    boolean memory;
+    lock.lock();
+    try {
+      if (closed) throw new SigningRejectedException(HttpStatus.SERVICE_UNAVAILABLE, "Cola de firma cerrada", 5);
+      if (queued >= memoryQueue + diskQueue) {
+        rejected.increment();
+        throw new SigningRejectedException(HttpStatus.TOO_MANY_REQUESTS, "Cola de trabajos de firma llena",
+            retryAfterSeconds());
+      }
+      queued++;
+      memory = inMemory < memoryQueue;
+      if (memory) inMemory++;
+    } finally {
+      lock.unlock();
+    }
+
+    if (!memory) {
+      // Volcado fuera del lock: no bloquea a otros clientes ni a los workers
+      Path spill = dir.resolve(job.id + ".job.json");
+      try {
+        mapper.writeValue(spill.toFile(), items);
+      } catch (IOException | RuntimeException ex) {
+        lock.lock();
+        try {
+          queued--;
+        } finally {
+          lock.unlock();
+        }
+        throw ex;
+      }
+      job.spill = spill;
+      job.items = null;
+    }
+
+    jobs.put(job.id, job);
+    lock.lock();
+    try {
+      pending.addLast(job);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+    return status(job);
+  }
+
+  /** Estado del trabajo o null si no existe (o ya caducó). */
+  public SignJobStatus status(String id) {
+    Job job = jobs.get(id);
+    return job == null ? null : status(job);
+  }
+
+  /** Fichero NDJSON del resultado; null si el trabajo no existe o aún no ha terminado. */
+  public Path result(String id) {
+    Job job = jobs.get(id);
+    if (job == null || job.status != Status.DONE) return null;
+    return resultPath(job);
+  }
+
+  /** Cancela un trabajo en cola o borra el resultado de uno terminado. false si está en curso. */
+  public boolean delete(String id) throws IOException {
+    Job job = jobs.get(id);
+    if (job == null) return true;
+    lock.lock();
+    try {
+      if (job.status == Status.RUNNING) return false;
+      if (pending.remove(job)) {
+        queued--;
+        if (job.items != null) inMemory--;
+      }
+    } finally {
+      lock.unlock();
+    }
+    jobs.remove(id);
+    cleanup(job);
+    return true;
+  }
+
+  @PreDestroy
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    janitor.shutdownNow();
+    for (Thread t : threads) t.interrupt();
+  }
+
+  // ---- workers ----
+
+  private void workLoop() {
+    while (true) {
+      Job job;
+      lock.lock();
+      try {
+        while (pending.isEmpty() && !closed) notEmpty.awaitUninterruptibly();
+        if (closed) return;
+        job = pending.pollFirst();
+        queued--;
+        if (job.items != null) inMemory--;
+        job.status = Status.RUNNING;
+      } finally {
+        lock.unlock();
+      }
+      run(job);
+    }
+  }
+
+  private void run(Job job) {
+    running.incrementAndGet();
+    job.startedAt = Instant.now();
+    long t0 = System.nanoTime();
+    try {
+      List<SignBatchRequest.Item> items = job.items;
+      if (items == null) {
+        items = mapper.readValue(job.spill.toFile(), ITEMS);
+        Files.deleteIfExists(job.spill);
+        job.spill = null;
+      }
+      job.items = null;
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(resultPath(job)), 64 * 1024)) {
+        job.ok = batchSigner.sign(items, job.key, job.alg, job.streaming, out);
+      }
+      job.status = Status.DONE;
+    } catch (Exception ex) {
+      job.error = ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName();
+      job.status = Status.FAILED;
+    } finally {
+      long nanos = System.nanoTime() - t0;
+      duration.record(nanos, TimeUnit.NANOSECONDS);
+      meanJobSeconds = meanJobSeconds * 0.8 + (nanos / 1e9) * 0.2;
+      job.finishedAt = Instant.now();
+      running.decrementAndGet();
+    }
+    if (job.callbackUrl != null) callback(job);
+  }
+
+  private void callback(Job job) {
+    try {
+      HttpRequest req = HttpRequest.newBuilder(URI.create(job.callbackUrl))
+          .timeout(Duration.ofSeconds(10))
+          .header("Content-Type", "application/json")
+          .POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(status(job))))
+          .build();
+      HttpResponse<Void> res = http.send(req, HttpResponse.BodyHandlers.discarding());
+      if (res.statusCode() >= 300) job.callbackError = "HTTP " + res.statusCode();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      job.callbackError = "interrumpido";
+    } catch (Exception ex) {
+      job.callbackError = ex.getMessage() != null ? ex.getMessage() : ex.getClass().getSimpleName();
+    }
+  }
+
+  // ---- caducidad ----
+
+  private void expire() {
+    Instant limit = Instant.now().minus(resultTtl);
+    for (Job job : jobs.values()) {
+      if (job.finishedAt != null && job.finishedAt.isBefore(limit) && jobs.remove(job.id, job)) {
+        try {
+          cleanup(job);
+        } catch (IOException ignored) {
+          // se reintentará al arrancar
+        }
+      }
+    }
+  }
+
+  private void cleanup(Job job) throws IOException {
+    if (job.spill != null) Files.deleteIfExists(job.spill);
+    Files.deleteIfExists(resultPath(job));
+  }
+
+  // ---- utilidades ----
+
+  private SignJobStatus status(Job job) {
+    SignJobStatus s = new SignJobStatus();
+    s.setId(job.id);
+    Status st = job.status;
+    s.setStatus(st.name());
+    s.setDocuments(job.documents);
+    s.setSubmittedAt(job.submittedAt.toString());
+    if (job.startedAt != null) s.setStartedAt(job.startedAt.toString());
+    if (st == Status.QUEUED) s.setPosition(position(job));
+    if (st == Status.DONE || st == Status.FAILED) {
+      s.setFinishedAt(job.finishedAt.toString());
+      s.setExpiresAt(job.finishedAt.plus(resultTtl).toString());
+    }
+    if (st == Status.DONE) {
+      s.setOk(job.ok);
+      s.setErrors(job.documents - job.ok);
+      s.setResult("/api/jobs/" + job.id + "/result");
+    }
+    s.setError(job.error);
+    s.setCallbackError(job.callbackError);
+    return s;
+  }
+
+  private Integer position(Job job) {
+    lock.lock();
+    try {
+      int i = 0;
+      for (Job j : pending) {
+        if (j == job) return i;
+        i++;
+      }
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private int depth(boolean memory) {
+    lock.lock();
+    try {
+      int n = 0;
+      for (Job j : pending) if ((j.items != null) == memory) n++;
+      return n;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Lo que tardaría en vaciarse la cola actual con la duración media de un trabajo. */
+  private long retryAfterSeconds() {
+    double rounds = Math.ceil((double) queued / workers);
+    return Math.min(600, (long) Math.ceil(Math.max(1, rounds * meanJobSeconds)));
+  }
+
+  private void checkCallback(String url) {
+    URI uri;
+    try {
+      uri = URI.create(url.trim());
+    } catch (IllegalArgumentException ex) {
+      throw new IllegalStateException("callbackUrl no es una URL válida");
+    }
+    String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+    String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase(Locale.ROOT).replace("[", "").replace("]", "");
+    if (!(scheme.equals("http") || scheme.equals("https")) || !callbackHosts.contains(host)) {
+      throw new IllegalStateException("callbackUrl debe ser http(s) a uno de: " + String.join(", ", callbackHosts));
+    }
+  }
+
+  private Path resultPath(Job job) {
+    return dir.resolve(job.id + ".result.ndjson");
+  }
+}
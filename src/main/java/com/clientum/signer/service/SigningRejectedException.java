@@ -0,0 +1,27 @@
+package com.clientum.signer.service;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/** La firma no se ha ejecutado por saturación; el cliente puede reintentar tras Retry-After. */
+public class SigningRejectedException extends ResponseStatusException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long retryAfterSeconds;
+
+  public SigningRejectedException(HttpStatus status, String reason, long retryAfterSeconds) {
+    super(status, reason);
+    this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+  }
+
+  public long getRetryAfterSeconds() { return retryAfterSeconds; }
+
+  @Override
+  public HttpHeaders getHeaders() {
+    HttpHeaders h = new HttpHeaders();
+    h.set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+    return h;
+  }
+}
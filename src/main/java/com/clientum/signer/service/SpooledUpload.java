@@ -0,0 +1,125 @@
+package com.clientum.signer.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Parte multipart vista como ByteBuffer sin copiarla al heap.
+ *
+ * Por debajo de {@code mapThreshold} la parte ya está en memoria (file-size-threshold del
+ * resolver) y se envuelve tal cual. Por encima, Tomcat la ha volcado a disco: se mueve (rename,
+ * sin copiar) a un temporal propio en el mismo directorio y se mapea en sólo lectura con
+ * {@link FileChannel#map}. {@link #close} desmapea y borra el fichero en el momento, sin esperar
+ * al GC; por eso el buffer (y cualquier vista, p. ej. un {@link StreamingXmlSigner.Prepared})
+ * no debe usarse después. Si el desmapeo no está disponible (sin {@code sun.misc.Unsafe} o
+ * porque falla) el mapeo queda para el GC, se cuenta en {@code signer.upload.unmap.fallback}
+ * y el fichero se borra igual.
+ */
+public final class SpooledUpload implements AutoCloseable {
+
+  private static final Method INVOKE_CLEANER;
+  private static final Object UNSAFE;
+  private static final Counter UNMAP_FALLBACK = Counter.builder("signer.upload.unmap.fallback")
+      .description("Ficheros subidos cuyo mapeo se deja al GC por no poder desmapearlo al cerrar")
+      .register(Metrics.globalRegistry);
+
+  static {
+    Method m = null;
+    Object u = null;
+    try {
+      Class<?> c = Class.forName("sun.misc.Unsafe");
+      Field f = c.getDeclaredField("theUnsafe");
+      f.setAccessible(true);
+      u = f.get(null);
+      m = c.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (Throwable ignored) {
+      // Sin jdk.unsupported el mapeo se libera con el GC; el fichero se borra igualmente
+    }
+    INVOKE_CLEANER = m;
+    UNSAFE = u;
+  }
+
+  private final ByteBuffer buffer;
+  private final Path file;
+  private boolean closed;
+
+  private SpooledUpload(ByteBuffer buffer, Path file) {
+    this.buffer = buffer;
+    this.file = file;
+  }
+
+  public static SpooledUpload of(MultipartFile part, long mapThreshold, Path dir) throws IOException {
+    long size = part.getSize();
+    if (size < mapThreshold) return new SpooledUpload(ByteBuffer.wrap(part.getBytes()), null);
+    if (size > Integer.MAX_VALUE) throw new IllegalStateException("Fichero demasiado grande: " + size + " bytes");
+
+    Path tmp = Files.createTempFile(dir, "signer-upload-", ".xml");
+    try {
+      // transferTo(File) y no (Path): con Tomcat es Part.write, que mueve el fichero del spool
+      part.transferTo(tmp.toFile());
+      try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ)) {
+        return new SpooledUpload(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()), tmp);
+      }
+    } catch (IOException | RuntimeException ex) {
+      Files.deleteIfExists(tmp);
+      throw ex;
+    }
+  }
+
+  /** Vista del contenido (posición 0, límite = tamaño); mapeada en sólo lectura si {@link #mapped}. */
+  public ByteBuffer buffer() {
+    return buffer.duplicate();
+  }
+
+  public InputStream inputStream() {
+    return new StreamingXmlSigner.ByteBufferInputStream(buffer.duplicate());
+  }
+
+  public int size() {
+    return buffer.limit();
+  }
+
+  public boolean mapped() {
+    return file != null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed || file == null) return;
+    closed = true;
+    if (buffer instanceof MappedByteBuffer) {
+      try {
+        unmap();
+      } finally {
+        Files.deleteIfExists(file);
+      }
+    } else {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private void unmap() {
+    if (INVOKE_CLEANER == null) {
+      UNMAP_FALLBACK.increment();
+      return;
+    }
+    try {
+      INVOKE_CLEANER.invoke(UNSAFE, buffer);
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      // queda para el GC
+      UNMAP_FALLBACK.increment();
+    }
+  }
+}
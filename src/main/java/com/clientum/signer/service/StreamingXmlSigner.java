@@ -0,0 +1,329 @@
+package com.clientum.signer.service;
+
+import com.clientum.signer.crypto.KeyInfoTemplates;
+import com.clientum.signer.crypto.SignatureAlgorithm;
+import com.clientum.signer.crypto.SignatureEngines;
+import com.clientum.signer.crypto.SigningMetrics;
+import com.clientum.signer.crypto.XmlPools;
+import org.apache.xml.security.utils.XMLUtils;
+
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Firma enveloped en streaming, sin DOM.
+ *
+ * 1) Una pasada StAX calcula el digest de la referencia URI="" (Enveloped + exc-c14n).
+ * 2) Se escriben los bytes originales tal cual y se inserta {@code <ds:Signature>} justo
+ *    antes de la etiqueta de cierre del elemento raíz. {@link #prepare} hace el paso 1 y la
+ *    firma; {@link Prepared#writeTo} sólo el 2.
+ *
+ * El elemento Signature es byte a byte el que genera {@link XmlSigner} (Santuario) para el
+ * mismo documento, la misma clave y el mismo {@link SignatureAlgorithm}: mismos algoritmos,
+ * misma disposición de saltos de línea, mismo KeyInfo (la plantilla de {@link KeyInfoTemplates})
+ * y, con RSA PKCS#1 v1.5, que es determinista, mismo SignatureValue. La diferencia es que el
+ * resto del documento no se re-serializa. La memoria usada es independiente del tamaño del
+ * documento.
+ *
+ * Limitaciones: claves con certificado, codificaciones compatibles con ASCII (UTF-8,
+ * ISO-8859-1) y documentos sin DOCTYPE.
+ */
+public final class StreamingXmlSigner {
+
+    static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+    static final String ALG_C14N = "http://www.w3.org/TR/2001/REC-xml-c14n-20010315";
+    static final String ALG_ENVELOPED = "http://www.w3.org/2000/09/xmldsig#enveloped-signature";
+    static final String ALG_EXC_C14N = "http://www.w3.org/2001/10/xml-exc-c14n#";
+    static final String ALG_SHA256 = "http://www.w3.org/2001/04/xmlenc#sha256";
+
+    private static final Set<String> ASCII_COMPATIBLE = Set.of("UTF-8", "UTF8", "US-ASCII", "ASCII", "ISO-8859-1", "LATIN1");
+
+    private StreamingXmlSigner() { }
+
+    public static void sign(byte[] xml, KeyStore.PrivateKeyEntry entry, OutputStream out) throws Exception {
+        sign(ByteBuffer.wrap(xml), entry, out);
+    }
+
+    /** Firma {@code xml} (no se modifica su posición) escribiendo el documento firmado en {@code out}. */
+    public static void sign(ByteBuffer xml, KeyStore.PrivateKeyEntry entry, OutputStream out) throws Exception {
+        prepare(xml, entry).writeTo(out);
+    }
+
+    public static Prepared prepare(ByteBuffer xml, KeyStore.PrivateKeyEntry entry) throws Exception {
+        return prepare(xml, entry, SignatureAlgorithm.forKey(entry.getPrivateKey()));
+    }
+
+    /**
+     * Calcula la firma (todo el trabajo de CPU) sin escribir nada. El resultado guarda una vista
+     * de {@code xml} y el elemento Signature ya serializado; {@link Prepared#writeTo} sólo copia
+     * bytes, así que puede hacerse fuera del bulkhead de CPU aunque el cliente lea despacio.
+     */
+    public static Prepared prepare(ByteBuffer xml, KeyStore.PrivateKeyEntry entry, SignatureAlgorithm alg)
+            throws Exception {
+        if (!(entry.getCertificate() instanceof X509Certificate cert)) {
+            throw new IllegalStateException("El modo streaming necesita el certificado de la clave");
+        }
+        ByteBuffer doc = xml.slice();
+
+        // 1) Digest de la referencia en una pasada
+        long t0 = System.nanoTime();
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        ExclusiveC14nWriter c14n;
+        Charset charset;
+        XMLStreamReader reader = XmlPools.inputFactory().createXMLStreamReader(new ByteBufferInputStream(doc.duplicate()));
+        try {
+            charset = charset(reader);
+            Writer w = new OutputStreamWriter(new DigestOutputStream(OutputStream.nullOutputStream(), md), StandardCharsets.UTF_8);
+            c14n = new ExclusiveC14nWriter(w);
+            c14n.write(reader);
+        } finally {
+            reader.close();
+        }
+        String digest = Base64.getEncoder().encodeToString(md.digest());
+        SigningMetrics.record(SigningMetrics.Phase.CANONICALIZE, t0);
+        t0 = System.nanoTime();
+
+        // 2) SignedInfo canónico (C14N inclusiva en el contexto del elemento raíz) y firma
+        String nl = XMLUtils.ignoreLineBreaks() ? "" : "\n";
+        byte[] sigValue = SignatureEngines.sign(entry.getPrivateKey(), alg,
+                signedInfo(alg, digest, nl, c14n).getBytes(StandardCharsets.UTF_8));
+
+        // Si el raíz ya declara xmlns:ds el serializador del DOM omite la declaración redundante
+        boolean declareDs = !DSIG_NS.equals(c14n.rootNamespaces().get("ds"));
+        String signature = signatureElement(alg, digest, sigValue, cert, nl, declareDs);
+        SigningMetrics.record(SigningMetrics.Phase.SIGN, t0);
+
+        RootEnd end = findRootEnd(doc, c14n.rootQName());
+        byte[] closeTag = end.selfClosing ? ("</" + c14n.rootQName() + ">").getBytes(charset) : null;
+        return new Prepared(doc, end, signature.getBytes(StandardCharsets.US_ASCII), closeTag);
+    }
+
+    /** Documento firmado pendiente de escribir: bytes originales + Signature antes del cierre de la raíz. */
+    public static final class Prepared {
+        private final ByteBuffer doc;
+        private final RootEnd end;
+        private final byte[] signature;
+        private final byte[] closeTag;
+
+        private Prepared(ByteBuffer doc, RootEnd end, byte[] signature, byte[] closeTag) {
+            this.doc = doc;
+            this.end = end;
+            this.signature = signature;
+            this.closeTag = closeTag;
+        }
+
+        /** Tamaño exacto en bytes del documento firmado (para Content-Length). */
+        public long length() {
+            long n = (long) end.insertAt + signature.length + (doc.limit() - end.resumeAt);
+            return closeTag != null ? n + 1 + closeTag.length : n;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            long t0 = System.nanoTime();
+            write(out, doc, 0, end.insertAt);
+            if (closeTag != null) {
+                out.write('>');
+                out.write(signature);
+                out.write(closeTag);
+            } else {
+                out.write(signature);
+            }
+            write(out, doc, end.resumeAt, doc.limit());
+            out.flush();
+            SigningMetrics.record(SigningMetrics.Phase.SERIALIZE, t0);
+        }
+    }
+
+    private static Charset charset(XMLStreamReader reader) {
+        String enc = reader.getCharacterEncodingScheme();
+        if (enc == null) enc = reader.getEncoding();
+        if (enc == null) return StandardCharsets.UTF_8;
+        if (!ASCII_COMPATIBLE.contains(enc.toUpperCase())) {
+            throw new IllegalStateException("Codificación no soportada en modo streaming: " + enc);
+        }
+        return Charset.forName(enc);
+    }
+
+    // ---- SignedInfo / Signature ----
+
+    private static String signedInfo(SignatureAlgorithm alg, String digest, String nl, ExclusiveC14nWriter root) {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("<ds:SignedInfo");
+        // Namespaces en ámbito: los del raíz más xmlns:ds del propio Signature
+        Map<String, String> ns = new TreeMap<>(root.rootNamespaces());
+        ns.put("ds", DSIG_NS);
+        for (Map.Entry<String, String> e : ns.entrySet()) {
+            if (e.getKey().isEmpty()) {
+                if (!e.getValue().isEmpty()) sb.append(" xmlns=\"").append(attr(e.getValue())).append('"');
+            } else {
+                sb.append(" xmlns:").append(e.getKey()).append("=\"").append(attr(e.getValue())).append('"');
+            }
+        }
+        // C14N 1.0 hereda los atributos xml:* de los ancestros
+        for (Map.Entry<String, String> e : root.rootXmlAttributes().entrySet()) {
+            sb.append(" xml:").append(e.getKey()).append("=\"").append(attr(e.getValue())).append('"');
+        }
+        sb.append('>').append(nl);
+        signedInfoContent(sb, alg, digest, nl, true);
+        sb.append("</ds:SignedInfo>");
+        return sb.toString();
+    }
+
+    private static void signedInfoContent(StringBuilder sb, SignatureAlgorithm alg, String digest, String nl,
+                                          boolean canonical) {
+        empty(sb, "ds:CanonicalizationMethod", ALG_C14N, canonical).append(nl);
+        empty(sb, "ds:SignatureMethod", alg.uri(), canonical).append(nl);
+        sb.append("<ds:Reference URI=\"\">").append(nl);
+        sb.append("<ds:Transforms>").append(nl);
+        empty(sb, "ds:Transform", ALG_ENVELOPED, canonical).append(nl);
+        empty(sb, "ds:Transform", ALG_EXC_C14N, canonical).append(nl);
+        sb.append("</ds:Transforms>").append(nl);
+        empty(sb, "ds:DigestMethod", ALG_SHA256, canonical).append(nl);
+        sb.append("<ds:DigestValue>").append(digest).append("</ds:DigestValue>").append(nl);
+        sb.append("</ds:Reference>").append(nl);
+    }
+
+    private static StringBuilder empty(StringBuilder sb, String name, String algorithm, boolean canonical) {
+        sb.append('<').append(name).append(" Algorithm=\"").append(algorithm).append('"');
+        return canonical ? sb.append("></").append(name).append('>') : sb.append("/>");
+    }
+
+    private static String signatureElement(SignatureAlgorithm alg, String digest, byte[] sigValue,
+                                           X509Certificate cert, String nl, boolean declareDs) throws Exception {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append(declareDs ? "<ds:Signature xmlns:ds=\"" + DSIG_NS + "\">" : "<ds:Signature>").append(nl);
+        sb.append("<ds:SignedInfo>").append(nl);
+        signedInfoContent(sb, alg, digest, nl, false);
+        sb.append("</ds:SignedInfo>").append(nl);
+        sb.append("<ds:SignatureValue>").append(nl).append(base64(sigValue, nl)).append(nl)
+          .append("</ds:SignatureValue>").append(nl);
+        // X509Data + KeyValue (RSA o EC) ya serializados por certificado
+        sb.append("<ds:KeyInfo>").append(KeyInfoTemplates.santuario(List.of(cert), true).xml())
+          .append("</ds:KeyInfo>").append(nl);
+        sb.append("</ds:Signature>");
+        return sb.toString();
+    }
+
+    /** Base64 como lo escribe Santuario: MIME de 76 columnas con CRLF ("\r" serializado como &#13;). */
+    private static String base64(byte[] data, String nl) {
+        if (nl.isEmpty()) return Base64.getEncoder().encodeToString(data);
+        return Base64.getMimeEncoder().encodeToString(data).replace("\r\n", "&#13;\n");
+    }
+
+    private static String attr(String v) {
+        return v.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;")
+                .replace("\t", "&#x9;").replace("\n", "&#xA;").replace("\r", "&#xD;");
+    }
+
+    // ---- Localización del cierre del elemento raíz ----
+
+    private record RootEnd(int insertAt, int resumeAt, boolean selfClosing) { }
+
+    private static RootEnd findRootEnd(ByteBuffer doc, String rootQName) {
+        int end = doc.limit();
+        // Saltar espacios, comentarios y PIs posteriores al elemento raíz
+        while (true) {
+            while (end > 0 && isSpace(doc.get(end - 1))) end--;
+            if (endsWith(doc, end, "-->")) {
+                end = lastIndexOf(doc, end - 3, "<!--");
+            } else if (endsWith(doc, end, "?>")) {
+                end = lastIndexOf(doc, end - 2, "<?");
+            } else {
+                break;
+            }
+            if (end < 0) throw new IllegalStateException("No se encontró el cierre del elemento raíz");
+        }
+        if (end <= 0 || doc.get(end - 1) != '>') throw new IllegalStateException("No se encontró el cierre del elemento raíz");
+
+        int lt = lastIndexOf(doc, end - 1, "<");
+        if (lt < 0) throw new IllegalStateException("No se encontró el cierre del elemento raíz");
+        if (doc.get(lt + 1) == '/') {
+            return new RootEnd(lt, lt, false);
+        }
+        // Raíz vacía <raiz .../>: se reescribe como <raiz ...>Signature</raiz>
+        if (doc.get(end - 2) != '/' || !startsWith(doc, lt + 1, rootQName)) {
+            throw new IllegalStateException("No se encontró el cierre del elemento raíz");
+        }
+        return new RootEnd(end - 2, end, true);
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static boolean endsWith(ByteBuffer doc, int end, String s) {
+        return end >= s.length() && startsWith(doc, end - s.length(), s);
+    }
+
+    private static boolean startsWith(ByteBuffer doc, int at, String s) {
+        if (at < 0 || at + s.length() > doc.limit()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (doc.get(at + i) != (byte) s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /** Última aparición de {@code s} que empiece antes de {@code before}. */
+    private static int lastIndexOf(ByteBuffer doc, int before, String s) {
+        for (int i = before - 1; i >= 0; i--) {
+            if (startsWith(doc, i, s)) return i;
+        }
+        return -1;
+    }
+
+    private static void write(OutputStream out, ByteBuffer doc, int from, int to) throws IOException {
+        if (doc.hasArray()) {
+            out.write(doc.array(), doc.arrayOffset() + from, to - from);
+            return;
+        }
+        byte[] chunk = new byte[64 * 1024];
+        ByteBuffer src = doc.duplicate().position(from).limit(to);
+        while (src.hasRemaining()) {
+            int n = Math.min(chunk.length, src.remaining());
+            src.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.clientum.signer.service;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Datos precalculados de las SignedProperties XAdES: la política de firma (identificador y
+ * hash) y el SigningCertificate de cada certificado (digest, emisor y número de serie).
+ *
+ * Ambos se calculan una vez y se reutilizan, de modo que por documento sólo quedan el digest
+ * del documento, la hora de firma y la operación RSA. Son valores inmutables: el DOM se
+ * construye por petición a partir de ellos (un Document compartido no es thread-safe).
+ *
+ * El hash de la política se toma, por este orden, de la petición, de las políticas conocidas
+ * (Facturae 3.1) o descargando una vez {@code policyUrl}. La descarga sólo va a hosts de
+ * SIGNER_XADES_POLICY_HOSTS, sin redirecciones y hasta SIGNER_XADES_POLICY_MAX_BYTES; el
+ * resultado se cachea por policyId (la instancia compartida la instala config.XadesConfig).
+ */
+public final class XadesTemplates {
+
+  public static final String XADES_NS = "http://uri.etsi.org/01903/v1.3.2#";
+  public static final String SIGNED_PROPERTIES_TYPE = "http://uri.etsi.org/01903#SignedProperties";
+
+  private static final String DSIG_NS = "http://www.w3.org/2000/09/xmldsig#";
+  private static final String XMLNS = "http://www.w3.org/2000/xmlns/";
+
+  public static final String FACTURAE_31_POLICY =
+      "http://www.facturae.es/politica_de_firma_formato_facturae/politica_de_firma_formato_facturae_v3_1.pdf";
+
+  private static final int MAX_ENTRIES = 1024;
+  private static final int MAX_POLICIES = 64;
+
+  private static volatile XadesTemplates shared =
+      new XadesTemplates("www.facturae.es,www.facturae.gob.es", 2L * 1024 * 1024);
+
+  public static XadesTemplates shared() {
+    return shared;
+  }
+
+  /** Sustituye la instancia compartida (al arrancar, con la configuración de Spring). */
+  public static void install(XadesTemplates templates) {
+    shared = templates;
+  }
+
+  /** SignaturePolicyIdentifier ya resuelto. {@code identifier} es una URL o un "urn:oid:". */
+  public record Policy(String identifier, boolean oid, String digestMethod, String digestValue, String url) { }
+
+  /** Cert/CertDigest + IssuerSerial del SigningCertificate. */
+  public record SigningCertificate(String digestMethod, String digestValue, String issuerName, String serialNumber) { }
+
+  // Sólo políticas descargadas, por (policyId, url, algoritmo) (LRU): el mismo id con otra URL u
+  // otro digest es otra descarga. Las de la petición o conocidas no cuestan nada
+  private record PolicyKey(String id, String url, String digestMethod) { }
+
+  private final Map<PolicyKey, Policy> policies = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<PolicyKey, Policy> eldest) {
+      return size() > MAX_POLICIES;
+    }
+  };
+  private final Map<X509Certificate, SigningCertificate> certificates = new LinkedHashMap<>(64, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<X509Certificate, SigningCertificate> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+  private final Set<String> policyHosts;
+  private final long policyMaxBytes;
+  private final HttpClient http = HttpClient.newBuilder()
+      .connectTimeout(Duration.ofSeconds(10))
+      .followRedirects(HttpClient.Redirect.NEVER)
+      .build();
+
+  /**
+   * @param policyHosts hosts (separados por comas) desde los que se puede descargar una política
+   * @param policyMaxBytes tamaño máximo de la política descargada
+   */
+  public XadesTemplates(String policyHosts, long policyMaxBytes) {
+    this.policyHosts = Arrays.stream(policyHosts.split(","))
+        .map(h -> h.trim().toLowerCase(Locale.ROOT)).filter(h -> !h.isEmpty()).collect(Collectors.toSet());
+    this.policyMaxBytes = Math.max(0, policyMaxBytes);
+  }
+
+  /**
+   * Política para la petición o null si no se indica {@code policyId} (Baseline-B sin política).
+   * @throws IllegalStateException si no hay forma de obtener el hash o la URL no está permitida
+   */
+  public Policy policy(String policyId, String hashBase64, String digestAlgorithm, String policyUrl) throws Exception {
+    if (policyId == null || policyId.isBlank()) return null;
+    String id = policyId.trim();
+    String alg = digestAlgorithm == null || digestAlgorithm.isBlank() ? "SHA256" : digestAlgorithm;
+    boolean oid = id.matches("\\d+(\\.\\d+)+");
+    String identifier = oid ? "urn:oid:" + id : id;
+    String url = policyUrl != null && !policyUrl.isBlank() ? policyUrl.trim() : (oid ? null : id);
+
+    if (hashBase64 != null && !hashBase64.isBlank()) {
+      byte[] hash = Base64.getMimeDecoder().decode(hashBase64.trim());
+      return new Policy(identifier, oid, digestUri(alg), Base64.getEncoder().encodeToString(hash), url);
+    }
+    if (FACTURAE_31_POLICY.equals(id)) {
+      // Hash SHA-1 publicado para la política Facturae v3.1
+      return new Policy(identifier, false, digestUri("SHA1"), "Ohixl6upD6av8N7pEvDABhEL6hM=", url);
+    }
+    if (url == null || !url.startsWith("http")) {
+      throw new IllegalStateException("Falta policyHashBase64 (o policyUrl para calcularlo) para la política " + id);
+    }
+
+    PolicyKey key = new PolicyKey(id, url, digestUri(alg));
+    Policy cached;
+    synchronized (policies) {
+      cached = policies.get(key);
+    }
+    if (cached != null) return cached;
+
+    byte[] body = download(url);
+    byte[] hash = MessageDigest.getInstance(jcaName(alg)).digest(body);
+    Policy p = new Policy(identifier, oid, key.digestMethod(), Base64.getEncoder().encodeToString(hash), url);
+    synchronized (policies) {
+      policies.put(key, p);
+    }
+    return p;
+  }
+
+  public SigningCertificate signingCertificate(X509Certificate cert) throws Exception {
+    SigningCertificate cached;
+    synchronized (certificates) {
+      cached = certificates.get(cert);
+    }
+    if (cached != null) return cached;
+
+    SigningCertificate sc = new SigningCertificate(
+        digestUri("SHA256"),
+        Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(cert.getEncoded())),
+        cert.getIssuerX500Principal().getName(),
+        cert.getSerialNumber().toString());
+    synchronized (certificates) {
+      certificates.putIfAbsent(cert, sc);
+    }
+    return sc;
+  }
+
+  private byte[] download(String url) throws Exception {
+    URI uri;
+    try {
+      uri = URI.create(url);
+    } catch (IllegalArgumentException ex) {
+      throw new IllegalStateException("policyUrl no es una URL válida");
+    }
+    String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase(Locale.ROOT);
+    String host = uri.getHost() == null ? "" : uri.getHost().toLowerCase(Locale.ROOT);
+    if (!(scheme.equals("http") || scheme.equals("https")) || !policyHosts.contains(host)) {
+      throw new IllegalStateException("policyUrl debe ser http(s) a uno de: " + String.join(", ", policyHosts)
+          + " (o envía policyHashBase64)");
+    }
+    HttpRequest req = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).GET().build();
+    HttpResponse<InputStream> res = http.send(req, HttpResponse.BodyHandlers.ofInputStream());
+    try (InputStream in = res.body()) {
+      if (res.statusCode() != 200) {
+        throw new IllegalStateException("No se pudo descargar la política " + url + " (HTTP " + res.statusCode() + ")");
+      }
+      if (res.headers().firstValueAsLong("Content-Length").orElse(0L) > policyMaxBytes) {
+        throw new IllegalStateException("La política " + url + " supera " + policyMaxBytes + " bytes");
+      }
+      // Sin fiarse de Content-Length: se lee como mucho un byte más del límite
+      byte[] body = in.readNBytes((int) Math.min(policyMaxBytes + 1, Integer.MAX_VALUE - 8));
+      if (body.length > policyMaxBytes) {
+        throw new IllegalStateException("La política " + url + " supera " + policyMaxBytes + " bytes");
+      }
+      return body;
+    }
+  }
+
+  /**
+   * ds:Object de contenido: QualifyingProperties con SignedProperties (Id {@code propsId},
+   * ya registrado como ID) que firman hora, certificado, política y el formato de cada
+   * referencia de {@code dataObjectRefs}. {@code dsPrefix} es el prefijo del Signature.
+   */
+  public static Element qualifyingProperties(Document doc, String dsPrefix, String signatureId, String propsId,
+                                             List<String> dataObjectRefs, Policy policy, SigningCertificate sc) {
+    String ds = dsPrefix == null || dsPrefix.isEmpty() ? "" : dsPrefix + ":";
+
+    Element qp = doc.createElementNS(XADES_NS, "xades:QualifyingProperties");
+    qp.setAttributeNS(XMLNS, "xmlns:xades", XADES_NS);
+    qp.setAttributeNS(null, "Target", "#" + signatureId);
+    Element props = child(qp, XADES_NS, "xades:SignedProperties");
+    props.setAttributeNS(null, "Id", propsId);
+    props.setIdAttributeNS(null, "Id", true);
+
+    Element ssp = child(props, XADES_NS, "xades:SignedSignatureProperties");
+    child(ssp, XADES_NS, "xades:SigningTime")
+        .setTextContent(OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS).toString());
+
+    Element cert = child(child(ssp, XADES_NS, "xades:SigningCertificate"), XADES_NS, "xades:Cert");
+    Element certDigest = child(cert, XADES_NS, "xades:CertDigest");
+    child(certDigest, DSIG_NS, ds + "DigestMethod").setAttributeNS(null, "Algorithm", sc.digestMethod());
+    child(certDigest, DSIG_NS, ds + "DigestValue").setTextContent(sc.digestValue());
+    Element issuerSerial = child(cert, XADES_NS, "xades:IssuerSerial");
+    child(issuerSerial, DSIG_NS, ds + "X509IssuerName").setTextContent(sc.issuerName());
+    child(issuerSerial, DSIG_NS, ds + "X509SerialNumber").setTextContent(sc.serialNumber());
+
+    if (policy != null) {
+      Element spId = child(child(ssp, XADES_NS, "xades:SignaturePolicyIdentifier"), XADES_NS, "xades:SignaturePolicyId");
+      Element identifier = child(child(spId, XADES_NS, "xades:SigPolicyId"), XADES_NS, "xades:Identifier");
+      if (policy.oid()) identifier.setAttributeNS(null, "Qualifier", "OIDAsURN");
+      identifier.setTextContent(policy.identifier());
+      Element hash = child(spId, XADES_NS, "xades:SigPolicyHash");
+      child(hash, DSIG_NS, ds + "DigestMethod").setAttributeNS(null, "Algorithm", policy.digestMethod());
+      child(hash, DSIG_NS, ds + "DigestValue").setTextContent(policy.digestValue());
+      if (policy.url() != null) {
+        Element q = child(child(spId, XADES_NS, "xades:SigPolicyQualifiers"), XADES_NS, "xades:SigPolicyQualifier");
+        child(q, XADES_NS, "xades:SPURI").setTextContent(policy.url());
+      }
+    }
+
+    Element sdop = child(props, XADES_NS, "xades:SignedDataObjectProperties");
+    for (String ref : dataObjectRefs) {
+      Element dof = child(sdop, XADES_NS, "xades:DataObjectFormat");
+      dof.setAttributeNS(null, "ObjectReference", "#" + ref);
+      child(dof, XADES_NS, "xades:MimeType").setTextContent("text/xml");
+    }
+    return qp;
+  }
+
+  private static Element child(Element parent, String ns, String qname) {
+    Element el = parent.getOwnerDocument().createElementNS(ns, qname);
+    parent.appendChild(el);
+    return el;
+  }
+
+  static String digestUri(String algorithm) {
+    return switch (normalize(algorithm)) {
+      case "SHA1" -> "http://www.w3.org/2000/09/xmldsig#sha1";
+      case "SHA256" -> "http://www.w3.org/2001/04/xmlenc#sha256";
+      case "SHA384" -> "http://www.w3.org/2001/04/xmldsig-more#sha384";
+      case "SHA512" -> "http://www.w3.org/2001/04/xmlenc#sha512";
+      default -> throw new IllegalArgumentException("Algoritmo de hash de política no soportado: " + algorithm);
+    };
+  }
+
+  private static String jcaName(String algorithm) {
+    String n = normalize(algorithm);
+    return "SHA-" + n.substring(3);
+  }
+
+  private static String normalize(String algorithm) {
+    return algorithm.trim().toUpperCase(Locale.ROOT).replace("-", "").replace("_", "");
+  }
+}
@@ -1,7 +1,16 @@
 package com.clientum.signer.service;
 
+import com.clientum.signer.api.dto.HashSignRequest;
+import com.clientum.signer.crypto.KeyInfoTemplates;
+import com.clientum.signer.crypto.KeyMaterialCache;
+import com.clientum.signer.crypto.Pkcs12Utils;
+import com.clientum.signer.crypto.SignatureAlgorithm;
+import com.clientum.signer.crypto.SignatureProviders;
+import com.clientum.signer.crypto.SigningMetrics;
+import com.clientum.signer.crypto.XmlPools;
 import org.apache.xml.security.Init;
 import org.apache.xml.security.algorithms.MessageDigestAlgorithm;
+import org.apache.xml.security.signature.ObjectContainer;
 import org.apache.xml.security.signature.XMLSignature;
 import org.apache.xml.security.transforms.Transforms;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,21 +18,19 @@ import org.springframework.stereotype.Service;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
-import java.security.PrivateKey;
-import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.Base64;
-import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 
 @Service
 public class XmlSigner {
@@ -35,6 +42,9 @@ public class XmlSigner {
   @Autowired(required = false)
   private KeyStore.PrivateKeyEntry signerKeyEntry; // keystore global opcional
 
+  @Autowired(required = false)
+  private SigningBulkhead bulkhead; // limita la CPU de firma (null fuera de Spring)
+
   /** Usa keystore global si está configurado. */
   public String signXml(String xml) throws Exception {
     if (signerKeyEntry == null) {
@@ -43,38 +53,130 @@ public class XmlSigner {
     return signXmlWithKey(xml, signerKeyEntry);
   }
 
-  /** Multiusuario: firma con el .p12 que llega por petición. */
+  /** Multiusuario: firma con el .p12 que llega por petición (decodificado una vez y cacheado). */
   public String signXmlWithP12(String xml, byte[] p12Bytes, String password) throws Exception {
     char[] sp = password == null ? new char[0] : password.toCharArray();
-    KeyStore ks = KeyStore.getInstance("PKCS12");
-    ks.load(new ByteArrayInputStream(p12Bytes), sp);
-
-    String alias = null;
-    for (Enumeration<String> e = ks.aliases(); e.hasMoreElements();) {
-      String a = e.nextElement();
-      if (ks.isKeyEntry(a)) { alias = a; break; }
-      if (alias == null) alias = a;
+    KeyStore.PrivateKeyEntry entry = Pkcs12Utils.loadEntry(p12Bytes, sp, null, sp);
+    return signXmlWithKey(xml, entry);
+  }
+
+  /**
+   * Clave para firmar: la del .p12 si viene (cacheada), si no la del keystore global.
+   * Permite decodificar una sola vez y firmar muchos documentos (ver BatchSigner).
+   */
+  public KeyStore.PrivateKeyEntry resolveKey(byte[] p12Bytes, String password) throws Exception {
+    if (p12Bytes != null && p12Bytes.length > 0) {
+      char[] sp = password == null ? new char[0] : password.toCharArray();
+      return Pkcs12Utils.loadEntry(p12Bytes, sp, null, sp);
     }
-    if (alias == null) throw new IllegalStateException("El PKCS12 no contiene alias");
+    if (signerKeyEntry == null) {
+      throw new IllegalStateException("No hay keystore global configurado. Usa signXmlWithP12 enviando p12Base64 y p12Password.");
+    }
+    return signerKeyEntry;
+  }
+
+  /**
+   * Referencia para que {@code tenant} vuelva a usar la clave de este .p12 sin reenviarlo (ver
+   * {@link #resolveKeyReference}); null si la clave no ha quedado en caché.
+   */
+  public String keyReference(byte[] p12Bytes, String password, String tenant) throws Exception {
+    char[] sp = password == null ? new char[0] : password.toCharArray();
+    return KeyMaterialCache.shared().reference(p12Bytes, sp, null, sp, tenant);
+  }
 
-    PrivateKey pk = (PrivateKey) ks.getKey(alias, sp);
-    Certificate[] chain = ks.getCertificateChain(alias);
-    if ((chain == null || chain.length == 0) && ks.getCertificate(alias) != null) {
-      chain = new Certificate[]{ ks.getCertificate(alias) };
+  /** Clave cacheada por referencia del mismo tenant; si ha caducado el cliente debe reenviar el .p12. */
+  public KeyStore.PrivateKeyEntry resolveKeyReference(String reference, String tenant) {
+    KeyStore.PrivateKeyEntry entry = KeyMaterialCache.shared().byReference(reference.trim(), tenant);
+    if (entry == null) {
+      throw new IllegalStateException("Referencia de clave desconocida o caducada: reenvía el .p12");
     }
+    return entry;
+  }
+
+  /**
+   * Firma en streaming sin escribir todavía (sólo la parte de CPU, dentro del bulkhead).
+   * El llamador escribe el resultado con {@link StreamingXmlSigner.Prepared#writeTo}.
+   */
+  public StreamingXmlSigner.Prepared prepareStreaming(ByteBuffer xml, KeyStore.PrivateKeyEntry entry,
+                                                      SignatureAlgorithm alg) throws Exception {
+    return withCpu(() -> StreamingXmlSigner.prepare(xml, entry, alg));
+  }
 
-    KeyStore.PrivateKeyEntry entry = new KeyStore.PrivateKeyEntry(pk, chain);
+  /** Firma con una clave ya resuelta ({@link #resolveKey}). */
+  public String signXml(String xml, KeyStore.PrivateKeyEntry entry) throws Exception {
     return signXmlWithKey(xml, entry);
   }
 
+  /** Como {@link #signXml(String, KeyStore.PrivateKeyEntry)} con el algoritmo negociado ({@link SignatureAlgorithm}). */
+  public String signXml(String xml, KeyStore.PrivateKeyEntry entry, SignatureAlgorithm alg) throws Exception {
+    return withCpu(() -> signDom(xml, entry, alg, null));
+  }
+
+  /** Firma en streaming (sin DOM) con el keystore global. Ver {@link StreamingXmlSigner}. */
+  public void signXmlStreaming(ByteBuffer xml, OutputStream out) throws Exception {
+    signXmlStreaming(xml, resolveKey(null, null), out);
+  }
+
+  /** Firma en streaming (sin DOM) con el .p12 de la petición. */
+  public void signXmlStreamingWithP12(ByteBuffer xml, byte[] p12Bytes, String password, OutputStream out) throws Exception {
+    signXmlStreaming(xml, resolveKey(p12Bytes, password), out);
+  }
+
+  /** Firma en streaming con una clave ya resuelta. */
+  public void signXmlStreaming(ByteBuffer xml, KeyStore.PrivateKeyEntry entry, OutputStream out) throws Exception {
+    signXmlStreaming(xml, entry, SignatureAlgorithm.forKey(entry.getPrivateKey()), out);
+  }
+
+  public void signXmlStreaming(ByteBuffer xml, KeyStore.PrivateKeyEntry entry, SignatureAlgorithm alg,
+                               OutputStream out) throws Exception {
+    withCpu(() -> {
+      StreamingXmlSigner.prepare(xml, entry, alg).writeTo(out);
+      return null;
+    });
+  }
+
+  private <T> T withCpu(Callable<T> work) throws Exception {
+    return bulkhead != null ? bulkhead.call(work) : work.call();
+  }
+
+  /**
+   * XAdES-EPES (Baseline-B) enveloped: como {@link #signXml(String, KeyStore.PrivateKeyEntry)} más
+   * QualifyingProperties con SigningTime, SigningCertificate, la política (si {@code policy} no es
+   * null) y DataObjectFormat, firmadas por referencia. Política y SigningCertificate salen de
+   * {@link XadesTemplates} ya calculados.
+   */
+  public String signXadesEpes(String xml, KeyStore.PrivateKeyEntry entry, XadesTemplates.Policy policy,
+                              SignatureAlgorithm alg) throws Exception {
+    X509Certificate cert = (X509Certificate) entry.getCertificate();
+    if (cert == null) throw new IllegalStateException("La clave no tiene certificado: XAdES necesita SigningCertificate");
+    XadesTemplates.SigningCertificate sc = XadesTemplates.shared().signingCertificate(cert);
+    return withCpu(() -> signDom(xml, entry, alg, new Xades(policy, sc)));
+  }
+
+  /** "Sign-the-hash": ds:Signature a partir de digests del cliente. Ver {@link HashSigner}. */
+  public HashSigner.Result signDigests(List<HashSignRequest.Reference> references, KeyStore.PrivateKeyEntry entry,
+                                       boolean xades, XadesTemplates.Policy policy, SignatureAlgorithm alg)
+      throws Exception {
+    return withCpu(() -> HashSigner.sign(references, entry, xades, policy, alg));
+  }
+
   private String signXmlWithKey(String xml, KeyStore.PrivateKeyEntry entry) throws Exception {
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    dbf.setNamespaceAware(true);
-    Document doc = dbf.newDocumentBuilder()
-        .parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    return signXml(xml, entry, SignatureAlgorithm.forKey(entry.getPrivateKey()));
+  }
 
-    XMLSignature signature = new XMLSignature(doc, "",
-        XMLSignature.ALGO_ID_SIGNATURE_RSA_SHA256);
+  private record Xades(XadesTemplates.Policy policy, XadesTemplates.SigningCertificate certificate) { }
+
+  private String signDom(String xml, KeyStore.PrivateKeyEntry entry, SignatureAlgorithm alg, Xades xades)
+      throws Exception {
+    long t0 = System.nanoTime();
+    Document doc;
+    try (var db = XmlPools.documentBuilder()) {
+      doc = db.get().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+    SigningMetrics.record(SigningMetrics.Phase.PARSE, t0);
+    t0 = System.nanoTime();
+
+    XMLSignature signature = new XMLSignature(doc, "", alg.uri(), SignatureProviders.provider(alg));
 
     Element root = doc.getDocumentElement();
     root.appendChild(signature.getElement());
@@ -82,23 +184,52 @@ public class XmlSigner {
     Transforms transforms = new Transforms(doc);
     transforms.addTransform(Transforms.TRANSFORM_ENVELOPED_SIGNATURE);
     transforms.addTransform(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
-    signature.addDocument("", transforms, MessageDigestAlgorithm.ALGO_ID_DIGEST_SHA256);
+    if (xades == null) {
+      signature.addDocument("", transforms, MessageDigestAlgorithm.ALGO_ID_DIGEST_SHA256);
+    } else {
+      addXades(doc, signature, transforms, xades);
+    }
 
     X509Certificate cert = (X509Certificate) entry.getCertificate();
     if (cert != null) {
-      signature.addKeyInfo(cert);
-      signature.addKeyInfo(cert.getPublicKey());
+      // X509Data + KeyValue pre-renderizados por certificado (igual que addKeyInfo(cert) + addKeyInfo(pk))
+      KeyInfoTemplates.santuario(List.of(cert), true).replaceChildren(signature.getKeyInfo().getElement());
     }
 
     signature.sign(entry.getPrivateKey());
+    SigningMetrics.record(SigningMetrics.Phase.SIGN, t0);
+
+    t0 = System.nanoTime();
+    StringWriter sw = new StringWriter(xml.length() + 4096);
+    try (var tf = XmlPools.transformer()) {
+      tf.get().transform(new DOMSource(doc), new StreamResult(sw));
+    }
+    String signed = sw.toString();
+    SigningMetrics.record(SigningMetrics.Phase.SERIALIZE, t0);
+    return signed;
+  }
+
+  private static void addXades(Document doc, XMLSignature signature, Transforms transforms, Xades xades)
+      throws Exception {
+    String id = "Signature-" + UUID.randomUUID();
+    String docRefId = id + "-Reference";
+    String propsId = id + "-SignedProperties";
+    signature.setId(id);
+    signature.addDocument("", transforms, MessageDigestAlgorithm.ALGO_ID_DIGEST_SHA256, docRefId, null);
+
+    Element sigEl = signature.getElement();
+
+    Element qp = XadesTemplates.qualifyingProperties(doc, sigEl.getPrefix(), id, propsId, List.of(docRefId),
+        xades.policy(), xades.certificate());
+
+    ObjectContainer object = new ObjectContainer(doc);
+    object.appendChild(qp);
+    signature.appendObject(object);
 
-    Transformer tf = TransformerFactory.newInstance().newTransformer();
-    tf.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-    tf.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-    tf.setOutputProperty(OutputKeys.INDENT, "no");
-    StringWriter sw = new StringWriter();
-    tf.transform(new DOMSource(doc), new StreamResult(sw));
-    return sw.toString();
+    Transforms propsTransforms = new Transforms(doc);
+    propsTransforms.addTransform(Transforms.TRANSFORM_C14N_EXCL_OMIT_COMMENTS);
+    signature.addDocument("#" + propsId, propsTransforms, MessageDigestAlgorithm.ALGO_ID_DIGEST_SHA256,
+        null, XadesTemplates.SIGNED_PROPERTIES_TYPE);
   }
 
   public static String toBase64(String xml) {
@@ -0,0 +1,442 @@
+package com.clientum.signer.verifactu;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Auditoría de una cadena VeriFactu exportada en NDJSON: una factura registrada por línea con los
+ * campos de /rf más {@code numero}, {@code huella} y {@code encadenado}, en orden de número dentro de
+ * cada serie-ejercicio (varias cadenas pueden ir intercaladas).
+ *
+ * Cada registro lleva la huella del anterior, así que su huella se recalcula sin mirar los demás: el
+ * hilo lector sólo corta la entrada en bloques de líneas completas y cada bloque se reparte en un
+ * ForkJoinPool en trozos de ~{@value #LEAF_BYTES} bytes, que separan sus líneas, las parsean y
+ * recalculan la huella. Los bloques se cierran en orden en el
+ * hilo lector, que comprueba lo secuencial y barato: que {@code encadenado} sea la huella del registro
+ * anterior, que el 1 encadene con INIT y la numeración (huecos, repetidos o desordenados). Hay como
+ * mucho paralelismo + 2 bloques en vuelo, así que la memoria no depende del tamaño de la entrada.
+ *
+ * Con {@code registro}, cada huella se contrasta además con {@link RecordIndex}: lo exportado es lo
+ * que se registró aquí. El diario ({@link ChainJournal}) sólo guarda el último estado de cada cadena,
+ * así que no sirve para auditar registro a registro.
+ */
+public final class ChainAuditor implements AutoCloseable {
+
+    /** Primer argumento del modo CLI: {@code java -jar signer.jar verifactu-auditoria fichero.ndjson[.gz]}. */
+    public static final String CLI = "verifactu-auditoria";
+
+    public record Error(long linea, String serie, Integer ejercicio, Long numero, String tipo, String detalle) { }
+
+    public record Hueco(String serie, int ejercicio, long desde, long hasta) { }
+
+    public record Cadena(String serie, int ejercicio, long registros, long primero, long ultimo,
+                         long huecos, Error primerError) { }
+
+    /**
+     * @param primerError el error de menor línea (null si no hay)
+     * @param errores número de errores por tipo: json, huella, registro, inicio, encadenado, orden
+     * @param huecos los primeros {@value #MAX_HUECOS} rangos de números que faltan
+     */
+    public record Informe(boolean valido, long lineas, long registros, Error primerError, Map<String, Long> errores,
+                          long huecosTotal, List<Hueco> huecos, List<Cadena> cadenas, long millis) { }
+
+    private static final int CHUNK_BYTES = 4 << 20;
+    private static final int LEAF_BYTES = 64 << 10;
+    private static final int MAX_HUECOS = 1_000;
+
+    private final ForkJoinPool pool;
+    private final RecordIndex index;
+    private final JsonFactory json = new JsonFactory();
+
+    /**
+     * @param threads hilos del ForkJoinPool propio (0 = uno por core)
+     * @param index registro contra el que contrastar (null: sólo se recalcula la cadena)
+     */
+    public ChainAuditor(int threads, RecordIndex index) {
+        this.pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        this.index = index;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Audita el NDJSON de {@code in} hasta el final.
+     *
+     * @param registro contrastar cada huella con el registro de este nodo
+     * @throws IOException si no se puede leer o una línea pasa de 4MB
+     */
+    public Informe auditar(InputStream in, boolean registro) throws IOException {
+        if (registro && index == null) throw new IllegalStateException("No hay registro con el que contrastar");
+        long t0 = System.nanoTime();
+        Cortador cortador = new Cortador(in);
+        Resumen resumen = new Resumen();
+        ArrayDeque<Bloque> enVuelo = new ArrayDeque<>();
+        int ventana = pool.getParallelism() + 2;
+        try {
+            Bloque b;
+            while ((b = cortador.siguiente()) != null) {
+                b.tarea = pool.submit(new Verificar(b, registro ? index : null));
+                enVuelo.add(b);
+                if (enVuelo.size() >= ventana) resumen.cerrar(enVuelo.poll());
+            }
+            while (!enVuelo.isEmpty()) resumen.cerrar(enVuelo.poll());
+        } finally {
+            for (Bloque p : enVuelo) p.tarea.cancel(true);
+        }
+        return resumen.informe((System.nanoTime() - t0) / 1_000_000);
+    }
+
+    /**
+     * Modo CLI: audita el fichero (o stdin con "-"; si viene en gzip se descomprime) con todos los cores y
+     * escribe el informe en JSON.
+     *
+     * @return 0 si la cadena es válida, 1 si no, 2 si no se pudo auditar
+     */
+    public static int cli(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Uso: java -jar signer.jar " + CLI + " <fichero.ndjson[.gz] | ->");
+            return 2;
+        }
+        try (ChainAuditor auditor = new ChainAuditor(0, null);
+             InputStream raw = "-".equals(args[0]) ? System.in : Files.newInputStream(Path.of(args[0]))) {
+            InputStream in = new BufferedInputStream(raw, 1 << 16);
+            in.mark(2);
+            boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+            in.reset();
+            if (gzip) in = new GZIPInputStream(in, 1 << 16);
+            Informe informe = auditor.auditar(in, false);
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(System.out, informe);
+            System.out.println();
+            return informe.valido() ? 0 : 1;
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("No se pudo auditar " + args[0] + ": " + ex.getMessage());
+            return 2;
+        }
+    }
+
+    /** Líneas completas de la entrada; {@code hojas} queda al terminar su tarea. */
+    private static final class Bloque {
+        final byte[] data;
+        final int len;
+        Hoja[] hojas;
+        ForkJoinTask<?> tarea;
+
+        Bloque(byte[] data, int len) {
+            this.data = data;
+            this.len = len;
+        }
+    }
+
+    /** Reparte el bloque en hojas de ~LEAF_BYTES cortando en fin de línea y las procesa en paralelo. */
+    @SuppressWarnings("serial") // tarea del pool de la auditoría: nunca se serializa
+    private final class Verificar extends RecursiveAction {
+        private final Bloque b;
+        private final RecordIndex registro;
+
+        Verificar(Bloque b, RecordIndex registro) {
+            this.b = b;
+            this.registro = registro;
+        }
+
+        @Override
+        protected void compute() {
+            List<Hoja> hojas = new ArrayList<>(b.len / LEAF_BYTES + 1);
+            int pos = 0;
+            while (pos < b.len) {
+                int end = Math.min(pos + LEAF_BYTES, b.len);
+                while (end < b.len && b.data[end - 1] != '\n') end++;
+                hojas.add(new Hoja(b.data, pos, end, registro));
+                pos = end;
+            }
+            invokeAll(hojas);
+            b.hojas = hojas.toArray(new Hoja[0]);
+        }
+    }
+
+    /** Las líneas de data[start, end): parseadas y con la huella recalculada. */
+    @SuppressWarnings("serial") // tarea del pool de la auditoría: nunca se serializa
+    private final class Hoja extends RecursiveAction {
+        private final byte[] data;
+        private final int start;
+        private final int end;
+        private final RecordIndex registro;
+        int n;
+        int[] ends;
+        // key null: línea vacía o ilegible (tipo "json")
+        String[] key;
+        String[] serie;
+        int[] ejercicio;
+        long[] numero;
+        String[] huella;
+        String[] encadenado;
+        String[] tipo;
+        String[] detalle;
+
+        Hoja(byte[] data, int start, int end, RecordIndex registro) {
+            this.data = data;
+            this.start = start;
+            this.end = end;
+            this.registro = registro;
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = start; i < end; i++) {
+                if (data[i] == '\n') n++;
+            }
+            if (data[end - 1] != '\n') n++;
+            ends = new int[n];
+            for (int i = start, k = 0; i < end; i++) {
+                if (data[i] == '\n') ends[k++] = i;
+            }
+            if (data[end - 1] != '\n') ends[n - 1] = end;
+            key = new String[n];
+            serie = new String[n];
+            ejercicio = new int[n];
+            numero = new long[n];
+            huella = new String[n];
+            encadenado = new String[n];
+            tipo = new String[n];
+            detalle = new String[n];
+
+            ChainHasher hasher = new ChainHasher();
+            String hoy = LocalDate.now().toString();
+            for (int i = 0; i < n; i++) {
+                try {
+                    linea(hasher, hoy, i);
+                } catch (IOException | RuntimeException ex) {
+                    key[i] = null;
+                    tipo[i] = "json";
+                    detalle[i] = String.valueOf(ex.getMessage()).lines().findFirst().orElse("");
+                }
+            }
+        }
+
+        private void linea(ChainHasher hasher, String hoy, int i) throws IOException {
+            int from = i == 0 ? start : ends[i - 1] + 1;
+            int to = ends[i];
+            if (to > from && data[to - 1] == '\r') to--;
+            if (blanca(data, from, to)) return;
+
+            String serie = "A";
+            Integer ejercicio = null;
+            Long numero = null;
+            String huella = null;
+            String encadenado = null;
+            String emisorNif = "";
+            String receptorNif = "";
+            String fecha = hoy;
+            String total = "0.00";
+            try (JsonParser p = json.createParser(data, from, to - from)) {
+                if (p.nextToken() != JsonToken.START_OBJECT) throw new IOException("Se esperaba un objeto JSON");
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String campo = p.currentName();
+                    JsonToken t = p.nextToken();
+                    switch (campo) {
+                        case "serie" -> serie = texto(p, t);
+                        case "ejercicio" -> ejercicio = p.getValueAsInt();
+                        case "numero" -> numero = p.getValueAsLong();
+                        case "huella" -> huella = texto(p, t);
+                        case "encadenado" -> encadenado = texto(p, t);
+                        case "emisorNif" -> emisorNif = texto(p, t);
+                        case "receptorNif" -> receptorNif = texto(p, t);
+                        case "fecha" -> fecha = texto(p, t);
+                        case "total" -> total = texto(p, t);
+                        default -> p.skipChildren();
+                    }
+                }
+            }
+            if (ejercicio == null || numero == null || huella == null || encadenado == null) {
+                throw new IOException("Faltan ejercicio, numero, huella o encadenado");
+            }
+            this.serie[i] = serie;
+            this.ejercicio[i] = ejercicio;
+            this.numero[i] = numero;
+            this.huella[i] = huella;
+            this.encadenado[i] = encadenado;
+            this.key[i] = serie + ":" + ejercicio;
+
+            String calculada = hasher.huella(emisorNif, receptorNif, serie, numero, ejercicio, fecha, total, encadenado);
+            if (!calculada.equals(huella)) {
+                tipo[i] = "huella";
+                detalle[i] = "La huella recalculada es " + calculada;
+            } else if (registro != null) {
+                RecordIndex.Registro r = registro.get(key[i], numero);
+                if (r == null || !r.huella().equals(huella)) {
+                    tipo[i] = "registro";
+                    detalle[i] = r == null ? "No está en el registro" : "En el registro la huella es " + r.huella();
+                }
+            }
+        }
+    }
+
+    /** Como el registro: un campo numérico cuenta con su valor (String.valueOf del número), no con su texto. */
+    private static String texto(JsonParser p, JsonToken t) throws IOException {
+        if (t == JsonToken.VALUE_NUMBER_INT || t == JsonToken.VALUE_NUMBER_FLOAT) return String.valueOf(p.getNumberValue());
+        if (t == JsonToken.VALUE_NULL) return "null";
+        return p.getValueAsString();
+    }
+
+    private static boolean blanca(byte[] data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte c = data[i];
+            if (c != ' ' && c != '\t' && c != '\r') return false;
+        }
+        return true;
+    }
+
+    /** Estado de cada cadena y errores, en orden de línea (sólo desde el hilo lector). */
+    private static final class Resumen {
+        static final class Estado {
+            final String serie;
+            final int ejercicio;
+            long registros;
+            long primero;
+            long ultimo;
+            String ultimaHuella;
+            long huecos;
+            Error primerError;
+
+            Estado(String serie, int ejercicio) {
+                this.serie = serie;
+                this.ejercicio = ejercicio;
+            }
+        }
+
+        final Map<String, Estado> cadenas = new HashMap<>();
+        final Map<String, Long> errores = new TreeMap<>();
+        final List<Hueco> huecos = new ArrayList<>();
+        long huecosTotal;
+        long lineas;
+        long registros;
+        Error primerError;
+
+        void cerrar(Bloque b) {
+            b.tarea.join();
+            for (Hoja h : b.hojas) {
+                for (int i = 0; i < h.n; i++) cerrar(h, i, ++lineas);
+            }
+        }
+
+        private void cerrar(Hoja h, int i, long linea) {
+            String key = h.key[i];
+            if (key == null) {
+                if (h.tipo[i] != null) error(null, new Error(linea, null, null, null, h.tipo[i], h.detalle[i]));
+                return;
+            }
+            registros++;
+            String serie = h.serie[i];
+            int ejercicio = h.ejercicio[i];
+            long numero = h.numero[i];
+            Estado st = cadenas.get(key);
+            if (st == null) cadenas.put(key, st = new Estado(serie, ejercicio));
+            if (h.tipo[i] != null) error(st, new Error(linea, serie, ejercicio, numero, h.tipo[i], h.detalle[i]));
+
+            if (st.registros > 0 && numero <= st.ultimo) {
+                error(st, new Error(linea, serie, ejercicio, numero, "orden",
+                        numero == st.ultimo ? "Número repetido" : "Después del " + st.ultimo));
+                return;
+            }
+            long anterior = st.registros == 0 ? 0L : st.ultimo;
+            if (numero > anterior + 1) {
+                // Sin el anterior no se puede comprobar el enlace: el hueco ya invalida la cadena
+                hueco(st, anterior + 1, numero - 1);
+            } else if (anterior == 0) {
+                if (!"INIT".equals(h.encadenado[i])) {
+                    error(st, new Error(linea, serie, ejercicio, numero, "inicio", "El primer registro no encadena con INIT"));
+                }
+            } else if (!h.encadenado[i].equals(st.ultimaHuella)) {
+                error(st, new Error(linea, serie, ejercicio, numero, "encadenado",
+                        "No es la huella del " + st.ultimo + ": " + st.ultimaHuella));
+            }
+            if (st.registros == 0) st.primero = numero;
+            st.registros++;
+            st.ultimo = numero;
+            st.ultimaHuella = h.huella[i];
+        }
+
+        void error(Estado st, Error e) {
+            errores.merge(e.tipo(), 1L, Long::sum);
+            if (primerError == null) primerError = e;
+            if (st != null && st.primerError == null) st.primerError = e;
+        }
+
+        void hueco(Estado st, long desde, long hasta) {
+            st.huecos++;
+            huecosTotal++;
+            if (huecos.size() < MAX_HUECOS) huecos.add(new Hueco(st.serie, st.ejercicio, desde, hasta));
+        }
+
+        Informe informe(long millis) {
+            List<Cadena> out = new ArrayList<>(cadenas.size());
+            for (Estado st : cadenas.values()) {
+                out.add(new Cadena(st.serie, st.ejercicio, st.registros, st.primero, st.ultimo, st.huecos, st.primerError));
+            }
+            out.sort((a, b) -> a.ejercicio() != b.ejercicio()
+                    ? Integer.compare(a.ejercicio(), b.ejercicio()) : a.serie().compareTo(b.serie()));
+            return new Informe(primerError == null && huecosTotal == 0, lineas, registros, primerError, errores,
+                    huecosTotal, huecos, out, millis);
+        }
+    }
+
+    /** Corta la entrada en bloques de ~CHUNK_BYTES terminados en fin de línea; no mira dentro de las líneas. */
+    private static final class Cortador {
+        private final InputStream in;
+        private byte[] resto = new byte[0];
+        private boolean eof;
+
+        Cortador(InputStream in) {
+            this.in = in;
+        }
+
+        Bloque siguiente() throws IOException {
+            byte[] data = new byte[Math.max(CHUNK_BYTES, resto.length * 2)];
+            System.arraycopy(resto, 0, data, 0, resto.length);
+            int len = resto.length;
+            while (true) {
+                while (!eof && len < data.length) {
+                    int r = in.read(data, len, data.length - len);
+                    if (r < 0) eof = true;
+                    else len += r;
+                }
+                if (eof) {
+                    resto = new byte[0];
+                    return len == 0 ? null : new Bloque(data, len);
+                }
+                int corte = len;
+                while (corte > 0 && data[corte - 1] != '\n') corte--;
+                if (corte > 0) {
+                    resto = Arrays.copyOfRange(data, corte, len);
+                    return new Bloque(data, corte);
+                }
+                // Ninguna línea completa en todo el bloque
+                if (len >= CHUNK_BYTES) throw new IOException("Hay una línea de más de " + CHUNK_BYTES + " bytes");
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package com.clientum.signer.verifactu;
+
+import com.clientum.signer.security.ApiKeyFilter;
+import com.clientum.signer.security.TenantRegistry;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reparto de las cadenas VeriFactu entre varias instancias: cada serie-ejercicio la atiende un solo
+ * nodo, el que le toca en un anillo de hashing consistente sobre la lista de miembros
+ * (SIGNER_CLUSTER_MEMBERS o SIGNER_CLUSTER_MEMBERS_FILE, que se recarga al cambiar). Los demás
+ * reenvían la petición al dueño por HTTP. Sin SIGNER_CLUSTER_SELF no hay clúster.
+ *
+ * Traspaso: la primera vez que un nodo atiende una cadena (al arrancar o tras cambiar los miembros)
+ * la toma: pide a los demás nodos que la cedan ({@link VerifactuService#ceder}: dejan de registrar en
+ * ella y devuelven su último estado) y adopta el más avanzado. Así nunca registran dos nodos en la
+ * misma cadena ni se bifurca. Falla cerrado: si no responde el nodo que la tenía, ni un miembro
+ * actual, ni uno que fue su dueño en alguna lista vista desde el arranque o al que otro nodo se la
+ * cedió, 503 hasta que responda o un operador importe el último estado ({@link #importar}).
+ * Durante SIGNER_CLUSTER_HANDOVER_LOOKUP_SECONDS, un idFactura que no está en el índice local se
+ * busca también en los nodos que la atendieron antes.
+ *
+ * Entre nodos se autentican con SIGNER_CLUSTER_SECRET ({@link ApiKeyFilter#CLUSTER_TOKEN_HEADER}).
+ */
+@Component
+public class ChainCluster {
+
+    /** Petición reenviada por otro nodo (valor: el nodo que la reenvía). */
+    public static final String FORWARDED_HEADER = "X-Clientum-Cluster-Forwarded";
+
+    static final String CEDER = "/api/verifactu/cluster/ceder";
+    static final String CONSULTA = "/api/verifactu/cluster/consulta";
+
+    /** Vista de los miembros. */
+    private record View(List<String> members, Ring ring) { }
+
+    /** Respuestas a CEDER de un traspaso y los nodos que no respondieron. */
+    private record Cesiones(Map<String, JsonNode> respuestas, Set<String> sinRespuesta) { }
+
+    /** Nodos que atendieron la cadena antes que este y hasta cuándo se les consultan los idFactura. */
+    private record Anteriores(List<String> nodos, long hastaNanos) { }
+
+    private final VerifactuService service;
+    private final ObjectMapper mapper;
+    private final String self;
+    private final List<String> staticMembers;
+    private final Path membersFile;
+    private final String secret;
+    private final int vnodes;
+    private final Duration timeout;
+    private final long handoverLookupNanos;
+    private final HttpClient http;
+    private final ScheduledExecutorService reloader;
+
+    private final Map<String, ReentrantLock> tomando = new ConcurrentHashMap<>();
+    private final Map<String, Anteriores> anteriores = new ConcurrentHashMap<>();
+    // Anillos de todas las listas cargadas desde el arranque: sus dueños pueden tener cadenas
+    private final Map<List<String>, Ring> historial = new ConcurrentHashMap<>();
+    private volatile View view;
+    private volatile Object fileStamp;
+
+    private final Counter local;
+    private final Counter forwarded;
+    private final Counter takeovers;
+    private final Counter unavailable;
+    private final Counter imported;
+
+    public ChainCluster(VerifactuService service, ObjectMapper mapper,
+                        @Value("${SIGNER_CLUSTER_SELF:}") String self,
+                        @Value("${SIGNER_CLUSTER_MEMBERS:}") String members,
+                        @Value("${SIGNER_CLUSTER_MEMBERS_FILE:}") String membersFile,
+                        @Value("${SIGNER_CLUSTER_SECRET:}") String secret,
+                        @Value("${SIGNER_CLUSTER_VNODES:128}") int vnodes,
+                        @Value("${SIGNER_CLUSTER_TIMEOUT_MS:5000}") long timeoutMs,
+                        @Value("${SIGNER_CLUSTER_RELOAD_SECONDS:5}") long reloadSeconds,
+                        @Value("${SIGNER_CLUSTER_HANDOVER_LOOKUP_SECONDS:900}") long handoverLookupSeconds,
+                        MeterRegistry registry) throws IOException {
+        this.service = service;
+        this.mapper = mapper;
+        this.self = self == null || self.isBlank() ? null : url(self);
+        this.staticMembers = parse(Arrays.asList(members.split(",")));
+        this.membersFile = membersFile == null || membersFile.isBlank() ? null : Path.of(membersFile.trim());
+        this.secret = secret == null ? "" : secret.trim();
+        this.vnodes = Math.max(1, vnodes);
+        this.timeout = Duration.ofMillis(Math.max(1, timeoutMs));
+        this.handoverLookupNanos = TimeUnit.SECONDS.toNanos(Math.max(0, handoverLookupSeconds));
+        this.http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(timeout).build();
+        this.local = requests(registry, "local");
+        this.forwarded = requests(registry, "forwarded");
+        this.takeovers = takeovers(registry, "ok");
+        this.unavailable = takeovers(registry, "unavailable");
+        this.imported = takeovers(registry, "imported");
+
+        if (this.self == null) {
+            this.reloader = null;
+            return;
+        }
+        if (this.secret.isEmpty()) {
+            throw new IllegalStateException("SIGNER_CLUSTER_SECRET es obligatorio con SIGNER_CLUSTER_SELF");
+        }
+        load(true);
+        if (this.membersFile != null && reloadSeconds > 0) {
+            this.reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "signer-cluster-reload");
+                t.setDaemon(true);
+                return t;
+            });
+            reloader.scheduleWithFixedDelay(this::reload, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+        } else {
+            this.reloader = null;
+        }
+    }
+
+    public boolean enabled() {
+        return self != null;
+    }
+
+    /** URL base de este nodo (SIGNER_CLUSTER_SELF), o null sin clúster. */
+    public String self() {
+        return self;
+    }
+
+    /** Miembros actuales (URL base de cada nodo). */
+    public List<String> members() {
+        View v = view;
+        return v == null ? List.of() : v.members();
+    }
+
+    /**
+     * Nodo que atiende la cadena: null si es este (tomándola si aún no la tiene) o la URL del dueño.
+     *
+     * @throws ChainUnavailableException si no se puede tomar o si la petición ya venía reenviada
+     *         (los nodos aún no ven la misma lista de miembros)
+     */
+    public String dueno(String key, HttpServletRequest request) {
+        if (self == null) return null;
+        View v = view;
+        String nodo = v.ring().owner(key);
+        if (nodo.equals(self)) {
+            if (!service.propia(key)) tomar(key, v);
+            local.increment();
+            return null;
+        }
+        if (request.getHeader(FORWARDED_HEADER) != null) {
+            throw new ChainUnavailableException("La cadena " + key + " está cambiando de nodo", 1);
+        }
+        forwarded.increment();
+        return nodo;
+    }
+
+    /** Reenvía la petición al nodo dueño y devuelve su respuesta tal cual (estado, cuerpo y Retry-After). */
+    public ResponseEntity<Map<String, Object>> reenviar(String nodo, String path, Object body,
+                                                        HttpServletRequest request) {
+        try {
+            return reenviarAsync(nodo, path, body, request).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ChainUnavailableException("Reenvío a " + nodo + " interrumpido", 1);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof ResponseStatusException rse) throw rse;
+            throw new ChainUnavailableException("Nodo " + nodo + " no disponible", 5);
+        }
+    }
+
+    /** Como {@link #reenviar}, sin bloquear: para repartir un lote entre varios nodos a la vez. */
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> reenviarAsync(String nodo, String path, Object body,
+                                                                              HttpServletRequest request) {
+        HttpRequest.Builder b = post(nodo, path, json(body));
+        Object tenant = request.getAttribute(TenantRegistry.TENANT_ATTRIBUTE);
+        if (tenant != null) b.header(ApiKeyFilter.CLUSTER_TENANT_HEADER, tenant.toString());
+        return http.sendAsync(b.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .handle((resp, ex) -> {
+                    if (ex != null) throw new ChainUnavailableException("Nodo " + nodo + " no disponible", 5);
+                    ResponseEntity.BodyBuilder out = ResponseEntity.status(resp.statusCode())
+                            .contentType(MediaType.APPLICATION_JSON);
+                    resp.headers().firstValue(HttpHeaders.RETRY_AFTER).ifPresent(v -> out.header(HttpHeaders.RETRY_AFTER, v));
+                    return out.body(map(resp.body()));
+                });
+    }
+
+    /** true si la cadena se tomó hace menos de SIGNER_CLUSTER_HANDOVER_LOOKUP_SECONDS de nodos que ya la atendían. */
+    public boolean enTraspaso(String key) {
+        Anteriores a = anteriores.get(key);
+        return a != null && a.hastaNanos() - System.nanoTime() > 0;
+    }
+
+    /**
+     * Busca las facturas en los nodos que atendieron antes la cadena (sin registrar nada).
+     *
+     * @return un resultado por factura (null si no está en ninguno), o null si no hay a quién preguntar
+     * @throws ResponseStatusException 409 si alguna está registrada con otros datos; 503 si un nodo no responde
+     */
+    public VerifactuService.RegistroResult[] consultarAnteriores(String key, List<Map<String, Object>> facturas,
+                                                                 HttpServletRequest request) {
+        Anteriores a = anteriores.get(key);
+        if (a == null) return null;
+        VerifactuService.RegistroResult[] out = new VerifactuService.RegistroResult[facturas.size()];
+        List<Integer> pendientes = new ArrayList<>();
+        for (int i = 0; i < facturas.size(); i++) pendientes.add(i);
+        for (String nodo : a.nodos()) {
+            List<Map<String, Object>> lote = new ArrayList<>(pendientes.size());
+            for (int i : pendientes) lote.add(facturas.get(i));
+            ResponseEntity<Map<String, Object>> resp = reenviar(nodo, CONSULTA, Map.of("facturas", lote), request);
+            if (!resp.getStatusCode().is2xxSuccessful() || !(resp.getBody().get("registros") instanceof List<?> registros)
+                    || registros.size() != lote.size()) {
+                throw new ChainUnavailableException("No se pudo consultar la cadena " + key + " en " + nodo, 5);
+            }
+            List<Integer> siguen = new ArrayList<>();
+            for (int j = 0; j < registros.size(); j++) {
+                int i = pendientes.get(j);
+                if (!(registros.get(j) instanceof Map<?, ?> r)) {
+                    siguen.add(i);
+                } else if (r.get("conflicto") != null) {
+                    throw new ResponseStatusException(HttpStatus.CONFLICT, String.valueOf(r.get("conflicto")));
+                } else {
+                    out[i] = new VerifactuService.RegistroResult(((Number) r.get("numero")).longValue(),
+                            (String) r.get("huella"), (String) r.get("encadenado"), true);
+                }
+            }
+            pendientes = siguen;
+            if (pendientes.isEmpty()) break;
+        }
+        return out;
+    }
+
+    /** Lado del nodo anterior en un traspaso: deja de registrar en la cadena y devuelve su último estado. */
+    public VerifactuService.Cesion ceder(String key, String nodo) {
+        return service.ceder(key, url(nodo));
+    }
+
+    /**
+     * Acción de operador: toma la cadena con el estado indicado sin esperar a los nodos que no
+     * responden (p. ej. el dueño se cayó y se quitó de la lista). Si un nodo que responde va por
+     * delante, gana su estado.
+     */
+    public ChainJournal.Entry importar(String key, long numero, String huella) {
+        if (self == null) throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        ReentrantLock l = tomando.computeIfAbsent(key, k -> new ReentrantLock());
+        l.lock();
+        try {
+            Cesiones c = pedirCesion(key, conocidos(view), Set.of());
+            imported.increment();
+            return adoptar(key, c, new ChainJournal.Entry(key, numero, huella));
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /** Las rutas internas sólo las pueden llamar otros nodos (con SIGNER_CLUSTER_SECRET). */
+    public void autorizar(HttpServletRequest request) {
+        if (self == null) throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        if (!Boolean.TRUE.equals(request.getAttribute(ApiKeyFilter.CLUSTER_ATTRIBUTE))) {
+            throw new ResponseStatusException(HttpStatus.FORBIDDEN, "Sólo para nodos del clúster");
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (reloader != null) reloader.shutdownNow();
+    }
+
+    /**
+     * Pide la cadena a todos los nodos conocidos y adopta el estado más avanzado. Un traspaso por
+     * cadena a la vez en este nodo.
+     *
+     * Si responde el nodo que la tenía, su estado es el último. Si no, cualquier nodo sin respuesta
+     * que pudiera tenerla bloquea el traspaso: los miembros actuales (sin historia previa al
+     * arranque, cualquiera pudo ser dueño), los dueños de la cadena en listas anteriores y los nodos
+     * a los que otro se la cedió.
+     */
+    private void tomar(String key, View v) {
+        ReentrantLock l = tomando.computeIfAbsent(key, k -> new ReentrantLock());
+        l.lock();
+        try {
+            if (service.propia(key)) return;
+            Set<String> posibles = new LinkedHashSet<>(v.members());
+            for (Ring r : historial.values()) posibles.add(r.owner(key));
+            Cesiones c = pedirCesion(key, conocidos(v), posibles);
+
+            boolean titular = false;
+            for (JsonNode r : c.respuestas().values()) {
+                titular |= r.path("propia").asBoolean(false);
+                String cedidaA = r.path("cedidaA").asText(null);
+                if (cedidaA != null) posibles.add(cedidaA);
+            }
+            posibles.remove(self);
+            posibles.retainAll(c.sinRespuesta());
+            if (!titular && !posibles.isEmpty()) {
+                unavailable.increment();
+                throw new ChainUnavailableException("La cadena " + key + " la puede tener " + String.join(", ", posibles)
+                        + ", que no responde: espera a que vuelva o importa su último estado", 5);
+            }
+            adoptar(key, c, null);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /** Nodos a los que pedir una cadena: los de todas las listas vistas desde el arranque. */
+    private Set<String> conocidos(View v) {
+        Set<String> nodos = new LinkedHashSet<>(v.members());
+        for (List<String> members : historial.keySet()) nodos.addAll(members);
+        return nodos;
+    }
+
+    /**
+     * Pide la cesión a {@code nodos}, y también a los nodos a los que alguno de ellos dice habérsela
+     * cedido antes.
+     */
+    private Cesiones pedirCesion(String key, Set<String> nodos, Set<String> posibles) {
+        byte[] body = json(Map.of("cadena", key, "nodo", self));
+        Map<String, JsonNode> respuestas = new LinkedHashMap<>();
+        Set<String> sinRespuesta = new LinkedHashSet<>();
+        Set<String> pedidos = new LinkedHashSet<>();
+        Set<String> ronda = new LinkedHashSet<>(nodos);
+        while (!ronda.isEmpty()) {
+            ronda.remove(self);
+            pedidos.addAll(ronda);
+            Map<String, CompletableFuture<HttpResponse<byte[]>>> enviadas = new LinkedHashMap<>();
+            for (String nodo : ronda) {
+                enviadas.put(nodo, http.sendAsync(post(nodo, CEDER, body).build(), HttpResponse.BodyHandlers.ofByteArray()));
+            }
+            Set<String> siguiente = new LinkedHashSet<>();
+            for (Map.Entry<String, CompletableFuture<HttpResponse<byte[]>>> e : enviadas.entrySet()) {
+                try {
+                    HttpResponse<byte[]> resp = e.getValue().get();
+                    if (resp.statusCode() != 200) throw new IOException("HTTP " + resp.statusCode());
+                    JsonNode r = mapper.readTree(resp.body());
+                    respuestas.put(e.getKey(), r);
+                    String cedidaA = r.path("cedidaA").asText(null);
+                    if (cedidaA != null && !pedidos.contains(url(cedidaA))) siguiente.add(url(cedidaA));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new ChainUnavailableException("Traspaso de la cadena " + key + " interrumpido", 1);
+                } catch (ExecutionException | IOException ex) {
+                    sinRespuesta.add(e.getKey());
+                }
+            }
+            ronda = siguiente;
+        }
+        return new Cesiones(respuestas, sinRespuesta);
+    }
+
+    /** Adopta el estado más avanzado entre las respuestas y {@code minimo} (importado, o null). */
+    private ChainJournal.Entry adoptar(String key, Cesiones c, ChainJournal.Entry minimo) {
+        long numero = minimo == null ? 0L : minimo.numero();
+        String huella = minimo == null ? "INIT" : minimo.huella();
+        List<String> conRegistros = new ArrayList<>();
+        for (Map.Entry<String, JsonNode> e : c.respuestas().entrySet()) {
+            long n = e.getValue().path("numero").asLong(0L);
+            if (n > 0) conRegistros.add(e.getKey());
+            if (n > numero) {
+                numero = n;
+                huella = e.getValue().path("huella").asText();
+            }
+        }
+        service.adoptar(key, numero, huella);
+        if (conRegistros.isEmpty()) {
+            anteriores.remove(key);
+        } else {
+            anteriores.put(key, new Anteriores(List.copyOf(conRegistros), System.nanoTime() + handoverLookupNanos));
+        }
+        takeovers.increment();
+        return new ChainJournal.Entry(key, numero, huella);
+    }
+
+    private HttpRequest.Builder post(String nodo, String path, byte[] body) {
+        return HttpRequest.newBuilder(URI.create(nodo + path))
+                .timeout(timeout)
+                .header("Content-Type", MediaType.APPLICATION_JSON_VALUE)
+                .header(ApiKeyFilter.CLUSTER_TOKEN_HEADER, secret)
+                .header(FORWARDED_HEADER, self)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body));
+    }
+
+    private byte[] json(Object body) {
+        try {
+            return mapper.writeValueAsBytes(body);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> map(byte[] body) {
+        if (body == null || body.length == 0) return Map.of();
+        try {
+            return mapper.readValue(body, Map.class);
+        } catch (IOException e) {
+            return Map.of("error", new String(body, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void reload() {
+        try {
+            load(false);
+        } catch (Exception ignored) {
+            // Fichero inválido o a medio escribir: se mantiene la lista cargada
+        }
+    }
+
+    private synchronized void load(boolean initial) throws IOException {
+        List<String> members = staticMembers;
+        Object stamp = null;
+        if (membersFile != null) {
+            if (!Files.exists(membersFile)) {
+                if (initial) throw new IllegalStateException("SIGNER_CLUSTER_MEMBERS_FILE no existe: " + membersFile);
+                return;
+            }
+            BasicFileAttributes attrs = Files.readAttributes(membersFile, BasicFileAttributes.class);
+            stamp = attrs.lastModifiedTime().toMillis() + ":" + attrs.size();
+            if (!initial && stamp.equals(fileStamp)) return;
+            members = parse(Files.readAllLines(membersFile));
+        }
+        if (members.isEmpty()) {
+            if (initial) throw new IllegalStateException("El clúster necesita SIGNER_CLUSTER_MEMBERS o SIGNER_CLUSTER_MEMBERS_FILE");
+            return;
+        }
+        View old = view;
+        if (old == null || !old.members().equals(members)) {
+            Ring ring = historial.computeIfAbsent(members, m -> new Ring(m, vnodes));
+            view = new View(members, ring);
+        }
+        fileStamp = stamp;
+    }
+
+    /** URLs sin duplicados ni barra final, ordenadas: el anillo no depende del orden de la lista. */
+    private static List<String> parse(List<String> lines) {
+        Set<String> out = new TreeSet<>();
+        for (String line : lines) {
+            int hash = line.indexOf('#');
+            String s = (hash >= 0 ? line.substring(0, hash) : line).trim();
+            if (!s.isEmpty()) out.add(url(s));
+        }
+        return List.copyOf(out);
+    }
+
+    private static String url(String s) {
+        String u = s.trim();
+        while (u.endsWith("/")) u = u.substring(0, u.length() - 1);
+        return u;
+    }
+
+    private static Counter requests(MeterRegistry registry, String route) {
+        return Counter.builder("verifactu.cluster.requests").tag("route", route)
+                .description("Peticiones VeriFactu por cadena atendidas aquí o reenviadas al dueño").register(registry);
+    }
+
+    private static Counter takeovers(MeterRegistry registry, String result) {
+        return Counter.builder("verifactu.cluster.takeovers").tag("result", result)
+                .description("Cadenas tomadas por este nodo (unavailable: un nodo que podía tenerla no responde;"
+                        + " imported: estado importado por un operador)").register(registry);
+    }
+
+    /**
+     * Anillo de hashing consistente: {@code vnodes} puntos por miembro, así que al entrar o salir un
+     * nodo sólo cambian de dueño ~1/N de las cadenas, repartidas entre todos.
+     */
+    static final class Ring {
+        private final long[] points;
+        private final String[] owners;
+
+        Ring(List<String> members, int vnodes) {
+            TreeMap<Long, String> ring = new TreeMap<>();
+            for (String m : members) {
+                for (int i = 0; i < vnodes; i++) {
+                    // En una colisión gana siempre el mismo, sea cual sea el orden
+                    ring.merge(hash(m + "#" + i), m, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+                }
+            }
+            points = new long[ring.size()];
+            owners = new String[ring.size()];
+            int i = 0;
+            for (Map.Entry<Long, String> e : ring.entrySet()) {
+                points[i] = e.getKey();
+                owners[i++] = e.getValue();
+            }
+        }
+
+        String owner(String key) {
+            int i = Arrays.binarySearch(points, hash(key));
+            if (i < 0) i = -i - 1;
+            return owners[i == points.length ? 0 : i];
+        }
+
+        /** FNV-1a de 64 bits con mezcla final (fmix64) para repartir bien claves parecidas. */
+        static long hash(String s) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+                h ^= b & 0xff;
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.clientum.signer.verifactu;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Huella de un registro: SHA-256 (base64url sin padding) de
+ * emisorNif|receptorNif|serie|numero|ejercicio|fecha|total|huellaAnterior en UTF-8.
+ *
+ * Reutiliza MessageDigest y buffers entre llamadas para poder encadenar miles de registros
+ * sin basura por factura. No es thread-safe: una instancia por hilo o por operación.
+ */
+final class ChainHasher {
+
+    private static final Base64.Encoder B64URL = Base64.getUrlEncoder().withoutPadding();
+
+    private final MessageDigest md;
+    private final byte[] digest = new byte[32];
+    private final byte[] encoded = new byte[43];
+    private byte[] buf = new byte[256];
+    private int len;
+
+    ChainHasher() {
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String huella(String emisorNif, String receptorNif, String serie, long numero, int ejercicio,
+                  String fecha, String total, String anterior) {
+        len = 0;
+        str(emisorNif); sep();
+        str(receptorNif); sep();
+        str(serie); sep();
+        num(numero); sep();
+        num(ejercicio); sep();
+        str(fecha); sep();
+        str(total); sep();
+        str(anterior);
+
+        md.update(buf, 0, len);
+        try {
+            md.digest(digest, 0, digest.length);
+        } catch (java.security.DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        B64URL.encode(digest, encoded);
+        return new String(encoded, StandardCharsets.ISO_8859_1);
+    }
+
+    private void sep() {
+        ensure(1);
+        buf[len++] = '|';
+    }
+
+    private void str(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // No ASCII: se codifica el resto del campo con el encoder estándar
+                byte[] rest = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                ensure(rest.length);
+                System.arraycopy(rest, 0, buf, len, rest.length);
+                len += rest.length;
+                return;
+            }
+            buf[len++] = (byte) c;
+        }
+    }
+
+    private void num(long v) {
+        if (v < 0) {
+            str(Long.toString(v));
+            return;
+        }
+        ensure(20);
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v > 0);
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+    }
+}
@@ -0,0 +1,329 @@
+package com.clientum.signer.verifactu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Diario append-only (memory-mapped) del estado de las cadenas VeriFactu.
+ *
+ * Cada registro guarda el estado completo de una cadena tras avanzar (clave, último número,
+ * última huella), así que la recuperación es "el último registro de cada clave gana".
+ *
+ * - Group commit: {@link #append} sólo copia al mapa en memoria; {@link #awaitDurable} hace
+ *   un único force() para todos los registros pendientes (el primer hilo que llega hace de
+ *   líder y el resto espera), de modo que N registros concurrentes cuestan ~1 fsync.
+ * - Compactación: al superar {@code compactBytes} se escribe un snapshot (fichero temporal +
+ *   rename atómico) y se reinicia el diario con la generación siguiente. La recuperación lee
+ *   el snapshot y sólo el diario posterior, así que su coste no crece con el histórico.
+ *
+ * Formato del diario: cabecera [magic:int][0:int][generación:long] y registros
+ * [longitud:int][crc32c:int][payload]. Un registro truncado o con CRC inválido marca el final.
+ */
+public final class ChainJournal implements Closeable {
+
+    public record Entry(String key, long numero, String huella) { }
+
+    private static final int JOURNAL_MAGIC = 0x56464A31;   // "VFJ1"
+    private static final int SNAPSHOT_MAGIC = 0x56465331;  // "VFS1"
+    private static final int HEADER = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final int INITIAL_MAP = 1 << 20;
+
+    private final Path journalPath;
+    private final Path snapshotPath;
+    private final long compactBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushDone = lock.newCondition();
+
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+    private long generation;
+    private int writePos;
+    private int durablePos;
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean flushing;
+    private boolean closed;
+
+    // Último estado por clave: es lo que se vuelca en el snapshot
+    private final Map<String, Entry> state = new HashMap<>();
+
+    private ChainJournal(Path dir, long compactBytes) throws IOException {
+        Files.createDirectories(dir);
+        this.journalPath = dir.resolve("chains.journal");
+        this.snapshotPath = dir.resolve("chains.snapshot");
+        this.compactBytes = Math.max(HEADER + 4096, compactBytes);
+        this.channel = FileChannel.open(journalPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+    }
+
+    /** Abre (o crea) el diario en {@code dir} y recupera el estado. */
+    public static ChainJournal open(Path dir, long compactBytes) throws IOException {
+        return new ChainJournal(dir, compactBytes);
+    }
+
+    /** Estado recuperado / actual de todas las cadenas. */
+    public Map<String, Entry> entries() {
+        lock.lock();
+        try {
+            return Collections.unmodifiableMap(new HashMap<>(state));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Añade el nuevo estado de una cadena. No es duradero hasta {@link #awaitDurable}.
+     * @return número de secuencia a pasar a {@link #awaitDurable}
+     */
+    public long append(String key, long numero, String huella) throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        byte[] h = huella.getBytes(StandardCharsets.UTF_8);
+        int payload = 2 + k.length + 8 + 2 + h.length;
+
+        lock.lock();
+        try {
+            ensureOpen();
+            ensureCapacity(RECORD_HEADER + payload);
+
+            ByteBuffer rec = ByteBuffer.allocate(payload);
+            rec.putShort((short) k.length).put(k).putLong(numero).putShort((short) h.length).put(h);
+            CRC32C crc = new CRC32C();
+            crc.update(rec.array(), 0, payload);
+
+            // Un registro a medias (caída durante la copia) no pasa el CRC y corta la recuperación
+            map.putInt(writePos + 4, (int) crc.getValue());
+            map.put(writePos + RECORD_HEADER, rec.array(), 0, payload);
+            map.putInt(writePos, payload);
+            writePos += RECORD_HEADER + payload;
+
+            state.put(key, new Entry(key, numero, huella));
+            long seq = ++appendedSeq;
+
+            if (writePos >= compactBytes) compact();
+            return seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Bloquea hasta que el registro {@code seq} (y todos los anteriores) estén en disco. */
+    public void awaitDurable(long seq) throws IOException {
+        lock.lock();
+        try {
+            while (durableSeq < seq) {
+                ensureOpen();
+                if (flushing) {
+                    flushDone.awaitUninterruptibly();
+                    continue;
+                }
+                // Líder: vuelca todo lo pendiente de una vez
+                flushing = true;
+                long targetSeq = appendedSeq;
+                int from = durablePos;
+                int to = writePos;
+                MappedByteBuffer m = map;
+                lock.unlock();
+                try {
+                    if (to > from) m.force(from, to - from);
+                } finally {
+                    lock.lock();
+                    flushing = false;
+                    flushDone.signalAll();
+                }
+                if (targetSeq > durableSeq) {
+                    durableSeq = targetSeq;
+                    durablePos = Math.max(durablePos, to);
+                }
+            }
+        } catch (java.io.UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            while (flushing) flushDone.awaitUninterruptibly();
+            map.force();
+            closed = true;
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---- recuperación ----
+
+    private void recover() throws IOException {
+        long snapshotGeneration = -1;
+        if (Files.exists(snapshotPath)) {
+            snapshotGeneration = readSnapshot();
+        }
+
+        long size = channel.size();
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_MAP));
+
+        boolean validHeader = size >= HEADER && map.getInt(0) == JOURNAL_MAGIC;
+        if (!validHeader) {
+            if (size > 0 && !allZero(0, (int) Math.min(size, HEADER)) && snapshotGeneration < 0) {
+                throw new IllegalStateException("Diario VeriFactu corrupto: " + journalPath);
+            }
+            resetJournal(snapshotGeneration + 1);
+            return;
+        }
+
+        generation = map.getLong(8);
+        if (generation <= snapshotGeneration) {
+            // Compactación interrumpida tras el rename: el snapshot ya incluye este diario
+            resetJournal(snapshotGeneration + 1);
+            return;
+        }
+
+        int pos = HEADER;
+        int limit = map.capacity();
+        while (pos + RECORD_HEADER <= limit) {
+            int len = map.getInt(pos);
+            if (len <= 0 || pos + RECORD_HEADER + len > limit) break;
+            byte[] payload = new byte[len];
+            map.get(pos + RECORD_HEADER, payload);
+            CRC32C crc = new CRC32C();
+            crc.update(payload);
+            if ((int) crc.getValue() != map.getInt(pos + 4)) break; // cola rota
+            Entry e = decode(ByteBuffer.wrap(payload));
+            state.put(e.key(), e);
+            pos += RECORD_HEADER + len;
+        }
+        // Limpia restos de un registro a medias para que no se confundan con datos válidos
+        for (int i = pos; i < limit && i < size; i++) map.put(i, (byte) 0);
+        writePos = pos;
+        durablePos = pos;
+        map.force();
+    }
+
+    private long readSnapshot() throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+        if (b.remaining() < 20 || b.getInt() != SNAPSHOT_MAGIC) {
+            throw new IllegalStateException("Snapshot VeriFactu corrupto: " + snapshotPath);
+        }
+        int count = b.getInt();
+        long gen = b.getLong();
+        CRC32C crc = new CRC32C();
+        crc.update(b.array(), 0, b.limit() - 4);
+        if ((int) crc.getValue() != b.getInt(b.limit() - 4)) {
+            throw new IllegalStateException("Snapshot VeriFactu corrupto (CRC): " + snapshotPath);
+        }
+        for (int i = 0; i < count; i++) {
+            Entry e = decode(b);
+            state.put(e.key(), e);
+        }
+        return gen;
+    }
+
+    private static Entry decode(ByteBuffer b) {
+        byte[] k = new byte[b.getShort()];
+        b.get(k);
+        long numero = b.getLong();
+        byte[] h = new byte[b.getShort()];
+        b.get(h);
+        return new Entry(new String(k, StandardCharsets.UTF_8), numero, new String(h, StandardCharsets.UTF_8));
+    }
+
+    // ---- escritura ----
+
+    private void ensureCapacity(int bytes) throws IOException {
+        if (writePos + bytes <= map.capacity()) return;
+        long newSize = Math.max((long) map.capacity() * 2, (long) writePos + bytes);
+        if (newSize > Integer.MAX_VALUE) throw new IOException("Diario VeriFactu demasiado grande");
+        // El mapa anterior sigue siendo válido para un force() en curso: mismas páginas del fichero
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    /** Snapshot + diario nuevo. Se llama con el lock tomado. */
+    private void compact() throws IOException {
+        while (flushing) flushDone.awaitUninterruptibly();
+
+        writeSnapshot(generation);
+        resetJournal(generation + 1);
+        // Todo lo anterior queda cubierto por el snapshot ya sincronizado
+        durableSeq = appendedSeq;
+        flushDone.signalAll();
+    }
+
+    private void writeSnapshot(long gen) throws IOException {
+        int size = 16;
+        for (Entry e : state.values()) {
+            size += 2 + e.key().getBytes(StandardCharsets.UTF_8).length + 8 + 2
+                    + e.huella().getBytes(StandardCharsets.UTF_8).length;
+        }
+        ByteBuffer b = ByteBuffer.allocate(size + 4);
+        b.putInt(SNAPSHOT_MAGIC).putInt(state.size()).putLong(gen);
+        for (Entry e : state.values()) {
+            byte[] k = e.key().getBytes(StandardCharsets.UTF_8);
+            byte[] h = e.huella().getBytes(StandardCharsets.UTF_8);
+            b.putShort((short) k.length).put(k).putLong(e.numero()).putShort((short) h.length).put(h);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(b.array(), 0, size);
+        b.putInt((int) crc.getValue());
+        b.flip();
+
+        Path tmp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (b.hasRemaining()) out.write(b);
+            out.force(true);
+        }
+        Files.move(tmp, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+    }
+
+    private void resetJournal(long gen) throws IOException {
+        channel.truncate(0);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_MAP);
+        map.putInt(0, JOURNAL_MAGIC);
+        map.putInt(4, 0);
+        map.putLong(8, gen);
+        map.force();
+        generation = gen;
+        writePos = HEADER;
+        durablePos = HEADER;
+    }
+
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(snapshotPath.getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+            // No todos los sistemas de ficheros permiten abrir un directorio
+        }
+    }
+
+    private boolean allZero(int from, int to) {
+        for (int i = from; i < to; i++) if (map.get(i) != 0) return false;
+        return true;
+    }
+
+    private void ensureOpen() {
+        if (closed) throw new IllegalStateException("Diario VeriFactu cerrado");
+    }
+}
@@ -0,0 +1,25 @@
+package com.clientum.signer.verifactu;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/** La cadena no se puede atender ahora en este nodo (traspaso en curso o dueño caído); reintentar tras Retry-After. */
+public class ChainUnavailableException extends ResponseStatusException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterSeconds;
+
+    public ChainUnavailableException(String reason, long retryAfterSeconds) {
+        super(HttpStatus.SERVICE_UNAVAILABLE, reason);
+        this.retryAfterSeconds = Math.max(1, retryAfterSeconds);
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        HttpHeaders h = new HttpHeaders();
+        h.set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        return h;
+    }
+}
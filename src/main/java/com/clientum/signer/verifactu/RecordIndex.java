@@ -0,0 +1,510 @@
+package com.clientum.signer.verifactu;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Índice de todos los registros VeriFactu emitidos, para consultarlos (QR, reintentos) sin
+ * volver a registrar.
+ *
+ * - Por (serie, ejercicio, numero): un fichero por cadena con la huella de cada registro en
+ *   binario (32 bytes) en la posición {@code numero - base}. Va mapeado en memoria: las huellas
+ *   quedan fuera del heap (un millón de registros son 32MB de page cache) y buscar es leer un hueco.
+ * - Por idFactura (del cliente): log append-only (id, cadena, numero) mapeado y, en el heap, una
+ *   tabla de direccionamiento abierto con el hash de 64 bits del id y su posición en el log
+ *   (16 bytes por hueco). La coincidencia se confirma con los bytes del log.
+ *
+ * Por cadena hay un único escritor (el lock de la cadena en {@link VerifactuService}); las
+ * búsquedas por número no toman lock. Nada es duradero hasta {@link #awaitDurable}, que agrupa los
+ * force() como {@link ChainJournal}; el servicio lo espera antes que el diario, así que tras una
+ * caída el índice puede ir por delante del diario pero nunca por detrás.
+ *
+ * Fichero de cadena: cabecera [magic:int][longitud clave:int][base:long][0:long][con anterior:int]
+ * [0:int][anterior:32][clave] de {@value #CHAIN_HEADER} bytes y después las huellas. No se guarda
+ * el número de registros (sería un segundo force por lote): al abrir, es el último hueco no nulo. Log de ids:
+ * [magic:int][0:int][0:long] y registros [longitud:int][crc32c:int][payload] como el diario.
+ */
+public final class RecordIndex implements Closeable {
+
+    /** Registro indexado. {@code encadenado} es null si no se conoce (hueco anterior perdido). */
+    public record Registro(String key, long numero, String huella, String encadenado) { }
+
+    private static final int CHAIN_MAGIC = 0x56464931;   // "VFI1"
+    private static final int IDS_MAGIC = 0x56464431;     // "VFD1"
+    private static final int CHAIN_HEADER = 512;
+    private static final int KEY_OFFSET = 64;
+    private static final int HUELLA = 32;
+    private static final int INITIAL_SLOTS = 1 << 14;
+    private static final int IDS_HEADER = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final int INITIAL_IDS_MAP = 1 << 20;
+    private static final String CHAIN_SUFFIX = ".chain";
+
+    private static final Base64.Encoder B64URL = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64URL_DEC = Base64.getUrlDecoder();
+
+    /** Huellas de una cadena; sólo la escribe quien tiene el lock de la cadena. */
+    private static final class Chain {
+        final String key;
+        final FileChannel channel;
+        volatile MappedByteBuffer map;
+        final long base;
+        volatile long count;
+        // Primer hueco escrito desde el último force (con el lock del índice)
+        long dirtyFrom = Long.MAX_VALUE;
+
+        Chain(String key, FileChannel channel, MappedByteBuffer map, long base, long count) {
+            this.key = key;
+            this.channel = channel;
+            this.map = map;
+            this.base = base;
+            this.count = count;
+        }
+    }
+
+    private final Path dir;
+    private final Map<String, Chain> chains = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushDone = lock.newCondition();
+
+    private final FileChannel idsChannel;
+    private MappedByteBuffer idsMap;
+    private int idsWritePos;
+    private int idsDurablePos;
+    // Tabla de ids: hash de 64 bits (0 = libre) y posición del registro en el log
+    private long[] idHashes = new long[1 << 16];
+    private int[] idOffsets = new int[1 << 16];
+    private int idCount;
+
+    private final Set<Chain> dirty = new LinkedHashSet<>();
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean flushing;
+    private boolean closed;
+
+    private RecordIndex(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.dir = dir;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + CHAIN_SUFFIX)) {
+            for (Path p : files) {
+                Chain c = openChain(p);
+                chains.put(c.key, c);
+            }
+        }
+        Path idsPath = dir.resolve("ids.log");
+        this.idsChannel = FileChannel.open(idsPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recoverIds(idsPath);
+    }
+
+    /** Abre (o crea) el índice en {@code dir}. */
+    public static RecordIndex open(Path dir) throws IOException {
+        return new RecordIndex(dir);
+    }
+
+    /** Registro {@code numero} de la cadena {@code key} (serie:ejercicio), o null. */
+    public Registro get(String key, long numero) {
+        Chain c = chains.get(key);
+        if (c == null) return null;
+        long count = c.count;
+        long i = numero - c.base;
+        if (i < 0 || i >= count) return null;
+        MappedByteBuffer m = c.map;
+        String huella = huella(m, slot(i));
+        if (huella == null) return null;
+        String encadenado = i == 0
+                ? (m.getInt(24) == 0 ? "INIT" : huella(m, 32))
+                : huella(m, slot(i - 1));
+        return new Registro(key, numero, huella, encadenado);
+    }
+
+    /** Registro con este idFactura, o null. */
+    public Registro get(String idFactura) {
+        byte[] id = idFactura.getBytes(StandardCharsets.UTF_8);
+        String key;
+        long numero;
+        lock.lock();
+        try {
+            int at = find(id, hash(id));
+            if (at < 0) return null;
+            ByteBuffer b = idsMap.duplicate();
+            b.position(idOffsets[at] + RECORD_HEADER);
+            b.position(b.position() + 2 + b.getShort());
+            byte[] k = new byte[b.getShort()];
+            b.get(k);
+            key = new String(k, StandardCharsets.UTF_8);
+            numero = b.getLong();
+        } finally {
+            lock.unlock();
+        }
+        return get(key, numero);
+    }
+
+    /**
+     * Indexa un registro recién encadenado, antes de avanzar la cadena. Se llama con el lock de la
+     * cadena tomado y con números consecutivos.
+     *
+     * @throws ResponseStatusException 409 si {@code idFactura} ya está indexado con otro registro
+     *         (p. ej. registrado a la vez en otra serie); no se indexa nada
+     */
+    public void put(String key, long numero, String huella, String encadenado, String idFactura) throws IOException {
+        byte[] h = decode(huella);
+        lock.lock();
+        try {
+            ensureOpen();
+            if (idFactura != null) checkId(idFactura, key, numero);
+            Chain c = chains.get(key);
+            if (c == null) {
+                c = createChain(key, numero, encadenado);
+                chains.put(key, c);
+            }
+            long i = numero - c.base;
+            if (i < 0) throw new IllegalStateException("Registro VeriFactu anterior al índice: " + key + " " + numero);
+            ensureSlots(c, i + 1);
+            // Un salto deja huecos a cero (= desconocidos); un número ya indexado sólo se repite si su
+            // registro no llegó a la cadena (fallo a mitad) y se sobrescribe
+            c.map.put((int) slot(i), h);
+            if (i >= c.count) c.count = i + 1;
+            c.dirtyFrom = Math.min(c.dirtyFrom, i);
+            dirty.add(c);
+            if (idFactura != null) putId(idFactura, key, numero);
+            appendedSeq++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Último registro de cada cadena, para recuperar el estado si el diario se quedó atrás. */
+    public Map<String, ChainJournal.Entry> last() {
+        Map<String, ChainJournal.Entry> out = new HashMap<>();
+        for (Chain c : chains.values()) {
+            if (c.count == 0) continue;
+            String huella = huella(c.map, slot(c.count - 1));
+            if (huella != null) out.put(c.key, new ChainJournal.Entry(c.key, c.base + c.count - 1, huella));
+        }
+        return out;
+    }
+
+    /** Bloquea hasta que todo lo indexado antes de la llamada esté en disco. */
+    public void awaitDurable() throws IOException {
+        lock.lock();
+        try {
+            long seq = appendedSeq;
+            while (durableSeq < seq) {
+                ensureOpen();
+                if (flushing) {
+                    flushDone.awaitUninterruptibly();
+                    continue;
+                }
+                // Líder: vuelca todas las cadenas tocadas y el log de ids de una vez
+                flushing = true;
+                long targetSeq = appendedSeq;
+                List<Chain> toFlush = new ArrayList<>(dirty);
+                long[] from = new long[toFlush.size()];
+                long[] counts = new long[toFlush.size()];
+                for (int i = 0; i < counts.length; i++) {
+                    Chain c = toFlush.get(i);
+                    from[i] = c.dirtyFrom;
+                    counts[i] = c.count;
+                    c.dirtyFrom = Long.MAX_VALUE;
+                }
+                dirty.clear();
+                int idsFrom = idsDurablePos;
+                int idsTo = idsWritePos;
+                MappedByteBuffer ids = idsMap;
+                boolean ok = false;
+                lock.unlock();
+                try {
+                    for (int i = 0; i < counts.length; i++) {
+                        MappedByteBuffer m = toFlush.get(i).map;
+                        if (counts[i] > from[i]) m.force((int) slot(from[i]), (int) (slot(counts[i]) - slot(from[i])));
+                    }
+                    if (idsTo > idsFrom) ids.force(idsFrom, idsTo - idsFrom);
+                    ok = true;
+                } finally {
+                    lock.lock();
+                    flushing = false;
+                    flushDone.signalAll();
+                    if (!ok) {
+                        for (int i = 0; i < counts.length; i++) {
+                            Chain c = toFlush.get(i);
+                            c.dirtyFrom = Math.min(c.dirtyFrom, from[i]);
+                            dirty.add(c);
+                        }
+                    }
+                }
+                if (targetSeq > durableSeq) durableSeq = targetSeq;
+                idsDurablePos = Math.max(idsDurablePos, idsTo);
+            }
+        } catch (java.io.UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            while (flushing) flushDone.awaitUninterruptibly();
+            closed = true;
+            for (Chain c : chains.values()) {
+                c.map.force();
+                c.channel.close();
+            }
+            idsMap.force();
+            idsChannel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ---- cadenas ----
+
+    private static long slot(long i) {
+        return CHAIN_HEADER + i * HUELLA;
+    }
+
+    private Chain createChain(String key, long base, String anterior) throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        if (k.length > CHAIN_HEADER - KEY_OFFSET) {
+            throw new IllegalArgumentException("Serie VeriFactu demasiado larga para el índice: " + key);
+        }
+        Path p = dir.resolve(fileName(key));
+        FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE, 0, slot(INITIAL_SLOTS));
+        m.putInt(0, CHAIN_MAGIC);
+        m.putInt(4, k.length);
+        m.putLong(8, base);
+        m.putLong(16, 0L);
+        boolean conAnterior = anterior != null && !"INIT".equals(anterior);
+        m.putInt(24, conAnterior ? 1 : 0);
+        if (conAnterior) m.put(32, decode(anterior));
+        m.put(KEY_OFFSET, k);
+        // La cadena nueva debe estar en disco antes que cualquier registro que apunte a ella
+        m.force(0, CHAIN_HEADER);
+        return new Chain(key, ch, m, base, 0L);
+    }
+
+    private static Chain openChain(Path p) throws IOException {
+        FileChannel ch = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = ch.size();
+        if (size < CHAIN_HEADER || size > Integer.MAX_VALUE) {
+            ch.close();
+            throw new IllegalStateException("Índice VeriFactu corrupto: " + p);
+        }
+        MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        int keyLen = m.getInt(4);
+        if (m.getInt(0) != CHAIN_MAGIC || keyLen <= 0 || keyLen > CHAIN_HEADER - KEY_OFFSET) {
+            ch.close();
+            throw new IllegalStateException("Índice VeriFactu corrupto: " + p);
+        }
+        byte[] k = new byte[keyLen];
+        m.get(KEY_OFFSET, k);
+        long count = (size - CHAIN_HEADER) / HUELLA;
+        while (count > 0 && blank(m, slot(count - 1))) count--;
+        return new Chain(new String(k, StandardCharsets.UTF_8), ch, m, m.getLong(8), count);
+    }
+
+    private static void ensureSlots(Chain c, long slots) throws IOException {
+        if (slot(slots) <= c.map.capacity()) return;
+        long newSize = Math.max((long) c.map.capacity() * 2, slot(slots));
+        if (newSize > Integer.MAX_VALUE) throw new IOException("Cadena VeriFactu demasiado grande para el índice: " + c.key);
+        // Los lectores con el mapa anterior siguen viendo las mismas páginas del fichero
+        c.map = c.channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    /** Huella en base64url del hueco en {@code pos}; null si está a cero (desconocida). */
+    private static String huella(MappedByteBuffer m, long pos) {
+        if (blank(m, pos)) return null;
+        byte[] h = new byte[HUELLA];
+        m.get((int) pos, h);
+        return B64URL.encodeToString(h);
+    }
+
+    private static boolean blank(MappedByteBuffer m, long pos) {
+        int p = (int) pos;
+        return (m.getLong(p) | m.getLong(p + 8) | m.getLong(p + 16) | m.getLong(p + 24)) == 0;
+    }
+
+    private static byte[] decode(String huella) {
+        byte[] h = B64URL_DEC.decode(huella);
+        if (h.length != HUELLA) throw new IllegalArgumentException("Huella VeriFactu inválida: " + huella);
+        return h;
+    }
+
+    private static String fileName(String key) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(d, 0, 16) + CHAIN_SUFFIX;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ---- ids de factura ----
+
+    /** 409 si el id ya apunta a otro registro; el mismo (reintento tras un fallo a mitad) vale. */
+    private void checkId(String idFactura, String key, long numero) {
+        byte[] id = idFactura.getBytes(StandardCharsets.UTF_8);
+        int at = find(id, hash(id));
+        if (at < 0) return;
+        ByteBuffer b = idsMap.duplicate();
+        b.position(idOffsets[at] + RECORD_HEADER);
+        b.position(b.position() + 2 + b.getShort());
+        byte[] k = new byte[b.getShort()];
+        b.get(k);
+        String registrada = new String(k, StandardCharsets.UTF_8);
+        long n = b.getLong();
+        if (!registrada.equals(key) || n != numero) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT,
+                    "idFactura ya registrado en " + registrada + " con el número " + n);
+        }
+    }
+
+    private void putId(String idFactura, String key, long numero) throws IOException {
+        byte[] id = idFactura.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(id);
+        if (find(id, hash) >= 0) return;
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int payload = 2 + id.length + 2 + k.length + 8;
+        if (id.length > Short.MAX_VALUE) throw new IllegalArgumentException("idFactura demasiado largo");
+
+        if (idsWritePos + RECORD_HEADER + payload > idsMap.capacity()) {
+            long newSize = Math.max((long) idsMap.capacity() * 2, (long) idsWritePos + RECORD_HEADER + payload);
+            if (newSize > Integer.MAX_VALUE) throw new IOException("Log de ids VeriFactu demasiado grande");
+            idsMap = idsChannel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+        }
+        ByteBuffer rec = ByteBuffer.allocate(payload);
+        rec.putShort((short) id.length).put(id).putShort((short) k.length).put(k).putLong(numero);
+        CRC32C crc = new CRC32C();
+        crc.update(rec.array(), 0, payload);
+        idsMap.putInt(idsWritePos + 4, (int) crc.getValue());
+        idsMap.put(idsWritePos + RECORD_HEADER, rec.array(), 0, payload);
+        idsMap.putInt(idsWritePos, payload);
+        insert(hash, idsWritePos);
+        idsWritePos += RECORD_HEADER + payload;
+    }
+
+    /** Posición en la tabla del id, o -1. */
+    private int find(byte[] id, long hash) {
+        int mask = idHashes.length - 1;
+        for (int i = mix(hash) & mask; idHashes[i] != 0; i = (i + 1) & mask) {
+            if (idHashes[i] == hash && sameId(idOffsets[i], id)) return i;
+        }
+        return -1;
+    }
+
+    private boolean sameId(int offset, byte[] id) {
+        int pos = offset + RECORD_HEADER;
+        if (idsMap.getShort(pos) != id.length) return false;
+        for (int j = 0; j < id.length; j++) {
+            if (idsMap.get(pos + 2 + j) != id[j]) return false;
+        }
+        return true;
+    }
+
+    private void insert(long hash, int offset) {
+        if ((idCount + 1) * 2 > idHashes.length) {
+            long[] oldHashes = idHashes;
+            int[] oldOffsets = idOffsets;
+            idHashes = new long[oldHashes.length * 2];
+            idOffsets = new int[oldHashes.length * 2];
+            idCount = 0;
+            for (int i = 0; i < oldHashes.length; i++) {
+                if (oldHashes[i] != 0) insert(oldHashes[i], oldOffsets[i]);
+            }
+        }
+        int mask = idHashes.length - 1;
+        int i = mix(hash) & mask;
+        while (idHashes[i] != 0) i = (i + 1) & mask;
+        idHashes[i] = hash;
+        idOffsets[i] = offset;
+        idCount++;
+    }
+
+    /** FNV-1a de 64 bits; 0 se reserva para hueco libre. */
+    private static long hash(byte[] id) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : id) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    private static int mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private void recoverIds(Path idsPath) throws IOException {
+        long size = idsChannel.size();
+        idsMap = idsChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_IDS_MAP));
+        if (size < IDS_HEADER || idsMap.getInt(0) != IDS_MAGIC) {
+            if (size >= IDS_HEADER && idsMap.getInt(0) != 0) {
+                throw new IllegalStateException("Log de ids VeriFactu corrupto: " + idsPath);
+            }
+            idsMap.putInt(0, IDS_MAGIC);
+            idsMap.force();
+            idsWritePos = IDS_HEADER;
+            idsDurablePos = IDS_HEADER;
+            return;
+        }
+        int pos = IDS_HEADER;
+        int limit = idsMap.capacity();
+        while (pos + RECORD_HEADER <= limit) {
+            int len = idsMap.getInt(pos);
+            if (len <= 0 || pos + RECORD_HEADER + len > limit) break;
+            byte[] payload = new byte[len];
+            idsMap.get(pos + RECORD_HEADER, payload);
+            CRC32C crc = new CRC32C();
+            crc.update(payload);
+            if ((int) crc.getValue() != idsMap.getInt(pos + 4)) break; // cola rota
+            byte[] id = Arrays.copyOfRange(payload, 2, 2 + ByteBuffer.wrap(payload).getShort());
+            long hash = hash(id);
+            if (find(id, hash) < 0) insert(hash, pos);
+            pos += RECORD_HEADER + len;
+        }
+        for (int i = pos; i < limit && i < size; i++) idsMap.put(i, (byte) 0);
+        idsWritePos = pos;
+        idsDurablePos = pos;
+        idsMap.force();
+    }
+
+    private void ensureOpen() {
+        if (closed) throw new IllegalStateException("Índice VeriFactu cerrado");
+    }
+}
@@ -2,47 +2,232 @@ package com.clientum.signer.verifactu;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
+import java.io.IOException;
 import java.time.LocalDate;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Cadenas VeriFactu por serie-ejercicio. Cada cadena tiene su propio lock: dentro de una
+ * serie los registros quedan estrictamente ordenados (sin números repetidos ni bifurcaciones)
+ * y series distintas avanzan en paralelo. Debe existir una única instancia (bean).
+ *
+ * Cada registro queda en {@link RecordIndex} por (serie, ejercicio, numero) y, si la factura trae
+ * {@code idFactura}, por ese id: un reintento con el mismo idFactura devuelve el registro original
+ * en vez de avanzar la cadena, y el QR se regenera sin volver a registrar.
+ *
+ * En clúster ({@link ChainCluster}) cada cadena la atiende un solo nodo: el que la recibe la toma
+ * con {@link #adoptar} y el anterior la cede con {@link #ceder}; una cadena cedida no registra (503).
+ *
+ * Métricas: verifactu.registro.phase{operation=registro|masivo, phase=lock|hash|journal|fsync|total}.
+ */
+@Service
 public class VerifactuService {
 
     private final ObjectMapper mapper = new ObjectMapper();
-    // Estado por serie-ejercicio (para demo/homologación en memoria)
+    // Estado por serie-ejercicio; con diario, se recupera al arrancar y cada avance se persiste
     private final Map<String, ChainState> chains = new ConcurrentHashMap<>();
+    private final ChainJournal journal;
+    private final RecordIndex index;
+
+    private enum Fase { LOCK, HASH, JOURNAL, FSYNC, TOTAL }
+    private final Timer[] registroTimers = timers("registro");
+    private final Timer[] masivoTimers = timers("masivo");
+
+    /** Sólo en memoria y sin índice (demo/homologación): no hay búsquedas ni idempotencia. */
+    public VerifactuService() {
+        this(null, null);
+    }
+
+    @Autowired
+    public VerifactuService(ChainJournal journal, RecordIndex index) {
+        this.journal = journal;
+        this.index = index;
+        if (journal != null) {
+            for (ChainJournal.Entry e : journal.entries().values()) {
+                ChainState st = new ChainState();
+                st.ultimoNumero = e.numero();
+                st.ultimaHuella = e.huella();
+                chains.put(e.key(), st);
+            }
+        }
+        if (index != null) {
+            // El índice se sincroniza antes que el diario: tras una caída puede ir por delante
+            long seq = 0L;
+            String lastKey = null;
+            for (ChainJournal.Entry e : index.last().values()) {
+                ChainState st = chains.computeIfAbsent(e.key(), k -> new ChainState());
+                if (e.numero() <= st.ultimoNumero) continue;
+                st.ultimoNumero = e.numero();
+                st.ultimaHuella = e.huella();
+                seq = append(e.key(), e.numero(), e.huella());
+                lastKey = e.key();
+            }
+            if (lastKey != null) awaitDurable(lastKey, seq);
+        }
+    }
 
     public static class ChainState {
+        // ReentrantLock y no synchronized: no bloquea el carrier con hilos virtuales
+        final ReentrantLock lock = new ReentrantLock();
         public long ultimoNumero = 0L;
         public String ultimaHuella = "INIT";
+        // Clúster: nodo al que se ha cedido (no registra) y si este nodo la ha tomado
+        volatile String cedidaA;
+        volatile boolean propia;
+        int cesiones;
     }
 
     public static class RegistroResult {
         public final long numero;
         public final String huella;
         public final String encadenado;
+        /** true si ya estaba registrado (reintento con el mismo idFactura o consulta). */
+        public final boolean existente;
+        /** Registro masivo: por qué esta factura no se registró (409, 503...); null si se registró. */
+        public final ResponseStatusException error;
 
         public RegistroResult(long numero, String huella, String encadenado) {
+            this(numero, huella, encadenado, false);
+        }
+
+        public RegistroResult(long numero, String huella, String encadenado, boolean existente) {
+            this(numero, huella, encadenado, existente, null);
+        }
+
+        private RegistroResult(long numero, String huella, String encadenado, boolean existente,
+                               ResponseStatusException error) {
             this.numero = numero;
             this.huella = huella;
             this.encadenado = encadenado;
+            this.existente = existente;
+            this.error = error;
+        }
+
+        static RegistroResult fallido(ResponseStatusException error) {
+            return new RegistroResult(0L, null, null, false, error);
         }
     }
 
+    /**
+     * Respuesta de {@link #ceder}: último estado de la cadena aquí, si este nodo la tenía
+     * ({@code propia}) y a qué nodo la había cedido antes (null si a ninguno).
+     */
+    public record Cesion(long numero, String huella, boolean propia, String cedidaA) { }
+
     private String key(String serie, int ejercicio) {
         return serie + ":" + ejercicio;
     }
 
+    /** Cadena (serie:ejercicio) de la factura, con los mismos valores por defecto que el registro. */
+    public String cadena(Map<String, Object> factura) {
+        String serie = String.valueOf(factura.getOrDefault("serie", "A"));
+        int ejercicio = (int) factura.getOrDefault("ejercicio", LocalDate.now().getYear());
+        return key(serie, ejercicio);
+    }
+
+    /** true si este nodo ha tomado la cadena con {@link #adoptar} y no la ha cedido después. */
+    public boolean propia(String key) {
+        ChainState st = chains.get(key);
+        return st != null && st.propia && st.cedidaA == null;
+    }
+
+    /**
+     * Cede la cadena a {@code nodo}: desde ahora no registra aquí. Se toma el lock, así que un
+     * registro en curso termina antes y queda incluido en el estado devuelto.
+     */
+    public Cesion ceder(String key, String nodo) {
+        ChainState st = chains.computeIfAbsent(key, k -> new ChainState());
+        st.lock.lock();
+        try {
+            Cesion c = new Cesion(st.ultimoNumero, st.ultimaHuella, st.propia && st.cedidaA == null, st.cedidaA);
+            st.cedidaA = nodo;
+            st.propia = false;
+            st.cesiones++;
+            return c;
+        } finally {
+            st.lock.unlock();
+        }
+    }
+
+    /**
+     * Toma la cadena con el último estado conocido en el clúster: si va por delante del local, se
+     * adopta y se persiste antes de registrar nada.
+     */
+    public void adoptar(String key, long numero, String huella) {
+        ChainState st = chains.computeIfAbsent(key, k -> new ChainState());
+        long seq = 0L;
+        boolean avanza = false;
+        int cesiones;
+        st.lock.lock();
+        try {
+            cesiones = st.cesiones;
+            if (numero > st.ultimoNumero) {
+                st.ultimoNumero = numero;
+                st.ultimaHuella = huella;
+                seq = append(key, numero, huella);
+                avanza = true;
+            }
+        } finally {
+            st.lock.unlock();
+        }
+        if (avanza) awaitDurable(key, seq);
+        st.lock.lock();
+        try {
+            // Si otro nodo la ha pedido mientras tanto, sigue cedida y habrá que volver a tomarla
+            if (st.cesiones == cesiones) {
+                st.cedidaA = null;
+                st.propia = true;
+            }
+        } finally {
+            st.lock.unlock();
+        }
+    }
+
+    private static void noCedida(ChainState st, String key) {
+        if (st.cedidaA != null) throw cedida(st, key);
+    }
+
+    private static ChainUnavailableException cedida(ChainState st, String key) {
+        return new ChainUnavailableException("La cadena " + key + " la atiende ahora " + st.cedidaA, 1);
+    }
+
     public RegistroResult generarRegistro(Map<String, Object> factura) {
+        return generarRegistro(null, factura);
+    }
+
+    /**
+     * Registra la factura, salvo que su {@code idFactura} ya esté registrado: entonces devuelve el
+     * registro original (409 si los datos no coinciden con los registrados).
+     *
+     * @param ambito espacio de nombres de idFactura (p. ej. el tenant); null = global
+     */
+    public RegistroResult generarRegistro(String ambito, Map<String, Object> factura) {
         String serie = String.valueOf(factura.getOrDefault("serie", "A"));
         int ejercicio = (int) factura.getOrDefault("ejercicio", LocalDate.now().getYear());
+        String id = idFactura(ambito, factura);
+        if (id != null) {
+            RegistroResult previo = registrado(id, factura);
+            if (previo != null) return durable(previo);
+        }
 
-        ChainState st = chains.computeIfAbsent(key(serie, ejercicio), k -> new ChainState());
-        long siguiente = st.ultimoNumero + 1;
+        String key = key(serie, ejercicio);
+        ChainState st = chains.computeIfAbsent(key, k -> new ChainState());
 
         // Campos base (ajusta si tu payload usa otros nombres)
         String emisorNif   = String.valueOf(factura.getOrDefault("emisorNif", ""));
@@ -50,22 +235,171 @@ public class VerifactuService {
         String fecha       = String.valueOf(factura.getOrDefault("fecha", LocalDate.now().toString()));
         String total       = String.valueOf(factura.getOrDefault("total", "0.00"));
 
-        // Cadena canónica simple para la huella (orden estable y sin espacios)
-        String canon = String.join("|",
-                emisorNif, receptorNif, serie, String.valueOf(siguiente), String.valueOf(ejercicio), fecha, total
-        );
+        long siguiente = 0L;
+        String huella = null;
+        String encadenado = null;
+        long seq = 0L;
+        RegistroResult previo = null;
+        long t0 = System.nanoTime();
+        st.lock.lock();
+        try {
+            long t = record(registroTimers, Fase.LOCK, t0);
+            noCedida(st, key);
+            // Un reintento concurrente puede haber llegado antes al lock
+            previo = id == null ? null : registrado(id, factura);
+            if (previo == null) {
+                siguiente = st.ultimoNumero + 1;
 
-        String base = canon + "|" + st.ultimaHuella;
-        String huella = sha256b64url(base);
-        String encadenado = st.ultimaHuella; // por transparencia devolvemos también la anterior
+                // Cadena canónica simple para la huella (orden estable y sin espacios), ver ChainHasher
+                huella = new ChainHasher().huella(emisorNif, receptorNif, serie, siguiente, ejercicio, fecha, total,
+                        st.ultimaHuella);
+                encadenado = st.ultimaHuella; // por transparencia devolvemos también la anterior
+                t = record(registroTimers, Fase.HASH, t);
 
-        // Avanza estado
-        st.ultimoNumero = siguiente;
-        st.ultimaHuella = huella;
+                // Avanza estado; el orden en el diario es el mismo que en la cadena
+                indexar(key, siguiente, huella, encadenado, id);
+                st.ultimoNumero = siguiente;
+                st.ultimaHuella = huella;
+                seq = append(key, siguiente, huella);
+                record(registroTimers, Fase.JOURNAL, t);
+            }
+        } finally {
+            st.lock.unlock();
+        }
+        if (previo != null) return durable(previo);
+        // El fsync se espera fuera del lock para que varios registros de la misma serie compartan uno
+        record(registroTimers, Fase.FSYNC, awaitDurable(key, seq));
+        record(registroTimers, Fase.TOTAL, t0);
 
         return new RegistroResult(siguiente, huella, encadenado);
     }
 
+    /**
+     * Registro masivo: las facturas se agrupan por serie-ejercicio conservando su orden y cada
+     * cadena se toma una sola vez para reservar todo el rango de números. Se persiste sólo el
+     * estado final de cada cadena y se espera un único fsync para todo el lote. Las facturas con un
+     * idFactura ya registrado (o repetido en el lote) no avanzan la cadena.
+     *
+     * Una factura que no se puede registrar (409: idFactura con otros datos o en otra cadena; 503:
+     * cadena cedida a otro nodo) no corta el lote: su resultado lleva {@link RegistroResult#error} y
+     * el resto se registra y persiste igual.
+     *
+     * @return un resultado por factura, en el mismo orden que {@code facturas}
+     */
+    public List<RegistroResult> generarRegistros(List<Map<String, Object>> facturas) {
+        return generarRegistros(null, facturas);
+    }
+
+    /** Como {@link #generarRegistros(List)}, con idFactura en el espacio de nombres {@code ambito}. */
+    public List<RegistroResult> generarRegistros(String ambito, List<Map<String, Object>> facturas) {
+        // Valores por defecto calculados una vez: LocalDate.now() por factura domina el bucle
+        LocalDate hoy = LocalDate.now();
+        Object anio = hoy.getYear();
+        String fechaHoy = hoy.toString();
+
+        Map<String, List<Integer>> grupos = new LinkedHashMap<>();
+        for (int i = 0; i < facturas.size(); i++) {
+            Map<String, Object> f = facturas.get(i);
+            String serie = String.valueOf(f.getOrDefault("serie", "A"));
+            int ejercicio = (int) f.getOrDefault("ejercicio", anio);
+            grupos.computeIfAbsent(key(serie, ejercicio), k -> new ArrayList<>()).add(i);
+        }
+
+        RegistroResult[] out = new RegistroResult[facturas.size()];
+        Map<String, Integer> idsLote = new HashMap<>();
+        ChainHasher hasher = new ChainHasher();
+        long seq = 0L;
+        String lastKey = null;
+        long t0 = System.nanoTime();
+        long lockNanos = 0L;
+        long hashNanos = 0L;
+        long journalNanos = 0L;
+
+        for (Map.Entry<String, List<Integer>> g : grupos.entrySet()) {
+            String key = g.getKey();
+            List<Integer> idx = g.getValue();
+            Map<String, Object> primera = facturas.get(idx.get(0));
+            String serie = String.valueOf(primera.getOrDefault("serie", "A"));
+            int ejercicio = (int) primera.getOrDefault("ejercicio", anio);
+
+            ChainState st = chains.computeIfAbsent(key, k -> new ChainState());
+            long t = System.nanoTime();
+            st.lock.lock();
+            try {
+                long t1 = System.nanoTime();
+                lockNanos += t1 - t;
+                if (st.cedidaA != null) {
+                    RegistroResult noDisponible = RegistroResult.fallido(cedida(st, key));
+                    for (int i : idx) out[i] = noDisponible;
+                    continue;
+                }
+                long numero = st.ultimoNumero;
+                long primerNumero = numero;
+                String anterior = st.ultimaHuella;
+                for (int i : idx) {
+                    Map<String, Object> f = facturas.get(i);
+                    String id = idFactura(ambito, f);
+                    if (id != null) {
+                        // Un conflicto no corta el grupo: lo ya indexado debe quedar en el estado de la cadena
+                        Integer primeraVez = idsLote.putIfAbsent(id, i);
+                        try {
+                            RegistroResult previo = primeraVez != null && out[primeraVez] != null
+                                    && out[primeraVez].error == null
+                                    ? comprobado(out[primeraVez], f)
+                                    : registrado(id, f);
+                            if (previo != null) {
+                                out[i] = previo;
+                                continue;
+                            }
+                        } catch (ResponseStatusException ex) {
+                            out[i] = RegistroResult.fallido(ex);
+                            continue;
+                        }
+                    }
+                    long siguiente = numero + 1;
+                    String huella = hasher.huella(
+                            String.valueOf(f.getOrDefault("emisorNif", "")),
+                            String.valueOf(f.getOrDefault("receptorNif", "")),
+                            serie, siguiente, ejercicio,
+                            String.valueOf(f.getOrDefault("fecha", fechaHoy)),
+                            String.valueOf(f.getOrDefault("total", "0.00")),
+                            anterior);
+                    try {
+                        indexar(key, siguiente, huella, anterior, id);
+                    } catch (ResponseStatusException ex) {
+                        // idFactura registrado a la vez en otra cadena: esta no avanza
+                        out[i] = RegistroResult.fallido(ex);
+                        continue;
+                    }
+                    numero = siguiente;
+                    out[i] = new RegistroResult(numero, huella, anterior);
+                    // Al avanzar de uno en uno, un fallo a mitad deja la cadena en lo ya indexado
+                    st.ultimoNumero = numero;
+                    st.ultimaHuella = huella;
+                    anterior = huella;
+                }
+                long t2 = System.nanoTime();
+                hashNanos += t2 - t1;
+                if (numero > primerNumero) {
+                    seq = append(key, numero, anterior);
+                    lastKey = key;
+                }
+                journalNanos += System.nanoTime() - t2;
+            } finally {
+                st.lock.unlock();
+            }
+        }
+        // Las secuencias del diario son crecientes: esperar la última cubre todas las cadenas
+        // Sin registros nuevos (sólo reintentos) basta con que los originales estén en el índice
+        if (lastKey != null) record(masivoTimers, Fase.FSYNC, awaitDurable(lastKey, seq));
+        else awaitIndex();
+        masivoTimers[Fase.LOCK.ordinal()].record(lockNanos, TimeUnit.NANOSECONDS);
+        masivoTimers[Fase.HASH.ordinal()].record(hashNanos, TimeUnit.NANOSECONDS);
+        masivoTimers[Fase.JOURNAL.ordinal()].record(journalNanos, TimeUnit.NANOSECONDS);
+        record(masivoTimers, Fase.TOTAL, t0);
+        return Arrays.asList(out);
+    }
+
     public String generarQrCsv(Map<String, Object> factura, RegistroResult rr) {
         // Construye una cadena QR/CSV mínima con datos clave + huella
         // Formato libre para demo: VERIFACTU;NIF;SERIE;NUM;EJERCICIO;FECHA;TOTAL;HUELLA
@@ -87,16 +421,152 @@ public class VerifactuService {
         );
     }
 
-    private static String sha256b64url(String s) {
+    /**
+     * Registro ya emitido para esta factura, sin tocar la cadena: por {@code idFactura} o, si no
+     * lo trae, por serie/ejercicio/numero. Búsqueda O(1) en {@link RecordIndex}.
+     *
+     * @return null si no está registrado (o no hay índice)
+     * @throws ResponseStatusException 409 si los datos de la factura no son los registrados
+     */
+    public RegistroResult consultar(String ambito, Map<String, Object> factura) {
+        if (index == null) return null;
+        String id = idFactura(ambito, factura);
+        Object numero = factura.get("numero");
+        long n = 0L;
+        if (numero != null) {
+            try {
+                n = Long.parseLong(String.valueOf(numero).trim());
+            } catch (NumberFormatException ex) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "numero inválido: " + numero);
+            }
+        }
+        RegistroResult rr;
+        if (id != null) {
+            rr = registrado(id, factura);
+            if (rr != null && numero != null && rr.numero != n) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT,
+                        "idFactura registrado con el número " + rr.numero);
+            }
+        } else if (numero != null) {
+            String serie = String.valueOf(factura.getOrDefault("serie", "A"));
+            int ejercicio = (int) factura.getOrDefault("ejercicio", LocalDate.now().getYear());
+            RecordIndex.Registro r = index.get(key(serie, ejercicio), n);
+            rr = r == null ? null : comprobado(new RegistroResult(r.numero(), r.huella(), r.encadenado(), true), factura);
+        } else {
+            return null;
+        }
+        return rr == null ? null : durable(rr);
+    }
+
+    /** idFactura de la factura en su espacio de nombres, o null si no trae. */
+    private static String idFactura(String ambito, Map<String, Object> factura) {
+        Object v = factura.get("idFactura");
+        if (v == null || String.valueOf(v).isBlank()) return null;
+        String id = String.valueOf(v).trim();
+        return ambito == null ? id : ambito + '\u001f' + id;
+    }
+
+    /** Registro indexado con este idFactura (comprobado contra la factura) o null. */
+    private RegistroResult registrado(String id, Map<String, Object> factura) {
+        if (index == null) return null;
+        RecordIndex.Registro r = index.get(id);
+        if (r == null) return null;
+        return comprobado(new RegistroResult(r.numero(), r.huella(), r.encadenado(), true), factura);
+    }
+
+    /**
+     * Recalcula la huella con los datos de {@code factura}: si no es la registrada, la factura no
+     * es la misma (otro importe, fecha o serie) y se responde 409 en vez de devolver su QR.
+     */
+    private static RegistroResult comprobado(RegistroResult rr, Map<String, Object> factura) {
+        if (rr.encadenado == null) return rr.existente ? rr : new RegistroResult(rr.numero, rr.huella, null, true);
+        String huella = new ChainHasher().huella(
+                String.valueOf(factura.getOrDefault("emisorNif", "")),
+                String.valueOf(factura.getOrDefault("receptorNif", "")),
+                String.valueOf(factura.getOrDefault("serie", "A")),
+                rr.numero,
+                (int) factura.getOrDefault("ejercicio", LocalDate.now().getYear()),
+                String.valueOf(factura.getOrDefault("fecha", LocalDate.now().toString())),
+                String.valueOf(factura.getOrDefault("total", "0.00")),
+                rr.encadenado);
+        if (!huella.equals(rr.huella)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT,
+                    "La factura " + rr.numero + " está registrada con otros datos");
+        }
+        return rr.existente ? rr : new RegistroResult(rr.numero, rr.huella, rr.encadenado, true);
+    }
+
+    /** Un registro existente sólo se devuelve cuando está en disco (puede venir de otra petición en vuelo). */
+    private RegistroResult durable(RegistroResult rr) {
+        awaitIndex();
+        return rr;
+    }
+
+    private void indexar(String key, long numero, String huella, String encadenado, String id) {
+        if (index == null) return;
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] dig = md.digest(s.getBytes(StandardCharsets.UTF_8));
-            return Base64.getUrlEncoder().withoutPadding().encodeToString(dig);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            index.put(key, numero, huella, encadenado, id);
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo indexar el registro VeriFactu " + key + " " + numero, e);
+        }
+    }
+
+    private void awaitIndex() {
+        if (index == null) return;
+        try {
+            index.awaitDurable();
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo persistir el índice VeriFactu", e);
+        }
+    }
+
+    private long append(String key, long numero, String huella) {
+        if (journal == null) return 0L;
+        try {
+            return journal.append(key, numero, huella);
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo persistir la cadena VeriFactu " + key, e);
+        }
+    }
+
+    /**
+     * No se responde hasta que el nuevo estado está en disco (fsync agrupado con otras peticiones).
+     * @return instante de inicio de la espera, para la métrica
+     */
+    private long awaitDurable(String key, long seq) {
+        long t0 = System.nanoTime();
+        // Índice antes que diario: la cadena nunca queda por delante de lo indexado
+        awaitIndex();
+        if (journal == null) return t0;
+        try {
+            journal.awaitDurable(seq);
+            return t0;
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo persistir la cadena VeriFactu " + key, e);
         }
     }
 
+    private static Timer[] timers(String operation) {
+        Fase[] fases = Fase.values();
+        Timer[] t = new Timer[fases.length];
+        for (Fase f : fases) {
+            t[f.ordinal()] = Timer.builder("verifactu.registro.phase")
+                    .description("Duración de cada fase del registro VeriFactu")
+                    .tag("operation", operation)
+                    .tag("phase", f.name().toLowerCase(Locale.ROOT))
+                    .publishPercentileHistogram()
+                    .register(Metrics.globalRegistry);
+        }
+        return t;
+    }
+
+    /** Registra la fase desde {@code startNanos} y devuelve el instante actual (inicio de la siguiente). */
+    private static long record(Timer[] timers, Fase fase, long startNanos) {
+        long now = System.nanoTime();
+        timers[fase.ordinal()].record(now - startNanos, TimeUnit.NANOSECONDS);
+        return now;
+    }
+
     @SuppressWarnings("unused")
     private String toJson(Object o) {
         try {
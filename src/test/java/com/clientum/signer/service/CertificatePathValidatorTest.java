@@ -0,0 +1,53 @@
+package com.clientum.signer.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Sólo los resultados definitivos se quedan en caché; la revocación indeterminada se reintenta. */
+class CertificatePathValidatorTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void cadenaValidaSeCachea() throws Exception {
+        CertificatePathValidator v = validator(false);
+
+        assertThat(v.validate(List.of(Fixtures.issued("Firmante"))).valid()).isTrue();
+        assertThat(v.cacheSize()).isEqualTo(1);
+    }
+
+    @Test
+    void sinAnclaDeConfianzaEsDefinitivo() throws Exception {
+        // Con el cacerts de la JVM el certificado de prueba no tiene ancla
+        CertificatePathValidator v = new CertificatePathValidator("", "", "PKCS12", false, 3600, 16,
+                new SimpleMeterRegistry());
+        X509Certificate ajeno = (X509Certificate) Fixtures.keyEntry().getCertificate();
+
+        assertThat(v.validate(List.of(ajeno)).valid()).isFalse();
+        assertThat(v.cacheSize()).isEqualTo(1);
+    }
+
+    @Test
+    void revocacionIndeterminadaNoSeCachea() throws Exception {
+        CertificatePathValidator v = validator(true);
+        X509Certificate firmante = Fixtures.issued("Sin CRL ni OCSP");
+
+        CertificatePathValidator.Result r = v.validate(List.of(firmante));
+
+        assertThat(r.valid()).isFalse();
+        assertThat(v.cacheSize()).isZero();
+    }
+
+    private CertificatePathValidator validator(boolean revocation) throws Exception {
+        return new CertificatePathValidator(Fixtures.truststore(dir).toString(), Fixtures.TRUSTSTORE_PASSWORD,
+                "PKCS12", revocation, 3600, 16, new SimpleMeterRegistry());
+    }
+}
@@ -0,0 +1,74 @@
+package com.clientum.signer.service;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+
+/** Clave RSA con certificado autofirmado generada una vez por JVM, y un truststore que confía en él. */
+final class Fixtures {
+
+    static final String TRUSTSTORE_PASSWORD = "prueba";
+
+    private static KeyStore.PrivateKeyEntry entry;
+
+    private Fixtures() { }
+
+    static synchronized KeyStore.PrivateKeyEntry keyEntry() throws Exception {
+        if (entry == null) {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+            kpg.initialize(2048);
+            KeyPair kp = kpg.generateKeyPair();
+            X500Name dn = new X500Name("CN=Clientum Test,O=Clientum,C=ES");
+            Instant now = Instant.now();
+            X509Certificate cert = new JcaX509CertificateConverter().getCertificate(
+                    new JcaX509v3CertificateBuilder(dn, BigInteger.valueOf(now.toEpochMilli()),
+                            Date.from(now.minus(1, ChronoUnit.DAYS)), Date.from(now.plus(30, ChronoUnit.DAYS)),
+                            dn, kp.getPublic())
+                            .build(new JcaContentSignerBuilder("SHA256withRSA").build(kp.getPrivate())));
+            entry = new KeyStore.PrivateKeyEntry(kp.getPrivate(), new Certificate[]{cert});
+        }
+        return entry;
+    }
+
+    /** Certificado de una clave nueva emitido por {@link #keyEntry()}. */
+    static X509Certificate issued(String cn) throws Exception {
+        KeyStore.PrivateKeyEntry issuer = keyEntry();
+        X509Certificate ca = (X509Certificate) issuer.getCertificate();
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(2048);
+        KeyPair kp = kpg.generateKeyPair();
+        Instant now = Instant.now();
+        return new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(X500Name.getInstance(ca.getSubjectX500Principal().getEncoded()),
+                        BigInteger.valueOf(now.toEpochMilli() + 1), Date.from(now.minus(1, ChronoUnit.DAYS)),
+                        Date.from(now.plus(30, ChronoUnit.DAYS)), new X500Name("CN=" + cn + ",O=Clientum,C=ES"),
+                        kp.getPublic())
+                        .build(new JcaContentSignerBuilder("SHA256withRSA").build(issuer.getPrivateKey())));
+    }
+
+    /** PKCS#12 en {@code dir} con el certificado de {@link #keyEntry()} como ancla de confianza. */
+    static Path truststore(Path dir) throws Exception {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        ks.load(null, null);
+        ks.setCertificateEntry("test", keyEntry().getCertificate());
+        Path path = dir.resolve("truststore.p12");
+        try (OutputStream out = Files.newOutputStream(path)) {
+            ks.store(out, TRUSTSTORE_PASSWORD.toCharArray());
+        }
+        return path;
+    }
+}
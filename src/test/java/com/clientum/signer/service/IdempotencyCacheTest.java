@@ -0,0 +1,42 @@
+package com.clientum.signer.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/** Un error al volcar a disco no puede fallar una firma ya hecha. */
+class IdempotencyCacheTest {
+
+    private static final int CUERPO = 600 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void errorDeDiscoNoFallaLaPeticion() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Path cache = dir.resolve("cache");
+        IdempotencyCache c = new IdempotencyCache(1, 1, 600, true, cache.toString(), 16, registry);
+        // El directorio deja de serlo: cualquier escritura en él falla
+        Files.delete(cache);
+        Files.writeString(cache, "no es un directorio");
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        for (int i = 0; i < 3; i++) {
+            byte[] body = new byte[CUERPO];
+            body[0] = (byte) i;
+            IdempotencyCache.Result r = c.execute(request, "clave-" + i, "/api/sign", CUERPO,
+                    () -> body.clone(), () -> new IdempotencyCache.Result(body, "rsa-sha256"));
+            assertThat(r.body()).isSameAs(body);
+            assertThat(r.replayed()).isFalse();
+        }
+        // Las dos primeras salieron de memoria y no se pudieron volcar
+        assertThat(registry.get("signer.idempotency.disk.errors").counter().count()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,152 @@
+package com.clientum.signer.service;
+
+import com.clientum.signer.api.dto.VerifyResponse;
+import com.clientum.signer.crypto.XmlPools;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Una firma sólo es válida si cubre el documento entero: las que firman un elemento suelto
+ * ("signature wrapping") o apuntan a un Id repetido se rechazan aunque SignatureValue y
+ * referencias cuadren.
+ */
+class SignatureVerifierTest {
+
+    private static final String XML = "<factura Id=\"raiz\"><importe>100.00</importe>"
+            + "<detalle Id=\"pequeno\">x</detalle></factura>";
+
+    @TempDir
+    Path dir;
+
+    private ExecutorService executor;
+    private SignatureVerifier verifier;
+
+    @BeforeEach
+    void crear() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        CertificatePathValidator pkix = new CertificatePathValidator(Fixtures.truststore(dir).toString(),
+                Fixtures.TRUSTSTORE_PASSWORD, "PKCS12", false, 3600, 16, registry);
+        executor = Executors.newFixedThreadPool(2);
+        verifier = new SignatureVerifier(pkix, new SigningBulkhead(2, 16, 5000, registry), executor);
+    }
+
+    @AfterEach
+    void cerrar() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void firmaEnvelopedDelDocumentoCompleto() throws Exception {
+        String signed = new XmlSigner().signXml(XML, Fixtures.keyEntry());
+
+        VerifyResponse res = verifier.verify(signed.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(res.isValid()).as(res.getSignatures().toString()).isTrue();
+        assertThat(res.getSignatures().get(0).getChainValid()).isTrue();
+    }
+
+    @Test
+    void documentoModificadoNoEsValido() throws Exception {
+        String signed = new XmlSigner().signXml(XML, Fixtures.keyEntry());
+
+        VerifyResponse res = verifier.verify(signed.replace("100.00", "1.00").getBytes(StandardCharsets.UTF_8));
+
+        assertThat(res.isValid()).isFalse();
+        assertThat(res.getSignatures().get(0).isReferencesValid()).isFalse();
+    }
+
+    @Test
+    void referenciaAlElementoRaizPorIdCubreElDocumento() throws Exception {
+        VerifyResponse res = verifier.verify(firmar(XML, "#raiz"));
+
+        assertThat(res.isValid()).isTrue();
+    }
+
+    @Test
+    void firmaDeUnElementoSueltoNoCubreElDocumento() throws Exception {
+        String signed = new String(firmar(XML, "#pequeno"), StandardCharsets.UTF_8);
+
+        // El importe no está firmado: se puede cambiar sin romper SignatureValue ni referencias
+        VerifyResponse res = verifier.verify(signed.replace("100.00", "1.00").getBytes(StandardCharsets.UTF_8));
+
+        VerifyResponse.SignatureResult sr = res.getSignatures().get(0);
+        assertThat(sr.isSignatureValueValid()).isTrue();
+        assertThat(sr.isReferencesValid()).isTrue();
+        assertThat(sr.isValid()).isFalse();
+        assertThat(sr.getError()).contains("no cubre el documento");
+        assertThat(res.isValid()).isFalse();
+    }
+
+    @Test
+    void idReferenciadoRepetidoSeRechaza() throws Exception {
+        String signed = new String(firmar(XML, "#raiz"), StandardCharsets.UTF_8);
+        String duplicado = signed.replace("<importe>", "<otro Id=\"raiz\"/><importe>");
+
+        VerifyResponse res = verifier.verify(duplicado.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(res.isValid()).isFalse();
+        assertThat(res.getSignatures().get(0).getError()).contains("Id duplicado");
+    }
+
+    /** Firma con JSR-105 una única Reference a {@code uri}, con la ds:Signature dentro de la raíz. */
+    private static byte[] firmar(String xml, String uri) throws Exception {
+        Document doc;
+        try (var db = XmlPools.documentBuilder()) {
+            doc = db.get().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        }
+        KeyStore.PrivateKeyEntry entry = Fixtures.keyEntry();
+        XMLSignatureFactory fac = XMLSignatureFactory.getInstance("DOM");
+        Reference ref = fac.newReference(uri, fac.newDigestMethod(DigestMethod.SHA256, null),
+                List.of(fac.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null),
+                        fac.newTransform(CanonicalizationMethod.EXCLUSIVE, (TransformParameterSpec) null)),
+                null, null);
+        SignedInfo si = fac.newSignedInfo(
+                fac.newCanonicalizationMethod(CanonicalizationMethod.EXCLUSIVE, (C14NMethodParameterSpec) null),
+                fac.newSignatureMethod(SignatureMethod.RSA_SHA256, null), List.of(ref));
+        KeyInfoFactory kif = fac.getKeyInfoFactory();
+        var keyInfo = kif.newKeyInfo(List.of(kif.newX509Data(List.of((X509Certificate) entry.getCertificate()))));
+
+        Element root = doc.getDocumentElement();
+        DOMSignContext ctx = new DOMSignContext(entry.getPrivateKey(), root);
+        ctx.setIdAttributeNS(root, null, "Id");
+        Element pequeno = (Element) root.getElementsByTagName("detalle").item(0);
+        ctx.setIdAttributeNS(pequeno, null, "Id");
+        fac.newXMLSignature(si, keyInfo).sign(ctx);
+
+        StringWriter sw = new StringWriter();
+        try (var tf = XmlPools.transformer()) {
+            tf.get().transform(new DOMSource(doc), new StreamResult(sw));
+        }
+        return sw.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,126 @@
+package com.clientum.signer.service;
+
+import com.clientum.signer.api.dto.VerifyResponse;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * El firmador streaming (ExclusiveC14nWriter + StreamingXmlSigner) genera el mismo elemento
+ * Signature que el DOM (Santuario) y su salida la acepta SignatureVerifier, también con
+ * prefijos y espacios de nombres por defecto, muchos atributos con escapes y CDATA.
+ */
+class StreamingXmlSignerTest {
+
+    private static final String NAMESPACES = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<fe:Facturae xmlns:fe=\"http://www.facturae.es/Facturae/2014/v3.2.1/Facturae\""
+            + " xmlns:x=\"urn:x\" xmlns:sinUso=\"urn:sin-uso\">\n"
+            + "  <x:Cabecera x:version=\"3.2.1\">\n"
+            + "    <Lote xmlns=\"urn:por-defecto\"><Numero>1</Numero><x:Total>100.00</x:Total></Lote>\n"
+            + "    <Otro xmlns=\"\">sin espacio de nombres</Otro>\n"
+            + "  </x:Cabecera>\n"
+            + "</fe:Facturae>";
+
+    private static final String ATRIBUTOS = "<factura z=\"3\" a=\"1\" m='comillas \"dobles\"'"
+            + " xmlns:b=\"urn:b\" xmlns:a=\"urn:a\" b:y=\"2\" a:y=\"1\">"
+            + "<linea importe=\"1&amp;2 &lt; 3 &gt; 0\" tab=\"a&#9;b\" salto=\"a&#10;b\" retorno=\"a&#13;b\""
+            + " vacio=\"\" nbsp=\"año €\"/>"
+            + "<linea b:importe=\"4\" importe=\"5\"></linea>"
+            + "</factura>";
+
+    private static final String CDATA = "<?xml version=\"1.0\"?>\n"
+            + "<!-- antes de la raíz -->\n"
+            + "<factura>\r\n"
+            + "  <nota><![CDATA[<b>negrita</b> & ]]]]><![CDATA[> cierre]]></nota>\r\n"
+            + "  <texto>1 &lt; 2 &amp;&amp; 3 &gt; 2 &#xD; ]]&gt;</texto>\r\n"
+            + "  <!-- comentario --><?proceso datos?>\n"
+            + "</factura>\n"
+            + "<!-- después de la raíz -->";
+
+    private static final String VACIO = "<factura xmlns=\"urn:factura\" numero=\"7\"/>";
+
+    @TempDir
+    Path dir;
+
+    private ExecutorService executor;
+    private SignatureVerifier verifier;
+
+    @BeforeEach
+    void crear() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        CertificatePathValidator pkix = new CertificatePathValidator(Fixtures.truststore(dir).toString(),
+                Fixtures.TRUSTSTORE_PASSWORD, "PKCS12", false, 3600, 16, registry);
+        executor = Executors.newFixedThreadPool(2);
+        verifier = new SignatureVerifier(pkix, new SigningBulkhead(2, 16, 5000, registry), executor);
+    }
+
+    @AfterEach
+    void cerrar() {
+        executor.shutdownNow();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {NAMESPACES, ATRIBUTOS, CDATA, VACIO})
+    void mismaFirmaQueElDom(String xml) throws Exception {
+        KeyStore.PrivateKeyEntry key = Fixtures.keyEntry();
+
+        String dom = new XmlSigner().signXml(xml, key);
+        String streaming = streaming(xml.getBytes(StandardCharsets.UTF_8), key);
+
+        // RSA PKCS#1 v1.5 es determinista: mismo digest, mismo SignedInfo y mismo SignatureValue
+        assertThat(signature(streaming)).isEqualTo(signature(dom));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {NAMESPACES, ATRIBUTOS, CDATA, VACIO})
+    void verificaLaSalidaStreaming(String xml) throws Exception {
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        String streaming = streaming(bytes, Fixtures.keyEntry());
+
+        VerifyResponse res = verifier.verify(streaming.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(res.isValid()).as(res.getSignatures().toString()).isTrue();
+        // Fuera de la firma, el documento sale tal cual
+        int start = streaming.indexOf("<ds:Signature");
+        int end = streaming.indexOf("</ds:Signature>") + "</ds:Signature>".length();
+        String resto = streaming.substring(0, start) + streaming.substring(end);
+        assertThat(resto).isEqualTo(xml.equals(VACIO) ? xml.replace("/>", "></factura>") : xml);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {NAMESPACES, ATRIBUTOS, CDATA})
+    void documentoModificadoNoVerifica(String xml) throws Exception {
+        String streaming = streaming(xml.getBytes(StandardCharsets.UTF_8), Fixtures.keyEntry());
+        int root = streaming.indexOf('>', streaming.indexOf("<f")) + 1;
+        String modificado = streaming.substring(0, root) + "<extra/>" + streaming.substring(root);
+
+        VerifyResponse res = verifier.verify(modificado.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(res.isValid()).isFalse();
+    }
+
+    private static String streaming(byte[] xml, KeyStore.PrivateKeyEntry key) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingXmlSigner.sign(xml, key, out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String signature(String signed) {
+        int start = signed.indexOf("<ds:Signature");
+        int end = signed.indexOf("</ds:Signature>");
+        assertThat(start).as(signed).isNotNegative();
+        return signed.substring(start, end + "</ds:Signature>".length());
+    }
+}
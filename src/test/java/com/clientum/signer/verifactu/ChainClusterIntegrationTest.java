@@ -0,0 +1,262 @@
+package com.clientum.signer.verifactu;
+
+import com.clientum.signer.SignerApplication;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tres nodos (contextos Spring en puertos libres) con un fichero de miembros común: una serie la
+ * avanza un solo nodo, los demás le reenvían, y al quitar al dueño de la lista otro la toma y la
+ * numeración sigue sin huecos. Si el dueño se cae, nadie la toma sin él hasta que un operador
+ * importa su último estado.
+ */
+class ChainClusterIntegrationTest {
+
+    private static final int NODOS = 3;
+    private static final String CADENA = "S:2025";
+    private static final String SECRETO = "secreto-de-prueba";
+
+    @TempDir
+    Path dir;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient http = HttpClient.newHttpClient();
+    private final List<String> urls = new ArrayList<>();
+    private final List<ConfigurableApplicationContext> nodos = new ArrayList<>();
+    private Path members;
+
+    @BeforeEach
+    void arrancar() throws Exception {
+        for (int n = 0; n < NODOS; n++) urls.add("http://localhost:" + puertoLibre());
+        members = dir.resolve("members");
+        Files.write(members, urls);
+        ExecutorService pool = Executors.newFixedThreadPool(NODOS);
+        try {
+            // A la vez: cada nodo toma al arrancar sus cadenas preguntando a los demás
+            List<Future<ConfigurableApplicationContext>> fs = new ArrayList<>();
+            for (int n = 0; n < NODOS; n++) {
+                int nodo = n;
+                fs.add(pool.submit(() -> arrancar(nodo)));
+            }
+            for (var f : fs) nodos.add(f.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private ConfigurableApplicationContext arrancar(int n) {
+        Map<String, Object> props = new LinkedHashMap<>();
+        props.put("PORT", URI.create(urls.get(n)).getPort());
+        props.put("SIGNER_CLUSTER_SELF", urls.get(n));
+        props.put("SIGNER_CLUSTER_MEMBERS_FILE", members.toString());
+        props.put("SIGNER_CLUSTER_SECRET", SECRETO);
+        props.put("SIGNER_CLUSTER_RELOAD_SECONDS", 1);
+        props.put("SIGNER_VERIFACTU_DIR", dir.resolve("nodo" + n).toString());
+        props.put("SIGNER_JOBS_DIR", dir.resolve("jobs" + n).toString());
+        props.put("spring.main.banner-mode", "off");
+        return new SpringApplicationBuilder(SignerApplication.class).properties(props).run();
+    }
+
+    @AfterEach
+    void parar() {
+        for (ConfigurableApplicationContext ctx : nodos) ctx.close();
+    }
+
+    @Test
+    void unSoloDuenoReenvioYTraspaso() throws Exception {
+        // Cada factura entra por un nodo distinto, varias a la vez
+        List<Map<String, Object>> registros = registrar(0, 30);
+
+        int dueno = dueno();
+        comprobarCadena(registros, 1, "INIT");
+        assertThat(indexados(dueno, 1)).isEqualTo(30);
+        for (int n = 0; n < NODOS; n++) {
+            if (n == dueno) continue;
+            assertThat(nodos.get(n).getBean(VerifactuService.class).propia(CADENA)).isFalse();
+            assertThat(indexados(n, 1)).as("registros de la cadena en el nodo %d", n).isZero();
+            assertThat(peticiones(n, "forwarded")).as("reenviadas por el nodo %d", n).isPositive();
+        }
+        assertThat(peticiones(dueno, "local")).isEqualTo(30);
+
+        // Se quita al dueño de la lista (sigue en marcha) y otro toma la cadena
+        quitar(dueno, false);
+
+        String ultima = (String) registros.get(registros.size() - 1).get("huella");
+        List<Map<String, Object>> siguientes = registrar(30, 10);
+        comprobarCadena(siguientes, 31, ultima);
+
+        int nuevo = dueno();
+        assertThat(nuevo).isNotEqualTo(dueno);
+        assertThat(nodos.get(dueno).getBean(VerifactuService.class).propia(CADENA)).isFalse();
+        // El nuevo dueño adopta el último estado y sólo indexa lo que registra él
+        assertThat(indexados(nuevo, 31)).isEqualTo(10);
+        assertThat(indexados(dueno, 31)).isZero();
+    }
+
+    @Test
+    void duenoCaidoNoRepiteNumeros() throws Exception {
+        List<Map<String, Object>> registros = registrar(0, 10);
+        int dueno = dueno();
+        Map<String, Object> ultimo = registros.get(registros.size() - 1);
+
+        // El dueño se cae con la cadena al día y se quita de la lista: nadie sigue por su cuenta
+        nodos.get(dueno).close();
+        List<String> quedan = quitar(dueno, true);
+        for (int i = 10; i < 16; i++) {
+            HttpResponse<byte[]> res = enviar(quedan.get(i % quedan.size()), "/api/verifactu/rf", factura(i), Map.of());
+            assertThat(res.statusCode()).as("registro %d: %s", i, new String(res.body())).isEqualTo(503);
+        }
+        for (int n = 0; n < NODOS; n++) {
+            if (n != dueno) assertThat(indexados(n, 1)).as("registros en el nodo %d", n).isZero();
+        }
+
+        // El operador importa el último estado en el nuevo dueño y la numeración sigue
+        String nuevo = new ChainCluster.Ring(quedan, 128).owner(CADENA);
+        HttpResponse<byte[]> imp = enviar(nuevo, "/api/verifactu/cluster/importar",
+                Map.of("cadena", CADENA, "numero", numero(ultimo), "huella", ultimo.get("huella")),
+                Map.of("X-Clientum-Cluster-Token", SECRETO));
+        assertThat(imp.statusCode()).as(new String(imp.body())).isEqualTo(200);
+
+        List<Map<String, Object>> siguientes = registrar(16, 5);
+        comprobarCadena(siguientes, 11, (String) ultimo.get("huella"));
+    }
+
+    /**
+     * Quita el nodo {@code n} del fichero de miembros y espera a que lo vean los demás (y él mismo
+     * si sigue en marcha).
+     */
+    private List<String> quitar(int n, boolean caido) throws Exception {
+        List<String> quedan = new ArrayList<>(urls);
+        quedan.remove(n);
+        Files.write(members, quedan);
+        quedan.sort(null);
+        for (int i = 0; i < NODOS; i++) {
+            if (caido && i == n) continue;
+            ChainCluster cluster = nodos.get(i).getBean(ChainCluster.class);
+            // members() va ordenada, igual en todos los nodos
+            long limite = System.nanoTime() + 30_000_000_000L;
+            while (!cluster.members().equals(quedan) && System.nanoTime() < limite) Thread.sleep(100);
+            assertThat(cluster.members()).as("miembros en el nodo %d", i).isEqualTo(quedan);
+        }
+        return quedan;
+    }
+
+    /** Registra {@code cuantas} facturas de la serie S repartidas entre los nodos de la lista actual. */
+    private List<Map<String, Object>> registrar(int desde, int cuantas) throws Exception {
+        List<String> lista = Files.readAllLines(members);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Map<String, Object>>> fs = new ArrayList<>();
+            for (int i = desde; i < desde + cuantas; i++) {
+                int n = i;
+                fs.add(pool.submit(() -> post(lista.get(n % lista.size()), factura(n))));
+            }
+            List<Map<String, Object>> out = new ArrayList<>();
+            for (var f : fs) out.add(f.get());
+            out.sort((a, b) -> Long.compare(numero(a), numero(b)));
+            return out;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Map<String, Object> post(String url, Map<String, Object> factura) throws Exception {
+        HttpResponse<byte[]> res = enviar(url, "/api/verifactu/rf", factura, Map.of());
+        assertThat(res.statusCode()).as("registro en %s: %s", url, new String(res.body())).isEqualTo(200);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> body = mapper.readValue(res.body(), Map.class);
+        return body;
+    }
+
+    private HttpResponse<byte[]> enviar(String url, String path, Object body, Map<String, String> headers)
+            throws Exception {
+        HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(url + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(mapper.writeValueAsBytes(body)));
+        headers.forEach(req::header);
+        return http.send(req.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    /** Números consecutivos desde {@code primero} y cada encadenado igual a la huella anterior. */
+    private static void comprobarCadena(List<Map<String, Object>> registros, long primero, String anterior) {
+        for (int i = 0; i < registros.size(); i++) {
+            Map<String, Object> r = registros.get(i);
+            assertThat(numero(r)).isEqualTo(primero + i);
+            assertThat(r.get("encadenado")).as("encadenado de %d", numero(r)).isEqualTo(anterior);
+            anterior = (String) r.get("huella");
+        }
+    }
+
+    /** Nodo que tiene la cadena (exactamente uno). */
+    private int dueno() {
+        int dueno = -1;
+        for (int n = 0; n < NODOS; n++) {
+            if (nodos.get(n).getBean(VerifactuService.class).propia(CADENA)) {
+                assertThat(dueno).as("la cadena sólo puede ser de un nodo").isEqualTo(-1);
+                dueno = n;
+            }
+        }
+        assertThat(dueno).as("algún nodo tiene la cadena").isNotEqualTo(-1);
+        return dueno;
+    }
+
+    /** Registros de la cadena en el índice del nodo {@code n}, consecutivos desde {@code desde}. */
+    private long indexados(int n, long desde) {
+        RecordIndex index = nodos.get(n).getBean(RecordIndex.class);
+        long count = 0;
+        while (index.get(CADENA, desde + count) != null) count++;
+        return count;
+    }
+
+    private double peticiones(int n, String route) {
+        Counter c = nodos.get(n).getBean(MeterRegistry.class)
+                .find("verifactu.cluster.requests").tag("route", route).counter();
+        return c == null ? 0 : c.count();
+    }
+
+    private static long numero(Map<String, Object> r) {
+        return ((Number) r.get("numero")).longValue();
+    }
+
+    private static Map<String, Object> factura(int n) {
+        Map<String, Object> f = new LinkedHashMap<>();
+        f.put("serie", "S");
+        f.put("ejercicio", 2025);
+        f.put("emisorNif", "B00000000");
+        f.put("receptorNif", "A" + n);
+        f.put("fecha", "2025-01-01");
+        f.put("total", n + ".00");
+        f.put("idFactura", "F-" + n);
+        return f;
+    }
+
+    private static int puertoLibre() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.clientum.signer.verifactu;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Recuperación del diario: una cola truncada o con CRC inválido se descarta sin perder los
+ * registros anteriores y el diario sigue admitiendo escrituras; tras compactar (también si la
+ * compactación se interrumpe después del rename del snapshot) gana el snapshot.
+ */
+class ChainJournalTest {
+
+    private static final long SIN_COMPACTAR = 64L * 1024 * 1024;
+    private static final int CABECERA = 16;
+    // [longitud][crc] + [len clave]["x"][numero][len huella]["hN"]
+    private static final int REGISTRO = 8 + 2 + 1 + 8 + 2 + 2;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void colaTruncadaSeDescarta() throws Exception {
+        escribirTres();
+
+        // Caída a mitad del tercer registro
+        try (FileChannel ch = FileChannel.open(dir.resolve("chains.journal"), StandardOpenOption.WRITE)) {
+            ch.truncate(CABECERA + 2L * REGISTRO + REGISTRO / 2);
+        }
+
+        comprobarRecuperacion();
+    }
+
+    @Test
+    void colaConCrcInvalidoSeDescarta() throws Exception {
+        escribirTres();
+
+        // Último byte de la huella del tercer registro cambiado: la longitud cuadra, el CRC no
+        try (FileChannel ch = FileChannel.open(dir.resolve("chains.journal"), StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(new byte[] {'X'}), CABECERA + 3L * REGISTRO - 1);
+        }
+
+        comprobarRecuperacion();
+    }
+
+    @Test
+    void reabreTrasCompactar() throws Exception {
+        try (ChainJournal j = ChainJournal.open(dir, 0)) {
+            for (int i = 1; i <= 1000; i++) j.awaitDurable(j.append(i % 2 == 0 ? "a" : "b", i, "h" + i));
+        }
+        assertThat(dir.resolve("chains.snapshot")).exists();
+
+        try (ChainJournal j = ChainJournal.open(dir, 0)) {
+            assertThat(j.entries()).isEqualTo(Map.of(
+                    "a", new ChainJournal.Entry("a", 1000, "h1000"),
+                    "b", new ChainJournal.Entry("b", 999, "h999")));
+            j.awaitDurable(j.append("a", 1001, "h1001"));
+        }
+        try (ChainJournal j = ChainJournal.open(dir, 0)) {
+            assertThat(j.entries().get("a").numero()).isEqualTo(1001);
+            assertThat(j.entries().get("b").numero()).isEqualTo(999);
+        }
+    }
+
+    @Test
+    void compactacionInterrumpidaTrasElRename() throws Exception {
+        try (ChainJournal j = ChainJournal.open(dir, SIN_COMPACTAR)) {
+            for (int i = 1; i <= 5; i++) j.awaitDurable(j.append("a", i, "h" + i));
+        }
+        Path viejo = dir.resolve("viejo.journal");
+        Files.copy(dir.resolve("chains.journal"), viejo);
+
+        // Escribe hasta que la compactación deja el snapshot (y un diario nuevo vacío)
+        long compactado = 5;
+        try (ChainJournal j = ChainJournal.open(dir, 0)) {
+            while (!Files.exists(dir.resolve("chains.snapshot"))) {
+                compactado++;
+                j.awaitDurable(j.append("a", compactado, "h" + compactado));
+            }
+        }
+
+        // Caída entre el rename del snapshot y el reinicio del diario: queda el de la generación anterior
+        Files.move(viejo, dir.resolve("chains.journal"), StandardCopyOption.REPLACE_EXISTING);
+
+        try (ChainJournal j = ChainJournal.open(dir, SIN_COMPACTAR)) {
+            assertThat(j.entries().get("a").numero()).isEqualTo(compactado);
+            j.awaitDurable(j.append("a", compactado + 1, "h" + (compactado + 1)));
+        }
+        try (ChainJournal j = ChainJournal.open(dir, SIN_COMPACTAR)) {
+            assertThat(j.entries().get("a").numero()).isEqualTo(compactado + 1);
+        }
+    }
+
+    private void escribirTres() throws IOException {
+        try (ChainJournal j = ChainJournal.open(dir, SIN_COMPACTAR)) {
+            j.awaitDurable(j.append("a", 1, "h1"));
+            j.awaitDurable(j.append("b", 2, "h2"));
+            j.awaitDurable(j.append("c", 3, "h3"));
+        }
+    }
+
+    /** Quedan los dos primeros; lo que se escriba después sobrevive a otra reapertura. */
+    private void comprobarRecuperacion() throws IOException {
+        try (ChainJournal j = ChainJournal.open(dir, SIN_COMPACTAR)) {
+            assertThat(j.entries()).containsOnlyKeys("a", "b");
+            assertThat(j.entries().get("b")).isEqualTo(new ChainJournal.Entry("b", 2, "h2"));
+            j.awaitDurable(j.append("c", 4, "h4"));
+            j.awaitDurable(j.append("d", 5, "h5"));
+        }
+        try (ChainJournal j = ChainJournal.open(dir, SIN_COMPACTAR)) {
+            assertThat(j.entries()).containsOnlyKeys("a", "b", "c", "d");
+            assertThat(j.entries().get("c")).isEqualTo(new ChainJournal.Entry("c", 4, "h4"));
+            assertThat(j.entries().get("d")).isEqualTo(new ChainJournal.Entry("d", 5, "h5"));
+        }
+    }
+}
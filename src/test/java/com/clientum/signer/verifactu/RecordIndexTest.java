@@ -0,0 +1,120 @@
+package com.clientum.signer.verifactu;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Reapertura del índice tras una caída a mitad de escritura: una cola truncada en ids.log o en
+ * el fichero de huellas de la cadena se descarta, lo anterior sigue encontrándose y el registro
+ * perdido puede volver a indexarse.
+ */
+class RecordIndexTest {
+
+    private static final String CADENA = "A:2025";
+    private static final int IDS_HEADER = 16;
+    private static final int CHAIN_HEADER = 512;
+    private static final int HUELLA = 32;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void idsConColaTruncada() throws Exception {
+        indexarTres();
+
+        // [longitud][crc] + [len id]["Fn"][len clave]["A:2025"][numero]
+        int registro = 8 + 2 + 2 + 2 + CADENA.length() + 8;
+        truncar(dir.resolve("ids.log"), IDS_HEADER + 2L * registro + registro / 2);
+
+        try (RecordIndex index = RecordIndex.open(dir)) {
+            assertThat(index.get("F1").numero()).isEqualTo(1);
+            assertThat(index.get("F2").numero()).isEqualTo(2);
+            assertThat(index.get("F3")).isNull();
+            // Las huellas no se han tocado
+            assertThat(index.get(CADENA, 3).huella()).isEqualTo(huella(3));
+
+            // El reintento del registro 3 vuelve a indexar su id; lo siguiente se añade detrás
+            index.put(CADENA, 3, huella(3), huella(2), "F3");
+            index.put(CADENA, 4, huella(4), huella(3), "F4");
+            index.awaitDurable();
+        }
+        comprobarCuatro();
+    }
+
+    @Test
+    void huellasConColaTruncada() throws Exception {
+        indexarTres();
+
+        // Caída a mitad de la huella del registro 3
+        truncar(cadena(), CHAIN_HEADER + 2L * HUELLA + HUELLA / 2);
+
+        try (RecordIndex index = RecordIndex.open(dir)) {
+            assertThat(index.get(CADENA, 2)).isEqualTo(
+                    new RecordIndex.Registro(CADENA, 2, huella(2), huella(1)));
+            assertThat(index.get(CADENA, 3)).isNull();
+            assertThat(index.get("F3")).isNull();
+            assertThat(index.last().get(CADENA)).isEqualTo(new ChainJournal.Entry(CADENA, 2, huella(2)));
+
+            index.put(CADENA, 3, huella(3), huella(2), "F3");
+            index.put(CADENA, 4, huella(4), huella(3), "F4");
+            index.awaitDurable();
+        }
+        comprobarCuatro();
+    }
+
+    private void indexarTres() throws IOException {
+        try (RecordIndex index = RecordIndex.open(dir)) {
+            index.put(CADENA, 1, huella(1), "INIT", "F1");
+            index.put(CADENA, 2, huella(2), huella(1), "F2");
+            index.put(CADENA, 3, huella(3), huella(2), "F3");
+            index.awaitDurable();
+        }
+    }
+
+    private void comprobarCuatro() throws IOException {
+        try (RecordIndex index = RecordIndex.open(dir)) {
+            for (int n = 1; n <= 4; n++) {
+                RecordIndex.Registro r = index.get("F" + n);
+                assertThat(r).as("F" + n).isEqualTo(
+                        new RecordIndex.Registro(CADENA, n, huella(n), n == 1 ? "INIT" : huella(n - 1)));
+            }
+            assertThat(index.last().get(CADENA).numero()).isEqualTo(4);
+        }
+    }
+
+    private Path cadena() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            List<Path> chains = files.filter(p -> p.toString().endsWith(".chain")).toList();
+            assertThat(chains).hasSize(1);
+            return chains.get(0);
+        }
+    }
+
+    private static void truncar(Path file, long size) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.truncate(size);
+        }
+    }
+
+    private static String huella(int n) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(("registro " + n).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(d);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
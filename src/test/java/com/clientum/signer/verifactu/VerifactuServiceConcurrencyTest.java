@@ -0,0 +1,238 @@
+package com.clientum.signer.verifactu;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Muchos hilos registrando a la vez en una serie y en varias: cada cadena debe quedar con números
+ * contiguos desde 1, sin repetidos, y cada registro encadenado a la huella del anterior.
+ */
+class VerifactuServiceConcurrencyTest {
+
+    private static final int HILOS = 16;
+    private static final int POR_HILO = 200;
+    private static final int EJERCICIO = 2025;
+
+    @TempDir
+    Path dir;
+
+    private ChainJournal journal;
+    private RecordIndex index;
+    private VerifactuService service;
+
+    @BeforeEach
+    void abrir() throws Exception {
+        journal = ChainJournal.open(dir, 64L * 1024 * 1024);
+        index = RecordIndex.open(dir.resolve("registros"));
+        service = new VerifactuService(journal, index);
+    }
+
+    @AfterEach
+    void cerrar() throws Exception {
+        index.close();
+        journal.close();
+    }
+
+    @Test
+    void unaSerieDesdeVariosHilos() throws Exception {
+        Map<String, List<VerifactuService.RegistroResult>> porSerie = lanzar(1, false);
+
+        comprobarCadena(porSerie.get("A"), HILOS * POR_HILO);
+        comprobarIndice("A", HILOS * POR_HILO);
+    }
+
+    @Test
+    void variasSeriesDesdeVariosHilos() throws Exception {
+        Map<String, List<VerifactuService.RegistroResult>> porSerie = lanzar(4, false);
+
+        assertThat(porSerie).hasSize(4);
+        for (var e : porSerie.entrySet()) {
+            comprobarCadena(e.getValue(), HILOS * POR_HILO / 4);
+            comprobarIndice(e.getKey(), HILOS * POR_HILO / 4);
+        }
+    }
+
+    @Test
+    void registroUnitarioYMasivoMezclados() throws Exception {
+        Map<String, List<VerifactuService.RegistroResult>> porSerie = lanzar(3, true);
+
+        assertThat(porSerie).hasSize(3);
+        int total = porSerie.values().stream().mapToInt(List::size).sum();
+        assertThat(total).isEqualTo(HILOS * POR_HILO);
+        for (var e : porSerie.entrySet()) {
+            comprobarCadena(e.getValue(), e.getValue().size());
+            comprobarIndice(e.getKey(), e.getValue().size());
+        }
+    }
+
+    @Test
+    void reintentosConcurrentesNoAvanzanLaCadena() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(HILOS);
+        CountDownLatch salida = new CountDownLatch(1);
+        List<Future<VerifactuService.RegistroResult>> fs = new ArrayList<>();
+        try {
+            for (int h = 0; h < HILOS; h++) {
+                fs.add(pool.submit(() -> {
+                    salida.await();
+                    return service.generarRegistro(factura("R", 1, "F-1"));
+                }));
+            }
+            salida.countDown();
+            List<Long> numeros = new ArrayList<>();
+            for (var f : fs) numeros.add(f.get().numero);
+            assertThat(numeros).containsOnly(1L);
+        } finally {
+            pool.shutdownNow();
+        }
+        assertThat(index.get("R:" + EJERCICIO, 2L)).isNull();
+    }
+
+    @Test
+    void mismoIdFacturaEnVariasSeriesALaVez() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(HILOS);
+        CountDownLatch salida = new CountDownLatch(1);
+        List<Future<VerifactuService.RegistroResult>> fs = new ArrayList<>();
+        try {
+            for (int h = 0; h < HILOS; h++) {
+                String serie = serie(h);
+                fs.add(pool.submit(() -> {
+                    salida.await();
+                    // En lote: un conflicto se devuelve en el resultado y no como excepción
+                    return service.generarRegistros(List.of(factura(serie, 1, "F-X"))).get(0);
+                }));
+            }
+            salida.countDown();
+            int registrados = 0;
+            for (var f : fs) {
+                VerifactuService.RegistroResult rr = f.get();
+                if (rr.error == null) {
+                    registrados++;
+                } else {
+                    assertThat(rr.error.getStatusCode().value()).isEqualTo(409);
+                }
+            }
+            assertThat(registrados).isEqualTo(1);
+        } finally {
+            pool.shutdownNow();
+        }
+        // Sólo la serie que se lo quedó tiene registro; las demás no han avanzado
+        int conRegistro = 0;
+        for (int h = 0; h < HILOS; h++) {
+            if (index.get(serie(h) + ":" + EJERCICIO, 1L) != null) conRegistro++;
+        }
+        assertThat(conRegistro).isEqualTo(1);
+    }
+
+    /**
+     * HILOS hilos, POR_HILO facturas cada uno, repartidas en {@code series} series. Con
+     * {@code masivo} los hilos impares registran en lotes de 10 (mezclando series).
+     */
+    private Map<String, List<VerifactuService.RegistroResult>> lanzar(int series, boolean masivo) throws Exception {
+        Map<String, List<VerifactuService.RegistroResult>> porSerie = new ConcurrentHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(HILOS);
+        CountDownLatch salida = new CountDownLatch(1);
+        List<Future<?>> fs = new ArrayList<>();
+        try {
+            for (int h = 0; h < HILOS; h++) {
+                int hilo = h;
+                fs.add(pool.submit(() -> {
+                    salida.await();
+                    List<Map<String, Object>> lote = new ArrayList<>();
+                    for (int i = 0; i < POR_HILO; i++) {
+                        String serie = serie((hilo * POR_HILO + i) % series);
+                        Map<String, Object> f = factura(serie, hilo * POR_HILO + i, null);
+                        if (masivo && hilo % 2 == 1) {
+                            lote.add(f);
+                            if (lote.size() == 10) registrarLote(lote, porSerie);
+                        } else {
+                            anotar(porSerie, serie, service.generarRegistro(f));
+                        }
+                    }
+                    if (!lote.isEmpty()) registrarLote(lote, porSerie);
+                    return null;
+                }));
+            }
+            salida.countDown();
+            for (var f : fs) f.get();
+        } finally {
+            pool.shutdownNow();
+        }
+        return porSerie;
+    }
+
+    private void registrarLote(List<Map<String, Object>> lote, Map<String, List<VerifactuService.RegistroResult>> porSerie) {
+        List<VerifactuService.RegistroResult> rs = service.generarRegistros(lote);
+        assertThat(rs).hasSize(lote.size());
+        for (int i = 0; i < lote.size(); i++) {
+            anotar(porSerie, (String) lote.get(i).get("serie"), rs.get(i));
+        }
+        lote.clear();
+    }
+
+    private static void anotar(Map<String, List<VerifactuService.RegistroResult>> porSerie, String serie,
+                               VerifactuService.RegistroResult rr) {
+        assertThat(rr.error).isNull();
+        assertThat(rr.existente).isFalse();
+        porSerie.computeIfAbsent(serie, s -> new CopyOnWriteArrayList<>()).add(rr);
+    }
+
+    /** Números 1..n sin huecos ni repetidos y cada encadenado igual a la huella anterior. */
+    private static void comprobarCadena(List<VerifactuService.RegistroResult> rs, int n) {
+        List<VerifactuService.RegistroResult> orden = new ArrayList<>(rs);
+        orden.sort(Comparator.comparingLong(r -> r.numero));
+        assertThat(orden).hasSize(n);
+        String anterior = "INIT";
+        for (int i = 0; i < n; i++) {
+            VerifactuService.RegistroResult r = orden.get(i);
+            assertThat(r.numero).isEqualTo(i + 1L);
+            assertThat(r.encadenado).as("encadenado de %d", r.numero).isEqualTo(anterior);
+            anterior = r.huella;
+        }
+    }
+
+    /** Lo mismo sobre lo persistido en el índice, y que la cadena no sigue más allá de n. */
+    private void comprobarIndice(String serie, int n) {
+        String key = serie + ":" + EJERCICIO;
+        String anterior = "INIT";
+        for (long numero = 1; numero <= n; numero++) {
+            RecordIndex.Registro r = index.get(key, numero);
+            assertThat(r).as("registro %s %d", key, numero).isNotNull();
+            assertThat(r.encadenado()).isEqualTo(anterior);
+            anterior = r.huella();
+        }
+        assertThat(index.get(key, n + 1L)).isNull();
+    }
+
+    private static String serie(int i) {
+        return String.valueOf((char) ('A' + i));
+    }
+
+    private static Map<String, Object> factura(String serie, int n, String idFactura) {
+        Map<String, Object> f = new HashMap<>();
+        f.put("serie", serie);
+        f.put("ejercicio", EJERCICIO);
+        f.put("emisorNif", "B00000000");
+        f.put("receptorNif", "A" + n);
+        f.put("fecha", "2025-01-01");
+        f.put("total", n + ".00");
+        if (idFactura != null) f.put("idFactura", idFactura);
+        return f;
+    }
+}